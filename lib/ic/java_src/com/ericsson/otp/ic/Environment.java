@@ -61,6 +61,26 @@ public class Environment {
   private boolean clientT;
   private boolean serverT;
 
+  // Message heads, matched on the encoded message so that only the parts
+  // needed for dispatch are decoded
+  private static final com.ericsson.otp.erlang.OtpPattern callHead =
+    com.ericsson.otp.erlang.OtpPattern.compile(
+      new com.ericsson.otp.erlang.OtpErlangTuple(
+        new com.ericsson.otp.erlang.OtpErlangObject[] {
+	  new com.ericsson.otp.erlang.OtpErlangAtom("$gen_call"),
+	  new com.ericsson.otp.erlang.OtpErlangTuple(
+	    new com.ericsson.otp.erlang.OtpErlangObject[] {
+	      com.ericsson.otp.erlang.OtpPattern.var("Caller"),
+	      com.ericsson.otp.erlang.OtpPattern.var("Ref") }),
+	  com.ericsson.otp.erlang.OtpPattern.var("Request") }));
+
+  private static final com.ericsson.otp.erlang.OtpPattern castHead =
+    com.ericsson.otp.erlang.OtpPattern.compile(
+      new com.ericsson.otp.erlang.OtpErlangTuple(
+        new com.ericsson.otp.erlang.OtpErlangObject[] {
+	  com.ericsson.otp.erlang.OtpPattern.var("Type"),
+	  com.ericsson.otp.erlang.OtpPattern.var("Request") }));
+
 
   /**
     Client stub side constructor.
@@ -317,43 +337,41 @@ public class Environment {
   }
 
   /**
-    Decodes the message head and writes over input stream.
+    Decodes the message head from an input stream.
     Assignes message data to private variables of the Environment Object.
+    The head is matched on the encoded message, and afterwards the input
+    stream of the Environment covers the request, positioned after the
+    operation name.
     **/
   public void uHead(com.ericsson.otp.erlang.OtpInputStream _is) throws java.lang.Exception {
     
-    is = _is;
-    is.read_tuple_head();
-    type = is.read_atom();
+    com.ericsson.otp.erlang.OtpPattern.Bindings b;
+    int start = _is.getPos();
     
-    if (type.equals("$gen_call")) {  // Call type operation
-      is.read_tuple_head();
-      caller = is.read_pid();
-      ref = is.read_ref();
-      tag = is.peek();
-      
-      switch (tag) {
-      case com.ericsson.otp.erlang.OtpExternal.atomTag:
-      case com.ericsson.otp.erlang.OtpExternal.atomUtf8Tag:
-      case com.ericsson.otp.erlang.OtpExternal.smallAtomUtf8Tag:
-	operation = is.read_atom();
-	break;
-      default:
-	is.read_tuple_head();
-	operation = is.read_atom();
-      }
+    if ((b = callHead.match(_is)) != null) {  // Call type operation
+      type = "$gen_call";
+      caller = b.stream("Caller").read_pid();
+      ref = b.stream("Ref").read_ref();
     } else {  // Cast type operation
-      tag = is.peek();
-      switch (tag) {
-      case com.ericsson.otp.erlang.OtpExternal.atomTag:
-      case com.ericsson.otp.erlang.OtpExternal.atomUtf8Tag:
-      case com.ericsson.otp.erlang.OtpExternal.smallAtomUtf8Tag:
-	operation = is.read_atom();
-	break;
-      default:
-	is.read_tuple_head();
-	operation = is.read_atom();
-      }
+      _is.setPos(start);
+      if ((b = castHead.match(_is)) == null)
+	throw new com.ericsson.otp.erlang.OtpErlangDecodeException(
+	  "Bad message head");
+      type = b.stream("Type").read_atom();
+    }
+    
+    is = b.stream("Request");
+    tag = is.peek();
+    
+    switch (tag) {
+    case com.ericsson.otp.erlang.OtpExternal.atomTag:
+    case com.ericsson.otp.erlang.OtpExternal.atomUtf8Tag:
+    case com.ericsson.otp.erlang.OtpExternal.smallAtomUtf8Tag:
+      operation = is.read_atom();
+      break;
+    default:
+      is.read_tuple_head();
+      operation = is.read_atom();
     }
   }
 
@@ -20,7 +20,11 @@
 package com.ericsson.otp.erlang;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Random;
 
 /**
@@ -59,6 +63,13 @@ import java.util.Random;
 public abstract class AbstractConnection extends Thread {
     protected static final int headerLen = 2048; // more than enough
 
+    // encoding buffers for outgoing messages on this connection, see
+    // takeArena()
+    private final OtpOutputStream[] arena = new OtpOutputStream[maxArenaBuffers];
+    private int arenaCount = 0;
+    private static final int maxArenaBuffers = 4;
+    private static final int maxArenaSize = 65536;
+
     protected static final byte passThrough = (byte) 0x70;
     protected static final byte version = (byte) 0x83;
 
@@ -105,6 +116,24 @@ public abstract class AbstractConnection extends Thread {
 
     private int flags = 0;
 
+    // outgoing payloads at least this big are compressed, 0 for never
+    private volatile int compressionThreshold = 0;
+
+    // estimated compressed size of a payload in 256ths of its plain size,
+    // and the number of payloads not compressed since the last sample
+    private int compressionRatio = 0;
+    private int compressionSkipped = 0;
+    private static final int worthCompressing = 230;
+    private static final int compressionSampleInterval = 16;
+
+    // limits on incoming frames and the terms in them, 0 for none
+    private volatile int maxFrameSize = 0;
+    private volatile int maxTermDepth = 0;
+    private volatile int maxTermElements = 0;
+
+    // incoming frames dropped for exceeding the limits
+    private volatile long rejectedFrames = 0;
+
     static {
 	// trace this connection?
 	final String trace = System.getProperties().getProperty(
@@ -216,6 +245,255 @@ public abstract class AbstractConnection extends Thread {
      */
     public abstract void deliver(OtpMsg msg);
 
+    /**
+     * Encode and send a message to a named process on a remote node. The
+     * control header and the message are encoded next to each other in a
+     * buffer taken from a small pool on the connection, and written with a
+     * single call.
+     * 
+     * @param dest
+     *            the name of the remote process.
+     * @param msg
+     *            the message to send.
+     * 
+     * @exception java.io.IOException
+     *                if the connection is not active or a communication error
+     *                occurs.
+     */
+    protected void sendMsg(final OtpErlangPid from, final String dest,
+	    final OtpErlangObject msg) throws IOException {
+	final OtpOutputStream frame = regSendHeader(from, dest);
+
+	try {
+	    final int payloadOffset = frame.size();
+	    frame.deferBinaries();
+	    frame.write_any(msg);
+	    sendFrame(frame, payloadOffset);
+	} finally {
+	    releaseArena(frame);
+	}
+    }
+
+    /**
+     * Encode and send a message to a process on a remote node, in the same
+     * way as {@link #sendMsg(OtpErlangPid, String, OtpErlangObject)}.
+     * 
+     * @param dest
+     *            the Erlang PID of the remote process.
+     * @param msg
+     *            the message to send.
+     * 
+     * @exception java.io.IOException
+     *                if the connection is not active or a communication error
+     *                occurs.
+     */
+    protected void sendMsg(final OtpErlangPid from, final OtpErlangPid dest,
+	    final OtpErlangObject msg) throws IOException {
+	final OtpOutputStream frame = sendHeader(dest);
+
+	try {
+	    final int payloadOffset = frame.size();
+	    frame.deferBinaries();
+	    frame.write_any(msg);
+	    sendFrame(frame, payloadOffset);
+	} finally {
+	    releaseArena(frame);
+	}
+    }
+
+    /*
+     * Compress the payload of a frame if it is worth it, fix up the length
+     * in the preamble and send it. Compression is done before taking the
+     * connection lock, so it does not hold up other senders.
+     */
+    private void sendFrame(final OtpOutputStream frame, final int payloadOffset)
+	    throws IOException {
+	final OtpOutputStream out = compressPayload(frame, payloadOffset);
+
+	// fix up length in preamble
+	final long length = out.size() - 4 + out.deferredLength();
+	if (length > 0xffffffffL) {
+	    throw new IOException("Message too large: " + length + " bytes");
+	}
+	out.poke4BE(0, length);
+
+	do_send(out, payloadOffset);
+    }
+
+    /*
+     * Return a copy of the frame with the payload compressed, or the frame
+     * itself if the payload is below the threshold, or recent payloads did
+     * not compress well. Payloads with binaries sent by reference are not
+     * compressed, as their bytes are not in the frame.
+     */
+    private OtpOutputStream compressPayload(final OtpOutputStream frame,
+	    final int payloadOffset) {
+	final int threshold = compressionThreshold;
+	final int len = frame.size() - payloadOffset;
+	if (threshold <= 0 || len < threshold || frame.deferredLength() > 0) {
+	    return frame;
+	}
+	// the estimate is shared by all senders on the connection; races
+	// only make it less accurate
+	if (compressionRatio > worthCompressing
+		&& ++compressionSkipped < compressionSampleInterval) {
+	    return frame;
+	}
+	compressionSkipped = 0;
+
+	final OtpOutputStream z = new OtpOutputStream(payloadOffset + len / 2);
+	z.write(frame, 0, payloadOffset);
+	final boolean smaller = z.write_compressed(frame, payloadOffset,
+		java.util.zip.Deflater.DEFAULT_COMPRESSION);
+	final int ratio = smaller ? (int) ((z.size() - payloadOffset) * 256L / len)
+		: 256;
+	compressionRatio = (3 * compressionRatio + ratio) / 4;
+	return smaller ? z : frame;
+    }
+
+    /**
+     * Compress the payloads of messages sent on this connection when they
+     * are encoded to at least a given size. Payloads are sent as
+     * compressed terms, which the receiving node inflates as part of
+     * decoding. The connection keeps an estimate of how well recent
+     * payloads compressed; while they do not shrink by at least a tenth,
+     * only one payload in 16 is compressed, to update the estimate.
+     * 
+     * <p>
+     * This trades CPU time on both nodes for bandwidth, and is meant for
+     * slow links. Compression is off by default.
+     * </p>
+     * 
+     * @param threshold
+     *            the encoded size in bytes from which payloads are
+     *            compressed, or 0 to never compress them.
+     */
+    public void setCompressionThreshold(final int threshold) {
+	compressionThreshold = threshold;
+    }
+
+    /**
+     * Get the encoded size from which message payloads are compressed.
+     * 
+     * @return the threshold in bytes, or 0 if payloads are not compressed.
+     */
+    public int getCompressionThreshold() {
+	return compressionThreshold;
+    }
+
+    /**
+     * Limit the size of the frames received on this connection. Larger
+     * frames are read past without being buffered, and the messages in them
+     * are lost. Frames of 2GB or more are always dropped.
+     * 
+     * @param size
+     *            the greatest frame size in bytes, or 0 for no limit.
+     */
+    public void setMaxFrameSize(final int size) {
+	maxFrameSize = size;
+    }
+
+    /**
+     * Get the greatest size of the frames received on this connection.
+     * 
+     * @return the size limit in bytes, or 0 if there is none.
+     */
+    public int getMaxFrameSize() {
+	return maxFrameSize;
+    }
+
+    /**
+     * Limit how deeply the terms received on this connection may be nested,
+     * see {@link OtpInputStream#setMaxDepth(int)}. When a limit on terms is
+     * set, the payload of each message is checked against it as it arrives,
+     * and messages that fail the check are dropped.
+     * 
+     * @param depth
+     *            the greatest depth, or 0 for no limit.
+     */
+    public void setMaxTermDepth(final int depth) {
+	maxTermDepth = depth;
+    }
+
+    /**
+     * Get the greatest depth of the terms received on this connection.
+     * 
+     * @return the depth limit, or 0 if there is none.
+     */
+    public int getMaxTermDepth() {
+	return maxTermDepth;
+    }
+
+    /**
+     * Limit the number of elements of the tuples, lists, maps and funs
+     * received on this connection, see
+     * {@link OtpInputStream#setMaxElements(int)}. Messages that exceed it
+     * are dropped as they arrive.
+     * 
+     * @param elements
+     *            the greatest number of elements, or 0 for no limit.
+     */
+    public void setMaxTermElements(final int elements) {
+	maxTermElements = elements;
+    }
+
+    /**
+     * Get the greatest number of elements of the terms received on this
+     * connection.
+     * 
+     * @return the element limit, or 0 if there is none.
+     */
+    public int getMaxTermElements() {
+	return maxTermElements;
+    }
+
+    /**
+     * Get the number of frames received on this connection that were dropped
+     * for exceeding the limits on frames and terms.
+     * 
+     * @return the number of rejected frames.
+     */
+    public long getRejectedFrames() {
+	return rejectedFrames;
+    }
+
+    /*
+     * Get a buffer for encoding an outgoing message from this connection's
+     * pool, or a new one if the pool is empty. The buffer is taken from the
+     * pool until it is released, so concurrent and nested sends (e.g. from
+     * close() after a failed write) each get their own.
+     */
+    OtpOutputStream takeArena() {
+	synchronized (arena) {
+	    if (arenaCount > 0) {
+		final OtpOutputStream s = arena[--arenaCount];
+		arena[arenaCount] = null;
+		return s;
+	    }
+	}
+	return new OtpOutputStream(headerLen);
+    }
+
+    /*
+     * Give a buffer back to the pool once its contents have been written.
+     * It is reset first, so it holds no references to binaries that were
+     * written by reference. The pool keeps a few buffers at most, and
+     * buffers that have grown large are dropped rather than kept around, so
+     * a connection holds on to no more than maxArenaBuffers * maxArenaSize
+     * bytes however many threads send on it.
+     */
+    void releaseArena(final OtpOutputStream s) {
+	if (s.capacity() > maxArenaSize) {
+	    return;
+	}
+	s.reset();
+	synchronized (arena) {
+	    if (arenaCount < maxArenaBuffers) {
+		arena[arenaCount++] = s;
+	    }
+	}
+    }
+
     /**
      * Send a pre-encoded message to a named process on a remote node.
      * 
@@ -230,11 +508,57 @@ public abstract class AbstractConnection extends Thread {
      */
     protected void sendBuf(final OtpErlangPid from, final String dest,
 	    final OtpOutputStream payload) throws IOException {
+	final OtpOutputStream header = regSendHeader(from, dest);
+
+	try {
+	    // fix up length in preamble
+	    header.poke4BE(0, header.size() + payload.size() - 4);
+
+	    do_send(header, payload);
+	} finally {
+	    releaseArena(header);
+	}
+    }
+
+    /**
+     * Send an already encoded message to a named process on a remote node,
+     * taking the encoded message from part of an array.
+     * 
+     * @param dest
+     *            the name of the remote process.
+     * @param payload
+     *            the array containing the encoded message, without version
+     *            byte.
+     * @param off
+     *            the offset of the encoded message in the array.
+     * @param len
+     *            the length of the encoded message.
+     * 
+     * @exception java.io.IOException
+     *                if the connection is not active or a communication error
+     *                occurs.
+     */
+    protected void sendBuf(final OtpErlangPid from, final String dest,
+	    final byte[] payload, final int off, final int len)
+	    throws IOException {
+	final OtpOutputStream header = regSendHeader(from, dest);
+
+	try {
+	    // fix up length in preamble
+	    header.poke4BE(0, header.size() + len - 4);
+
+	    do_send(header, payload, off, len);
+	} finally {
+	    releaseArena(header);
+	}
+    }
+
+    private OtpOutputStream regSendHeader(final OtpErlangPid from,
+	    final String dest) throws IOException {
 	if (!connected) {
 	    throw new IOException("Not connected");
 	}
-    @SuppressWarnings("resource")
-	final OtpOutputStream header = new OtpOutputStream(headerLen);
+	final OtpOutputStream header = takeArena();
 
 	// preamble: 4 byte length + "passthrough" tag + version
 	header.write4BE(0); // reserve space for length
@@ -255,10 +579,7 @@ public abstract class AbstractConnection extends Thread {
 	// version for payload
 	header.write1(version);
 
-	// fix up length in preamble
-	header.poke4BE(0, header.size() + payload.size() - 4);
-
-	do_send(header, payload);
+	return header;
     }
 
     /**
@@ -275,11 +596,57 @@ public abstract class AbstractConnection extends Thread {
      */
     protected void sendBuf(final OtpErlangPid from, final OtpErlangPid dest,
 	    final OtpOutputStream payload) throws IOException {
+	final OtpOutputStream header = sendHeader(dest);
+
+	try {
+	    // fix up length in preamble
+	    header.poke4BE(0, header.size() + payload.size() - 4);
+
+	    do_send(header, payload);
+	} finally {
+	    releaseArena(header);
+	}
+    }
+
+    /**
+     * Send an already encoded message to a process on a remote node, taking
+     * the encoded message from part of an array.
+     * 
+     * @param dest
+     *            the Erlang PID of the remote process.
+     * @param payload
+     *            the array containing the encoded message, without version
+     *            byte.
+     * @param off
+     *            the offset of the encoded message in the array.
+     * @param len
+     *            the length of the encoded message.
+     * 
+     * @exception java.io.IOException
+     *                if the connection is not active or a communication error
+     *                occurs.
+     */
+    protected void sendBuf(final OtpErlangPid from, final OtpErlangPid dest,
+	    final byte[] payload, final int off, final int len)
+	    throws IOException {
+	final OtpOutputStream header = sendHeader(dest);
+
+	try {
+	    // fix up length in preamble
+	    header.poke4BE(0, header.size() + len - 4);
+
+	    do_send(header, payload, off, len);
+	} finally {
+	    releaseArena(header);
+	}
+    }
+
+    private OtpOutputStream sendHeader(final OtpErlangPid dest)
+	    throws IOException {
 	if (!connected) {
 	    throw new IOException("Not connected");
 	}
-    @SuppressWarnings("resource")
-	final OtpOutputStream header = new OtpOutputStream(headerLen);
+	final OtpOutputStream header = takeArena();
 
 	// preamble: 4 byte length + "passthrough" tag + version
 	header.write4BE(0); // reserve space for length
@@ -299,10 +666,7 @@ public abstract class AbstractConnection extends Thread {
 	// version for payload
 	header.write1(version);
 
-	// fix up length in preamble
-	header.poke4BE(0, header.size() + payload.size() - 4);
-
-	do_send(header, payload);
+	return header;
     }
 
     /*
@@ -529,12 +893,27 @@ public abstract class AbstractConnection extends Thread {
 
 		} while (len == 0); // tick_loop
 
+		// the length is unsigned, and too large for a buffer if negative
+		final int maxLen = maxFrameSize;
+		if (len < 0 || maxLen > 0 && len > maxLen) {
+		    final long ulen = len & 0xffffffffL;
+		    if (traceLevel >= sendThreshold) {
+			System.out.println("<- REJECTED frame of " + ulen
+				+ " bytes");
+		    }
+		    skipSock(socket, ulen);
+		    rejectedFrames++;
+		    continue receive_loop;
+		}
+
 		// got a real message (maybe) - read len bytes
 		final byte[] tmpbuf = new byte[len];
 		// i = socket.getInputStream().read(tmpbuf);
 		readSock(socket, tmpbuf);
         ibuf.close();
 		ibuf = new OtpInputStream(tmpbuf, flags);
+		ibuf.setMaxDepth(maxTermDepth);
+		ibuf.setMaxElements(maxTermElements);
 
 		if (ibuf.read1() != passThrough) {
 		    break receive_loop;
@@ -586,6 +965,10 @@ public abstract class AbstractConnection extends Thread {
 			cookieOk = true;
 		    }
 
+		    if (!acceptPayload(ibuf)) {
+			continue receive_loop;
+		    }
+
 		    if (traceLevel >= sendThreshold) {
 			System.out.println("<- " + headerType(head) + " "
 				+ head);
@@ -629,6 +1012,10 @@ public abstract class AbstractConnection extends Thread {
 			cookieOk = true;
 		    }
 
+		    if (!acceptPayload(ibuf)) {
+			continue receive_loop;
+		    }
+
 		    if (traceLevel >= sendThreshold) {
 			System.out.println("<- " + headerType(head) + " "
 				+ head);
@@ -845,6 +1232,79 @@ public abstract class AbstractConnection extends Thread {
 	}
     }
 
+    // used by send and send_reg with header and payload in one buffer
+    protected synchronized void do_send(final OtpOutputStream frame,
+	    final int payloadOffset) throws IOException {
+	try {
+	    if (traceLevel >= sendThreshold) {
+		try {
+		    final OtpErlangObject h = frame.getOtpInputStream(5)
+			    .read_any();
+		    System.out.println("-> " + headerType(h) + " " + h);
+
+		    if (frame.deferredLength() > 0) {
+			// the payload is not all in the buffer
+			System.out.println("   " + "message with "
+				+ frame.deferredLength()
+				+ " bytes of binaries sent by reference");
+		    } else {
+			OtpErlangObject o = frame.getOtpInputStream(
+				payloadOffset).read_any();
+			System.out.println("   " + o);
+			o = null;
+		    }
+		} catch (final OtpErlangDecodeException e) {
+		    System.out.println("   " + "can't decode output buffer:"
+			    + e);
+		}
+	    }
+
+	    final OutputStream out = socket.getOutputStream();
+	    if (frame.deferredLength() > 0) {
+		// a socket created from a SocketChannel sends deferred file
+		// binaries with FileChannel.transferTo()
+		final WritableByteChannel channel = socket.getChannel() != null ? socket
+			.getChannel()
+			: Channels.newChannel(out);
+		frame.writeTo(out, channel);
+	    } else {
+		frame.writeTo(out);
+	    }
+	} catch (final IOException e) {
+	    close();
+	    throw e;
+	}
+    }
+
+    // used by send and send_reg with an already encoded payload
+    protected synchronized void do_send(final OtpOutputStream header,
+	    final byte[] payload, final int off, final int len)
+	    throws IOException {
+	try {
+	    if (traceLevel >= sendThreshold) {
+		try {
+		    final OtpErlangObject h = header.getOtpInputStream(5)
+			    .read_any();
+		    System.out.println("-> " + headerType(h) + " " + h);
+
+		    OtpErlangObject o = new OtpInputStream(payload, off, len, 0)
+			    .read_any();
+		    System.out.println("   " + o);
+		    o = null;
+		} catch (final OtpErlangDecodeException e) {
+		    System.out.println("   " + "can't decode output buffer:"
+			    + e);
+		}
+	    }
+
+	    header.writeTo(socket.getOutputStream());
+	    socket.getOutputStream().write(payload, off, len);
+	} catch (final IOException e) {
+	    close();
+	    throw e;
+	}
+    }
+
     // used by the other message types
     protected synchronized void do_send(final OtpOutputStream header)
 	    throws IOException {
@@ -912,6 +1372,54 @@ public abstract class AbstractConnection extends Thread {
 	return "(unknown type)";
     }
 
+    /*
+     * Check the payload of a received message against the limits on terms,
+     * counting its frame as rejected if it fails. The payload is decoded
+     * later by its receiver, so here it is only skipped over, which takes
+     * no recursion, and no allocation beyond inflating compressed payloads
+     * so that the limits are checked on what they hold.
+     */
+    private boolean acceptPayload(final OtpInputStream ibuf) {
+	if (ibuf.getMaxDepth() == 0 && ibuf.getMaxElements() == 0) {
+	    return true;
+	}
+	final int pos = ibuf.getPos();
+	try {
+	    ibuf.skip_any();
+	    return true;
+	} catch (final OtpErlangDecodeException e) {
+	    if (traceLevel >= sendThreshold) {
+		System.out.println("<- REJECTED " + e.getMessage());
+	    }
+	    rejectedFrames++;
+	    return false;
+	} finally {
+	    ibuf.setPos(pos);
+	}
+    }
+
+    /*
+     * Read and discard the given number of bytes, without buffering them
+     * all.
+     */
+    private void skipSock(final Socket s, final long n) throws IOException {
+	if (s == null) {
+	    throw new IOException("expected " + n
+		    + " bytes, socket was closed");
+	}
+	final byte[] b = new byte[(int) Math.min(n, 8192)];
+	final InputStream in = s.getInputStream();
+	long left = n;
+	while (left > 0) {
+	    final int i = in.read(b, 0, (int) Math.min(left, b.length));
+	    if (i <= 0) {
+		throw new IOException("expected " + left
+			+ " bytes, got EOF");
+	    }
+	    left -= i;
+	}
+    }
+
     /* this method now throws exception if we don't get full read */
     protected int readSock(final Socket s, final byte[] b) throws IOException {
 	int got = 0;
@@ -1375,4 +1883,24 @@ public abstract class AbstractConnection extends Thread {
     public int getFlags() {
 	return flags;
     }
+
+    /**
+     * Set how terms received on this connection are decoded.
+     * 
+     * @param profile
+     *            the profile to decode with.
+     */
+    public void setDecodeProfile(final OtpDecodeProfile profile) {
+	setFlags(profile.flags());
+    }
+
+    /**
+     * Get the profile that terms received on this connection are decoded
+     * with.
+     * 
+     * @return the decode profile.
+     */
+    public OtpDecodeProfile getDecodeProfile() {
+	return OtpDecodeProfile.fromFlags(flags);
+    }
 }
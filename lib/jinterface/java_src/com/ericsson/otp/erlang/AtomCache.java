@@ -0,0 +1,96 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * A bounded, lock-free cache of decoded atoms, keyed by their encoded bytes.
+ * It is direct mapped: each encoding hashes to a single slot, and a new atom
+ * simply replaces whatever was in its slot. Atoms are typically drawn from a
+ * small vocabulary, so nearly all lookups hit, and a hit allocates nothing.
+ */
+// package scope
+final class AtomCache {
+    private static final int size = 4096; // must be a power of two
+    private static final int maxLength = 64; // longer atoms are not cached
+
+    private static final AtomicReferenceArray<Entry> entries =
+	new AtomicReferenceArray<Entry>(size);
+
+    private AtomCache() {
+    }
+
+    /*
+     * Get the atom for the len bytes at buf[off], Latin-1 or UTF-8 encoded,
+     * or null if it is not in the cache.
+     */
+    static OtpErlangAtom get(final boolean utf8, final byte[] buf,
+	    final int off, final int len) {
+	if (len > maxLength) {
+	    return null;
+	}
+
+	final Entry e = entries.get(slot(utf8, buf, off, len));
+	if (e == null || e.utf8 != utf8 || e.bytes.length != len) {
+	    return null;
+	}
+	final byte[] b = e.bytes;
+	for (int i = 0; i < len; i++) {
+	    if (b[i] != buf[off + i]) {
+		return null;
+	    }
+	}
+	return e.atom;
+    }
+
+    // remember the atom decoded from the len bytes at buf[off]
+    static void put(final boolean utf8, final byte[] buf, final int off,
+	    final int len, final OtpErlangAtom atom) {
+	if (len > maxLength) {
+	    return;
+	}
+
+	final byte[] b = new byte[len];
+	System.arraycopy(buf, off, b, 0, len);
+	entries.set(slot(utf8, buf, off, len), new Entry(utf8, b, atom));
+    }
+
+    private static int slot(final boolean utf8, final byte[] buf,
+	    final int off, final int len) {
+	// FNV-1a
+	int h = utf8 ? 0x811c9dc5 ^ 1 : 0x811c9dc5;
+	for (int i = off; i < off + len; i++) {
+	    h = (h ^ buf[i] & 0xff) * 0x01000193;
+	}
+	return (h ^ h >>> 16) & size - 1;
+    }
+
+    private static final class Entry {
+	final boolean utf8;
+	final byte[] bytes;
+	final OtpErlangAtom atom;
+
+	Entry(final boolean utf8, final byte[] bytes, final OtpErlangAtom atom) {
+	    this.utf8 = utf8;
+	    this.bytes = bytes;
+	    this.atom = atom;
+	}
+    }
+}
@@ -18,9 +18,19 @@
  */
 package com.ericsson.otp.erlang;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * This class implements a generic FIFO queue. There is no upper bound on the
  * length of the queue, items are linked.
+ * 
+ * <p>
+ * Blocking is done with a {@link ReentrantLock} rather than with monitor
+ * wait/notify, so that a waiting reader does not pin the carrier thread when
+ * the queue is used from lightweight (e.g. virtual) threads.
+ * </p>
  */
 
 public class GenericQueue {
@@ -28,6 +38,9 @@ public class GenericQueue {
     private static final int closing = 1;
     private static final int closed = 2;
 
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
     private int status;
     private Bucket head;
     private Bucket tail;
@@ -47,7 +60,12 @@ public class GenericQueue {
 
     /** Clear a queue */
     public void flush() {
-	init();
+	lock.lock();
+	try {
+	    init();
+	} finally {
+	    lock.unlock();
+	}
     }
 
     public void close() {
@@ -60,20 +78,26 @@ public class GenericQueue {
      * @param o
      *                Object to insert in the queue
      */
-    public synchronized void put(final Object o) {
+    public void put(final Object o) {
 	final Bucket b = new Bucket(o);
 
-	if (tail != null) {
-	    tail.setNext(b);
-	    tail = b;
-	} else {
-	    // queue was empty but has one element now
-	    head = tail = b;
-	}
-	count++;
+	lock.lock();
+	try {
+	    if (tail != null) {
+		tail.setNext(b);
+		tail = b;
+	    } else {
+		// queue was empty but has one element now
+		head = tail = b;
+	    }
+	    count++;
 
-	// notify any waiting tasks
-	notify();
+	    // notify any waiting tasks; all of them, since a selective
+	    // reader may not want this object
+	    notEmpty.signalAll();
+	} finally {
+	    lock.unlock();
+	}
     }
 
     /**
@@ -82,14 +106,16 @@ public class GenericQueue {
      * 
      * @return The object at the head of the queue.
      */
-    public synchronized Object get() {
+    public Object get() {
 	Object o = null;
 
-	while ((o = tryGet()) == null) {
-	    try {
-		this.wait();
-	    } catch (final InterruptedException e) {
+	lock.lock();
+	try {
+	    while ((o = tryGet()) == null) {
+		notEmpty.awaitUninterruptibly();
 	    }
+	} finally {
+	    lock.unlock();
 	}
 	return o;
     }
@@ -108,31 +134,36 @@ public class GenericQueue {
      * @return The object at the head of the queue, or null if none arrived in
      *         time.
      */
-    public synchronized Object get(final long timeout)
+    public Object get(final long timeout)
 	    throws InterruptedException {
 	if (status == closed) {
 	    return null;
 	}
 
-	long currentTime = System.currentTimeMillis();
-	final long stopTime = currentTime + timeout;
+	final long stopTime = System.nanoTime()
+		+ TimeUnit.MILLISECONDS.toNanos(timeout);
 	Object o = null;
 
-	while (true) {
-	    if ((o = tryGet()) != null) {
-		return o;
-	    }
+	lock.lock();
+	try {
+	    while (true) {
+		if ((o = tryGet()) != null) {
+		    return o;
+		}
 
-	    currentTime = System.currentTimeMillis();
-	    if (stopTime <= currentTime) {
-		throw new InterruptedException("Get operation timed out");
-	    }
+		final long remaining = stopTime - System.nanoTime();
+		if (remaining <= 0) {
+		    throw new InterruptedException("Get operation timed out");
+		}
 
-	    try {
-		this.wait(stopTime - currentTime);
-	    } catch (final InterruptedException e) {
-		// ignore, but really should retry operation instead
+		try {
+		    notEmpty.awaitNanos(remaining);
+		} catch (final InterruptedException e) {
+		    // ignore, but really should retry operation instead
+		}
 	    }
+	} finally {
+	    lock.unlock();
 	}
     }
 
@@ -140,22 +171,235 @@ public class GenericQueue {
     public Object tryGet() {
 	Object o = null;
 
-	if (head != null) {
-	    o = head.getContents();
-	    head = head.getNext();
-	    count--;
+	lock.lock();
+	try {
+	    if (head != null) {
+		o = head.getContents();
+		head = head.getNext();
+		count--;
+
+		if (head == null) {
+		    tail = null;
+		    count = 0;
+		}
+	    }
+	} finally {
+	    lock.unlock();
+	}
+
+	return o;
+    }
+
+    // package scope
+    /*
+     * Get the object at the head of the queue without removing it, or null
+     * if the queue is empty.
+     */
+    Object peek() {
+	lock.lock();
+	try {
+	    return head == null ? null : head.getContents();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // package scope
+    /*
+     * Remove the object at the head of the queue if the filter accepts it,
+     * otherwise return null and leave the queue as it is.
+     */
+    Object tryGet(final Filter f) {
+	lock.lock();
+	try {
+	    if (head == null || !f.accept(head.getContents())) {
+		return null;
+	    }
+	    return tryGet();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * A test used to pick objects out of the queue. It is called with the
+     * queue locked, so it should be quick and must not use the queue.
+     */
+    public interface Filter {
+	/**
+	 * @param o
+	 *                an object in the queue.
+	 * 
+	 * @return true to remove the object from the queue.
+	 */
+	public boolean accept(Object o);
+    }
 
+    /**
+     * Remove the first object in the queue that the filter accepts, leaving
+     * the others in place, or block until one arrives.
+     * 
+     * @param f
+     *                the filter that selects the object.
+     * 
+     * @return The selected object.
+     */
+    public Object get(final Filter f) {
+	lock.lock();
+	try {
+	    Object o;
+	    while ((o = remove(f)) == null) {
+		notEmpty.awaitUninterruptibly();
+	    }
+	    return o;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Remove the first object in the queue that the filter accepts, leaving
+     * the others in place, blocking until one arrives or until timeout
+     * occurs.
+     * 
+     * @param f
+     *                the filter that selects the object.
+     * @param timeout
+     *                Maximum time to block on queue, in ms. Use 0 to poll the
+     *                queue.
+     * 
+     * @exception InterruptedException
+     *                    if the operation times out.
+     * 
+     * @return The selected object, or null if the queue is closed.
+     */
+    public Object get(final Filter f, final long timeout)
+	    throws InterruptedException {
+	if (status == closed) {
+	    return null;
+	}
+
+	final long stopTime = System.nanoTime()
+		+ TimeUnit.MILLISECONDS.toNanos(timeout);
+
+	lock.lock();
+	try {
+	    while (true) {
+		final Object o = remove(f);
+		if (o != null) {
+		    return o;
+		}
+
+		final long remaining = stopTime - System.nanoTime();
+		if (remaining <= 0) {
+		    throw new InterruptedException("Get operation timed out");
+		}
+
+		try {
+		    notEmpty.awaitNanos(remaining);
+		} catch (final InterruptedException e) {
+		    // ignore, but really should retry operation instead
+		}
+	    }
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // unlink and return the first accepted object; called with lock held
+    private Object remove(final Filter f) {
+	Bucket prev = null;
+	for (Bucket b = head; b != null; prev = b, b = b.getNext()) {
+	    final Object o = b.getContents();
+	    if (f.accept(o)) {
+		if (prev == null) {
+		    head = b.getNext();
+		} else {
+		    prev.setNext(b.getNext());
+		}
+		if (tail == b) {
+		    tail = prev;
+		}
+		count--;
+		return o;
+	    }
+	}
+	return null;
+    }
+
+    // package scope
+    /*
+     * Remove every object in the queue that the filter accepts, without
+     * blocking.
+     */
+    int removeAll(final Filter f) {
+	int n = 0;
+
+	lock.lock();
+	try {
+	    Bucket prev = null;
+	    for (Bucket b = head; b != null; b = b.getNext()) {
+		if (!f.accept(b.getContents())) {
+		    prev = b;
+		} else {
+		    if (prev == null) {
+			head = b.getNext();
+		    } else {
+			prev.setNext(b.getNext());
+		    }
+		    if (tail == b) {
+			tail = prev;
+		    }
+		    count--;
+		    n++;
+		}
+	    }
+	} finally {
+	    lock.unlock();
+	}
+	return n;
+    }
+
+    /**
+     * Remove at most max objects from the head of the queue and add them to
+     * the given collection, without blocking.
+     * 
+     * @param c
+     *                the collection to add the objects to.
+     * @param max
+     *                the maximum number of objects to remove.
+     * 
+     * @return the number of objects moved to the collection.
+     */
+    public int drainTo(final java.util.Collection<Object> c, final int max) {
+	int n = 0;
+
+	lock.lock();
+	try {
+	    while (n < max && head != null) {
+		c.add(head.getContents());
+		head = head.getNext();
+		n++;
+	    }
 	    if (head == null) {
 		tail = null;
 		count = 0;
+	    } else {
+		count -= n;
 	    }
+	} finally {
+	    lock.unlock();
 	}
-
-	return o;
+	return n;
     }
 
-    public synchronized int getCount() {
-	return count;
+    public int getCount() {
+	lock.lock();
+	try {
+	    return count;
+	} finally {
+	    lock.unlock();
+	}
     }
 
     /*
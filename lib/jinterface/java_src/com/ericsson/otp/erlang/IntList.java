@@ -0,0 +1,109 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+/**
+ * A proper list of integers held as an int[], created by
+ * {@link OtpInputStream#read_any()} with
+ * {@link OtpInputStream#DECODE_INT_LISTS_AS_ARRAYS} or
+ * {@link OtpInputStream#DECODE_STRINGS_AS_LISTS}. Elements are made into
+ * objects only when they are asked for, and the list is encoded straight
+ * from the array. It is serialized as an ordinary list.
+ */
+final class IntList extends OtpErlangList {
+    private static final long serialVersionUID = 1L;
+
+    private final int[] values;
+
+    IntList(final int[] values) {
+	this.values = values;
+    }
+
+    @Override
+    public int arity() {
+	return values.length;
+    }
+
+    @Override
+    public OtpErlangObject elementAt(final int i) {
+	if (i >= values.length || i < 0) {
+	    return null;
+	}
+	return OtpErlangLong.valueOf(values[i]);
+    }
+
+    @Override
+    public OtpErlangObject[] elements() {
+	final OtpErlangObject[] res = new OtpErlangObject[values.length];
+	for (int i = 0; i < res.length; i++) {
+	    res[i] = OtpErlangLong.valueOf(values[i]);
+	}
+	return res;
+    }
+
+    @Override
+    public OtpErlangObject getLastTail() {
+	return null;
+    }
+
+    @Override
+    public int[] intValues() {
+	return values.clone();
+    }
+
+    @Override
+    public void encode(final OtpOutputStream out) {
+	out.write_int_array(values);
+    }
+
+    @Override
+    public int encodedSize() {
+	final int n = values.length;
+	if (n == 0) {
+	    return 1;
+	}
+	int size = 0;
+	boolean bytes = true;
+	for (final int v : values) {
+	    if ((v & 0xff) == v) {
+		size += 2;
+	    } else {
+		bytes = false;
+		size += v >= OtpExternal.erlMin && v <= OtpExternal.erlMax ? 5 : 7;
+	    }
+	}
+	if (bytes && n <= 65535) {
+	    return 3 + n;
+	}
+	return 5 + size + 1;
+    }
+
+    @Override
+    public Object clone() {
+	return materialize();
+    }
+
+    private Object writeReplace() {
+	return materialize();
+    }
+
+    private OtpErlangList materialize() {
+	return new OtpErlangList(elements());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+/**
+ * A non-empty list that decodes its elements from the encoded list when they
+ * are first used, created by {@link OtpInputStream#read_any()} with
+ * {@link OtpInputStream#DECODE_LAZY_TERMS}. It is encoded by copying the
+ * original bytes, and serialized as an ordinary list.
+ */
+final class LazyList extends OtpErlangList {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] buf;
+    private final int flags;
+    private final int start;
+    private final int end;
+    // element start positions, then the start of the tail
+    private final int[] offsets;
+    private final OtpErlangObject[] elems;
+    private final boolean proper;
+    private OtpErlangObject tail;
+
+    LazyList(final OtpInputStream in) throws OtpErlangDecodeException {
+	in.peek1skip_version();
+	start = in.getPos();
+	final int arity = in.read_list_head();
+	offsets = in.skip_elements(arity);
+	proper = in.peek1() == OtpExternal.nilTag;
+	in.skip_any();
+	end = in.getPos();
+	elems = new OtpErlangObject[arity];
+	buf = in.buffer();
+	flags = in.flags();
+    }
+
+    @Override
+    public int arity() {
+	return elems.length;
+    }
+
+    @Override
+    public synchronized OtpErlangObject elementAt(final int i) {
+	if (i >= elems.length || i < 0) {
+	    return null;
+	}
+	OtpErlangObject o = elems[i];
+	if (o == null) {
+	    o = elems[i] = LazyTuple.decode(buf, offsets[i], offsets[i + 1],
+		    flags);
+	}
+	return o;
+    }
+
+    @Override
+    public OtpErlangObject[] elements() {
+	final OtpErlangObject[] res = new OtpErlangObject[elems.length];
+	for (int i = 0; i < res.length; i++) {
+	    res[i] = elementAt(i);
+	}
+	return res;
+    }
+
+    @Override
+    public synchronized OtpErlangObject getLastTail() {
+	if (proper) {
+	    return null;
+	}
+	if (tail == null) {
+	    tail = LazyTuple.decode(buf, offsets[elems.length], end, flags);
+	}
+	return tail;
+    }
+
+    @Override
+    public void encode(final OtpOutputStream out) {
+	out.write(buf, start, end - start);
+    }
+
+    @Override
+    public int encodedSize() {
+	return end - start;
+    }
+
+    @Override
+    public Object clone() {
+	return materialize();
+    }
+
+    private Object writeReplace() {
+	return materialize();
+    }
+
+    private OtpErlangList materialize() {
+	try {
+	    return new OtpErlangList(elements(), getLastTail());
+	} catch (final OtpErlangException e) {
+	    throw new AssertionError(this);
+	}
+    }
+}
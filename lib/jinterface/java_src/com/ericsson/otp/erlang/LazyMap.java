@@ -0,0 +1,111 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+/**
+ * A map that decodes its keys and values from the encoded map when they are
+ * first used, created by {@link OtpInputStream#read_any()} with
+ * {@link OtpInputStream#DECODE_LAZY_TERMS}. Looking up a key decodes the keys
+ * but only the value that is found. It is encoded by copying the original
+ * bytes, and serialized as an ordinary map.
+ */
+final class LazyMap extends OtpErlangMap {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] buf;
+    private final int flags;
+    private final int start;
+    // key and value start positions in turn, then the end of the map
+    private final int[] offsets;
+    private final OtpErlangObject[] terms;
+
+    LazyMap(final OtpInputStream in) throws OtpErlangDecodeException {
+	in.peek1skip_version();
+	start = in.getPos();
+	final int arity = in.read_map_head();
+	if (arity < 0 || arity > in.remaining() / 2) {
+	    throw new OtpErlangDecodeException("Cannot read from input stream");
+	}
+	offsets = in.skip_elements(2 * arity);
+	terms = new OtpErlangObject[2 * arity];
+	buf = in.buffer();
+	flags = in.flags();
+    }
+
+    @Override
+    public int arity() {
+	return terms.length / 2;
+    }
+
+    @Override
+    OtpErlangObject keyAt(final int i) {
+	return term(2 * i);
+    }
+
+    @Override
+    OtpErlangObject valueAt(final int i) {
+	return term(2 * i + 1);
+    }
+
+    private synchronized OtpErlangObject term(final int i) {
+	OtpErlangObject o = terms[i];
+	if (o == null) {
+	    o = terms[i] = LazyTuple.decode(buf, offsets[i], offsets[i + 1],
+		    flags);
+	}
+	return o;
+    }
+
+    @Override
+    public OtpErlangObject[] keys() {
+	final OtpErlangObject[] res = new OtpErlangObject[arity()];
+	for (int i = 0; i < res.length; i++) {
+	    res[i] = keyAt(i);
+	}
+	return res;
+    }
+
+    @Override
+    public OtpErlangObject[] values() {
+	final OtpErlangObject[] res = new OtpErlangObject[arity()];
+	for (int i = 0; i < res.length; i++) {
+	    res[i] = valueAt(i);
+	}
+	return res;
+    }
+
+    @Override
+    public void encode(final OtpOutputStream out) {
+	out.write(buf, start, offsets[terms.length] - start);
+    }
+
+    @Override
+    public int encodedSize() {
+	return offsets[terms.length] - start;
+    }
+
+    @Override
+    public Object clone() {
+	return new OtpErlangMap(keys(), values());
+    }
+
+    private Object writeReplace() {
+	return new OtpErlangMap(keys(), values());
+    }
+}
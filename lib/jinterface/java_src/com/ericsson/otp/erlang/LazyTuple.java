@@ -0,0 +1,107 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+/**
+ * A tuple that decodes its elements from the encoded tuple when they are
+ * first used, created by {@link OtpInputStream#read_any()} with
+ * {@link OtpInputStream#DECODE_LAZY_TERMS}. It is encoded by copying the
+ * original bytes, and serialized as an ordinary tuple.
+ */
+final class LazyTuple extends OtpErlangTuple {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] buf;
+    private final int flags;
+    private final int start;
+    // element start positions, then the end of the tuple
+    private final int[] offsets;
+    private final OtpErlangObject[] elems;
+
+    LazyTuple(final OtpInputStream in) throws OtpErlangDecodeException {
+	in.peek1skip_version();
+	start = in.getPos();
+	final int arity = in.read_tuple_head();
+	offsets = in.skip_elements(arity);
+	elems = new OtpErlangObject[arity];
+	buf = in.buffer();
+	flags = in.flags();
+    }
+
+    @Override
+    public int arity() {
+	return elems.length;
+    }
+
+    @Override
+    public synchronized OtpErlangObject elementAt(final int i) {
+	if (i >= elems.length || i < 0) {
+	    return null;
+	}
+	OtpErlangObject o = elems[i];
+	if (o == null) {
+	    o = elems[i] = decode(buf, offsets[i], offsets[i + 1], flags);
+	}
+	return o;
+    }
+
+    @Override
+    public OtpErlangObject[] elements() {
+	final OtpErlangObject[] res = new OtpErlangObject[elems.length];
+	for (int i = 0; i < res.length; i++) {
+	    res[i] = elementAt(i);
+	}
+	return res;
+    }
+
+    @Override
+    public void encode(final OtpOutputStream out) {
+	out.write(buf, start, offsets[elems.length] - start);
+    }
+
+    @Override
+    public int encodedSize() {
+	return offsets[elems.length] - start;
+    }
+
+    @Override
+    public Object clone() {
+	return new OtpErlangTuple(elements());
+    }
+
+    private Object writeReplace() {
+	return new OtpErlangTuple(elements());
+    }
+
+    // package scope
+    /*
+     * Decode the term between two positions of a buffer, for the lazy views.
+     * The views have checked the structure of the term already, so a failure
+     * here is unusual and reported unchecked.
+     */
+    static OtpErlangObject decode(final byte[] buf, final int from,
+	    final int to, final int flags) {
+	try {
+	    return new OtpInputStream(buf, from, to - from, flags).read_any();
+	} catch (final OtpErlangDecodeException e) {
+	    throw new IllegalStateException("Cannot decode element: "
+		    + e.getMessage(), e);
+	}
+    }
+}
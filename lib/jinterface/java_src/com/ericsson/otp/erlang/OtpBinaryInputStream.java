@@ -0,0 +1,264 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * <p>
+ * An input stream that reads the bytes of a binary stream sent to a
+ * mailbox, by an {@link OtpBinaryOutputStream} or by an Erlang process that
+ * follows the same protocol. Streams are accepted with
+ * {@link OtpMbox#acceptBinaryStream()}.
+ * </p>
+ * 
+ * <p>
+ * Each chunk is acknowledged when all of its bytes have been read, so the
+ * sender stays at most its window of chunks ahead of the reader. Closing
+ * the stream before reading its end cancels it, and the sender then fails
+ * to write or close its side, as with a broken pipe.
+ * </p>
+ * 
+ * <p>
+ * Streams are not thread safe.
+ * </p>
+ */
+public class OtpBinaryInputStream extends InputStream {
+    // the first message of any stream
+    static final OtpPattern anyStream = OtpPattern.compile(new OtpErlangTuple(
+	    new OtpErlangObject[] { OtpBinaryOutputStream.streamTag,
+		    OtpPattern.var("From"), OtpPattern.var("Ref"),
+		    OtpPattern.var("Data") }));
+
+    private final OtpMbox mbox;
+    private final OtpErlangPid from;
+    private final OtpErlangRef ref;
+    private final OtpPattern chunks;
+
+    private byte[] chunk;
+    private int pos = 0;
+    private int unacked = 0;
+    private long timeout = 0;
+    private boolean eof = false;
+    private boolean closed = false;
+
+    OtpBinaryInputStream(final OtpMbox mbox, final OtpMsg first) {
+	final OtpPattern.Bindings b = anyStream.match(first);
+	try {
+	    from = (OtpErlangPid) b.get("From");
+	    ref = (OtpErlangRef) b.get("Ref");
+	    chunk = data(b.stream("Data"));
+	} catch (final Exception e) {
+	    throw new IllegalArgumentException("Bad stream message: " + e);
+	}
+	eof = chunk == null;
+	this.mbox = mbox;
+	chunks = OtpPattern.compile(new OtpErlangTuple(new OtpErlangObject[] {
+		OtpBinaryOutputStream.streamTag, from, ref,
+		OtpPattern.var("Data") }));
+    }
+
+    /**
+     * Set how long to wait for the next chunk before failing. The default is
+     * to wait for ever.
+     * 
+     * @param timeout
+     *                the time to wait in milliseconds, or 0 to wait for
+     *                ever.
+     */
+    public void setTimeout(final long timeout) {
+	this.timeout = timeout;
+    }
+
+    /**
+     * Get the time to wait for the next chunk.
+     * 
+     * @return the time in milliseconds, or 0 if there is no limit.
+     */
+    public long getTimeout() {
+	return timeout;
+    }
+
+    /**
+     * Get the {@link OtpErlangPid pid} that sends this stream.
+     * 
+     * @return the pid of the sender.
+     */
+    public OtpErlangPid sender() {
+	return from;
+    }
+
+    /**
+     * Get the reference that identifies this stream in its messages.
+     * 
+     * @return the reference.
+     */
+    public OtpErlangRef ref() {
+	return ref;
+    }
+
+    @Override
+    public int read() throws IOException {
+	if (!fill()) {
+	    return -1;
+	}
+	return chunk[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+	    throws IOException {
+	if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+	    throw new IndexOutOfBoundsException();
+	}
+	if (len == 0) {
+	    return 0;
+	}
+	if (!fill()) {
+	    return -1;
+	}
+	final int n = Math.min(len, chunk.length - pos);
+	System.arraycopy(chunk, pos, b, off, n);
+	pos += n;
+	return n;
+    }
+
+    /**
+     * Get the number of bytes that can be read without waiting for the next
+     * chunk.
+     * 
+     * @return the number of bytes left in the current chunk.
+     */
+    @Override
+    public int available() {
+	return chunk == null ? 0 : chunk.length - pos;
+    }
+
+    /**
+     * Close the stream. If the end of the stream has not been reached, the
+     * sender is told to stop sending. Chunks that have already arrived are
+     * removed from the mailbox, and chunks still on their way are dropped as
+     * they arrive, until the sender ends the stream. Other messages and exit
+     * signals are left in the mailbox.
+     * 
+     * @exception IOException
+     *                    if the sender cannot be reached.
+     */
+    @Override
+    public void close() throws IOException {
+	if (closed) {
+	    return;
+	}
+	closed = true;
+	chunk = null;
+	if (!eof) {
+	    eof = true;
+	    try {
+		mbox.sendChecked(from, ack(OtpBinaryOutputStream.cancel));
+	    } finally {
+		mbox.cancelStream(chunks);
+	    }
+	}
+    }
+
+    /*
+     * Make sure there are bytes to read in the current chunk, unless the
+     * stream has ended.
+     */
+    private boolean fill() throws IOException {
+	if (closed) {
+	    throw new IOException("Stream closed");
+	}
+	while (chunk == null || pos == chunk.length) {
+	    if (chunk != null) {
+		chunk = null;
+		unacked++;
+	    }
+	    if (eof) {
+		return false;
+	    }
+	    next();
+	}
+	return true;
+    }
+
+    /*
+     * Acknowledge the chunks that have been read, and wait for the next one.
+     */
+    private void next() throws IOException {
+	if (unacked > 0) {
+	    mbox.sendChecked(from, ack(new OtpErlangLong(unacked)));
+	    unacked = 0;
+	}
+
+	OtpMsg m;
+	try {
+	    if (timeout > 0) {
+		m = mbox.receiveMsg(chunks, timeout);
+	    } else {
+		m = mbox.receiveMsg(chunks);
+	    }
+	} catch (final InterruptedException e) {
+	    throw new InterruptedIOException("Timed out waiting for "
+		    + from + " to send " + ref);
+	} catch (final OtpErlangExit e) {
+	    final IOException ioe = new IOException("Exit while receiving "
+		    + ref);
+	    ioe.initCause(e);
+	    throw ioe;
+	}
+	if (m == null) {
+	    throw new IOException("Mailbox closed");
+	}
+
+	try {
+	    chunk = data(chunks.match(m).stream("Data"));
+	} catch (final OtpErlangDecodeException e) {
+	    final IOException ioe = new IOException("Bad chunk in " + ref);
+	    ioe.initCause(e);
+	    throw ioe;
+	}
+	pos = 0;
+	if (chunk == null) {
+	    eof = true;
+	}
+    }
+
+    /*
+     * The bytes of a chunk, or null at the end of the stream.
+     */
+    private static byte[] data(final OtpInputStream in)
+	    throws OtpErlangDecodeException {
+	if (in.peek1() == OtpExternal.binTag) {
+	    return in.read_binary();
+	}
+	final String a = in.read_atom();
+	if (!a.equals(OtpBinaryOutputStream.eof.atomValue())) {
+	    throw new OtpErlangDecodeException("Bad stream data: " + a);
+	}
+	return null;
+    }
+
+    private OtpErlangTuple ack(final OtpErlangObject n) {
+	return new OtpErlangTuple(new OtpErlangObject[] {
+		OtpBinaryOutputStream.ackTag, ref, n });
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * An output stream that sends the bytes written to it to a process as a
+ * sequence of binaries, with flow control, so that payloads of any size can
+ * be sent while holding only a few chunks in memory on either side. Streams
+ * are opened with {@link OtpMbox#openBinaryStream(OtpErlangPid)} and read
+ * with an {@link OtpBinaryInputStream}.
+ * </p>
+ * 
+ * <p>
+ * The sender makes a reference <code>Ref</code> for the stream and sends
+ * messages to the receiver from its mailbox <code>From</code>:
+ * </p>
+ * 
+ * <pre>
+ * {'$otp_stream', From, Ref, Chunk}    % Chunk is a non-empty binary
+ * {'$otp_stream', From, Ref, eof}      % after the last chunk
+ * </pre>
+ * 
+ * <p>
+ * The receiver replies to <code>From</code> with
+ * </p>
+ * 
+ * <pre>
+ * {'$otp_stream_ack', Ref, N}          % N more chunks have been consumed
+ * {'$otp_stream_ack', Ref, cancel}     % no more chunks are wanted
+ * </pre>
+ * 
+ * <p>
+ * N must be between 1 and the number of chunks not yet acknowledged; any
+ * other reply is a protocol error, and the sender treats it as a cancel. A
+ * sender that is cancelled stops sending chunks and sends
+ * <code>eof</code>, so that the receiver can stop dropping the chunks that
+ * were on their way. A receiver remembers a limited number of cancelled
+ * streams, and keeps chunks from senders that do not end them this way
+ * once it has forgotten the stream.
+ * </p>
+ * 
+ * <p>
+ * The sender may have at most <code>window</code> chunks that are not
+ * acknowledged; when it has that many, writing blocks until an
+ * acknowledgement arrives. {@link #close()} waits until every chunk has been
+ * acknowledged, so that the receiver has consumed the whole stream when it
+ * returns. Acknowledgements are picked out of the sending mailbox by
+ * selective receive, so the mailbox can be used for other messages at the
+ * same time, though not by another thread that receives from it
+ * unselectively.
+ * </p>
+ * 
+ * <p>
+ * Streams are not thread safe.
+ * </p>
+ */
+public class OtpBinaryOutputStream extends OutputStream {
+    static final OtpErlangAtom streamTag = new OtpErlangAtom("$otp_stream");
+    static final OtpErlangAtom ackTag = new OtpErlangAtom("$otp_stream_ack");
+    static final OtpErlangAtom eof = new OtpErlangAtom("eof");
+    static final OtpErlangAtom cancel = new OtpErlangAtom("cancel");
+
+    private final OtpMbox mbox;
+    private final OtpErlangPid to;
+    private final OtpErlangRef ref;
+    private final OtpPattern acks;
+    private final int chunkSize;
+    private final int window;
+
+    private byte[] chunk;
+    private int count = 0;
+    private int credit;
+    private long timeout = 0;
+    private boolean closed = false;
+    // true once eof has been sent
+    private boolean ended = false;
+
+    OtpBinaryOutputStream(final OtpMbox mbox, final OtpErlangPid to,
+	    final OtpErlangRef ref, final int chunkSize, final int window) {
+	if (chunkSize <= 0 || window <= 0) {
+	    throw new IllegalArgumentException("Bad chunk size or window: "
+		    + chunkSize + ", " + window);
+	}
+	this.mbox = mbox;
+	this.to = to;
+	this.ref = ref;
+	this.chunkSize = chunkSize;
+	this.window = window;
+	credit = window;
+	acks = OtpPattern.compile(new OtpErlangTuple(new OtpErlangObject[] {
+		ackTag, ref, OtpPattern.var("N") }));
+    }
+
+    /**
+     * Set how long to wait for the receiver to acknowledge chunks before
+     * failing. The default is to wait for ever.
+     * 
+     * @param timeout
+     *                the time to wait in milliseconds, or 0 to wait for
+     *                ever.
+     */
+    public void setTimeout(final long timeout) {
+	this.timeout = timeout;
+    }
+
+    /**
+     * Get the time to wait for the receiver to acknowledge chunks.
+     * 
+     * @return the time in milliseconds, or 0 if there is no limit.
+     */
+    public long getTimeout() {
+	return timeout;
+    }
+
+    /**
+     * Get the reference that identifies this stream in its messages.
+     * 
+     * @return the reference.
+     */
+    public OtpErlangRef ref() {
+	return ref;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+	ensureOpen();
+	if (chunk == null) {
+	    chunk = new byte[chunkSize];
+	}
+	chunk[count++] = (byte) b;
+	if (count == chunkSize) {
+	    sendChunk();
+	}
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+	if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+	    throw new IndexOutOfBoundsException();
+	}
+	ensureOpen();
+	while (len > 0) {
+	    if (chunk == null) {
+		chunk = new byte[chunkSize];
+	    }
+	    final int n = Math.min(len, chunkSize - count);
+	    System.arraycopy(b, off, chunk, count, n);
+	    count += n;
+	    off += n;
+	    len -= n;
+	    if (count == chunkSize) {
+		sendChunk();
+	    }
+	}
+    }
+
+    /**
+     * Send the bytes written so far, even if they do not fill a chunk.
+     * 
+     * @exception IOException
+     *                    if the receiver cannot be reached, cancels the
+     *                    stream, does not acknowledge chunks in time or
+     *                    breaks the protocol.
+     */
+    @Override
+    public void flush() throws IOException {
+	ensureOpen();
+	if (count > 0) {
+	    sendChunk();
+	}
+    }
+
+    /**
+     * Send the remaining bytes and the end of the stream, and wait until the
+     * receiver has acknowledged every chunk.
+     * 
+     * @exception IOException
+     *                    if the receiver cannot be reached, cancels the
+     *                    stream, does not acknowledge chunks in time or
+     *                    breaks the protocol.
+     */
+    @Override
+    public void close() throws IOException {
+	if (closed) {
+	    return;
+	}
+	flush();
+	closed = true;
+	chunk = null;
+	ended = true;
+	mbox.sendChecked(to, message(eof));
+	while (credit < window) {
+	    awaitAck();
+	}
+    }
+
+    private void ensureOpen() throws IOException {
+	if (closed) {
+	    throw new IOException("Stream closed");
+	}
+    }
+
+    private OtpErlangTuple message(final OtpErlangObject body) {
+	return new OtpErlangTuple(new OtpErlangObject[] { streamTag,
+		mbox.self(), ref, body });
+    }
+
+    private void sendChunk() throws IOException {
+	while (credit == 0) {
+	    awaitAck();
+	}
+	// the chunk is not copied, so it is not reused either
+	final OtpErlangBinary bin = new OtpErlangBinary(ByteBuffer.wrap(chunk,
+		0, count));
+	chunk = null;
+	count = 0;
+	mbox.sendChecked(to, message(bin));
+	credit--;
+    }
+
+    private void awaitAck() throws IOException {
+	OtpMsg m;
+	try {
+	    if (timeout > 0) {
+		m = mbox.receiveMsg(acks, timeout);
+	    } else {
+		m = mbox.receiveMsg(acks);
+	    }
+	} catch (final InterruptedException e) {
+	    closed = true;
+	    throw new InterruptedIOException(
+		    "Timed out waiting for the receiver of " + ref);
+	} catch (final OtpErlangExit e) {
+	    closed = true;
+	    final IOException ioe = new IOException("Exit while sending " + ref);
+	    ioe.initCause(e);
+	    throw ioe;
+	}
+	if (m == null) {
+	    closed = true;
+	    throw new IOException("Mailbox closed");
+	}
+
+	OtpErlangObject n;
+	try {
+	    n = acks.match(m).get("N");
+	} catch (final OtpErlangDecodeException e) {
+	    n = null;
+	}
+	if (n instanceof OtpErlangLong && ((OtpErlangLong) n).isLong()) {
+	    // the receiver can only acknowledge chunks it has been sent
+	    final long acked = ((OtpErlangLong) n).longValue();
+	    if (acked >= 1 && acked <= window - credit) {
+		credit += (int) acked;
+		return;
+	    }
+	}
+	abort();
+	if (cancel.equals(n)) {
+	    throw new IOException("Stream " + ref + " cancelled by receiver");
+	}
+	throw new IOException("Protocol error on stream " + ref
+		+ ": bad acknowledgement " + n);
+    }
+
+    // stop sending and end the stream, which lets the receiver forget it
+    private void abort() {
+	closed = true;
+	chunk = null;
+	if (!ended) {
+	    ended = true;
+	    mbox.send(to, message(eof));
+	}
+    }
+}
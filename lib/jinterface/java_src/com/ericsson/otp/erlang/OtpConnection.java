@@ -358,11 +358,10 @@ public class OtpConnection extends AbstractConnection {
      *                    if the connection is not active or a communication
      *                    error occurs.
      */
-    @SuppressWarnings("resource")
     public void send(final OtpErlangPid dest, final OtpErlangObject msg)
 	    throws IOException {
 	// encode and send the message
-	super.sendBuf(self.pid(), dest, new OtpOutputStream(msg));
+	super.sendMsg(self.pid(), dest, msg);
     }
 
     /**
@@ -377,11 +376,10 @@ public class OtpConnection extends AbstractConnection {
      *                    if the connection is not active or a communication
      *                    error occurs.
      */
-    @SuppressWarnings("resource")
     public void send(final String dest, final OtpErlangObject msg)
 	    throws IOException {
 	// encode and send the message
-	super.sendBuf(self.pid(), dest, new OtpOutputStream(msg));
+	super.sendMsg(self.pid(), dest, msg);
     }
 
     /**
@@ -149,22 +149,20 @@ public class OtpCookedConnection extends AbstractConnection {
     /*
      * send to pid
      */
-    @SuppressWarnings("resource")
     void send(final OtpErlangPid from, final OtpErlangPid dest,
 	    final OtpErlangObject msg) throws IOException {
 	// encode and send the message
-	sendBuf(from, dest, new OtpOutputStream(msg));
+	sendMsg(from, dest, msg);
     }
 
     /*
      * send to remote name dest is recipient's registered name, the nodename is
      * implied by the choice of connection.
      */
-    @SuppressWarnings("resource")
     void send(final OtpErlangPid from, final String dest,
 	    final OtpErlangObject msg) throws IOException {
 	// encode and send the message
-	sendBuf(from, dest, new OtpOutputStream(msg));
+	sendMsg(from, dest, msg);
     }
 
     @Override
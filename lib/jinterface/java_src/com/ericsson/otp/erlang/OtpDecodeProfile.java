@@ -0,0 +1,186 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+/**
+ * <p>
+ * Says how decoded terms are to be represented, where there is a choice.
+ * Profiles are given to an {@link OtpInputStream}, or set on an
+ * {@link OtpNode}, a connection or an {@link OtpMbox} to apply to the
+ * messages it receives. The choices are:
+ * </p>
+ * 
+ * <ul>
+ * <li>binaries: copied into a byte[] (the default), or
+ * {@link #withBinariesAsBuffers(boolean) ByteBuffer} views of the received
+ * bytes.</li>
+ * <li>lists of integers: lists of {@link OtpErlangLong} (the default),
+ * {@link #withIntListsAsStrings(boolean) strings} when they are valid code
+ * points, or {@link #withIntListsAsArrays(boolean) lists backed by an int[]}.
+ * </li>
+ * <li>strings sent as STRING_EXT: {@link OtpErlangString} (the default), or
+ * {@link #withStringsAsLists(boolean) lists backed by an int[]}.</li>
+ * <li>atoms: atoms shared through a cache (the default), or the
+ * {@link #withCanonicalAtoms(boolean) canonical atoms} that can be compared
+ * with <code>==</code>.</li>
+ * <li>tuples, lists and maps: decoded in full (the default), or
+ * {@link #withLazyTerms(boolean) decoded as they are used}.</li>
+ * </ul>
+ * 
+ * <p>
+ * Each term is decoded in a single pass whatever the profile. Profiles are
+ * immutable; the <code>with</code> methods return a new profile.
+ * </p>
+ * 
+ * <pre>
+ * OtpDecodeProfile p = OtpDecodeProfile.DEFAULT.withBinariesAsBuffers(true)
+ * 	.withIntListsAsArrays(true);
+ * </pre>
+ */
+public final class OtpDecodeProfile {
+    /** The profile that decodes everything in the default way. */
+    public static final OtpDecodeProfile DEFAULT = new OtpDecodeProfile(0);
+
+    private final int flags;
+
+    private OtpDecodeProfile(final int flags) {
+	this.flags = flags;
+    }
+
+    /**
+     * Get the profile for a combination of the <code>DECODE_</code> flags
+     * of {@link OtpInputStream}.
+     * 
+     * @param flags
+     *            the flags.
+     * 
+     * @return the profile.
+     */
+    public static OtpDecodeProfile fromFlags(final int flags) {
+	return flags == 0 ? DEFAULT : new OtpDecodeProfile(flags);
+    }
+
+    /**
+     * Get the <code>DECODE_</code> flags of {@link OtpInputStream} that
+     * make up this profile.
+     * 
+     * @return the flags.
+     */
+    public int flags() {
+	return flags;
+    }
+
+    /**
+     * Decode binaries as views of the received bytes instead of copies, see
+     * {@link OtpInputStream#DECODE_BINARIES_AS_BUFFERS}.
+     * 
+     * @param on
+     *            true to decode binaries as buffers.
+     * 
+     * @return the new profile.
+     */
+    public OtpDecodeProfile withBinariesAsBuffers(final boolean on) {
+	return with(OtpInputStream.DECODE_BINARIES_AS_BUFFERS, on);
+    }
+
+    /**
+     * Decode lists of integers that are valid code points as strings, see
+     * {@link OtpInputStream#DECODE_INT_LISTS_AS_STRINGS}.
+     * 
+     * @param on
+     *            true to decode integer lists as strings.
+     * 
+     * @return the new profile.
+     */
+    public OtpDecodeProfile withIntListsAsStrings(final boolean on) {
+	return with(OtpInputStream.DECODE_INT_LISTS_AS_STRINGS, on);
+    }
+
+    /**
+     * Decode lists of integers as lists backed by an int[], see
+     * {@link OtpInputStream#DECODE_INT_LISTS_AS_ARRAYS}.
+     * 
+     * @param on
+     *            true to decode integer lists as arrays.
+     * 
+     * @return the new profile.
+     */
+    public OtpDecodeProfile withIntListsAsArrays(final boolean on) {
+	return with(OtpInputStream.DECODE_INT_LISTS_AS_ARRAYS, on);
+    }
+
+    /**
+     * Decode strings sent as STRING_EXT as lists backed by an int[], see
+     * {@link OtpInputStream#DECODE_STRINGS_AS_LISTS}.
+     * 
+     * @param on
+     *            true to decode such strings as lists.
+     * 
+     * @return the new profile.
+     */
+    public OtpDecodeProfile withStringsAsLists(final boolean on) {
+	return with(OtpInputStream.DECODE_STRINGS_AS_LISTS, on);
+    }
+
+    /**
+     * Decode atoms as the canonical atoms, see
+     * {@link OtpInputStream#DECODE_CANONICAL_ATOMS}.
+     * 
+     * @param on
+     *            true to decode canonical atoms.
+     * 
+     * @return the new profile.
+     */
+    public OtpDecodeProfile withCanonicalAtoms(final boolean on) {
+	return with(OtpInputStream.DECODE_CANONICAL_ATOMS, on);
+    }
+
+    /**
+     * Decode tuples, lists and maps as they are used, see
+     * {@link OtpInputStream#DECODE_LAZY_TERMS}.
+     * 
+     * @param on
+     *            true to decode lazily.
+     * 
+     * @return the new profile.
+     */
+    public OtpDecodeProfile withLazyTerms(final boolean on) {
+	return with(OtpInputStream.DECODE_LAZY_TERMS, on);
+    }
+
+    private OtpDecodeProfile with(final int flag, final boolean on) {
+	return fromFlags(on ? flags | flag : flags & ~flag);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+	return o instanceof OtpDecodeProfile
+		&& ((OtpDecodeProfile) o).flags == flags;
+    }
+
+    @Override
+    public int hashCode() {
+	return flags;
+    }
+
+    @Override
+    public String toString() {
+	return "OtpDecodeProfile(" + flags + ")";
+    }
+}
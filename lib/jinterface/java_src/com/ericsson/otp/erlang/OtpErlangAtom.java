@@ -18,11 +18,18 @@
  */
 package com.ericsson.otp.erlang;
 
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Provides a Java representation of Erlang atoms. Atoms can be created from
  * strings whose length is not more than {@link #maxAtomLength maxAtomLength}
  * characters.
+ * 
+ * <p>
+ * An atom keeps its external representation once it has been encoded, so
+ * sending the same atom object repeatedly costs a single copy. Frequently
+ * used atoms can be shared through {@link #of(String) of()}.
+ * </p>
  */
 public class OtpErlangAtom extends OtpErlangObject {
     // don't change this!
@@ -33,6 +40,28 @@ public class OtpErlangAtom extends OtpErlangObject {
 
     private final String atom;
 
+    // the external representation, computed on first use
+    private transient byte[] encoded = null;
+
+    // set on the atoms in the canonical table
+    transient boolean isCanonical = false;
+
+    // canonical instances handed out by of(), see there
+    private static final int maxCanonical = 65536;
+    private static final ConcurrentHashMap<String, OtpErlangAtom> canonical =
+	new ConcurrentHashMap<String, OtpErlangAtom>();
+
+    static {
+	final String[] common = { "", "true", "false", "ok", "error",
+		"undefined", "normal", "call", "cast", "user", "rex",
+		"$gen_call", "$gen_cast", "EXIT", "noproc", "badarg" };
+	for (final String a : common) {
+	    final OtpErlangAtom atom = new OtpErlangAtom(a);
+	    atom.isCanonical = true;
+	    canonical.put(a, atom);
+	}
+    }
+
     /**
      * Create an atom from the given string.
      * 
@@ -56,6 +85,56 @@ public class OtpErlangAtom extends OtpErlangObject {
 	this.atom = atom;
     }
 
+    /**
+     * <p>
+     * Get the canonical atom for the given string. Repeated calls with equal
+     * strings return the same object, whose external representation is
+     * computed only once, so this is the cheapest way to obtain atoms that are
+     * sent often. The canonical atoms are also used by
+     * {@link OtpOutputStream#write_atom(String)
+     * OtpOutputStream.write_atom()}.
+     * </p>
+     * 
+     * <p>
+     * Like atoms in Erlang, canonical atoms are never released. The table is
+     * bounded, and once it is full a new atom is returned for strings that
+     * are not already in it.
+     * </p>
+     * 
+     * @param atom
+     *                the string to get the atom for.
+     * 
+     * @return the atom.
+     * 
+     * @exception java.lang.IllegalArgumentException
+     *                    if the string is null or contains more than
+     *                    {@link #maxAtomLength maxAtomLength} characters.
+     */
+    public static OtpErlangAtom of(final String atom) {
+	if (atom == null) {
+	    throw new java.lang.IllegalArgumentException(
+		    "null string value");
+	}
+
+	OtpErlangAtom a = canonical.get(atom);
+	if (a == null) {
+	    a = new OtpErlangAtom(atom);
+	    if (canonical.size() < maxCanonical) {
+		a.isCanonical = true;
+		final OtpErlangAtom prev = canonical.putIfAbsent(atom, a);
+		if (prev != null) {
+		    a = prev;
+		}
+	    }
+	}
+	return a;
+    }
+
+    // the canonical atom for a string, or null if there is none
+    static OtpErlangAtom lookup(final String atom) {
+	return canonical.get(atom);
+    }
+
     /**
      * Create an atom from a stream containing an atom encoded in Erlang
      * external format.
@@ -132,6 +211,9 @@ public class OtpErlangAtom extends OtpErlangObject {
     @Override
     public boolean equals(final Object o) {
 
+	if (this == o) {
+	    return true;
+	}
 	if (!(o instanceof OtpErlangAtom)) {
 	    return false;
 	}
@@ -154,7 +236,22 @@ public class OtpErlangAtom extends OtpErlangObject {
      */
     @Override
     public void encode(final OtpOutputStream buf) {
-	buf.write_atom(atom);
+	buf.writeN(encoded());
+    }
+
+    @Override
+    public int encodedSize() {
+	return encoded().length;
+    }
+
+    // the external representation, shared and not to be modified
+    byte[] encoded() {
+	byte[] e = encoded;
+	if (e == null) {
+	    e = OtpOutputStream.encodeAtom(atom);
+	    encoded = e;
+	}
+	return e;
     }
 
     /* the following four predicates are helpers for the toString() method */
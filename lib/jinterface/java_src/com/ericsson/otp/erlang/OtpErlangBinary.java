@@ -18,6 +18,9 @@
  */
 package com.ericsson.otp.erlang;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Provides a Java representation of Erlang binaries. Anything that can be
@@ -27,6 +30,12 @@ public class OtpErlangBinary extends OtpErlangBitstr {
     // don't change this!
     private static final long serialVersionUID = -3781009633593609217L;
 
+    static final byte[] NO_BYTES = new byte[0];
+
+    // the contents when created from a buffer; bin is then filled in only
+    // if binaryValue() is called
+    private transient ByteBuffer buffer;
+
     /**
      * Create a binary from a byte array
      * 
@@ -37,6 +46,22 @@ public class OtpErlangBinary extends OtpErlangBitstr {
 	super(bin);
     }
 
+    /**
+     * Create a binary from the remaining bytes of a buffer, heap or direct,
+     * without copying them. The binary keeps a read-only view of the bytes, so
+     * the buffer contents must not be changed while the binary is in use; the
+     * position and limit of the buffer may.
+     * 
+     * @param buf
+     *                the buffer holding the bytes of the binary.
+     */
+    public OtpErlangBinary(final ByteBuffer buf) {
+	super(NO_BYTES);
+	bin = null;
+	buffer = buf.slice().asReadOnlyBuffer();
+	pad_bits = 0;
+    }
+
     /**
      * Create a binary from a stream containing a binary encoded in Erlang
      * external format.
@@ -75,7 +100,97 @@ public class OtpErlangBinary extends OtpErlangBitstr {
      */
     @Override
     public void encode(final OtpOutputStream buf) {
-	buf.write_binary(bin);
+	buf.write1(OtpExternal.binTag);
+	buf.write4BE(size());
+	encodeContents(buf);
+    }
+
+    // package scope
+    /*
+     * Write the bytes of this binary without a header. On a connection, a
+     * large binary is written by reference instead, so that its bytes go
+     * from where they are to the socket.
+     */
+    void encodeContents(final OtpOutputStream buf) {
+	if (buf.defersBinaries()
+		&& size() >= OtpOutputStream.minDeferredBinary) {
+	    buf.write_deferred(this, size());
+	} else if (buffer == null) {
+	    buf.writeN(bin);
+	} else {
+	    buf.writeN(buffer);
+	}
+    }
+
+    // package scope
+    /*
+     * Write the bytes of this binary to a channel, for a binary that was
+     * written to a stream by reference.
+     */
+    void transferTo(final WritableByteChannel channel) throws IOException {
+	final ByteBuffer b = byteBuffer();
+	while (b.hasRemaining()) {
+	    channel.write(b);
+	}
+    }
+
+    /**
+     * Get the bytes of this binary as a read-only buffer. For a binary that
+     * was created from a buffer this is a view of the same bytes, otherwise
+     * it wraps the byte array.
+     * 
+     * @return a buffer positioned at the first byte of the binary.
+     */
+    public ByteBuffer byteBuffer() {
+	if (buffer != null) {
+	    return buffer.duplicate();
+	}
+	return ByteBuffer.wrap(bin).asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the byte array from this binary. A binary that was created from a
+     * buffer is copied into an array the first time this is called.
+     * 
+     * @return the byte array containing the bytes of this binary.
+     */
+    @Override
+    public byte[] binaryValue() {
+	if (bin == null) {
+	    final byte[] b = new byte[buffer.remaining()];
+	    buffer.duplicate().get(b);
+	    bin = b;
+	}
+	return bin;
+    }
+
+    @Override
+    ByteBuffer contents() {
+	return byteBuffer();
+    }
+
+    @Override
+    public int size() {
+	if (buffer != null) {
+	    return buffer.remaining();
+	}
+	return super.size();
+    }
+
+    @Override
+    public String toString() {
+	return "#Bin<" + size() + ">";
+    }
+
+    @Override
+    public int encodedSize() {
+	return 5 + size();
+    }
+
+    @Override
+    public Object getObject() {
+	binaryValue();
+	return super.getObject();
     }
 
     @Override
@@ -83,4 +198,10 @@ public class OtpErlangBinary extends OtpErlangBitstr {
 	final OtpErlangBinary that = (OtpErlangBinary) super.clone();
 	return that;
     }
+
+    private Object writeReplace() {
+	// the buffer is not serializable, but the array is
+	binaryValue();
+	return this;
+    }
 }
@@ -20,6 +20,7 @@ package com.ericsson.otp.erlang;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Provides a Java representation of Erlang bitstrs. An Erlang bitstr is an
@@ -160,6 +161,15 @@ public class OtpErlangBitstr extends OtpErlangObject {
 	return bin;
     }
 
+    // package scope
+    /*
+     * The bytes of this bitstr, for comparing with binaries that are kept in
+     * a buffer rather than in bin.
+     */
+    ByteBuffer contents() {
+	return ByteBuffer.wrap(bin);
+    }
+
     /**
      * Get the size in whole bytes of the bitstr, rest bits in the last byte not
      * counted.
@@ -231,6 +241,11 @@ public class OtpErlangBitstr extends OtpErlangObject {
 	buf.write_bitstr(bin, pad_bits);
     }
 
+    @Override
+    public int encodedSize() {
+	return (pad_bits == 0 ? 5 : 6) + bin.length;
+    }
+
     /**
      * Determine if two bitstrs are equal. Bitstrs are equal if they have the
      * same byte length and tail length, and the array of bytes is identical.
@@ -251,6 +266,10 @@ public class OtpErlangBitstr extends OtpErlangObject {
 	    return false;
 	}
 
+	if (bin == null || that.bin == null) {
+	    return contents().equals(that.contents());
+	}
+
 	final int len = bin.length;
 	if (len != that.bin.length) {
 	    return false;
@@ -268,7 +287,7 @@ public class OtpErlangBitstr extends OtpErlangObject {
     @Override
     protected int doHashCode() {
 	OtpErlangObject.Hash hash = new OtpErlangObject.Hash(15);
-	hash.combine(bin);
+	hash.combine(binaryValue());
 	hash.combine(pad_bits);
 	return hash.valueOf();
     }
@@ -276,7 +295,9 @@ public class OtpErlangBitstr extends OtpErlangObject {
     @Override
     public Object clone() {
 	final OtpErlangBitstr that = (OtpErlangBitstr) super.clone();
-	that.bin = bin.clone();
+	if (bin != null) {
+	    that.bin = bin.clone();
+	}
 	that.pad_bits = pad_bits;
 	return that;
     }
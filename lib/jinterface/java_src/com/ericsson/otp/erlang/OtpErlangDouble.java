@@ -103,6 +103,11 @@ public class OtpErlangDouble extends OtpErlangObject {
 	buf.write_double(d);
     }
 
+    @Override
+    public int encodedSize() {
+	return 9;
+    }
+
     /**
      * Determine if two floats are equal. Floats are equal if they contain the
      * same value.
@@ -47,6 +47,11 @@ public class OtpErlangExternalFun extends OtpErlangObject {
 	buf.write_external_fun(module, function, arity);
     }
 
+    @Override
+    public int encodedSize() {
+	return OtpOutputStream.externalFunSize(module, function, arity);
+    }
+
     @Override
     public boolean equals(final Object o) {
 	if (!(o instanceof OtpErlangExternalFun)) {
@@ -0,0 +1,339 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Provides a Java representation of an Erlang binary whose bytes are a
+ * region of a file. The bytes are not read when the binary is created.
+ * 
+ * <p>
+ * When a message containing a large file binary is sent to a remote node,
+ * the connection writes the binary header and then copies the bytes from
+ * the file to the socket with {@link FileChannel#transferTo
+ * FileChannel.transferTo()}, so they are never held in memory. Everywhere
+ * else the binary behaves as if it were read at the time of use: encoding
+ * into an {@link OtpOutputStream} reads the bytes into the stream, and
+ * {@link #binaryValue()} reads them into an array which is then kept.
+ * </p>
+ * 
+ * <p>
+ * A region may be up to 4 GB - 1 bytes long, the largest binary the external
+ * format can hold. Regions of 2 GB or more can only be sent to remote nodes:
+ * they do not fit in an array or an {@link OtpOutputStream}, so
+ * {@link #size()}, {@link #encodedSize()}, {@link #binaryValue()} and
+ * encoding them anywhere else throw {@link IllegalStateException}. Use
+ * {@link #longSize()} to get their size.
+ * </p>
+ * 
+ * <p>
+ * The region must not be shortened while the binary is in use. A binary
+ * that is serialized is written as an ordinary {@link OtpErlangBinary}.
+ * </p>
+ * 
+ * <p>
+ * To send a region of a file that is already memory mapped, create an
+ * {@link OtpErlangBinary} from the {@link java.nio.MappedByteBuffer}
+ * instead.
+ * </p>
+ */
+public class OtpErlangFileBinary extends OtpErlangBinary {
+    // don't change this!
+    private static final long serialVersionUID = 6311452380528411902L;
+
+    // the largest region a BINARY_EXT can hold
+    private static final long maxLength = 0xffffffffL;
+    // the largest region that can be held in memory
+    private static final long maxArrayLength = Integer.MAX_VALUE - 5;
+
+    private final File file;
+    private transient final FileChannel channel;
+    private final long position;
+    private final long length;
+
+    /**
+     * Create a binary from the whole of a file, as long as it is when the
+     * binary is created.
+     * 
+     * @param file
+     *                the file holding the bytes of the binary.
+     * 
+     * @exception IllegalArgumentException
+     *                    if the file does not exist or is too large for a
+     *                    binary.
+     */
+    public OtpErlangFileBinary(final File file) {
+	this(file, 0, checkedLength(file));
+    }
+
+    /**
+     * Create a binary from a region of a file. The file is opened each time
+     * the bytes are used.
+     * 
+     * @param file
+     *                the file holding the bytes of the binary.
+     * @param position
+     *                the position in the file of the first byte.
+     * @param length
+     *                the number of bytes in the binary.
+     * 
+     * @exception IllegalArgumentException
+     *                    if position or length is negative, or the region
+     *                    is too large for a binary.
+     */
+    public OtpErlangFileBinary(final File file, final long position,
+	    final long length) {
+	this(file, null, position, length);
+    }
+
+    /**
+     * Create a binary from a region of an open file. The channel is not
+     * closed by the binary, and its position is not changed.
+     * 
+     * @param channel
+     *                the channel holding the bytes of the binary.
+     * @param position
+     *                the position in the file of the first byte.
+     * @param length
+     *                the number of bytes in the binary.
+     * 
+     * @exception IllegalArgumentException
+     *                    if position or length is negative, or the region
+     *                    is too large for a binary.
+     */
+    public OtpErlangFileBinary(final FileChannel channel, final long position,
+	    final long length) {
+	this(null, channel, position, length);
+    }
+
+    private OtpErlangFileBinary(final File file, final FileChannel channel,
+	    final long position, final long length) {
+	super(NO_BYTES);
+	if (position < 0 || length < 0 || length > maxLength) {
+	    throw new IllegalArgumentException("Bad file region: " + position
+		    + ", " + length);
+	}
+	bin = null;
+	this.file = file;
+	this.channel = channel;
+	this.position = position;
+	this.length = length;
+    }
+
+    private static long checkedLength(final File file) {
+	if (!file.isFile()) {
+	    throw new IllegalArgumentException("Not a file: " + file);
+	}
+	final long length = file.length();
+	if (length > maxLength) {
+	    throw new IllegalArgumentException("File too large for a binary: "
+		    + file);
+	}
+	return length;
+    }
+
+    /**
+     * Get the file holding the bytes of this binary.
+     * 
+     * @return the file, or null if the binary was created from a channel.
+     */
+    public File file() {
+	return file;
+    }
+
+    /**
+     * Get the position of this binary in its file.
+     * 
+     * @return the position in the file of the first byte.
+     */
+    public long position() {
+	return position;
+    }
+
+    /**
+     * Get the number of bytes in this binary, which may be more than fits in
+     * an int.
+     * 
+     * @return the length of the region of the file.
+     */
+    public long longSize() {
+	return length;
+    }
+
+    @Override
+    public void encode(final OtpOutputStream buf) {
+	buf.write1(OtpExternal.binTag);
+	buf.write4BE(length);
+	encodeContents(buf);
+    }
+
+    /*
+     * A large binary sent on a connection is written by reference, and its
+     * bytes are transferred from the file when the message is sent.
+     */
+    @Override
+    void encodeContents(final OtpOutputStream buf) {
+	if (bin != null) {
+	    buf.writeN(bin);
+	} else if (buf.defersBinaries()
+		&& length >= OtpOutputStream.minDeferredBinary) {
+	    buf.write_deferred(this, length);
+	} else {
+	    checkArrayLength();
+	    try {
+		final FileChannel fc = open();
+		try {
+		    buf.writeN(fc, position, (int) length);
+		} finally {
+		    close(fc);
+		}
+	    } catch (final IOException e) {
+		throw new IllegalArgumentException("Cannot read " + this + ": "
+			+ e.getMessage());
+	    }
+	}
+    }
+
+    @Override
+    void transferTo(final WritableByteChannel target) throws IOException {
+	final FileChannel fc = open();
+	try {
+	    long pos = position;
+	    final long end = position + length;
+	    while (pos < end) {
+		final long n = fc.transferTo(pos, end - pos, target);
+		if (n <= 0 && pos >= fc.size()) {
+		    throw new IOException("End of file after " + (pos - position)
+			    + " of " + length + " bytes");
+		}
+		pos += n;
+	    }
+	} finally {
+	    close(fc);
+	}
+    }
+
+    /**
+     * Get the bytes of this binary as a buffer. The bytes are read from the
+     * file, see {@link #binaryValue()}.
+     * 
+     * @return a buffer positioned at the first byte of the binary.
+     */
+    @Override
+    public ByteBuffer byteBuffer() {
+	return ByteBuffer.wrap(binaryValue()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the byte array from this binary. The bytes are read from the file
+     * the first time this is called, and kept.
+     * 
+     * @return the byte array containing the bytes of this binary.
+     * 
+     * @exception IllegalArgumentException
+     *                    if the file cannot be read.
+     * 
+     * @exception IllegalStateException
+     *                    if the binary is 2 GB or more.
+     */
+    @Override
+    public byte[] binaryValue() {
+	if (bin == null) {
+	    checkArrayLength();
+	    final ByteBuffer b = ByteBuffer.allocate((int) length);
+	    try {
+		final FileChannel fc = open();
+		try {
+		    while (b.hasRemaining()) {
+			if (fc.read(b, position + b.position()) < 0) {
+			    throw new IOException("End of file after "
+				    + b.position() + " of " + length + " bytes");
+			}
+		    }
+		} finally {
+		    close(fc);
+		}
+	    } catch (final IOException e) {
+		throw new IllegalArgumentException("Cannot read " + this + ": "
+			+ e.getMessage());
+	    }
+	    bin = b.array();
+	}
+	return bin;
+    }
+
+    /**
+     * Get the size of this binary, see {@link #longSize()}.
+     * 
+     * @return the number of bytes in the binary.
+     * 
+     * @exception IllegalStateException
+     *                    if the binary is 2 GB or more.
+     */
+    @Override
+    public int size() {
+	checkArrayLength();
+	return (int) length;
+    }
+
+    @Override
+    public int encodedSize() {
+	return 5 + size();
+    }
+
+    private void checkArrayLength() {
+	if (length > maxArrayLength) {
+	    throw new IllegalStateException(this
+		    + " is too large to hold in memory");
+	}
+    }
+
+    @Override
+    public String toString() {
+	if (file != null) {
+	    return "#Bin<" + length + "@" + file + ":" + position + ">";
+	}
+	return "#Bin<" + length + "@" + position + ">";
+    }
+
+    private FileChannel open() throws IOException {
+	if (channel != null) {
+	    return channel;
+	}
+	return new RandomAccessFile(file, "r").getChannel();
+    }
+
+    private void close(final FileChannel fc) throws IOException {
+	if (fc != channel) {
+	    fc.close();
+	}
+    }
+
+    private Object writeReplace() {
+	// the channel is not serializable, and the file may not exist where
+	// the binary is read back
+	return new OtpErlangBinary(binaryValue());
+    }
+}
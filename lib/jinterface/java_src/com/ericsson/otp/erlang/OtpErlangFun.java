@@ -79,6 +79,21 @@ public class OtpErlangFun extends OtpErlangObject {
 			freeVars);
     }
 
+    // package scope
+    /*
+     * The free variables, which the decoder fills in after creating the fun
+     * from its header.
+     */
+    OtpErlangObject[] freeVars() {
+	return freeVars;
+    }
+
+    @Override
+    public int encodedSize() {
+	return OtpOutputStream.funSize(pid, module, old_index, arity, md5,
+		index, uniq, freeVars);
+    }
+
     @Override
     public boolean equals(final Object o) {
 	if (!(o instanceof OtpErlangFun)) {
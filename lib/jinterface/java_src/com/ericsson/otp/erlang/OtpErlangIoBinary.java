@@ -0,0 +1,236 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+/**
+ * Provides a Java representation of an Erlang binary made of several parts,
+ * like an Erlang iolist that is known to be sent as one binary. The parts
+ * are arrays, buffers and other binaries, and they are not copied: the
+ * binary is encoded as one BINARY_EXT whose bytes are written part by part.
+ * When the binary is sent to a remote node, large parts are written straight
+ * from where they are to the socket.
+ * 
+ * <p>
+ * Binaries are built with an {@link OtpErlangIoBinary.Builder}:
+ * </p>
+ * 
+ * <pre>
+ * OtpErlangIoBinary b = new OtpErlangIoBinary.Builder().append(header)
+ * 	.append(chunk1).append(chunk2).build();
+ * </pre>
+ * 
+ * <p>
+ * The contents of the parts must not be changed while the binary is in use.
+ * {@link #binaryValue()} joins the parts into one array the first time it
+ * is called, and so do comparisons and hashing.
+ * </p>
+ */
+public class OtpErlangIoBinary extends OtpErlangBinary {
+    // don't change this!
+    private static final long serialVersionUID = -1733325049434270373L;
+
+    // the largest binary whose encoded size fits in an int
+    private static final long maxLength = Integer.MAX_VALUE - 5;
+
+    private transient final OtpErlangBinary[] parts;
+    private final int length;
+
+    private OtpErlangIoBinary(final OtpErlangBinary[] parts, final int length) {
+	super(NO_BYTES);
+	bin = null;
+	this.parts = parts;
+	this.length = length;
+    }
+
+    /**
+     * Get the parts of this binary. Parts that were themselves built from
+     * parts are replaced by their own parts.
+     * 
+     * @return the binaries that make up this binary, in order.
+     */
+    public OtpErlangBinary[] parts() {
+	return parts.clone();
+    }
+
+    @Override
+    void encodeContents(final OtpOutputStream buf) {
+	for (final OtpErlangBinary part : parts) {
+	    part.encodeContents(buf);
+	}
+    }
+
+    @Override
+    void transferTo(final WritableByteChannel channel) throws IOException {
+	for (final OtpErlangBinary part : parts) {
+	    part.transferTo(channel);
+	}
+    }
+
+    /**
+     * Get the bytes of this binary as a buffer, see {@link #binaryValue()}.
+     * 
+     * @return a buffer positioned at the first byte of the binary.
+     */
+    @Override
+    public ByteBuffer byteBuffer() {
+	return ByteBuffer.wrap(binaryValue()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the byte array from this binary. The parts are copied into one
+     * array the first time this is called.
+     * 
+     * @return the byte array containing the bytes of this binary.
+     */
+    @Override
+    public byte[] binaryValue() {
+	if (bin == null) {
+	    final ByteBuffer b = ByteBuffer.allocate(length);
+	    for (final OtpErlangBinary part : parts) {
+		b.put(part.byteBuffer());
+	    }
+	    bin = b.array();
+	}
+	return bin;
+    }
+
+    @Override
+    public int size() {
+	return length;
+    }
+
+    private Object writeReplace() {
+	// the parts are not kept when serialized
+	return new OtpErlangBinary(binaryValue());
+    }
+
+    /**
+     * Collects the parts of an {@link OtpErlangIoBinary}. Nothing that is
+     * appended is copied.
+     */
+    public static final class Builder {
+	private final ArrayList<OtpErlangBinary> parts = new ArrayList<OtpErlangBinary>();
+	private long length = 0;
+
+	/**
+	 * Create an empty builder.
+	 */
+	public Builder() {
+	}
+
+	/**
+	 * Append an array of bytes.
+	 * 
+	 * @param bytes
+	 *                the bytes to append.
+	 * 
+	 * @return this builder.
+	 */
+	public Builder append(final byte[] bytes) {
+	    return append(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Append part of an array of bytes.
+	 * 
+	 * @param bytes
+	 *                the array holding the bytes to append.
+	 * @param off
+	 *                the index of the first byte.
+	 * @param len
+	 *                the number of bytes.
+	 * 
+	 * @return this builder.
+	 */
+	public Builder append(final byte[] bytes, final int off, final int len) {
+	    return append(ByteBuffer.wrap(bytes, off, len));
+	}
+
+	/**
+	 * Append the remaining bytes of a buffer. The position of the buffer
+	 * is not changed.
+	 * 
+	 * @param bytes
+	 *                the buffer holding the bytes to append.
+	 * 
+	 * @return this builder.
+	 */
+	public Builder append(final ByteBuffer bytes) {
+	    if (bytes.hasRemaining()) {
+		add(new OtpErlangBinary(bytes));
+	    }
+	    return this;
+	}
+
+	/**
+	 * Append the bytes of a binary. If the binary was itself built from
+	 * parts, its parts are appended.
+	 * 
+	 * @param binary
+	 *                the binary to append.
+	 * 
+	 * @return this builder.
+	 */
+	public Builder append(final OtpErlangBinary binary) {
+	    if (binary instanceof OtpErlangIoBinary) {
+		for (final OtpErlangBinary part : ((OtpErlangIoBinary) binary).parts) {
+		    add(part);
+		}
+	    } else if (binary.size() > 0) {
+		add(binary);
+	    }
+	    return this;
+	}
+
+	private void add(final OtpErlangBinary part) {
+	    final long n = length + part.size();
+	    if (n > maxLength) {
+		throw new IllegalArgumentException("Binary too large: " + n
+			+ " bytes");
+	    }
+	    parts.add(part);
+	    length = n;
+	}
+
+	/**
+	 * Get the number of bytes appended so far.
+	 * 
+	 * @return the size of the binary that would be built.
+	 */
+	public int size() {
+	    return (int) length;
+	}
+
+	/**
+	 * Create a binary from the parts appended so far. The builder can be
+	 * used again afterwards.
+	 * 
+	 * @return the binary.
+	 */
+	public OtpErlangIoBinary build() {
+	    return new OtpErlangIoBinary(parts
+		    .toArray(new OtpErlangBinary[parts.size()]), (int) length);
+	}
+    }
+}
@@ -39,6 +39,12 @@ public class OtpErlangList extends OtpErlangObject implements
 
     private OtpErlangObject lastTail = null;
 
+    // cached result of encodedSize(), 0 until computed
+    private transient int encodedSizeValue = 0;
+    // set once OtpErlangPreEncoded.unwrap() found no pre-encoded terms in
+    // this term
+    transient boolean plain = false;
+
     /**
      * Create an empty list.
      */
@@ -123,6 +129,23 @@ public class OtpErlangList extends OtpErlangObject implements
 	}
     }
 
+    private OtpErlangList(final OtpErlangObject lastTail,
+	    final OtpErlangObject[] elems) {
+	this.elems = elems.length > 0 ? elems : NO_ELEMENTS;
+	this.lastTail = lastTail;
+    }
+
+    // package scope
+    /*
+     * Create a list that takes over the given array, used by the decoder.
+     * The elements must not be null, and there may only be a tail if there
+     * are elements.
+     */
+    static OtpErlangList adopt(final OtpErlangObject[] elems,
+	    final OtpErlangObject lastTail) {
+	return new OtpErlangList(lastTail, elems);
+    }
+
     /**
      * Create a list from a stream containing an list encoded in Erlang external
      * format.
@@ -211,10 +234,11 @@ public class OtpErlangList extends OtpErlangObject implements
 	    if (i > start) {
 		s.append(",");
 	    }
-	    s.append(elems[i].toString());
+	    s.append(elementAt(i).toString());
 	}
-	if (lastTail != null) {
-	    s.append("|").append(lastTail.toString());
+	final OtpErlangObject tail = getLastTail();
+	if (tail != null) {
+	    s.append("|").append(tail.toString());
 	}
 	s.append("]");
 
@@ -243,14 +267,43 @@ public class OtpErlangList extends OtpErlangObject implements
 	    buf.write_list_head(arity);
 
 	    for (int i = start; i < arity + start; i++) {
-		buf.write_any(elems[i]);
+		buf.write_any(elementAt(i));
 	    }
 	}
-	if (lastTail == null) {
+	final OtpErlangObject tail = getLastTail();
+	if (tail == null) {
 	    buf.write_nil();
 	} else {
-	    buf.write_any(lastTail);
+	    buf.write_any(tail);
+	}
+    }
+
+    @Override
+    public int encodedSize() {
+	if (encodedSizeValue == 0) {
+	    encodedSizeValue = encodedSize(0);
+	}
+	return encodedSizeValue;
+    }
+
+    protected int encodedSize(final int start) {
+	final int arity = arity() - start;
+	int size = 0;
+
+	if (arity > 0) {
+	    size += OtpOutputStream.listHeadSize(arity);
+
+	    for (int i = start; i < arity + start; i++) {
+		size += elementAt(i).encodedSize();
+	    }
+	}
+	final OtpErlangObject tail = getLastTail();
+	if (tail == null) {
+	    size += 1;
+	} else {
+	    size += tail.encodedSize();
 	}
+	return size;
     }
 
     /**
@@ -340,12 +393,12 @@ public class OtpErlangList extends OtpErlangObject implements
      * @return true if the list is proper, i.e. the last tail is nil
      */
     public boolean isProper() {
-	return lastTail == null;
+	return getLastTail() == null;
     }
 
     public OtpErlangObject getHead() {
 	if (arity() > 0) {
-	    return elems[0];
+	    return elementAt(0);
 	}
 	return null;
     }
@@ -357,8 +410,9 @@ public class OtpErlangList extends OtpErlangObject implements
     public OtpErlangObject getNthTail(final int n) {
 	final int arity = arity();
 	if (arity >= n) {
-	    if (arity == n && lastTail != null) {
-		return lastTail;
+	    final OtpErlangObject tail = getLastTail();
+	    if (arity == n && tail != null) {
+		return tail;
 	    }
         return new SubList(this, n);
 	}
@@ -386,6 +440,24 @@ public class OtpErlangList extends OtpErlangObject implements
      */
 
     public String stringValue() throws OtpErlangException {
+	final int[] values = intValues();
+	return new String(values, 0, values.length);
+    }
+
+    /**
+     * Get the elements of a list of integers as an array. Lists decoded with
+     * {@link OtpInputStream#DECODE_INT_LISTS_AS_ARRAYS} already hold their
+     * elements this way, and only copy them.
+     * 
+     * @return a new array holding the integers in the list.
+     *
+     * @exception OtpErlangException
+     *                    for non-proper and non-integer lists.
+     *
+     * @exception OtpErlangRangeException
+     *                    if any integer does not fit into a Java int.
+     */
+    public int[] intValues() throws OtpErlangException {
 	if (! isProper()) {
 	    throw new OtpErlangException("Non-proper list: " + this);
 	}
@@ -398,7 +470,7 @@ public class OtpErlangList extends OtpErlangObject implements
 	    final OtpErlangLong l = (OtpErlangLong) o;
 	    values[i] = l.intValue();
 	}
-	return new String(values, 0, values.length);
+	return values;
     }
 
 
@@ -461,6 +533,11 @@ public class OtpErlangList extends OtpErlangObject implements
 	    parent.encode(stream, start);
 	}
 
+	@Override
+	public int encodedSize() {
+	    return parent.encodedSize(start);
+	}
+
 	@Override
 	public OtpErlangObject getLastTail() {
 	    return parent.getLastTail();
@@ -483,15 +560,14 @@ public class OtpErlangList extends OtpErlangObject implements
 	}
 
 	public boolean hasNext() {
-	    return cursor < elems.length;
+	    return cursor < arity();
 	}
 
 	public OtpErlangObject next() {
-	    try {
-		return elems[cursor++];
-	    } catch (final IndexOutOfBoundsException e) {
+	    if (cursor >= arity()) {
 		throw new NoSuchElementException();
 	    }
+	    return elementAt(cursor++);
 	}
 
 	public void remove() {
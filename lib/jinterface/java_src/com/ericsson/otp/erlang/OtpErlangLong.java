@@ -76,6 +76,10 @@ public class OtpErlangLong extends OtpErlangObject {
      */
     public OtpErlangLong(final OtpInputStream buf)
 	    throws OtpErlangDecodeException {
+	if (buf.peek_long_fits()) {
+	    val = buf.read_long(false);
+	    return;
+	}
 	final byte[] b = buf.read_integer_byte_array();
 	try {
 	    val = OtpInputStream.byte_array_to_long(b, false);
@@ -84,6 +88,34 @@ public class OtpErlangLong extends OtpErlangObject {
 	}
     }
 
+    /**
+     * Get an Erlang integer for the given value. Small values are shared, in
+     * the same way as {@link Long#valueOf(long)}, so the result must not be
+     * compared by identity.
+     * 
+     * @param l
+     *                the long value to use.
+     * 
+     * @return an Erlang integer with the given value.
+     */
+    public static OtpErlangLong valueOf(final long l) {
+	if (l >= cacheLow && l <= cacheHigh) {
+	    return cache[(int) l - cacheLow];
+	}
+	return new OtpErlangLong(l);
+    }
+
+    private static final int cacheLow = -128;
+    private static final int cacheHigh = 1023;
+    private static final OtpErlangLong[] cache = new OtpErlangLong[cacheHigh
+	    - cacheLow + 1];
+
+    static {
+	for (int i = 0; i < cache.length; i++) {
+	    cache[i] = new OtpErlangLong(i + cacheLow);
+	}
+    }
+
     /**
      * Get this number as a BigInteger.
      * 
@@ -356,6 +388,14 @@ public class OtpErlangLong extends OtpErlangObject {
 	}
     }
 
+    @Override
+    public int encodedSize() {
+	if (bigVal != null) {
+	    return OtpOutputStream.bigIntegerSize(bigVal);
+	}
+	return OtpOutputStream.longSize(val, false);
+    }
+
     /**
      * Determine if two numbers are equal. Numbers are equal if they contain the
      * same value.
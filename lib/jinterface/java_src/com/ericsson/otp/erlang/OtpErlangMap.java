@@ -37,6 +37,12 @@ public class OtpErlangMap extends OtpErlangObject {
     private OtpErlangObject[] keys = NO_ELEMENTS;
     private OtpErlangObject[] values = NO_ELEMENTS;
 
+    // cached result of encodedSize(), 0 until computed
+    private transient int encodedSizeValue = 0;
+    // set once OtpErlangPreEncoded.unwrap() found no pre-encoded terms in
+    // this term
+    transient boolean plain = false;
+
     /**
      * Create a map from an array of keys and an array of values.
      * 
@@ -110,6 +116,28 @@ public class OtpErlangMap extends OtpErlangObject {
 	}
     }
 
+    // package scope
+    /*
+     * For subclasses that keep their keys and values elsewhere.
+     */
+    OtpErlangMap() {
+    }
+
+    // package scope
+    /*
+     * Create a map that takes over the given arrays, used by the decoder.
+     * The arrays must be of the same length and hold no nulls.
+     */
+    static OtpErlangMap adopt(final OtpErlangObject[] keys,
+	    final OtpErlangObject[] values) {
+	final OtpErlangMap m = new OtpErlangMap();
+	if (keys.length > 0) {
+	    m.keys = keys;
+	    m.values = values;
+	}
+	return m;
+    }
+
     /**
      * Create a map from a stream containing a map encoded in Erlang external
      * format.
@@ -160,14 +188,28 @@ public class OtpErlangMap extends OtpErlangObject {
 	if (key == null) {
 	    return null;
 	}
-	for (int i = 0; i < keys.length; i++) {
-	    if (key.equals(keys[i])) {
-		return values[i];
+	final int a = arity();
+	for (int i = 0; i < a; i++) {
+	    if (key.equals(keyAt(i))) {
+		return valueAt(i);
 	    }
 	}
 	return null;
     }
 
+    // package scope
+    /*
+     * The key and value of the i'th pair, for the methods here that can also
+     * work on subclasses.
+     */
+    OtpErlangObject keyAt(final int i) {
+	return keys[i];
+    }
+
+    OtpErlangObject valueAt(final int i) {
+	return values[i];
+    }
+
     /**
      * Get all the keys from the map as an array.
      * 
@@ -199,7 +241,7 @@ public class OtpErlangMap extends OtpErlangObject {
     public String toString() {
 	int i;
 	final StringBuffer s = new StringBuffer();
-	final int arity = values.length;
+	final int arity = arity();
 
 	s.append("#{");
 
@@ -207,9 +249,9 @@ public class OtpErlangMap extends OtpErlangObject {
 	    if (i > 0) {
 		s.append(",");
 	    }
-	    s.append(keys[i].toString());
+	    s.append(keyAt(i).toString());
 	    s.append(" => ");
-	    s.append(values[i].toString());
+	    s.append(valueAt(i).toString());
 	}
 
 	s.append("}");
@@ -225,14 +267,28 @@ public class OtpErlangMap extends OtpErlangObject {
      */
     @Override
     public void encode(final OtpOutputStream buf) {
-	final int arity = values.length;
+	final int arity = arity();
 
 	buf.write_map_head(arity);
 
 	for (int i = 0; i < arity; i++) {
-	    buf.write_any(keys[i]);
-	    buf.write_any(values[i]);
+	    buf.write_any(keyAt(i));
+	    buf.write_any(valueAt(i));
+	}
+    }
+
+    @Override
+    public int encodedSize() {
+	if (encodedSizeValue == 0) {
+	    final int arity = arity();
+	    int size = 5; // map head
+
+	    for (int i = 0; i < arity; i++) {
+		size += keyAt(i).encodedSize() + valueAt(i).encodedSize();
+	    }
+	    encodedSizeValue = size;
 	}
+	return encodedSizeValue;
     }
 
     /**
@@ -259,12 +315,12 @@ public class OtpErlangMap extends OtpErlangObject {
 	}
 
 	for (int i = 0; i < a; i++) {
-	    if (!keys[i].equals(t.keys[i])) {
+	    if (!keyAt(i).equals(t.keyAt(i))) {
 		return false; // early exit
 	    }
 	}
 	for (int i = 0; i < a; i++) {
-	    if (!values[i].equals(t.values[i])) {
+	    if (!valueAt(i).equals(t.valueAt(i))) {
 		return false; // early exit
 	    }
 	}
@@ -278,10 +334,10 @@ public class OtpErlangMap extends OtpErlangObject {
 	final int a = arity();
 	hash.combine(a);
 	for (int i = 0; i < a; i++) {
-	    hash.combine(keys[i].hashCode());
+	    hash.combine(keyAt(i).hashCode());
 	}
 	for (int i = 0; i < a; i++) {
-	    hash.combine(values[i].hashCode());
+	    hash.combine(valueAt(i).hashCode());
 	}
 	return hash.valueOf();
     }
@@ -49,6 +49,26 @@ public abstract class OtpErlangObject implements Serializable, Cloneable {
      */
     public abstract void encode(OtpOutputStream buf);
 
+    /**
+     * <p>
+     * Get the number of bytes written by {@link #encode encode()}, without
+     * encoding the term. This is used to size output buffers exactly.
+     * </p>
+     * 
+     * <p>
+     * This implementation encodes the term into a scratch stream; the Erlang
+     * data type classes override it with a direct computation.
+     * </p>
+     * 
+     * @return the size of the encoded term in bytes, not counting any
+     *         version byte.
+     */
+    public int encodedSize() {
+	final OtpOutputStream buf = new OtpOutputStream();
+	encode(buf);
+	return buf.size();
+    }
+
     /**
      * Read binary data in the Erlang external format, and produce a
      * corresponding Erlang data type object. This method is normally used when
@@ -156,6 +156,11 @@ public class OtpErlangPid extends OtpErlangObject implements Comparable<Object>
 	buf.write_pid(node, id, serial, creation);
     }
 
+    @Override
+    public int encodedSize() {
+	return OtpOutputStream.pidSize(node);
+    }
+
     /**
      * Determine if two PIDs are equal. PIDs are equal if their components are
      * equal.
@@ -137,6 +137,11 @@ public class OtpErlangPort extends OtpErlangObject {
 	buf.write_port(node, id, creation);
     }
 
+    @Override
+    public int encodedSize() {
+	return OtpOutputStream.portSize(node);
+    }
+
     /**
      * Determine if two ports are equal. Ports are equal if their components are
      * equal.
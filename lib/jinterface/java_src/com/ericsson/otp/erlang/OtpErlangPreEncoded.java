@@ -0,0 +1,339 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+/**
+ * Provides a Java representation of an Erlang term that has already been
+ * encoded in the external format. The term is encoded once, when the object
+ * is created, and every time it is sent afterwards its bytes are copied as
+ * they are instead of being encoded again. This is meant for large constant
+ * parts of messages, such as configuration data or lookup tables, that are
+ * sent many times:
+ * 
+ * <pre>
+ * OtpErlangPreEncoded table = new OtpErlangPreEncoded(buildTable());
+ * 
+ * mbox.send(pid, new OtpErlangTuple(new OtpErlangObject[] { tag, table }));
+ * </pre>
+ * 
+ * <p>
+ * A pre-encoded term may appear anywhere in another term. Pre-encoded terms
+ * are also made by filling the holes of an {@link OtpErlangTemplate}; the
+ * values that fill the holes are encoded each time the term is encoded.
+ * </p>
+ * 
+ * <p>
+ * A pre-encoded term is never seen by receivers: the receiving node decodes
+ * the term itself, and when a message is sent to a mailbox on the local
+ * node, pre-encoded terms in it are replaced by their terms, outside the
+ * free variables of funs. Two pre-encoded terms are equal if their terms
+ * are equal.
+ * </p>
+ */
+public class OtpErlangPreEncoded extends OtpErlangObject {
+    // don't change this!
+    private static final long serialVersionUID = -3806235416409046210L;
+
+    private static final int[] NO_HOLES = new int[0];
+    private static final OtpErlangObject[] NO_VALUES = new OtpErlangObject[0];
+
+    // the encoded term, split where the values go
+    private transient final byte[][] segments;
+    // the value that goes after each segment but the last
+    private transient final int[] holes;
+    private transient final OtpErlangObject[] values;
+    // the total size of the segments
+    private transient final int size;
+
+    // the term, once it is known
+    private transient volatile OtpErlangObject term;
+    // the template this term was filled from, if any
+    private transient final OtpErlangTemplate template;
+
+    // set once any pre-encoded term has been made, so that local sends
+    // only look for them in messages if there can be some
+    private static volatile boolean used = false;
+
+    /**
+     * Create a pre-encoded term by encoding a term.
+     * 
+     * @param term
+     *            the term to encode. If it is itself pre-encoded, its
+     *            encoding is shared.
+     */
+    public OtpErlangPreEncoded(final OtpErlangObject term) {
+	if (term instanceof OtpErlangPreEncoded) {
+	    final OtpErlangPreEncoded p = (OtpErlangPreEncoded) term;
+	    segments = p.segments;
+	    holes = p.holes;
+	    values = p.values;
+	    size = p.size;
+	    template = p.template;
+	    this.term = p.term;
+	} else {
+	    final byte[] bytes = new OtpOutputStream(term).toByteArray();
+	    segments = new byte[][] { bytes };
+	    holes = NO_HOLES;
+	    values = NO_VALUES;
+	    size = bytes.length;
+	    template = null;
+	    this.term = term;
+	}
+	used = true;
+    }
+
+    /**
+     * Create a pre-encoded term from bytes in the external format, such as
+     * the result of <code>term_to_binary/1</code>. The bytes are checked and
+     * copied.
+     * 
+     * @param encoded
+     *            one encoded term, with or without a leading version byte.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the bytes are not exactly one encoded term.
+     */
+    public OtpErlangPreEncoded(final byte[] encoded)
+	    throws OtpErlangDecodeException {
+	final OtpInputStream is = new OtpInputStream(encoded);
+	is.skip_any();
+	if (is.available() != 0) {
+	    throw new OtpErlangDecodeException("Bytes after encoded term");
+	}
+	final int start = (encoded[0] & 0xff) == OtpExternal.versionTag ? 1
+		: 0;
+	final byte[] bytes = new byte[encoded.length - start];
+	System.arraycopy(encoded, start, bytes, 0, bytes.length);
+	segments = new byte[][] { bytes };
+	holes = NO_HOLES;
+	values = NO_VALUES;
+	size = bytes.length;
+	template = null;
+	used = true;
+    }
+
+    // package scope
+    /*
+     * Create a term from the segments of a template and the values of its
+     * holes. Nothing is copied.
+     */
+    OtpErlangPreEncoded(final byte[][] segments, final int[] holes,
+	    final OtpErlangObject[] values, final int size,
+	    final OtpErlangTemplate template) {
+	this.segments = segments;
+	this.holes = holes;
+	this.values = values;
+	this.size = size;
+	this.template = template;
+	used = true;
+    }
+
+    /**
+     * Get the term that was encoded. If this object was made from encoded
+     * bytes, the term is decoded the first time this is called; if it was
+     * filled from a template, it is built from the template and the values
+     * of the holes.
+     * 
+     * @return the term.
+     */
+    public OtpErlangObject term() {
+	OtpErlangObject t = term;
+	if (t == null && template != null) {
+	    t = template.build(values);
+	    term = t;
+	} else if (t == null) {
+	    final OtpOutputStream buf = new OtpOutputStream(encodedSize());
+	    encode(buf);
+	    try {
+		t = new OtpInputStream(buf.toByteArray()).read_any();
+	    } catch (final OtpErlangDecodeException e) {
+		/* the bytes were checked or encoded by us */
+		throw new IllegalStateException(e.toString());
+	    }
+	    term = t;
+	}
+	return t;
+    }
+
+    /**
+     * Convert this term to the equivalent Erlang external representation. The
+     * encoded bytes are copied to the stream, and the values of any holes are
+     * encoded between them.
+     * 
+     * @param buf
+     *            an output stream to which the encoded term should be
+     *            written.
+     */
+    @Override
+    public void encode(final OtpOutputStream buf) {
+	final int n = holes.length;
+	for (int i = 0; i < n; i++) {
+	    buf.writeN(segments[i]);
+	    values[holes[i]].encode(buf);
+	}
+	buf.writeN(segments[n]);
+    }
+
+    @Override
+    public int encodedSize() {
+	int s = size;
+	for (final int h : holes) {
+	    s += values[h].encodedSize();
+	}
+	return s;
+    }
+
+    /**
+     * Get the string representation of the term.
+     * 
+     * @return the string representation of the term.
+     */
+    @Override
+    public String toString() {
+	return term().toString();
+    }
+
+    /**
+     * Determine if two pre-encoded terms are equal, by comparing their terms.
+     * 
+     * @param o
+     *            the object to compare to.
+     * 
+     * @return true if the terms are equal, false otherwise.
+     */
+    @Override
+    public boolean equals(final Object o) {
+	if (!(o instanceof OtpErlangPreEncoded)) {
+	    return false;
+	}
+	return term().equals(((OtpErlangPreEncoded) o).term());
+    }
+
+    @Override
+    protected int doHashCode() {
+	return term().hashCode();
+    }
+
+    /**
+     * Get a copy of the term, as it would be decoded. This is what a mailbox
+     * on the local node receives when a pre-encoded term is sent to it.
+     * 
+     * @return a copy of the term that was encoded.
+     */
+    @Override
+    public Object clone() {
+	return term().clone();
+    }
+
+    // package scope
+    /*
+     * Replace the pre-encoded terms in a message sent to a local mailbox by
+     * their terms, as a remote receiver would see them. Tuples, lists and
+     * maps are copied only on the way to a pre-encoded term. Those found to
+     * hold none remember it, so constant parts of messages are only searched
+     * once, and terms that were decoded lazily are not searched at all.
+     */
+    static OtpErlangObject unwrap(final OtpErlangObject msg) {
+	return used ? unwrapTerm(msg) : msg;
+    }
+
+    private static OtpErlangObject unwrapTerm(final OtpErlangObject t) {
+	if (t instanceof OtpErlangPreEncoded) {
+	    return ((OtpErlangPreEncoded) t).term();
+	} else if (t instanceof OtpErlangTuple) {
+	    final OtpErlangTuple tuple = (OtpErlangTuple) t;
+	    if (tuple.plain || t instanceof LazyTuple) {
+		return t;
+	    }
+	    OtpErlangObject[] elems = null;
+	    for (int i = 0; i < tuple.arity(); i++) {
+		final OtpErlangObject e = tuple.elementAt(i);
+		final OtpErlangObject u = unwrapTerm(e);
+		if (u != e) {
+		    if (elems == null) {
+			elems = tuple.elements();
+		    }
+		    elems[i] = u;
+		}
+	    }
+	    if (elems == null) {
+		tuple.plain = true;
+		return t;
+	    }
+	    return OtpErlangTuple.adopt(elems);
+	} else if (t instanceof OtpErlangList) {
+	    final OtpErlangList list = (OtpErlangList) t;
+	    if (list.plain || t instanceof LazyList || t instanceof IntList) {
+		return t;
+	    }
+	    OtpErlangObject[] elems = null;
+	    for (int i = 0; i < list.arity(); i++) {
+		final OtpErlangObject e = list.elementAt(i);
+		final OtpErlangObject u = unwrapTerm(e);
+		if (u != e) {
+		    if (elems == null) {
+			elems = list.elements();
+		    }
+		    elems[i] = u;
+		}
+	    }
+	    final OtpErlangObject tail = list.getLastTail();
+	    final OtpErlangObject utail = tail == null ? null
+		    : unwrapTerm(tail);
+	    if (elems == null && utail == tail) {
+		list.plain = true;
+		return t;
+	    }
+	    return OtpErlangList.adopt(elems == null ? list.elements() : elems,
+		    utail);
+	} else if (t instanceof OtpErlangMap) {
+	    final OtpErlangMap map = (OtpErlangMap) t;
+	    if (map.plain || t instanceof LazyMap) {
+		return t;
+	    }
+	    OtpErlangObject[] keys = null;
+	    OtpErlangObject[] values = null;
+	    for (int i = 0; i < map.arity(); i++) {
+		final OtpErlangObject k = map.keyAt(i);
+		final OtpErlangObject uk = unwrapTerm(k);
+		final OtpErlangObject v = map.valueAt(i);
+		final OtpErlangObject uv = unwrapTerm(v);
+		if (uk != k || uv != v) {
+		    if (keys == null) {
+			keys = map.keys();
+			values = map.values();
+		    }
+		    keys[i] = uk;
+		    values[i] = uv;
+		}
+	    }
+	    if (keys == null) {
+		map.plain = true;
+		return t;
+	    }
+	    return OtpErlangMap.adopt(keys, values);
+	}
+	return t;
+    }
+
+    private Object writeReplace() {
+	// the encoding is not kept when serialized
+	return term();
+    }
+}
@@ -207,6 +207,11 @@ public class OtpErlangRef extends OtpErlangObject {
 	buf.write_ref(node, ids, creation);
     }
 
+    @Override
+    public int encodedSize() {
+	return OtpOutputStream.refSize(node, ids);
+    }
+
     /**
      * Determine if two refs are equal. Refs are equal if their components are
      * equal. New refs and old refs are considered equal if the node, creation
@@ -29,6 +29,9 @@ public class OtpErlangString extends OtpErlangObject {
 
     private final String str;
 
+    // cached result of encodedSize(), 0 until computed
+    private transient int encodedSizeValue = 0;
+
     /**
      * Create an Erlang string from the given string.
      */
@@ -112,6 +115,14 @@ public class OtpErlangString extends OtpErlangObject {
 	buf.write_string(str);
     }
 
+    @Override
+    public int encodedSize() {
+	if (encodedSizeValue == 0) {
+	    encodedSizeValue = OtpOutputStream.stringSize(str);
+	}
+	return encodedSizeValue;
+    }
+
     /**
      * Determine if two strings are equal. They are equal if they represent the
      * same sequence of characters. This method can be used to compare
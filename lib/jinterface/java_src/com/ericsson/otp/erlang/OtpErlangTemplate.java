@@ -0,0 +1,458 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+import java.util.ArrayList;
+
+/**
+ * Provides a message template: a term that is encoded once, with holes where
+ * the parts that change from one message to the next go. The holes are
+ * filled to make an {@link OtpErlangPreEncoded} term, whose constant parts
+ * are copied from the template when it is sent and only the values in the
+ * holes are encoded:
+ * 
+ * <pre>
+ * OtpErlangTemplate t = new OtpErlangTemplate(new OtpErlangTuple(
+ * 	new OtpErlangObject[] { new OtpErlangAtom(&quot;reading&quot;),
+ * 		OtpErlangTemplate.hole(0, OtpErlangLong.class), table,
+ * 		OtpErlangTemplate.hole(1) }));
+ * 
+ * mbox.send(pid, t.fill(new OtpErlangLong(sensor), value));
+ * </pre>
+ * 
+ * <p>
+ * Holes are numbered from 0, and the numbers used in a template must have
+ * no gaps. A hole may appear more than once, and may be in a tuple, list or
+ * map, but not in the free variables of a fun. A hole can be given a type,
+ * which the values that fill it must have.
+ * </p>
+ * 
+ * <p>
+ * Templates are immutable and may be filled by several threads at once.
+ * </p>
+ */
+public class OtpErlangTemplate {
+    private final byte[][] segments;
+    // the hole after each segment but the last
+    private final int[] order;
+    // the type of each hole
+    private final Class<?>[] types;
+    private final int size;
+    // builds the term of a filled template
+    private final Part shape;
+
+    /**
+     * Compile a template.
+     * 
+     * @param skeleton
+     *            the term to send, with holes made by {@link #hole(int)} or
+     *            {@link #hole(int, Class)}.
+     * 
+     * @exception IllegalArgumentException
+     *                if the hole numbers have gaps, a hole is used with two
+     *                different types or a hole is inside a fun.
+     */
+    public OtpErlangTemplate(final OtpErlangObject skeleton) {
+	final Compiler c = new Compiler();
+	shape = c.add(skeleton);
+
+	final byte[] bytes = c.out.toByteArray();
+	final int n = c.holes.size();
+	segments = new byte[n + 1][];
+	order = new int[n];
+	int max = -1;
+	int start = 0;
+	for (int i = 0; i < n; i++) {
+	    final int end = c.ends.get(i).intValue();
+	    segments[i] = copy(bytes, start, end);
+	    start = end;
+	    order[i] = c.holes.get(i).index;
+	    max = Math.max(max, order[i]);
+	}
+	segments[n] = copy(bytes, start, bytes.length);
+	size = bytes.length;
+
+	types = new Class<?>[max + 1];
+	final boolean[] seen = new boolean[max + 1];
+	for (final Hole h : c.holes) {
+	    if (seen[h.index] && types[h.index] != h.type) {
+		throw new IllegalArgumentException("Hole " + h.index
+			+ " has two types");
+	    }
+	    seen[h.index] = true;
+	    types[h.index] = h.type;
+	}
+	for (int i = 0; i <= max; i++) {
+	    if (!seen[i]) {
+		throw new IllegalArgumentException("Hole " + i + " is missing");
+	    }
+	}
+    }
+
+    /**
+     * Make a hole for a template, that can be filled with any term.
+     * 
+     * @param index
+     *            the number of the hole, from 0.
+     * 
+     * @return a hole to put in the skeleton of a template.
+     */
+    public static Hole hole(final int index) {
+	return new Hole(index, OtpErlangObject.class);
+    }
+
+    /**
+     * Make a hole for a template, that can only be filled with terms of a
+     * given type.
+     * 
+     * @param index
+     *            the number of the hole, from 0.
+     * @param type
+     *            the class of the terms that fill the hole.
+     * 
+     * @return a hole to put in the skeleton of a template.
+     */
+    public static Hole hole(final int index,
+	    final Class<? extends OtpErlangObject> type) {
+	return new Hole(index, type);
+    }
+
+    /**
+     * Get the number of holes in this template.
+     * 
+     * @return the number of values {@link #fill(OtpErlangObject...)} takes.
+     */
+    public int holes() {
+	return types.length;
+    }
+
+    /**
+     * Fill the holes of this template. The values are not encoded until the
+     * term is, and they must not be changed until then.
+     * 
+     * @param values
+     *            the value of each hole, in the order of the hole numbers. A
+     *            pre-encoded value fills a typed hole if the term it was made
+     *            from has the type.
+     * 
+     * @return the filled template, as a term that can be sent.
+     * 
+     * @exception IllegalArgumentException
+     *                if the number of values is wrong, or a value is null or
+     *                of the wrong type.
+     */
+    public OtpErlangPreEncoded fill(final OtpErlangObject... values) {
+	if (values.length != types.length) {
+	    throw new IllegalArgumentException("Template has " + types.length
+		    + " holes, not " + values.length);
+	}
+	final OtpErlangObject[] v = values.clone();
+	for (int i = 0; i < v.length; i++) {
+	    if (v[i] == null) {
+		throw new IllegalArgumentException("Hole " + i + " is not filled");
+	    }
+	    if (!fits(types[i], v[i])) {
+		throw new IllegalArgumentException("Hole " + i + " takes "
+			+ types[i].getSimpleName() + ", not "
+			+ v[i].getClass().getSimpleName());
+	    }
+	}
+	return new OtpErlangPreEncoded(segments, order, v, size, this);
+    }
+
+    // package scope
+    /*
+     * Build the term of a filled template, sharing the parts of the skeleton
+     * that have no holes.
+     */
+    OtpErlangObject build(final OtpErlangObject[] values) {
+	return shape.build(values);
+    }
+
+    private static boolean fits(final Class<?> type, final OtpErlangObject o) {
+	if (type.isInstance(o)) {
+	    return true;
+	}
+	return o instanceof OtpErlangPreEncoded
+		&& type.isInstance(((OtpErlangPreEncoded) o).term());
+    }
+
+    private static byte[] copy(final byte[] bytes, final int start,
+	    final int end) {
+	final byte[] b = new byte[end - start];
+	System.arraycopy(bytes, start, b, 0, b.length);
+	return b;
+    }
+
+    /**
+     * A hole in the skeleton of a template. Holes cannot be encoded, so they
+     * can only be used to compile a template.
+     */
+    public static final class Hole extends OtpErlangObject {
+	// don't change this!
+	private static final long serialVersionUID = 4981632719023478911L;
+
+	private final int index;
+	private final Class<?> type;
+
+	private Hole(final int index, final Class<?> type) {
+	    if (index < 0) {
+		throw new IllegalArgumentException("Negative hole number: "
+			+ index);
+	    }
+	    if (type == null) {
+		throw new NullPointerException("type");
+	    }
+	    this.index = index;
+	    this.type = type;
+	}
+
+	/**
+	 * Get the number of this hole.
+	 * 
+	 * @return the number of the hole.
+	 */
+	public int index() {
+	    return index;
+	}
+
+	/**
+	 * Holes cannot be encoded.
+	 * 
+	 * @exception IllegalStateException
+	 *                always.
+	 */
+	@Override
+	public void encode(final OtpOutputStream buf) {
+	    throw new IllegalStateException("Template hole " + index
+		    + " is not filled");
+	}
+
+	@Override
+	public String toString() {
+	    return "<hole " + index + ">";
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+	    if (!(o instanceof Hole)) {
+		return false;
+	    }
+	    final Hole h = (Hole) o;
+	    return index == h.index && type == h.type;
+	}
+
+	@Override
+	protected int doHashCode() {
+	    return index;
+	}
+    }
+
+    /*
+     * Encodes a skeleton, noting where each hole is. Parts of the skeleton
+     * without holes are encoded as they are.
+     */
+    private static final class Compiler {
+	final OtpOutputStream out = new OtpOutputStream();
+	final ArrayList<Hole> holes = new ArrayList<Hole>();
+	final ArrayList<Integer> ends = new ArrayList<Integer>();
+
+	Part add(final OtpErlangObject term) {
+	    if (term instanceof Hole) {
+		ends.add(Integer.valueOf(out.size()));
+		holes.add((Hole) term);
+		return new HolePart(((Hole) term).index);
+	    } else if (!hasHoles(term)) {
+		out.write_any(term);
+		return new ConstPart(OtpErlangPreEncoded.unwrap(term));
+	    } else if (term instanceof OtpErlangTuple) {
+		final OtpErlangTuple t = (OtpErlangTuple) term;
+		final int arity = t.arity();
+		final Part[] elems = new Part[arity];
+		out.write_tuple_head(arity);
+		for (int i = 0; i < arity; i++) {
+		    elems[i] = add(t.elementAt(i));
+		}
+		return new TuplePart(elems);
+	    } else if (term instanceof OtpErlangList) {
+		final OtpErlangList l = (OtpErlangList) term;
+		final int arity = l.arity();
+		final Part[] elems = new Part[arity];
+		if (arity > 0) {
+		    out.write_list_head(arity);
+		    for (int i = 0; i < arity; i++) {
+			elems[i] = add(l.elementAt(i));
+		    }
+		}
+		final OtpErlangObject tail = l.getLastTail();
+		if (tail == null) {
+		    out.write_nil();
+		    return new ListPart(elems, null);
+		}
+		return new ListPart(elems, add(tail));
+	    } else {
+		final OtpErlangMap m = (OtpErlangMap) term;
+		final int arity = m.arity();
+		final Part[] keys = new Part[arity];
+		final Part[] values = new Part[arity];
+		out.write_map_head(arity);
+		for (int i = 0; i < arity; i++) {
+		    keys[i] = add(m.keyAt(i));
+		    values[i] = add(m.valueAt(i));
+		}
+		return new MapPart(keys, values);
+	    }
+	}
+
+	private static boolean hasHoles(final OtpErlangObject term) {
+	    if (term instanceof Hole) {
+		return true;
+	    } else if (term instanceof OtpErlangTuple) {
+		final OtpErlangTuple t = (OtpErlangTuple) term;
+		for (int i = 0; i < t.arity(); i++) {
+		    if (hasHoles(t.elementAt(i))) {
+			return true;
+		    }
+		}
+	    } else if (term instanceof OtpErlangList) {
+		final OtpErlangList l = (OtpErlangList) term;
+		for (int i = 0; i < l.arity(); i++) {
+		    if (hasHoles(l.elementAt(i))) {
+			return true;
+		    }
+		}
+		final OtpErlangObject tail = l.getLastTail();
+		return tail != null && hasHoles(tail);
+	    } else if (term instanceof OtpErlangMap) {
+		final OtpErlangMap m = (OtpErlangMap) term;
+		for (int i = 0; i < m.arity(); i++) {
+		    if (hasHoles(m.keyAt(i)) || hasHoles(m.valueAt(i))) {
+			return true;
+		    }
+		}
+	    } else if (term instanceof OtpErlangFun) {
+		final OtpErlangObject[] vars = ((OtpErlangFun) term)
+			.freeVars();
+		if (vars != null) {
+		    for (final OtpErlangObject v : vars) {
+			if (hasHoles(v)) {
+			    throw new IllegalArgumentException(
+				    "Template holes cannot be inside a fun");
+			}
+		    }
+		}
+	    }
+	    return false;
+	}
+    }
+
+    /*
+     * The skeleton of a template, as a tree whose leaves are holes and the
+     * parts of the skeleton that have no holes. Pre-encoded terms in the
+     * skeleton and the values are replaced by their terms.
+     */
+    private static abstract class Part {
+	abstract OtpErlangObject build(OtpErlangObject[] values);
+
+	static OtpErlangObject[] build(final Part[] parts,
+		final OtpErlangObject[] values) {
+	    final OtpErlangObject[] res = new OtpErlangObject[parts.length];
+	    for (int i = 0; i < res.length; i++) {
+		res[i] = parts[i].build(values);
+	    }
+	    return res;
+	}
+    }
+
+    private static final class ConstPart extends Part {
+	private final OtpErlangObject term;
+
+	ConstPart(final OtpErlangObject term) {
+	    this.term = term;
+	}
+
+	@Override
+	OtpErlangObject build(final OtpErlangObject[] values) {
+	    return term;
+	}
+    }
+
+    private static final class HolePart extends Part {
+	private final int index;
+
+	HolePart(final int index) {
+	    this.index = index;
+	}
+
+	@Override
+	OtpErlangObject build(final OtpErlangObject[] values) {
+	    return OtpErlangPreEncoded.unwrap(values[index]);
+	}
+    }
+
+    private static final class TuplePart extends Part {
+	private final Part[] elems;
+
+	TuplePart(final Part[] elems) {
+	    this.elems = elems;
+	}
+
+	@Override
+	OtpErlangObject build(final OtpErlangObject[] values) {
+	    return OtpErlangTuple.adopt(build(elems, values));
+	}
+    }
+
+    private static final class ListPart extends Part {
+	private final Part[] elems;
+	private final Part tail;
+
+	ListPart(final Part[] elems, final Part tail) {
+	    this.elems = elems;
+	    this.tail = tail;
+	}
+
+	@Override
+	OtpErlangObject build(final OtpErlangObject[] values) {
+	    OtpErlangObject t = tail == null ? null : tail.build(values);
+	    // a tail that is encoded as nil ends a proper list when decoded
+	    if (t instanceof OtpErlangList && ((OtpErlangList) t).arity() == 0
+		    || t instanceof OtpErlangString
+		    && ((OtpErlangString) t).stringValue().length() == 0) {
+		t = null;
+	    }
+	    return OtpErlangList.adopt(build(elems, values), t);
+	}
+    }
+
+    private static final class MapPart extends Part {
+	private final Part[] keys;
+	private final Part[] values;
+
+	MapPart(final Part[] keys, final Part[] values) {
+	    this.keys = keys;
+	    this.values = values;
+	}
+
+	@Override
+	OtpErlangObject build(final OtpErlangObject[] v) {
+	    return OtpErlangMap.adopt(build(keys, v), build(values, v));
+	}
+    }
+}
@@ -36,6 +36,12 @@ public class OtpErlangTuple extends OtpErlangObject {
 
     private OtpErlangObject[] elems = NO_ELEMENTS;
 
+    // cached result of encodedSize(), 0 until computed
+    private transient int encodedSizeValue = 0;
+    // set once OtpErlangPreEncoded.unwrap() found no pre-encoded terms in
+    // this term
+    transient boolean plain = false;
+
     /**
      * Create a unary tuple containing the given element.
      * 
@@ -102,6 +108,26 @@ public class OtpErlangTuple extends OtpErlangObject {
 	}
     }
 
+    // package scope
+    /*
+     * For subclasses that keep their elements elsewhere.
+     */
+    OtpErlangTuple() {
+    }
+
+    // package scope
+    /*
+     * Create a tuple that takes over the given array, used by the decoder.
+     * The elements must not be null.
+     */
+    static OtpErlangTuple adopt(final OtpErlangObject[] elems) {
+	final OtpErlangTuple t = new OtpErlangTuple();
+	if (elems.length > 0) {
+	    t.elems = elems;
+	}
+	return t;
+    }
+
     /**
      * Create a tuple from a stream containing an tuple encoded in Erlang
      * external format.
@@ -173,7 +199,7 @@ public class OtpErlangTuple extends OtpErlangObject {
     public String toString() {
 	int i;
 	final StringBuffer s = new StringBuffer();
-	final int arity = elems.length;
+	final int arity = arity();
 
 	s.append("{");
 
@@ -181,7 +207,7 @@ public class OtpErlangTuple extends OtpErlangObject {
 	    if (i > 0) {
 		s.append(",");
 	    }
-	    s.append(elems[i].toString());
+	    s.append(elementAt(i).toString());
 	}
 
 	s.append("}");
@@ -198,13 +224,27 @@ public class OtpErlangTuple extends OtpErlangObject {
      */
     @Override
     public void encode(final OtpOutputStream buf) {
-	final int arity = elems.length;
+	final int arity = arity();
 
 	buf.write_tuple_head(arity);
 
 	for (int i = 0; i < arity; i++) {
-	    buf.write_any(elems[i]);
+	    buf.write_any(elementAt(i));
+	}
+    }
+
+    @Override
+    public int encodedSize() {
+	if (encodedSizeValue == 0) {
+	    final int arity = arity();
+	    int size = OtpOutputStream.tupleHeadSize(arity);
+
+	    for (int i = 0; i < arity; i++) {
+		size += elementAt(i).encodedSize();
+	    }
+	    encodedSizeValue = size;
 	}
+	return encodedSizeValue;
     }
 
     /**
@@ -231,7 +271,7 @@ public class OtpErlangTuple extends OtpErlangObject {
 	}
 
 	for (int i = 0; i < a; i++) {
-	    if (!elems[i].equals(t.elems[i])) {
+	    if (!elementAt(i).equals(t.elementAt(i))) {
 		return false; // early exit
 	    }
 	}
@@ -245,7 +285,7 @@ public class OtpErlangTuple extends OtpErlangObject {
 	final int a = arity();
 	hash.combine(a);
 	for (int i = 0; i < a; i++) {
-	    hash.combine(elems[i].hashCode());
+	    hash.combine(elementAt(i).hashCode());
 	}
 	return hash.valueOf();
     }
@@ -0,0 +1,117 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+/**
+ * <p>
+ * Interfaces for demand-driven streams of messages, used by
+ * {@link OtpMbox#asPublisher() OtpMbox.asPublisher()} and
+ * {@link OtpNode#subscriberTo(OtpErlangPid) OtpNode.subscriberTo()}.
+ * </p>
+ * 
+ * <p>
+ * The interfaces have the same methods and contract as those in the Reactive
+ * Streams specification (and java.util.concurrent.Flow), so adapting them to
+ * a reactive library is a matter of delegating each method.
+ * </p>
+ */
+public final class OtpFlow {
+    private OtpFlow() {
+    }
+
+    /**
+     * A producer of items that are delivered to a {@link Subscriber} as it
+     * requests them.
+     * 
+     * @param <T>
+     *            the type of the published items.
+     */
+    public static interface Publisher<T> {
+	/**
+	 * Add a subscriber. Its {@link Subscriber#onSubscribe onSubscribe()}
+	 * method is called with a new {@link Subscription}, or its
+	 * {@link Subscriber#onError onError()} method is called if the
+	 * subscription is refused.
+	 * 
+	 * @param subscriber
+	 *            the subscriber to add.
+	 */
+	public void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items. Calls to the methods of a subscriber are never
+     * concurrent.
+     * 
+     * @param <T>
+     *            the type of the received items.
+     */
+    public static interface Subscriber<T> {
+	/**
+	 * Called before any other method, with the subscription that is used to
+	 * request items.
+	 * 
+	 * @param subscription
+	 *            the new subscription.
+	 */
+	public void onSubscribe(Subscription subscription);
+
+	/**
+	 * Called with the next item. Never called more often than requested.
+	 * 
+	 * @param item
+	 *            the item.
+	 */
+	public void onNext(T item);
+
+	/**
+	 * Called when the stream terminates with an error. No further methods
+	 * are called.
+	 * 
+	 * @param throwable
+	 *            the error.
+	 */
+	public void onError(Throwable throwable);
+
+	/**
+	 * Called when the stream terminates normally. No further methods are
+	 * called.
+	 */
+	public void onComplete();
+    }
+
+    /**
+     * The link between a {@link Publisher} and a {@link Subscriber}.
+     */
+    public static interface Subscription {
+	/**
+	 * Add to the number of items the subscriber is willing to receive.
+	 * 
+	 * @param n
+	 *            the number of additional items, which must be positive.
+	 */
+	public void request(long n);
+
+	/**
+	 * Stop sending items to the subscriber. Items may still arrive for a
+	 * short while after this call.
+	 */
+	public void cancel();
+    }
+}
@@ -19,8 +19,8 @@
 package com.ericsson.otp.erlang;
 
 import java.io.ByteArrayInputStream;
-import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -34,8 +34,59 @@ public class OtpInputStream extends ByteArrayInputStream {
 
     public static int DECODE_INT_LISTS_AS_STRINGS = 1;
 
+    /**
+     * Decode tuples, non-empty lists and maps as views of the encoded term
+     * that decode each element when it is first used. The views keep a
+     * reference to the whole buffer.
+     */
+    public static int DECODE_LAZY_TERMS = 2;
+
+    /**
+     * Decode binaries as {@link OtpErlangBinary#OtpErlangBinary(ByteBuffer)
+     * buffer backed binaries} that share the input buffer, instead of copying
+     * them. The binaries keep a reference to the whole buffer.
+     */
+    public static int DECODE_BINARIES_AS_BUFFERS = 4;
+
+    /**
+     * Decode proper lists of integers as lists backed by an int[], see
+     * {@link OtpErlangList#intValues()}. Combined with
+     * {@link #DECODE_INT_LISTS_AS_STRINGS}, lists that are valid strings
+     * become strings and the other integer lists arrays.
+     */
+    public static int DECODE_INT_LISTS_AS_ARRAYS = 8;
+
+    /**
+     * Decode strings that arrive as STRING_EXT, which Erlang uses for short
+     * lists of integers in 0..255, as lists backed by an int[] instead of
+     * {@link OtpErlangString strings}.
+     */
+    public static int DECODE_STRINGS_AS_LISTS = 16;
+
+    /**
+     * Decode atoms as the {@link OtpErlangAtom#of(String) canonical atoms},
+     * so that they can be compared with <code>==</code>, as long as the
+     * table of canonical atoms is not full.
+     */
+    public static int DECODE_CANONICAL_ATOMS = 32;
+
     private final int flags;
 
+    // limits on the terms decoded, 0 for none
+    private int maxDepth = 0;
+    private int maxElements = 0;
+
+    // the depth of the compound term that a stream over a nested encoding,
+    // such as a compressed term, is decoded within
+    private int depth = 0;
+
+    // set on streams over an inflated compressed term, which Erlang never
+    // nests another compressed term in
+    private boolean inflated = false;
+
+    // frames of read_any() that are done with, for reuse
+    private Frame spareFrames = null;
+
     /**
      * @param buf
      */
@@ -43,6 +94,19 @@ public class OtpInputStream extends ByteArrayInputStream {
 	this(buf, 0);
     }
 
+    /**
+     * Create a stream from a buffer containing encoded Erlang terms, that
+     * decodes them as a profile says.
+     * 
+     * @param buf
+     *            the buffer.
+     * @param profile
+     *            how terms are to be represented.
+     */
+    public OtpInputStream(final byte[] buf, final OtpDecodeProfile profile) {
+	this(buf, profile.flags());
+    }
+
     /**
      * Create a stream from a buffer containing encoded Erlang terms.
      * 
@@ -74,6 +138,122 @@ public class OtpInputStream extends ByteArrayInputStream {
 	return super.pos;
     }
 
+    /**
+     * Limit how deeply the tuples, lists, maps and funs decoded from this
+     * stream may be nested. Deeper terms are rejected with an
+     * {@link OtpErlangDecodeException} before their elements are read.
+     * Terms are decoded without recursion, so this is not needed to protect
+     * the stack of the decoding thread. The limit carries over to the lazy
+     * views and compressed terms decoded from this stream.
+     * 
+     * @param maxDepth
+     *            the greatest depth, where a tuple of atoms has depth 1, or 0
+     *            for no limit.
+     */
+    public void setMaxDepth(final int maxDepth) {
+	this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Get the greatest depth of the terms decoded from this stream.
+     * 
+     * @return the depth limit, or 0 if there is none.
+     */
+    public int getMaxDepth() {
+	return maxDepth;
+    }
+
+    /**
+     * Limit the number of elements of the tuples, lists, maps and funs
+     * decoded from this stream. Larger terms are rejected with an
+     * {@link OtpErlangDecodeException} before anything is allocated for
+     * their elements. Regardless of this limit, the element count of a term
+     * is never trusted beyond the number of bytes left in the stream. The
+     * limit carries over to the lazy views and compressed terms decoded from
+     * this stream.
+     * 
+     * @param maxElements
+     *            the greatest number of elements, or 0 for no limit.
+     */
+    public void setMaxElements(final int maxElements) {
+	this.maxElements = maxElements;
+    }
+
+    /**
+     * Get the greatest number of elements of the terms decoded from this
+     * stream.
+     * 
+     * @return the element limit, or 0 if there is none.
+     */
+    public int getMaxElements() {
+	return maxElements;
+    }
+
+    // package scope
+    /*
+     * Get the buffer backing this stream. Used by OtpMsg to hand the encoded
+     * payload on without decoding or copying it.
+     */
+    byte[] buffer() {
+	return super.buf;
+    }
+
+    // package scope
+    /*
+     * The decode flags this stream was created with.
+     */
+    int flags() {
+	return flags;
+    }
+
+    // package scope
+    /*
+     * Skip n terms, returning their start positions followed by the end
+     * position of the last one. Used by the lazy term views.
+     */
+    int[] skip_elements(final int n) throws OtpErlangDecodeException {
+	// every term is at least one byte
+	if (n < 0 || n > super.count - super.pos) {
+	    throw new OtpErlangDecodeException("Cannot read from input stream");
+	}
+	final int[] offsets = new int[n + 1];
+	for (int i = 0; i < n; i++) {
+	    offsets[i] = super.pos;
+	    skip_any();
+	}
+	offsets[n] = super.pos;
+	return offsets;
+    }
+
+    // package scope
+    /*
+     * The number of bytes left, as available() but without locking.
+     */
+    int remaining() {
+	return super.count - super.pos;
+    }
+
+    // package scope
+    /*
+     * Get a new stream with the same flags over the region of this stream's
+     * buffer from start (inclusive) to end (exclusive).
+     */
+    OtpInputStream slice(final int start, final int end) {
+	return slice(start, end, flags);
+    }
+
+    // package scope
+    /*
+     * As slice(start, end), but decoding with the given flags.
+     */
+    OtpInputStream slice(final int start, final int end, final int flags) {
+	final OtpInputStream s = new OtpInputStream(super.buf, start, end
+		- start, flags);
+	s.maxDepth = maxDepth;
+	s.maxElements = maxElements;
+	return s;
+    }
+
     /**
      * Set the current position in the stream.
      * 
@@ -182,14 +362,10 @@ public class OtpInputStream extends ByteArrayInputStream {
      *                if the next byte cannot be read.
      */
     public int read1() throws OtpErlangDecodeException {
-	int i;
-	i = super.read();
-
-	if (i < 0) {
+	if (super.pos >= super.count) {
 	    throw new OtpErlangDecodeException("Cannot read from input stream");
 	}
-
-	return i;
+	return super.buf[super.pos++] & 0xff;
     }
 
     public int read1skip_version() throws OtpErlangDecodeException {
@@ -209,13 +385,9 @@ public class OtpInputStream extends ByteArrayInputStream {
      *                if the next byte cannot be read.
      */
     public int read2BE() throws OtpErlangDecodeException {
-	final byte[] b = new byte[2];
-	try {
-	    super.read(b);
-	} catch (final IOException e) {
-	    throw new OtpErlangDecodeException("Cannot read from input stream");
-	}
-	return (b[0] << 8 & 0xff00) + (b[1] & 0xff);
+	final byte[] b = super.buf;
+	final int p = claim(2);
+	return (b[p] << 8 & 0xff00) + (b[p + 1] & 0xff);
     }
 
     /**
@@ -227,14 +399,10 @@ public class OtpInputStream extends ByteArrayInputStream {
      *                if the next byte cannot be read.
      */
     public int read4BE() throws OtpErlangDecodeException {
-	final byte[] b = new byte[4];
-	try {
-	    super.read(b);
-	} catch (final IOException e) {
-	    throw new OtpErlangDecodeException("Cannot read from input stream");
-	}
-	return (b[0] << 24 & 0xff000000) + (b[1] << 16 & 0xff0000)
-		+ (b[2] << 8 & 0xff00) + (b[3] & 0xff);
+	final byte[] b = super.buf;
+	final int p = claim(4);
+	return (b[p] << 24 & 0xff000000) + (b[p + 1] << 16 & 0xff0000)
+		+ (b[p + 2] << 8 & 0xff00) + (b[p + 3] & 0xff);
     }
 
     /**
@@ -246,13 +414,9 @@ public class OtpInputStream extends ByteArrayInputStream {
      *                if the next byte cannot be read.
      */
     public int read2LE() throws OtpErlangDecodeException {
-	final byte[] b = new byte[2];
-	try {
-	    super.read(b);
-	} catch (final IOException e) {
-	    throw new OtpErlangDecodeException("Cannot read from input stream");
-	}
-	return (b[1] << 8 & 0xff00) + (b[0] & 0xff);
+	final byte[] b = super.buf;
+	final int p = claim(2);
+	return (b[p + 1] << 8 & 0xff00) + (b[p] & 0xff);
     }
 
     /**
@@ -264,14 +428,10 @@ public class OtpInputStream extends ByteArrayInputStream {
      *                if the next byte cannot be read.
      */
     public int read4LE() throws OtpErlangDecodeException {
-	final byte[] b = new byte[4];
-	try {
-	    super.read(b);
-	} catch (final IOException e) {
-	    throw new OtpErlangDecodeException("Cannot read from input stream");
-	}
-	return (b[3] << 24 & 0xff000000) + (b[2] << 16 & 0xff0000)
-		+ (b[1] << 8 & 0xff00) + (b[0] & 0xff);
+	final byte[] b = super.buf;
+	final int p = claim(4);
+	return (b[p + 3] << 24 & 0xff000000) + (b[p + 2] << 16 & 0xff0000)
+		+ (b[p + 1] << 8 & 0xff00) + (b[p] & 0xff);
     }
 
     /**
@@ -286,16 +446,12 @@ public class OtpInputStream extends ByteArrayInputStream {
      *                if the next byte cannot be read.
      */
     public long readLE(final int n) throws OtpErlangDecodeException {
-	final byte[] b = new byte[n];
-	try {
-	    super.read(b);
-	} catch (final IOException e) {
-	    throw new OtpErlangDecodeException("Cannot read from input stream");
-	}
+	final byte[] b = super.buf;
+	final int p = claim(n);
 	long v = 0;
-    int i = n;
-    while (i-- > 0) {
-        v = v << 8 | (long) b[i] & 0xff;
+	int i = n;
+	while (i-- > 0) {
+	    v = v << 8 | (long) b[p + i] & 0xff;
 	}
 	return v;
     }
@@ -312,19 +468,29 @@ public class OtpInputStream extends ByteArrayInputStream {
      *                if the next byte cannot be read.
      */
     public long readBE(final int n) throws OtpErlangDecodeException {
-	final byte[] b = new byte[n];
-	try {
-	    super.read(b);
-	} catch (final IOException e) {
-	    throw new OtpErlangDecodeException("Cannot read from input stream");
-	}
+	final byte[] b = super.buf;
+	final int p = claim(n);
 	long v = 0;
 	for (int i = 0; i < n; i++) {
-	    v = v << 8 | (long) b[i] & 0xff;
+	    v = v << 8 | (long) b[p + i] & 0xff;
 	}
 	return v;
     }
 
+    /*
+     * Consume n bytes straight out of the buffer, returning the position of
+     * the first one. Fails rather than reading short, so the fixed size
+     * readers above never see a partially filled value.
+     */
+    private int claim(final int n) throws OtpErlangDecodeException {
+	final int p = super.pos;
+	if (n < 0 || super.count - p < n) {
+	    throw new OtpErlangDecodeException("Cannot read from input stream");
+	}
+	super.pos = p + n;
+	return p;
+    }
+
     /**
      * Read an Erlang atom from the stream and interpret the value as a boolean.
      * 
@@ -348,9 +514,19 @@ public class OtpInputStream extends ByteArrayInputStream {
      */
     @SuppressWarnings("fallthrough")
     public String read_atom() throws OtpErlangDecodeException {
+	return read_atom_obj().atomValue();
+    }
+
+    // package scope
+    /*
+     * Read an Erlang atom from the stream, as an OtpErlangAtom. Atoms are
+     * looked up by their encoded bytes in AtomCache before being decoded, so
+     * recurring atoms come back as the same object without any allocation.
+     */
+    OtpErlangAtom read_atom_obj() throws OtpErlangDecodeException {
 	int tag;
 	int len = -1;
-	byte[] strbuf;
+	boolean utf8;
 	String atom;
 
 	tag = read1skip_version();
@@ -359,10 +535,46 @@ public class OtpInputStream extends ByteArrayInputStream {
 
 	case OtpExternal.atomTag:
 	    len = read2BE();
-	    strbuf = new byte[len];
-	    this.readN(strbuf);
+	    utf8 = false;
+	    break;
+
+	case OtpExternal.smallAtomUtf8Tag:
+	    len = read1();
+	    utf8 = true;
+	    break;
+
+	case OtpExternal.atomUtf8Tag:
+	    len = read2BE();
+	    utf8 = true;
+	    break;
+
+	default:
+	    throw new OtpErlangDecodeException(
+		"wrong tag encountered, expected " + OtpExternal.atomTag
+		+ ", or "  + OtpExternal.atomUtf8Tag + ", got " + tag);
+	}
+
+	if (len > super.count - super.pos) {
+	    throw new OtpErlangDecodeException("Cannot read from input stream");
+	}
+
+	final int off = super.pos;
+	final boolean canonical = (flags & DECODE_CANONICAL_ATOMS) != 0;
+	OtpErlangAtom a = AtomCache.get(utf8, super.buf, off, len);
+	if (a != null) {
+	    if (canonical && !a.isCanonical) {
+		a = OtpErlangAtom.of(a.atomValue());
+		if (a.isCanonical) {
+		    AtomCache.put(utf8, super.buf, off, len, a);
+		}
+	    }
+	    super.pos += len;
+	    return a;
+	}
+
+	if (!utf8) {
 	    try {
-		atom = new String(strbuf, "ISO-8859-1");
+		atom = new String(super.buf, off, len, "ISO-8859-1");
 	    } catch (final java.io.UnsupportedEncodingException e) {
 		throw new OtpErlangDecodeException(
 		    "Failed to decode ISO-8859-1 atom");
@@ -375,19 +587,9 @@ public class OtpInputStream extends ByteArrayInputStream {
 		 */
 		atom = atom.substring(0, OtpExternal.maxAtomLength);
 	    }
-	    break;
-
-	case OtpExternal.smallAtomUtf8Tag:
-	    len = read1();
-        // fall-through
-	case OtpExternal.atomUtf8Tag:
-	    if (len < 0) {
-		len = read2BE();
-	    }
-	    strbuf = new byte[len];
-	    this.readN(strbuf);
+	} else {
 	    try {
-		atom = new String(strbuf, "UTF-8");
+		atom = new String(super.buf, off, len, "UTF-8");
 	    } catch (final java.io.UnsupportedEncodingException e) {
 		throw new OtpErlangDecodeException(
 		    "Failed to decode UTF-8 atom");
@@ -401,15 +603,19 @@ public class OtpInputStream extends ByteArrayInputStream {
 		final int[] cps = OtpErlangString.stringToCodePoints(atom);
 		atom = new String(cps, 0, OtpExternal.maxAtomLength);
 	    }
-	    break;
-
-	default:
-	    throw new OtpErlangDecodeException(
-		"wrong tag encountered, expected " + OtpExternal.atomTag
-		+ ", or "  + OtpExternal.atomUtf8Tag + ", got " + tag);
 	}
+	super.pos += len;
 
-	return atom;
+	if (canonical) {
+	    a = OtpErlangAtom.of(atom);
+	} else {
+	    a = OtpErlangAtom.lookup(atom);
+	    if (a == null) {
+		a = new OtpErlangAtom(atom);
+	    }
+	}
+	AtomCache.put(utf8, super.buf, off, len, a);
+	return a;
     }
 
     /**
@@ -433,7 +639,7 @@ public class OtpInputStream extends ByteArrayInputStream {
 			    + ", got " + tag);
 	}
 
-	len = read4BE();
+	len = checked_bytes(read4BE());
 
 	bin = new byte[len];
 	this.readN(bin);
@@ -441,6 +647,25 @@ public class OtpInputStream extends ByteArrayInputStream {
 	return bin;
     }
 
+    // package scope
+    /*
+     * Read an Erlang binary from the stream as a read-only view of the
+     * stream's buffer.
+     */
+    ByteBuffer read_binary_buffer() throws OtpErlangDecodeException {
+	final int tag = read1skip_version();
+
+	if (tag != OtpExternal.binTag) {
+	    throw new OtpErlangDecodeException(
+		    "Wrong tag encountered, expected " + OtpExternal.binTag
+			    + ", got " + tag);
+	}
+
+	final int len = read4BE();
+	final int off = claim(len);
+	return ByteBuffer.wrap(super.buf, off, len).slice().asReadOnlyBuffer();
+    }
+
     /**
      * Read an Erlang bitstr from the stream.
      * 
@@ -468,7 +693,6 @@ public class OtpInputStream extends ByteArrayInputStream {
 	}
 
 	len = read4BE();
-	bin = new byte[len];
 	final int tail_bits = read1();
 	if (tail_bits < 0 || 7 < tail_bits) {
 	    throw new OtpErlangDecodeException(
@@ -478,6 +702,7 @@ public class OtpInputStream extends ByteArrayInputStream {
 	    throw new OtpErlangDecodeException(
 		    "Length 0 on bitstr with tail bit count: " + tail_bits);
 	}
+	bin = new byte[checked_bytes(len)];
 	this.readN(bin);
 
 	pad_bits[0] = 8 - tail_bits;
@@ -707,10 +932,116 @@ public class OtpInputStream extends ByteArrayInputStream {
 
     public long read_long(final boolean unsigned)
 	    throws OtpErlangDecodeException {
+	final int tag = peek1skip_version();
+
+	switch (tag) {
+	case OtpExternal.smallIntTag:
+	    super.pos++;
+	    return read1();
+
+	case OtpExternal.intTag:
+	    super.pos++;
+	    final int i = read4BE();
+	    if (i < 0 && unsigned) {
+		throw new OtpErlangDecodeException("Value not unsigned: " + i);
+	    }
+	    return i;
+
+	case OtpExternal.smallBigTag:
+	    if (super.count - super.pos >= 2
+		    && (super.buf[super.pos + 1] & 0xff) <= 8) {
+		super.pos++;
+		final int arity = read1();
+		final int sign = read1();
+		return small_big_to_long(readLE(arity), sign != 0, unsigned);
+	    }
+	    break;
+
+	default:
+	    break;
+	}
 	final byte[] b = read_integer_byte_array();
 	return OtpInputStream.byte_array_to_long(b, unsigned);
     }
 
+    /*
+     * Range check the magnitude of a small big of at most 8 bytes, with the
+     * same rules as byte_array_to_long.
+     */
+    private static long small_big_to_long(final long m, final boolean neg,
+	    final boolean unsigned) throws OtpErlangDecodeException {
+	if (m == 0) {
+	    return 0;
+	}
+	if (neg) {
+	    if (unsigned) {
+		throw new OtpErlangDecodeException("Value not unsigned: -"
+			+ Long.toHexString(m));
+	    }
+	    if (m < 0 && m != Long.MIN_VALUE) {
+		throw new OtpErlangDecodeException(
+			"Value does not fit in long: -" + Long.toHexString(m));
+	    }
+	    return -m;
+	}
+	if (m < 0 && !unsigned) {
+	    throw new OtpErlangDecodeException("Value does not fit in long: "
+		    + Long.toHexString(m));
+	}
+	return m;
+    }
+
+    /**
+     * Check whether the integer at the current position in the stream can be
+     * read by {@link #read_long()}. Nothing is consumed, except a leading
+     * version tag.
+     * 
+     * @return true if the next term is an integer that fits in a long.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next byte cannot be read.
+     */
+    boolean peek_long_fits() throws OtpErlangDecodeException {
+	final int tag = peek1skip_version();
+	final byte[] b = super.buf;
+	final int p = super.pos;
+
+	switch (tag) {
+	case OtpExternal.smallIntTag:
+	case OtpExternal.intTag:
+	    return true;
+
+	case OtpExternal.smallBigTag:
+	    if (super.count - p < 3) {
+		return false;
+	    }
+	    final int arity = b[p + 1] & 0xff;
+	    if (arity < 8) {
+		return super.count - p - 3 >= arity;
+	    }
+	    if (arity > 8 || super.count - p - 3 < 8) {
+		return false;
+	    }
+	    final int top = b[p + 3 + 7] & 0xff;
+	    if (top < 0x80) {
+		return true;
+	    }
+	    if (top > 0x80 || b[p + 2] == 0) {
+		return false;
+	    }
+	    // only -2^63 remains
+	    for (int i = 0; i < 7; i++) {
+		if (b[p + 3 + i] != 0) {
+		    return false;
+		}
+	    }
+	    return true;
+
+	default:
+	    return false;
+	}
+    }
+
     /**
      * Read an integer from the stream.
      * 
@@ -756,7 +1087,7 @@ public class OtpInputStream extends ByteArrayInputStream {
 				    + arity + " sign " + sign);
 		}
 	    }
-	    nb = new byte[arity + 1];
+	    nb = new byte[checked_bytes(arity) + 1];
 	    // Value is read as little endian. The big end is augumented
 	    // with one zero byte to make the value 2's complement positive.
 	    if (this.readN(nb, 0, arity) != arity) {
@@ -874,7 +1205,7 @@ public class OtpInputStream extends ByteArrayInputStream {
 	    break;
 
 	case OtpExternal.listTag:
-	    arity = read4BE();
+	    arity = checked_arity(read4BE(), 1);
 	    break;
 
 	default:
@@ -899,11 +1230,11 @@ public class OtpInputStream extends ByteArrayInputStream {
 	// decode the tuple header and get arity
 	switch (tag) {
 	case OtpExternal.smallTupleTag:
-	    arity = read1();
+	    arity = checked_arity(read1(), 1);
 	    break;
 
 	case OtpExternal.largeTupleTag:
-	    arity = read4BE();
+	    arity = checked_arity(read4BE(), 1);
 	    break;
 
 	default:
@@ -1039,17 +1370,27 @@ public class OtpInputStream extends ByteArrayInputStream {
     }
 
     public OtpErlangFun read_fun() throws OtpErlangDecodeException {
+	final OtpErlangFun f = read_fun_head();
+	final OtpErlangObject[] freeVars = f.freeVars();
+	for (int i = 0; i < freeVars.length; ++i) {
+	    freeVars[i] = read_any();
+	}
+	return f;
+    }
+
+    /*
+     * Read a fun up to its free variables, which are left for the caller to
+     * read into the array of the returned fun.
+     */
+    private OtpErlangFun read_fun_head() throws OtpErlangDecodeException {
 	final int tag = read1skip_version();
 	if (tag == OtpExternal.funTag) {
-	    final int nFreeVars = read4BE();
+	    final int nFreeVars = checked_arity(read4BE(), 1);
 	    final OtpErlangPid pid = read_pid();
 	    final String module = read_atom();
 	    final long index = read_long();
 	    final long uniq = read_long();
 	    final OtpErlangObject[] freeVars = new OtpErlangObject[nFreeVars];
-	    for (int i = 0; i < nFreeVars; ++i) {
-		freeVars[i] = read_any();
-	    }
 	    return new OtpErlangFun(pid, module, index, uniq, freeVars);
 	} else if (tag == OtpExternal.newFunTag) {
         read4BE();
@@ -1062,10 +1403,8 @@ public class OtpInputStream extends ByteArrayInputStream {
 	    final long oldIndex = read_long();
 	    final long uniq = read_long();
 	    final OtpErlangPid pid = read_pid();
-	    final OtpErlangObject[] freeVars = new OtpErlangObject[nFreeVars];
-	    for (int i = 0; i < nFreeVars; ++i) {
-		freeVars[i] = read_any();
-	    }
+	    final OtpErlangObject[] freeVars = new OtpErlangObject[checked_arity(
+		    nFreeVars, 1)];
 	    return new OtpErlangFun(pid, module, arity, md5, index, oldIndex,
 		    uniq, freeVars);
 	} else {
@@ -1103,14 +1442,14 @@ public class OtpInputStream extends ByteArrayInputStream {
 	tag = read1skip_version();
 	switch (tag) {
 	case OtpExternal.stringTag:
-	    len = read2BE();
+	    len = checked_bytes(read2BE());
 	    strbuf = new byte[len];
 	    this.readN(strbuf);
 	    return OtpErlangString.newString(strbuf);
 	case OtpExternal.nilTag:
 	    return "";
 	case OtpExternal.listTag: // List when unicode +
-	    len = read4BE();
+	    len = list_length(1);
 	    intbuf = new int[len];
 	    for (int i = 0; i < len; i++) {
 		intbuf[i] = read_int();
@@ -1128,6 +1467,216 @@ public class OtpInputStream extends ByteArrayInputStream {
 	}
     }
 
+    /**
+     * Read a list of integers from the stream into an array, without making
+     * an object for each element. Strings and the empty list are accepted,
+     * as they are lists of integers too.
+     * 
+     * @return the integers in the list.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term in the stream is not a proper list of
+     *                integers that fit in an int.
+     */
+    public int[] read_int_array() throws OtpErlangDecodeException {
+	final int tag = read1skip_version();
+	switch (tag) {
+	case OtpExternal.nilTag:
+	    return new int[0];
+
+	case OtpExternal.stringTag: {
+	    final int len = read2BE();
+	    final int[] a = new int[len];
+	    final int p = claim(len);
+	    for (int i = 0; i < len; i++) {
+		a[i] = super.buf[p + i] & 0xff;
+	    }
+	    return a;
+	}
+
+	case OtpExternal.listTag: {
+	    final int[] a = new int[list_length(2)];
+	    for (int i = 0; i < a.length; i++) {
+		final int t = peek1();
+		if (t == OtpExternal.smallIntTag) {
+		    super.pos++;
+		    a[i] = read1();
+		} else if (t == OtpExternal.intTag) {
+		    super.pos++;
+		    a[i] = read4BE();
+		} else {
+		    a[i] = read_int();
+		}
+	    }
+	    read_nil();
+	    return a;
+	}
+
+	default:
+	    throw new OtpErlangDecodeException("Not a list of integers: " + tag);
+	}
+    }
+
+    /**
+     * Read a list of integers from the stream into an array, as
+     * {@link #read_int_array()}.
+     * 
+     * @return the integers in the list.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term in the stream is not a proper list of
+     *                integers that fit in a long.
+     */
+    public long[] read_long_array() throws OtpErlangDecodeException {
+	final int tag = read1skip_version();
+	switch (tag) {
+	case OtpExternal.nilTag:
+	    return new long[0];
+
+	case OtpExternal.stringTag: {
+	    final int len = read2BE();
+	    final long[] a = new long[len];
+	    final int p = claim(len);
+	    for (int i = 0; i < len; i++) {
+		a[i] = super.buf[p + i] & 0xff;
+	    }
+	    return a;
+	}
+
+	case OtpExternal.listTag: {
+	    final long[] a = new long[list_length(2)];
+	    for (int i = 0; i < a.length; i++) {
+		final int t = peek1();
+		if (t == OtpExternal.smallIntTag) {
+		    super.pos++;
+		    a[i] = read1();
+		} else if (t == OtpExternal.intTag) {
+		    super.pos++;
+		    a[i] = read4BE();
+		} else {
+		    a[i] = read_long();
+		}
+	    }
+	    read_nil();
+	    return a;
+	}
+
+	default:
+	    throw new OtpErlangDecodeException("Not a list of integers: " + tag);
+	}
+    }
+
+    /**
+     * Read a list of floats from the stream into an array, without making an
+     * object for each element.
+     * 
+     * @return the values in the list.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term in the stream is not a proper list of
+     *                floats.
+     */
+    public double[] read_double_array() throws OtpErlangDecodeException {
+	final int tag = read1skip_version();
+	switch (tag) {
+	case OtpExternal.nilTag:
+	    return new double[0];
+
+	case OtpExternal.listTag: {
+	    final double[] a = new double[list_length(9)];
+	    for (int i = 0; i < a.length; i++) {
+		if (peek1() == OtpExternal.newFloatTag) {
+		    super.pos++;
+		    a[i] = Double.longBitsToDouble(readBE(8));
+		} else {
+		    a[i] = read_double();
+		}
+	    }
+	    read_nil();
+	    return a;
+	}
+
+	default:
+	    throw new OtpErlangDecodeException("Not a list of floats: " + tag);
+	}
+    }
+
+    /**
+     * Read a string from the stream as the bytes it is made of, that is a
+     * list of integers in 0..255. Long strings, which Erlang encodes as
+     * ordinary lists, are accepted too.
+     * 
+     * @return the bytes of the string.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term in the stream is not a proper list of
+     *                integers in 0..255.
+     */
+    public byte[] read_string_bytes() throws OtpErlangDecodeException {
+	final int tag = read1skip_version();
+	switch (tag) {
+	case OtpExternal.nilTag:
+	    return new byte[0];
+
+	case OtpExternal.stringTag: {
+	    final byte[] a = new byte[checked_bytes(read2BE())];
+	    readN(a);
+	    return a;
+	}
+
+	case OtpExternal.listTag: {
+	    final byte[] a = new byte[list_length(2)];
+	    for (int i = 0; i < a.length; i++) {
+		if (peek1() == OtpExternal.smallIntTag) {
+		    super.pos++;
+		    a[i] = (byte) read1();
+		} else {
+		    final long l = read_long();
+		    if ((l & 0xffL) != l) {
+			throw new OtpErlangDecodeException(
+				"Value does not fit in a byte: " + l);
+		    }
+		    a[i] = (byte) l;
+		}
+	    }
+	    read_nil();
+	    return a;
+	}
+
+	default:
+	    throw new OtpErlangDecodeException("Not a string: " + tag);
+	}
+    }
+
+    /*
+     * Read the length of a list whose tag has been read, and check that the
+     * stream is long enough for that many elements of at least the given
+     * size, before an array is allocated for them.
+     */
+    private int list_length(final int minElementSize)
+	    throws OtpErlangDecodeException {
+	return checked_arity(read4BE(), minElementSize);
+    }
+
+    /*
+     * Check the element count from the header of a compound term against
+     * the bytes left in the stream, given the least number of bytes each
+     * element takes, and against the element limit. Done before anything is
+     * allocated for the elements.
+     */
+    private int checked_arity(final int arity, final int minElementSize)
+	    throws OtpErlangDecodeException {
+	if (arity < 0
+		|| (long) arity * minElementSize > super.count - super.pos) {
+	    throw new OtpErlangDecodeException("Cannot read from input stream");
+	}
+	if (maxElements > 0 && arity > maxElements) {
+	    throw new OtpErlangDecodeException("Term of " + arity
+		    + " elements exceeds the limit of " + maxElements);
+	}
+	return arity;
+    }
+
     /**
      * Read a compressed term from the stream
      * 
@@ -1137,6 +1686,16 @@ public class OtpInputStream extends ByteArrayInputStream {
      *                if the next term in the stream is not a compressed term.
      */
     public OtpErlangObject read_compressed() throws OtpErlangDecodeException {
+	return read_compressed_stream().read_any();
+    }
+
+    // package scope
+    /*
+     * Inflate the compressed term at the current position, leaving this
+     * stream positioned after it, and return a stream over the uncompressed
+     * term.
+     */
+    OtpInputStream read_compressed_stream() throws OtpErlangDecodeException {
 	final int tag = read1skip_version();
 
 	if (tag != OtpExternal.compressedTag) {
@@ -1145,45 +1704,188 @@ public class OtpInputStream extends ByteArrayInputStream {
 			    + OtpExternal.compressedTag + ", got " + tag);
 	}
 
-	final int size = read4BE();
+	if (inflated) {
+	    throw new OtpErlangDecodeException(
+		    "Compressed term within a compressed term");
+	}
+	final int size = checked_length(read4BE());
+	// zlib cannot inflate data by more than this, so anything larger is a
+	// lie that must not be allocated for
+	if (size > (long) (super.count - super.pos) * maxDeflateRatio) {
+	    throw new OtpErlangDecodeException("Cannot read from input stream");
+	}
+	// the uncompressed term becomes the buffer of the returned stream, so
+	// that terms decoded from it can share it
 	final byte[] abuf = new byte[size];
-	final java.util.zip.InflaterInputStream is = 
-	    new java.util.zip.InflaterInputStream(this, new java.util.zip.Inflater(), size);
+	final Inflation z = inflation.get();
+	final java.util.zip.Inflater inflater = z.inflater;
+	inflater.reset();
+	inflater.setInput(super.buf, super.pos, super.count - super.pos);
 	int curPos = 0;
 	try {
-	    int curRead;
-	    while(curPos < size && (curRead = is.read(abuf, curPos, size - curPos)) != -1) {
-		curPos += curRead;
+	    while (curPos < size && !inflater.finished()) {
+		final int n = inflater.inflate(abuf, curPos, size - curPos);
+		if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+		    throw new OtpErlangDecodeException(
+			    "Cannot read from input stream");
+		}
+		curPos += n;
 	    }
-	    if (curPos != size) {
-		throw new OtpErlangDecodeException("Decompression gave "
-			+ curPos + " bytes, not " + size);
+	    // the end of the zlib stream may follow the last byte
+	    if (!inflater.finished() && inflater.inflate(z.scratch, 0, 1) > 0) {
+		throw new OtpErlangDecodeException("Decompression gave more than "
+			+ size + " bytes");
 	    }
-	} catch (final IOException e) {
-	    throw new OtpErlangDecodeException("Cannot read from input stream");
+	} catch (final java.util.zip.DataFormatException e) {
+	    throw new OtpErlangDecodeException("Invalid compressed data: "
+		    + e.getMessage());
 	}
-
-    @SuppressWarnings("resource")
-	final OtpInputStream ois = new OtpInputStream(abuf, flags);
-	return ois.read_any();
+	if (curPos != size || !inflater.finished()) {
+	    throw new OtpErlangDecodeException("Decompression gave "
+		    + curPos + " bytes, not " + size);
+	}
+	super.pos = super.count - inflater.getRemaining();
+
+	final OtpInputStream s = new OtpInputStream(abuf, flags);
+	s.maxDepth = maxDepth;
+	s.maxElements = maxElements;
+	s.depth = depth;
+	s.inflated = true;
+	return s;
     }
 
     /**
-     * Read an arbitrary Erlang term from the stream.
+     * Read an arbitrary Erlang term from the stream. Nested terms are read
+     * without recursion, so that deeply nested input cannot exhaust the
+     * stack of the calling thread.
      * 
      * @return the Erlang term.
      * 
      * @exception OtpErlangDecodeException
      *                if the stream does not contain a known Erlang type at the
-     *                next position.
+     *                next position, or the term exceeds the limits set on this
+     *                stream.
      */
     public OtpErlangObject read_any() throws OtpErlangDecodeException {
-	// calls one of the above functions, depending on o
-	final int tag = peek1skip_version();
+	// the compound term whose elements are being read
+	Frame top = null;
+
+	for (;;) {
+	    final int tag = peek1skip_version();
+	    OtpErlangObject term = null;
+	    Frame f = null;
+
+	    switch (tag) {
+	    case OtpExternal.smallTupleTag:
+	    case OtpExternal.largeTupleTag:
+		if ((flags & DECODE_LAZY_TERMS) != 0) {
+		    term = new LazyTuple(this);
+		} else {
+		    f = frame(top, tag,
+			    new OtpErlangObject[read_tuple_head()], null, null);
+		}
+		break;
+
+	    case OtpExternal.nilTag:
+		if (top != null && top.tag == OtpExternal.listTag
+			&& top.n == top.elems.length) {
+		    // the end of a proper list
+		    super.pos++;
+		    term = top.build();
+		    top = release(top);
+		} else if ((flags & DECODE_INT_LISTS_AS_STRINGS) != 0) {
+		    super.pos++;
+		    term = new OtpErlangString("");
+		} else {
+		    super.pos++;
+		    term = new OtpErlangList();
+		}
+		break;
+
+	    case OtpExternal.listTag:
+		if ((flags & (DECODE_INT_LISTS_AS_STRINGS
+			| DECODE_INT_LISTS_AS_ARRAYS)) != 0) {
+		    final int start = super.pos;
+		    f = frame(top, tag, new OtpErlangObject[read_list_head()],
+			    null, null);
+		    term = read_int_list(f, start);
+		} else if ((flags & DECODE_LAZY_TERMS) != 0) {
+		    term = new LazyList(this);
+		} else {
+		    f = frame(top, tag, new OtpErlangObject[read_list_head()],
+			    null, null);
+		}
+		break;
+
+	    case OtpExternal.mapTag:
+		if ((flags & DECODE_LAZY_TERMS) != 0) {
+		    term = new LazyMap(this);
+		} else {
+		    final int arity = read_map_head();
+		    f = frame(top, tag, new OtpErlangObject[arity],
+			    new OtpErlangObject[arity], null);
+		}
+		break;
 
+	    case OtpExternal.newFunTag:
+	    case OtpExternal.funTag: {
+		final OtpErlangFun fun = read_fun_head();
+		f = frame(top, tag, fun.freeVars(), null, fun);
+		break;
+	    }
+
+	    case OtpExternal.compressedTag: {
+		final OtpInputStream z = read_compressed_stream();
+		z.depth = top == null ? depth : top.depth;
+		term = z.read_any();
+		break;
+	    }
+
+	    default:
+		term = read_simple(tag);
+		break;
+	    }
+
+	    if (term == null) {
+		if (!f.isComplete()) {
+		    if (maxDepth > 0 && f.depth > maxDepth) {
+			throw new OtpErlangDecodeException(
+				"Term nested deeper than the limit of "
+					+ maxDepth);
+		    }
+		    top = f;
+		    continue;
+		}
+		term = f.build();
+		release(f);
+	    } else if (f != null) {
+		release(f);
+	    }
+
+	    // hand the term to the enclosing terms, completing them in turn
+	    for (;;) {
+		if (top == null) {
+		    return term;
+		}
+		if (!top.add(term)) {
+		    break;
+		}
+		term = top.build();
+		top = release(top);
+	    }
+	}
+    }
+
+    /*
+     * Read a term that contains no other terms, for read_any().
+     */
+    private OtpErlangObject read_simple(final int tag)
+	    throws OtpErlangDecodeException {
 	switch (tag) {
 	case OtpExternal.smallIntTag:
 	case OtpExternal.intTag:
+	    return OtpErlangLong.valueOf(read_long());
+
 	case OtpExternal.smallBigTag:
 	case OtpExternal.largeBigTag:
 	    return new OtpErlangLong(this);
@@ -1191,7 +1893,7 @@ public class OtpInputStream extends ByteArrayInputStream {
 	case OtpExternal.atomTag:
 	case OtpExternal.smallAtomUtf8Tag:
 	case OtpExternal.atomUtf8Tag:
-	    return new OtpErlangAtom(this);
+	    return read_atom_obj();
 
 	case OtpExternal.floatTag:
 	case OtpExternal.newFloatTag:
@@ -1201,9 +1903,6 @@ public class OtpInputStream extends ByteArrayInputStream {
 	case OtpExternal.newRefTag:
 	    return new OtpErlangRef(this);
 
-        case OtpExternal.mapTag:
-            return new OtpErlangMap(this);
-
 	case OtpExternal.portTag:
 	    return new OtpErlangPort(this);
 
@@ -1211,40 +1910,547 @@ public class OtpInputStream extends ByteArrayInputStream {
 	    return new OtpErlangPid(this);
 
 	case OtpExternal.stringTag:
-	    return new OtpErlangString(this);
-
-	case OtpExternal.listTag:
-	case OtpExternal.nilTag:
-	    if ((flags & DECODE_INT_LISTS_AS_STRINGS) != 0) {
-		final int savePos = getPos();
-		try {
-		    return new OtpErlangString(this);
-		} catch (final OtpErlangDecodeException e) {
-		}
-		setPos(savePos);
+	    if ((flags & DECODE_STRINGS_AS_LISTS) != 0) {
+		return new IntList(read_int_array());
 	    }
-	    return new OtpErlangList(this);
-
-	case OtpExternal.smallTupleTag:
-	case OtpExternal.largeTupleTag:
-	    return new OtpErlangTuple(this);
+	    return new OtpErlangString(this);
 
 	case OtpExternal.binTag:
+	    if ((flags & DECODE_BINARIES_AS_BUFFERS) != 0) {
+		return new OtpErlangBinary(read_binary_buffer());
+	    }
 	    return new OtpErlangBinary(this);
 
 	case OtpExternal.bitBinTag:
 	    return new OtpErlangBitstr(this);
 
-	case OtpExternal.compressedTag:
-	    return read_compressed();
+	default:
+	    throw new OtpErlangDecodeException("Uknown data type: " + tag);
+	}
+    }
+
+    /*
+     * Get a frame for a compound term within the given one, reusing a spare
+     * one if there is any.
+     */
+    private Frame frame(final Frame parent, final int tag,
+	    final OtpErlangObject[] elems, final OtpErlangObject[] values,
+	    final OtpErlangFun fun) {
+	Frame f = spareFrames;
+	if (f == null) {
+	    f = new Frame();
+	} else {
+	    spareFrames = f.parent;
+	}
+	f.parent = parent;
+	f.tag = tag;
+	f.depth = (parent == null ? depth : parent.depth) + 1;
+	f.elems = elems;
+	f.values = values;
+	f.fun = fun;
+	f.tail = null;
+	f.n = 0;
+	return f;
+    }
+
+    /*
+     * Keep a frame that is done with for reuse, returning its parent.
+     */
+    private Frame release(final Frame f) {
+	final Frame parent = f.parent;
+	f.elems = null;
+	f.values = null;
+	f.fun = null;
+	f.tail = null;
+	f.parent = spareFrames;
+	spareFrames = f;
+	return parent;
+    }
+
+    /*
+     * A tuple, list, map or fun that read_any() is reading the elements of.
+     * Frames are reused, see frame() and release().
+     */
+    private static final class Frame {
+	Frame parent;
+	int tag;
+	int depth;
+	// the elements, the keys of a map or the free variables of a fun
+	OtpErlangObject[] elems;
+	OtpErlangObject[] values;
+	OtpErlangFun fun;
+	OtpErlangObject tail;
+	// the number of terms added so far
+	int n;
+
+	/*
+	 * Whether all terms have been added. The end of a list is only known
+	 * when the nil after its elements is read.
+	 */
+	boolean isComplete() {
+	    return tag != OtpExternal.listTag && elems.length == 0;
+	}
+
+	/*
+	 * Add the next term, returning true if that completes this one. The
+	 * keys and values of a map alternate, and an improper list is
+	 * completed by its tail.
+	 */
+	boolean add(final OtpErlangObject term) {
+	    switch (tag) {
+	    case OtpExternal.mapTag:
+		if ((n & 1) == 0) {
+		    elems[n >> 1] = term;
+		} else {
+		    values[n >> 1] = term;
+		}
+		return ++n == 2 * elems.length;
+
+	    case OtpExternal.listTag:
+		if (n < elems.length) {
+		    elems[n++] = term;
+		    return false;
+		}
+		tail = term;
+		return true;
+
+	    default:
+		elems[n++] = term;
+		return n == elems.length;
+	    }
+	}
+
+	OtpErlangObject build() throws OtpErlangDecodeException {
+	    switch (tag) {
+	    case OtpExternal.smallTupleTag:
+	    case OtpExternal.largeTupleTag:
+		return OtpErlangTuple.adopt(elems);
+
+	    case OtpExternal.listTag:
+		if (elems.length == 0 && tail != null) {
+		    throw new OtpErlangDecodeException(
+			    "Bad list, empty head, non-empty tail");
+		}
+		return OtpErlangList.adopt(elems, tail);
+
+	    case OtpExternal.mapTag:
+		return OtpErlangMap.adopt(elems, values);
+
+	    default:
+		return fun;
+	    }
+	}
+    }
+
+    /*
+     * Read the elements of a list for read_any() when integer lists are to
+     * be decoded as strings or arrays, given the frame for the list, whose
+     * header has been read, and where the list starts. The elements are
+     * read as ints for as long as they are integers. If the list is a proper
+     * list of integers it is returned as a string or an IntList, and each
+     * list is read only once. Otherwise the integers read are added to the
+     * frame and null is returned to have the rest of the list read into it,
+     * unless the list is to be read lazily.
+     */
+    private OtpErlangObject read_int_list(final Frame f, final int start)
+	    throws OtpErlangDecodeException {
+	final int arity = f.elems.length;
+	final int[] ints = new int[arity];
+	boolean codePoints = true;
+	int i;
+	for (i = 0; i < arity; i++) {
+	    final int t = peek1();
+	    if (t == OtpExternal.smallIntTag) {
+		super.pos++;
+		ints[i] = read1();
+	    } else if (t == OtpExternal.intTag) {
+		super.pos++;
+		ints[i] = read4BE();
+		codePoints &= OtpErlangString.isValidCodePoint(ints[i]);
+	    } else {
+		break;
+	    }
+	}
+	if (i == arity && arity > 0 && peek1() == OtpExternal.nilTag) {
+	    if ((flags & DECODE_INT_LISTS_AS_STRINGS) != 0 && codePoints) {
+		super.pos++;
+		return new OtpErlangString(new String(ints, 0, arity));
+	    }
+	    if ((flags & DECODE_INT_LISTS_AS_ARRAYS) != 0) {
+		super.pos++;
+		return new IntList(ints);
+	    }
+	}
+
+	if ((flags & DECODE_LAZY_TERMS) != 0) {
+	    super.pos = start;
+	    return new LazyList(this);
+	}
+	for (int j = 0; j < i; j++) {
+	    f.add(OtpErlangLong.valueOf(ints[j]));
+	}
+	return null;
+    }
+
+    /**
+     * Skip an arbitrary Erlang term in the stream, without decoding it.
+     * Nested terms are skipped without recursion and, unless the depth is
+     * limited, nothing is allocated. Compressed terms are inflated to find
+     * their end; the uncompressed data is only kept while it is checked
+     * against the limits, when limits are set. The limits set on this stream
+     * are checked as by {@link #read_any()}, except that the free variables
+     * of funs in the current format are skipped as a whole.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the stream does not contain a known Erlang type at the
+     *                next position, the term is truncated or it exceeds the
+     *                limits set on this stream.
+     */
+    public void skip_any() throws OtpErlangDecodeException {
+	// the number of terms still to skip; compound terms add their
+	// elements to it
+	long pending = 1;
+	// when the depth is limited, the values of pending at which each
+	// enclosing compound term ends
+	long[] ends = null;
+	int nends = 0;
+	int tag = read1skip_version();
+
+	for (;;) {
+	    // the number of elements of a compound term
+	    long elements = 0;
+
+	    switch (tag) {
+	    case OtpExternal.smallIntTag:
+		claim(1);
+		break;
+
+	    case OtpExternal.intTag:
+		claim(4);
+		break;
+
+	    case OtpExternal.smallBigTag:
+		claim(1 + read1());
+		break;
+
+	    case OtpExternal.largeBigTag:
+		claim(1 + checked_length(read4BE()));
+		break;
+
+	    case OtpExternal.floatTag:
+		claim(31);
+		break;
+
+	    case OtpExternal.newFloatTag:
+		claim(8);
+		break;
+
+	    case OtpExternal.atomTag:
+	    case OtpExternal.atomUtf8Tag:
+		claim(read2BE());
+		break;
+
+	    case OtpExternal.smallAtomUtf8Tag:
+		claim(read1());
+		break;
+
+	    case OtpExternal.pidTag:
+		skip_atom();
+		claim(9);
+		break;
+
+	    case OtpExternal.portTag:
+	    case OtpExternal.refTag:
+		skip_atom();
+		claim(5);
+		break;
+
+	    case OtpExternal.newRefTag: {
+		final int arity = read2BE();
+		skip_atom();
+		claim(1 + 4 * arity);
+		break;
+	    }
+
+	    case OtpExternal.nilTag:
+		break;
+
+	    case OtpExternal.stringTag:
+		claim(read2BE());
+		break;
+
+	    case OtpExternal.binTag:
+		claim(checked_length(read4BE()));
+		break;
+
+	    case OtpExternal.bitBinTag: {
+		final int len = checked_length(read4BE());
+		claim(1 + len);
+		break;
+	    }
+
+	    case OtpExternal.smallTupleTag:
+		elements = checked_arity(read1(), 1);
+		break;
+
+	    case OtpExternal.largeTupleTag:
+		elements = checked_arity(read4BE(), 1);
+		break;
+
+	    case OtpExternal.listTag:
+		// the elements and the tail
+		elements = checked_arity(read4BE(), 1) + 1L;
+		break;
+
+	    case OtpExternal.mapTag:
+		elements = 2L * checked_arity(read4BE(), 2);
+		break;
+
+	    case OtpExternal.newFunTag:
+		// the size includes itself but not the tag
+		claim(checked_length(read4BE()) - 4);
+		break;
+
+	    case OtpExternal.funTag:
+		// pid, module, index, uniq and the free variables
+		elements = checked_arity(read4BE(), 1) + 4L;
+		break;
+
+	    case OtpExternal.externalFunTag:
+		// module, function and arity
+		pending += 3;
+		break;
+
+	    case OtpExternal.compressedTag:
+		if (maxDepth > 0 || maxElements > 0) {
+		    // the limits apply to the uncompressed term, which must be
+		    // walked to check it
+		    super.pos--;
+		    final OtpInputStream z = read_compressed_stream();
+		    z.depth = depth + nends;
+		    z.skip_any();
+		} else {
+		    skip_compressed();
+		}
+		break;
 
-	case OtpExternal.newFunTag:
-	case OtpExternal.funTag:
-	    return new OtpErlangFun(this);
+	    default:
+		throw new OtpErlangDecodeException("Uknown data type: " + tag);
+	    }
+
+	    pending += elements - 1;
+	    if (maxDepth > 0) {
+		if (elements > 0) {
+		    if (depth + nends >= maxDepth) {
+			throw new OtpErlangDecodeException(
+				"Term nested deeper than the limit of "
+					+ maxDepth);
+		    }
+		    if (ends == null) {
+			ends = new long[Math.min(maxDepth, 16)];
+		    } else if (nends == ends.length) {
+			final long[] a = new long[Math.min(maxDepth,
+				2 * nends)];
+			System.arraycopy(ends, 0, a, 0, nends);
+			ends = a;
+		    }
+		    ends[nends++] = pending - elements;
+		}
+		while (nends > 0 && ends[nends - 1] == pending) {
+		    nends--;
+		}
+	    }
+	    if (pending == 0) {
+		return;
+	    }
+	    // every term is at least one byte
+	    if (pending > super.count - super.pos) {
+		throw new OtpErlangDecodeException(
+			"Cannot read from input stream");
+	    }
+	    tag = read1();
+	}
+    }
+
+    private void skip_atom() throws OtpErlangDecodeException {
+	final int tag = read1();
+	switch (tag) {
+	case OtpExternal.atomTag:
+	case OtpExternal.atomUtf8Tag:
+	    claim(read2BE());
+	    break;
+
+	case OtpExternal.smallAtomUtf8Tag:
+	    claim(read1());
+	    break;
 
 	default:
-	    throw new OtpErlangDecodeException("Uknown data type: " + tag);
+	    throw new OtpErlangDecodeException(
+		    "wrong tag encountered, expected " + OtpExternal.atomTag
+			    + ", or " + OtpExternal.atomUtf8Tag + ", got "
+			    + tag);
+	}
+    }
+
+    /*
+     * Check the byte count from the header of a binary, bitstr, string or
+     * bignum against the bytes left in the stream, before allocating for it.
+     */
+    private int checked_bytes(final int len) throws OtpErlangDecodeException {
+	if (len < 0 || len > super.count - super.pos) {
+	    throw new OtpErlangDecodeException("Cannot read from input stream");
 	}
+	return len;
+    }
+
+    private static int checked_length(final int len)
+	    throws OtpErlangDecodeException {
+	if (len < 0) {
+	    throw new OtpErlangDecodeException("Cannot read from input stream");
+	}
+	return len;
+    }
+
+    /*
+     * Skip the zlib data of a compressed term, whose tag has been read. The
+     * length of the compressed data is not recorded anywhere, so it is
+     * inflated into a scratch buffer until the end of the zlib stream.
+     */
+    private void skip_compressed() throws OtpErlangDecodeException {
+	final int size = checked_length(read4BE());
+	if (size > (long) (super.count - super.pos) * maxDeflateRatio) {
+	    throw new OtpErlangDecodeException("Cannot read from input stream");
+	}
+	final Inflation z = inflation.get();
+	final java.util.zip.Inflater inflater = z.inflater;
+	inflater.reset();
+	inflater.setInput(super.buf, super.pos, super.count - super.pos);
+	long total = 0;
+	try {
+	    while (!inflater.finished()) {
+		final int n = inflater.inflate(z.scratch);
+		if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+		    throw new OtpErlangDecodeException(
+			    "Cannot read from input stream");
+		}
+		total += n;
+	    }
+	} catch (final java.util.zip.DataFormatException e) {
+	    throw new OtpErlangDecodeException("Invalid compressed data: "
+		    + e.getMessage());
+	}
+	if (total != size) {
+	    throw new OtpErlangDecodeException("Decompression gave " + total
+		    + " bytes, not " + size);
+	}
+	super.pos = super.count - inflater.getRemaining();
+    }
+
+    private static final class Inflation {
+	final java.util.zip.Inflater inflater = new java.util.zip.Inflater();
+	final byte[] scratch = new byte[8192];
+    }
+
+    private static final ThreadLocal<Inflation> inflation = new ThreadLocal<Inflation>() {
+	@Override
+	protected Inflation initialValue() {
+	    return new Inflation();
+	}
+    };
+
+    // the most that zlib can inflate data by
+    private static final int maxDeflateRatio = 1032;
+
+    /**
+     * Find a subterm of the term at the current position in the stream,
+     * without decoding anything else. Each index in the path selects an
+     * element of a tuple or a proper list, counting from 0, so
+     * <code>element_at(1, 0)</code> finds the first element of the second
+     * element. Compressed terms on the way are inflated.
+     * 
+     * <p>
+     * The position of this stream is not changed.
+     * </p>
+     * 
+     * @param path
+     *            the indexes of the elements to descend into.
+     * 
+     * @return a stream that shares the buffer of this one (or of the
+     *         inflated term), limited to the encoded subterm and positioned
+     *         at its start.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if a term on the path is not a tuple or list, an index is
+     *                out of range, or the data is not valid.
+     */
+    public OtpInputStream element_at(final int... path)
+	    throws OtpErlangDecodeException {
+	final int savePos = super.pos;
+	try {
+	    OtpInputStream s = this;
+	    for (final int index : path) {
+		if (s.peek1skip_version() == OtpExternal.compressedTag) {
+		    s = s.read_compressed_stream();
+		}
+		final int tag = s.peek1skip_version();
+		int arity;
+		switch (tag) {
+		case OtpExternal.smallTupleTag:
+		case OtpExternal.largeTupleTag:
+		    arity = s.read_tuple_head();
+		    break;
+
+		case OtpExternal.nilTag:
+		case OtpExternal.listTag:
+		    arity = s.read_list_head();
+		    break;
+
+		default:
+		    throw new OtpErlangDecodeException("Not a tuple or list: "
+			    + tag);
+		}
+		if (index < 0 || index >= arity) {
+		    throw new OtpErlangDecodeException("Index " + index
+			    + " out of range for arity " + arity);
+		}
+		for (int i = 0; i < index; i++) {
+		    s.skip_any();
+		}
+	    }
+	    if (s.peek1skip_version() == OtpExternal.compressedTag) {
+		s = s.read_compressed_stream();
+	    }
+	    final int start = s.pos;
+	    s.skip_any();
+	    final int end = s.pos;
+	    s.pos = start;
+	    return s.slice(start, end);
+	} finally {
+	    super.pos = savePos;
+	}
+    }
+
+    /**
+     * Find a subterm of an encoded term without decoding anything else, as
+     * {@link #element_at(int...)}.
+     * 
+     * @param buf
+     *            the encoded term, with or without a leading version byte.
+     * 
+     * @param path
+     *            the indexes of the elements to descend into.
+     * 
+     * @return a stream limited to the encoded subterm. Its position is the
+     *         offset of the subterm in the buffer, unless it was found inside
+     *         a compressed term.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if a term on the path is not a tuple or list, an index is
+     *                out of range, or the data is not valid.
+     */
+    public static OtpInputStream elementAt(final byte[] buf,
+	    final int... path) throws OtpErlangDecodeException {
+	return new OtpInputStream(buf, 0).element_at(path);
     }
 
     public int read_map_head() throws OtpErlangDecodeException {
@@ -1254,7 +2460,7 @@ public class OtpInputStream extends ByteArrayInputStream {
         // decode the map header and get arity
         switch (tag) {
         case OtpExternal.mapTag:
-            arity = read4BE();
+            arity = checked_arity(read4BE(), 2);
             break;
 
         default:
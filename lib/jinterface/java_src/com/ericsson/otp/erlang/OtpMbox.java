@@ -18,6 +18,13 @@
  */
 package com.ericsson.otp.erlang;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * <p>
  * Provides a simple mechanism for exchanging messages with Erlang processes or
@@ -76,6 +83,13 @@ package com.ericsson.otp.erlang;
  * raised until it reaches the head of the queue and is about to be retrieved.
  * </p>
  * 
+ * <p>
+ * Instead of blocking a thread in one of the receive methods, messages can be
+ * pushed to an {@link OtpMsgHandler OtpMsgHandler} running on an
+ * {@link Executor Executor}, see {@link #setHandler setHandler()}, or consumed
+ * as a demand-driven stream, see {@link #asPublisher() asPublisher()}.
+ * </p>
+ * 
  */
 public class OtpMbox {
     OtpNode home;
@@ -83,6 +97,15 @@ public class OtpMbox {
     GenericQueue queue;
     String name;
     Links links;
+    private volatile Dispatcher dispatcher = null;
+    // decode flags for incoming messages, -1 for those of the connection
+    private volatile int decodeFlags = -1;
+    // the chunks of binary streams that were closed before their end, which
+    // are dropped as they arrive; see cancelStream()
+    private final ArrayList<OtpPattern> cancelled = new ArrayList<OtpPattern>(0);
+    private volatile boolean hasCancelled = false;
+    // the most cancelled streams remembered at a time
+    private static final int maxCancelled = 16;
 
     // package constructor: called by OtpNode:createMbox(name)
     // to create a named mbox
@@ -318,6 +341,232 @@ public class OtpMbox {
 	}
     }
 
+    /**
+     * Wait for a message that matches a pattern to arrive for this mailbox,
+     * leaving other messages queued in the order they arrived. Messages that
+     * came from other nodes are matched without decoding them.
+     * 
+     * @param pattern
+     *                the pattern the message must match.
+     * 
+     * @return an {@link OtpMsg OtpMsg} containing the header information as
+     *         well as the body of the first matching message.
+     * 
+     * @exception OtpErlangExit
+     *                    if a linked {@link OtpErlangPid pid} has exited or has
+     *                    sent an exit signal to this mailbox.
+     */
+    public OtpMsg receiveMsg(final OtpPattern pattern) throws OtpErlangExit {
+	return checkExit((OtpMsg) queue.get(new PatternFilter(pattern)));
+    }
+
+    /**
+     * Wait for a message that matches a pattern to arrive for this mailbox,
+     * as {@link #receiveMsg(OtpPattern)}.
+     * 
+     * @param pattern
+     *                the pattern the message must match.
+     * 
+     * @param timeout
+     *                the time, in milliseconds, to wait for a message.
+     * 
+     * @return an {@link OtpMsg OtpMsg} containing the header information as
+     *         well as the body of the first matching message.
+     * 
+     * @exception OtpErlangExit
+     *                    if a linked {@link OtpErlangPid pid} has exited or has
+     *                    sent an exit signal to this mailbox.
+     * 
+     * @exception InterruptedException
+     *                    if no matching message arrives before the method
+     *                    times out.
+     */
+    public OtpMsg receiveMsg(final OtpPattern pattern, final long timeout)
+	    throws InterruptedException, OtpErlangExit {
+	final OtpMsg m = (OtpMsg) queue.get(new PatternFilter(pattern),
+		timeout);
+
+	if (m == null) {
+	    return null;
+	}
+	return checkExit(m);
+    }
+
+    private OtpMsg checkExit(final OtpMsg m) throws OtpErlangExit {
+	switch (m.type()) {
+	case OtpMsg.exitTag:
+	case OtpMsg.exit2Tag:
+	    try {
+		final OtpErlangObject o = m.getMsg();
+		throw new OtpErlangExit(o, m.getSenderPid());
+	    } catch (final OtpErlangDecodeException e) {
+		throw new OtpErlangExit("unknown", m.getSenderPid());
+	    }
+
+	default:
+	    return m;
+	}
+    }
+
+    /*
+     * Selects messages matching a pattern, and exit signals so that they are
+     * raised as they would be by the other receive methods.
+     */
+    private static class PatternFilter implements GenericQueue.Filter {
+	private final OtpPattern pattern;
+
+	PatternFilter(final OtpPattern pattern) {
+	    this.pattern = pattern;
+	}
+
+	public boolean accept(final Object o) {
+	    final OtpMsg m = (OtpMsg) o;
+	    switch (m.type()) {
+	    case OtpMsg.exitTag:
+	    case OtpMsg.exit2Tag:
+		return true;
+
+	    default:
+		// messages are scanned again whenever another one arrives,
+		// so a message remembers the pattern it last failed
+		if (m.rejectedBy == pattern) {
+		    return false;
+		}
+		if (pattern.matches(m)) {
+		    return true;
+		}
+		m.rejectedBy = pattern;
+		return false;
+	    }
+	}
+    }
+
+    /**
+     * <p>
+     * Install a handler that incoming messages are pushed to, instead of
+     * retrieving them with one of the receive methods.
+     * </p>
+     * 
+     * <p>
+     * The handler is run on the given executor whenever messages are waiting,
+     * including any that were already queued when it was installed. Calls are
+     * serialized per mailbox and each call is given the messages that have
+     * arrived since the previous one, at most 256 of them; the rest are
+     * passed in a new task on the executor. An exception thrown by the
+     * handler is passed on to the executor, as from any other task: the
+     * messages of that call are lost, and later messages are passed to the
+     * handler as usual. Mixing a handler with calls to the receive methods
+     * is not supported.
+     * </p>
+     * 
+     * @param handler
+     *                the handler to install, or null to remove the current
+     *                handler and let messages queue up for receive again.
+     * 
+     * @param executor
+     *                the executor to run the handler on, or null to use the
+     *                executor set with
+     *                {@link OtpNode#setProcessExecutor(Executor)
+     *                OtpNode.setProcessExecutor()}.
+     * 
+     * @exception java.lang.IllegalArgumentException
+     *                    if no executor is given and the node has no process
+     *                    executor.
+     */
+    public void setHandler(final OtpMsgHandler handler, final Executor executor) {
+	if (handler == null) {
+	    setDispatcher(null);
+	    return;
+	}
+
+	final Executor e = executor != null ? executor : home.processExecutor();
+	if (e == null) {
+	    throw new java.lang.IllegalArgumentException(
+		    "No executor for message handler");
+	}
+	setDispatcher(new HandlerDispatcher(handler, e));
+    }
+
+    /**
+     * Decode the messages delivered to this mailbox from now on with the
+     * given profile, instead of the profile of the connection they arrive
+     * on. Messages sent from mailboxes on this node are not encoded, and
+     * are received as they were sent.
+     * 
+     * @param profile
+     *                the profile to decode with, or null to use the one of
+     *                the connection.
+     */
+    public void setDecodeProfile(final OtpDecodeProfile profile) {
+	decodeFlags = profile == null ? -1 : profile.flags();
+    }
+
+    /**
+     * Get a publisher that emits the messages arriving at this mailbox, using
+     * the executor set with {@link OtpNode#setProcessExecutor(Executor)
+     * OtpNode.setProcessExecutor()}.
+     * 
+     * @return a publisher for the messages in this mailbox.
+     * 
+     * @exception java.lang.IllegalArgumentException
+     *                    if the node has no process executor.
+     * 
+     * @see #asPublisher(Executor)
+     */
+    public OtpFlow.Publisher<OtpMsg> asPublisher() {
+	return asPublisher(null);
+    }
+
+    /**
+     * <p>
+     * Get a publisher that emits the messages arriving at this mailbox, with
+     * their bodies already decoded. The subscriber is run on the given
+     * executor.
+     * </p>
+     * 
+     * <p>
+     * Messages are only taken from the mailbox while the subscriber has
+     * outstanding demand; the rest stay queued until more is requested. An
+     * exit signal with reason 'normal' completes the stream, any other exit
+     * signal terminates it with an {@link OtpErlangExit OtpErlangExit}, as
+     * soon as it reaches the head of the queue and even when there is no
+     * demand. The mailbox accepts one subscriber at a time, and a subscriber cannot be
+     * combined with a {@link #setHandler handler} or with calls to the
+     * receive methods.
+     * </p>
+     * 
+     * @param executor
+     *                the executor to run the subscriber on, or null to use
+     *                the executor set with
+     *                {@link OtpNode#setProcessExecutor(Executor)
+     *                OtpNode.setProcessExecutor()}.
+     * 
+     * @return a publisher for the messages in this mailbox.
+     * 
+     * @exception java.lang.IllegalArgumentException
+     *                    if no executor is given and the node has no process
+     *                    executor.
+     */
+    public OtpFlow.Publisher<OtpMsg> asPublisher(final Executor executor) {
+	final Executor e = executor != null ? executor : home.processExecutor();
+	if (e == null) {
+	    throw new java.lang.IllegalArgumentException(
+		    "No executor for publisher");
+	}
+
+	return new OtpFlow.Publisher<OtpMsg>() {
+	    public void subscribe(final OtpFlow.Subscriber<? super OtpMsg> s) {
+		final Publication p = new Publication(s, e);
+
+		s.onSubscribe(p);
+		if (!replaceDispatcher(null, p)) {
+		    s.onError(new java.lang.IllegalStateException(
+			    "Mailbox already has a consumer"));
+		}
+	    }
+	};
+    }
+
     /**
      * Send a message to a remote {@link OtpErlangPid pid}, representing either
      * another {@link OtpMbox mailbox} or an Erlang process.
@@ -332,17 +581,212 @@ public class OtpMbox {
      */
     public void send(final OtpErlangPid to, final OtpErlangObject msg) {
 	try {
-	    final String node = to.node();
-	    if (node.equals(home.node())) {
-		home.deliver(new OtpMsg(to, (OtpErlangObject) msg.clone()));
-	    } else {
-		final OtpCookedConnection conn = home.getConnection(node);
-		if (conn == null) {
-		    return;
+	    sendChecked(to, msg);
+	} catch (final Exception e) {
+	}
+    }
+
+    /*
+     * The message a mailbox on this node receives: a copy, with any
+     * pre-encoded terms replaced by the terms they hold.
+     */
+    private static OtpErlangObject localCopy(final OtpErlangObject msg) {
+	return (OtpErlangObject) OtpErlangPreEncoded.unwrap(msg).clone();
+    }
+
+    // package scope
+    /*
+     * Send as send(OtpErlangPid, OtpErlangObject), but report failure to
+     * reach the remote node.
+     */
+    void sendChecked(final OtpErlangPid to, final OtpErlangObject msg)
+	    throws IOException {
+	final String node = to.node();
+	if (node.equals(home.node())) {
+	    home.deliver(new OtpMsg(to, localCopy(msg)));
+	} else {
+	    final OtpCookedConnection conn = home.getConnection(node);
+	    if (conn == null) {
+		throw new IOException("Cannot connect to " + node);
+	    }
+	    conn.send(self, to, msg);
+	}
+    }
+
+    /**
+     * Open a stream that sends everything written to it to a process, as a
+     * sequence of binaries with flow control. See
+     * {@link OtpBinaryOutputStream} for the protocol. Chunks are 64 KB, and
+     * at most 8 of them are sent ahead of the receiver.
+     * 
+     * @param to
+     *                the {@link OtpErlangPid pid} of the receiver.
+     * 
+     * @return the stream.
+     */
+    public OtpBinaryOutputStream openBinaryStream(final OtpErlangPid to) {
+	return openBinaryStream(to, 65536, 8);
+    }
+
+    /**
+     * Open a stream that sends everything written to it to a process, as
+     * {@link #openBinaryStream(OtpErlangPid)}.
+     * 
+     * @param to
+     *                the {@link OtpErlangPid pid} of the receiver.
+     * 
+     * @param chunkSize
+     *                the number of bytes sent in each message.
+     * 
+     * @param window
+     *                the number of chunks that may be sent before the
+     *                receiver acknowledges them.
+     * 
+     * @return the stream.
+     */
+    public OtpBinaryOutputStream openBinaryStream(final OtpErlangPid to,
+	    final int chunkSize, final int window) {
+	return new OtpBinaryOutputStream(this, to, home.createRef(),
+		chunkSize, window);
+    }
+
+    /**
+     * Wait for a binary stream to be opened to this mailbox, by
+     * {@link #openBinaryStream(OtpErlangPid)} on another mailbox or by an
+     * Erlang process that follows the same protocol. Messages that do not
+     * belong to a stream are left in the mailbox.
+     * 
+     * @return a stream from which the bytes sent can be read.
+     * 
+     * @exception OtpErlangExit
+     *                    if a linked {@link OtpErlangPid pid} has exited or has
+     *                    sent an exit signal to this mailbox.
+     */
+    public OtpBinaryInputStream acceptBinaryStream() throws OtpErlangExit {
+	return new OtpBinaryInputStream(this,
+		receiveMsg(OtpBinaryInputStream.anyStream));
+    }
+
+    /**
+     * Wait for a binary stream to be opened to this mailbox, as
+     * {@link #acceptBinaryStream()}.
+     * 
+     * @param timeout
+     *                the time, in milliseconds, to wait for a stream.
+     * 
+     * @return a stream from which the bytes sent can be read, or null if the
+     *         mailbox is closed.
+     * 
+     * @exception OtpErlangExit
+     *                    if a linked {@link OtpErlangPid pid} has exited or has
+     *                    sent an exit signal to this mailbox.
+     * 
+     * @exception InterruptedException
+     *                    if no stream is opened before the method times out.
+     */
+    public OtpBinaryInputStream acceptBinaryStream(final long timeout)
+	    throws OtpErlangExit, InterruptedException {
+	final OtpMsg m = receiveMsg(OtpBinaryInputStream.anyStream, timeout);
+	if (m == null) {
+	    return null;
+	}
+	return new OtpBinaryInputStream(this, m);
+    }
+
+    // package scope
+    /*
+     * Remove the chunks of a binary stream that was closed before its end
+     * from the queue, and drop any more of them that arrive until the sender
+     * ends the stream. Exit signals and other messages are left queued.
+     */
+    void cancelStream(final OtpPattern chunks) {
+	synchronized (cancelled) {
+	    if (cancelled.size() == maxCancelled) {
+		cancelled.remove(0);
+	    }
+	    cancelled.add(chunks);
+	    hasCancelled = true;
+	}
+	queue.removeAll(new GenericQueue.Filter() {
+	    public boolean accept(final Object o) {
+		return dropCancelled((OtpMsg) o);
+	    }
+	});
+    }
+
+    /*
+     * True if the message is a chunk of a cancelled stream. The stream is
+     * forgotten when its end arrives.
+     */
+    private boolean dropCancelled(final OtpMsg m) {
+	if (m.type() != OtpMsg.sendTag && m.type() != OtpMsg.regSendTag) {
+	    return false;
+	}
+	synchronized (cancelled) {
+	    for (int i = 0; i < cancelled.size(); i++) {
+		final OtpPattern p = cancelled.get(i);
+		if (p.matches(m)) {
+		    try {
+			if (OtpBinaryOutputStream.eof.equals(p.match(m).get(
+				"Data"))) {
+			    cancelled.remove(i);
+			    hasCancelled = !cancelled.isEmpty();
+			}
+		    } catch (final OtpErlangDecodeException e) {
+		    }
+		    return true;
 		}
-		conn.send(self, to, msg);
 	    }
-	} catch (final Exception e) {
+	}
+	return false;
+    }
+
+    /**
+     * <p>
+     * Send the same message to a number of {@link OtpErlangPid pids}.
+     * </p>
+     * 
+     * <p>
+     * The message is encoded at most once, and the encoded form is written to
+     * the connection of each remote recipient with only the control header
+     * built per destination. Recipients on the local node all receive the same
+     * copy of the message, which they must therefore not modify.
+     * </p>
+     * 
+     * @param to
+     *                the {@link OtpErlangPid pids} identifying the intended
+     *                recipients of the message.
+     * 
+     * @param msg
+     *                the body of the message to send.
+     * 
+     */
+    public void send(final Collection<OtpErlangPid> to,
+	    final OtpErlangObject msg) {
+	OtpOutputStream payload = null;
+	OtpErlangObject copy = null;
+	final String local = home.node();
+
+	for (final OtpErlangPid pid : to) {
+	    try {
+		final String node = pid.node();
+		if (node.equals(local)) {
+		    if (copy == null) {
+			copy = localCopy(msg);
+		    }
+		    home.deliver(new OtpMsg(pid, copy));
+		} else {
+		    final OtpCookedConnection conn = home.getConnection(node);
+		    if (conn == null) {
+			continue;
+		    }
+		    if (payload == null) {
+			payload = new OtpOutputStream(msg);
+		    }
+		    conn.sendBuf(self, pid, payload);
+		}
+	    } catch (final Exception e) {
+	    }
 	}
     }
 
@@ -358,7 +802,7 @@ public class OtpMbox {
      * 
      */
     public void send(final String aname, final OtpErlangObject msg) {
-	home.deliver(new OtpMsg(self, aname, (OtpErlangObject) msg.clone()));
+	home.deliver(new OtpMsg(self, aname, localCopy(msg)));
     }
 
     /**
@@ -397,6 +841,123 @@ public class OtpMbox {
 	}
     }
 
+    /**
+     * <p>
+     * Forward a received message to a {@link OtpErlangPid pid}, without
+     * decoding and re-encoding its body.
+     * </p>
+     * 
+     * <p>
+     * If the message arrived from a remote node, the encoded body it arrived
+     * with is passed on as is, whether or not it has been decoded since; only
+     * the control header is built anew. Messages that were sent from the
+     * local node have no encoded form and are sent as by
+     * {@link #send(OtpErlangPid, OtpErlangObject) send()}.
+     * </p>
+     * 
+     * @param msg
+     *                the message to forward.
+     * 
+     * @param to
+     *                the {@link OtpErlangPid pid} identifying the intended
+     *                recipient of the message.
+     * 
+     * @exception java.lang.IllegalArgumentException
+     *                    if msg is not an ordinary message, i.e. a link,
+     *                    unlink or exit signal.
+     */
+    public void forward(final OtpMsg msg, final OtpErlangPid to) {
+	final OtpInputStream raw = rawPayload(msg);
+
+	try {
+	    if (raw == null) {
+		send(to, msg.getMsg());
+		return;
+	    }
+
+	    final String node = to.node();
+	    if (node.equals(home.node())) {
+		home.deliver(new OtpMsg(to, raw));
+	    } else {
+		final OtpCookedConnection conn = home.getConnection(node);
+		if (conn == null) {
+		    return;
+		}
+		// the connection adds its own version byte
+		conn.sendBuf(self, to, raw.buffer(), raw.getPos() + 1, raw
+			.available() - 1);
+	    }
+	} catch (final Exception e) {
+	}
+    }
+
+    /**
+     * Forward a received message to a named mailbox or process, without
+     * decoding and re-encoding its body.
+     * 
+     * @param msg
+     *                the message to forward.
+     * 
+     * @param aname
+     *                the registered name of recipient mailbox.
+     * 
+     * @param node
+     *                the name of the node where the recipient mailbox is
+     *                registered.
+     * 
+     * @exception java.lang.IllegalArgumentException
+     *                    if msg is not an ordinary message, i.e. a link,
+     *                    unlink or exit signal.
+     * 
+     * @see #forward(OtpMsg, OtpErlangPid)
+     */
+    public void forward(final OtpMsg msg, final String aname, final String node) {
+	final OtpInputStream raw = rawPayload(msg);
+
+	try {
+	    if (raw == null) {
+		send(aname, node, msg.getMsg());
+		return;
+	    }
+
+	    final String currentNode = home.node();
+	    if (node.equals(currentNode)
+		    || node.indexOf('@', 0) < 0
+		    && node.equals(currentNode.substring(0, currentNode
+			    .indexOf('@', 0)))) {
+		home.deliver(new OtpMsg(self, aname, raw));
+	    } else {
+		final OtpCookedConnection conn = home.getConnection(node);
+		if (conn == null) {
+		    return;
+		}
+		// the connection adds its own version byte
+		conn.sendBuf(self, aname, raw.buffer(), raw.getPos() + 1, raw
+			.available() - 1);
+	    }
+	} catch (final Exception e) {
+	}
+    }
+
+    // the encoded body of a message to forward, or null if it has none
+    private OtpInputStream rawPayload(final OtpMsg msg) {
+	switch (msg.type()) {
+	case OtpMsg.sendTag:
+	case OtpMsg.regSendTag:
+	    break;
+	default:
+	    throw new java.lang.IllegalArgumentException(
+		    "Only messages can be forwarded, not signals");
+	}
+
+	final OtpInputStream raw = msg.getRawMsgBuf();
+	if (raw == null || raw.available() < 2
+		|| raw.buffer()[raw.getPos()] != (byte) OtpExternal.versionTag) {
+	    return null;
+	}
+	return raw;
+    }
+
     /**
      * Close this mailbox with the given reason.
      * 
@@ -538,6 +1099,23 @@ public class OtpMbox {
 	links.addLink(self, to);
     }
 
+    /**
+     * <p>
+     * Start a lightweight process linked to this mailbox. This is the same as
+     * {@link OtpNode#spawn(OtpProcess) OtpNode.spawn()}, except that the link
+     * is created atomically before the process starts running, so an early
+     * exit of the new process is always reported to this mailbox.
+     * </p>
+     * 
+     * @param body
+     *                the code to run in the process.
+     * 
+     * @return the {@link OtpErlangPid pid} of the new process.
+     */
+    public OtpErlangPid spawnLink(final OtpProcess body) {
+	return home.spawn(body, home.processExecutor(), this);
+    }
+
     /**
      * <p>
      * Remove a link to a remote mailbox or Erlang process. This method removes
@@ -691,6 +1269,11 @@ public class OtpMbox {
      * leaves any links intact.
      */
     void deliver(final OtpMsg m) {
+	final int flags = decodeFlags;
+	if (flags >= 0) {
+	    m.setDecodeFlags(flags);
+	}
+
 	switch (m.type()) {
 	case OtpMsg.linkTag:
 	    links.addLink(self, m.getSenderPid());
@@ -708,8 +1291,47 @@ public class OtpMbox {
 	case OtpMsg.exit2Tag:
 	default:
 	    queue.put(m);
+	    // checked after queuing, so that the message is either seen here
+	    // or by the sweep in cancelStream()
+	    if (hasCancelled && dropCancelled(m)) {
+		queue.removeAll(new GenericQueue.Filter() {
+		    public boolean accept(final Object o) {
+			return o == m;
+		    }
+		});
+		return;
+	    }
 	    break;
 	}
+
+	final Dispatcher d = dispatcher;
+	if (d != null) {
+	    d.schedule();
+	}
+    }
+
+    // replace the consumer that messages are pushed to, null to stop pushing
+    void setDispatcher(final Dispatcher d) {
+	synchronized (this) {
+	    dispatcher = d;
+	}
+	if (d != null) {
+	    d.schedule();
+	}
+    }
+
+    // as setDispatcher, but only if the current consumer is old
+    boolean replaceDispatcher(final Dispatcher old, final Dispatcher d) {
+	synchronized (this) {
+	    if (dispatcher != old) {
+		return false;
+	    }
+	    dispatcher = d;
+	}
+	if (d != null) {
+	    d.schedule();
+	}
+	return true;
     }
 
     // used to break all known links to this mbox
@@ -724,4 +1346,190 @@ public class OtpMbox {
 	    }
 	}
     }
+
+    /*
+     * Runs a consumer of this mailbox on an executor whenever there is
+     * something for it to do. At most one run is scheduled or in progress at
+     * any time, so the consumer never sees messages concurrently or out of
+     * order, and messages arriving while a run is in progress are picked up by
+     * that run or by the one it schedules on completion.
+     */
+    abstract class Dispatcher implements Runnable {
+	// the most messages consumed in one run; the rest are left for the
+	// next run, so that a busy mailbox does not hold on to a thread of
+	// the executor
+	static final int maxBatch = 256;
+
+	private final Executor executor;
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+	Dispatcher(final Executor executor) {
+	    this.executor = executor;
+	}
+
+	// true if dispatch() has work to do
+	boolean ready() {
+	    return queue.getCount() > 0;
+	}
+
+	// consume messages from the queue, never called concurrently
+	abstract void dispatch();
+
+	void schedule() {
+	    if (dispatcher == this && ready()
+		    && scheduled.compareAndSet(false, true)) {
+		try {
+		    executor.execute(this);
+		} catch (final RuntimeException e) {
+		    // rejected: the messages stay queued and the next
+		    // delivery tries again
+		    scheduled.set(false);
+		}
+	    }
+	}
+
+	public void run() {
+	    try {
+		if (dispatcher == this) {
+		    dispatch();
+		}
+	    } finally {
+		scheduled.set(false);
+		// deliveries during dispatch() saw the flag set and did not
+		// schedule a run of their own; this is also done if dispatch()
+		// threw, so that the exception reaches the executor without
+		// stranding the messages behind it
+		schedule();
+	    }
+	}
+    }
+
+    private class HandlerDispatcher extends Dispatcher {
+	private final OtpMsgHandler handler;
+
+	HandlerDispatcher(final OtpMsgHandler handler, final Executor executor) {
+	    super(executor);
+	    this.handler = handler;
+	}
+
+	@Override
+	void dispatch() {
+	    final ArrayList<Object> batch = new ArrayList<Object>();
+
+	    if (queue.drainTo(batch, maxBatch) == 0) {
+		return;
+	    }
+	    handler.handleMsgs(OtpMbox.this,
+		    batch.toArray(new OtpMsg[batch.size()]));
+	}
+    }
+
+    // accepts the exit signals in a mailbox queue
+    private static final GenericQueue.Filter exitSignal = new GenericQueue.Filter() {
+	public boolean accept(final Object o) {
+	    final int type = ((OtpMsg) o).type();
+	    return type == OtpMsg.exitTag || type == OtpMsg.exit2Tag;
+	}
+    };
+
+    // the subscription for a subscriber to asPublisher()
+    private class Publication extends Dispatcher implements
+	    OtpFlow.Subscription {
+	private final OtpFlow.Subscriber<? super OtpMsg> subscriber;
+	private final AtomicLong demand = new AtomicLong(0);
+	private volatile Throwable error = null;
+
+	Publication(final OtpFlow.Subscriber<? super OtpMsg> subscriber,
+		final Executor executor) {
+	    super(executor);
+	    this.subscriber = subscriber;
+	}
+
+	public void request(final long n) {
+	    if (n <= 0) {
+		error = new java.lang.IllegalArgumentException(
+			"Non-positive request: " + n);
+	    } else {
+		long d;
+		long nd;
+		do {
+		    d = demand.get();
+		    nd = d + n;
+		    if (nd < 0) {
+			nd = Long.MAX_VALUE;
+		    }
+		} while (!demand.compareAndSet(d, nd));
+	    }
+	    schedule();
+	}
+
+	public void cancel() {
+	    replaceDispatcher(this, null);
+	}
+
+	@Override
+	boolean ready() {
+	    if (error != null) {
+		return true;
+	    }
+	    // exit signals end the stream whether or not there is demand
+	    final Object head = queue.peek();
+	    return head != null
+		    && (demand.get() > 0 || exitSignal.accept(head));
+	}
+
+	@Override
+	void dispatch() {
+	    try {
+		if (error != null) {
+		    cancel();
+		    subscriber.onError(error);
+		    return;
+		}
+
+		// a subscriber may cancel in onNext, after which it gets
+		// nothing more
+		for (int n = 0; n < maxBatch && dispatcher == this; n++) {
+		    final OtpMsg m = (OtpMsg) (demand.get() > 0 ? queue
+			    .tryGet() : queue.tryGet(exitSignal));
+		    if (m == null) {
+			return;
+		    }
+
+		    switch (m.type()) {
+		    case OtpMsg.exitTag:
+		    case OtpMsg.exit2Tag:
+			OtpErlangObject reason;
+			try {
+			    reason = m.getMsg();
+			} catch (final OtpErlangDecodeException e) {
+			    reason = new OtpErlangAtom("unknown");
+			}
+			cancel();
+			if (reason.equals(new OtpErlangAtom("normal"))) {
+			    subscriber.onComplete();
+			} else {
+			    subscriber.onError(new OtpErlangExit(reason, m
+				    .getSenderPid()));
+			}
+			return;
+
+		    default:
+			try {
+			    m.getMsg();
+			} catch (final OtpErlangDecodeException e) {
+			    cancel();
+			    subscriber.onError(e);
+			    return;
+			}
+			demand.decrementAndGet();
+			subscriber.onNext(m);
+		    }
+		}
+	    } catch (final RuntimeException e) {
+		// a misbehaving subscriber loses its subscription
+		cancel();
+	    }
+	}
+    }
 }
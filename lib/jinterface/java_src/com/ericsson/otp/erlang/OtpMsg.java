@@ -66,6 +66,18 @@ public class OtpMsg {
     protected OtpErlangPid to;
     protected String toName;
 
+    // extent of the encoded payload in paybuf, recorded on arrival since
+    // getMsg() moves the stream position
+    private int payStart;
+    private int payEnd;
+
+    // the payload as pattern matching reads it, kept when it had to be
+    // encoded or inflated, see matchBuf()
+    private volatile OtpInputStream matchBuf = null;
+    // the last pattern this message failed to match while waiting in a
+    // mailbox; only used with the mailbox queue locked
+    OtpPattern rejectedBy = null;
+
     // send has receiver pid but no sender information
     OtpMsg(final OtpErlangPid to, final OtpInputStream paybuf) {
 	tag = sendTag;
@@ -74,6 +86,7 @@ public class OtpMsg {
 	toName = null;
 	this.paybuf = paybuf;
 	payload = null;
+	markPayload();
     }
 
     // send has receiver pid but no sender information
@@ -95,6 +108,7 @@ public class OtpMsg {
 	to = null;
 	this.paybuf = paybuf;
 	payload = null;
+	markPayload();
     }
 
     // send_reg has sender pid and receiver name
@@ -141,6 +155,23 @@ public class OtpMsg {
 	this.to = to;
     }
 
+    private void markPayload() {
+	payStart = paybuf.getPos();
+	payEnd = payStart + paybuf.available();
+    }
+
+    /*
+     * Decode the payload with the given OtpInputStream decode flags instead
+     * of those of the connection it arrived on. Has no effect once the
+     * payload has been decoded, nor on messages sent from a local mailbox,
+     * which never were encoded.
+     */
+    void setDecodeFlags(final int flags) {
+	if (paybuf != null && payload == null && paybuf.flags() != flags) {
+	    paybuf = paybuf.slice(payStart, payEnd, flags);
+	}
+    }
+
     /**
      * Get the payload from this message without deserializing it.
      * 
@@ -151,6 +182,46 @@ public class OtpMsg {
 	return paybuf;
     }
 
+    // package scope
+    /*
+     * Get the encoded payload for pattern matching, positioned at the term,
+     * or null if this message has no payload. A payload sent from a local
+     * mailbox is encoded, and a compressed one inflated, the first time this
+     * is called, and the bytes are kept for later matches.
+     */
+    OtpInputStream matchBuf() throws OtpErlangDecodeException {
+	OtpInputStream m = matchBuf;
+	if (m == null) {
+	    if (paybuf != null) {
+		final OtpInputStream raw = paybuf.slice(payStart, payEnd);
+		if (raw.peek1skip_version() != OtpExternal.compressedTag) {
+		    return raw;
+		}
+		m = raw.read_compressed_stream();
+	    } else if (payload != null
+		    && (tag == sendTag || tag == regSendTag)) {
+		m = new OtpInputStream(new OtpOutputStream(payload)
+			.toByteArray(), 0);
+	    } else {
+		return null;
+	    }
+	    matchBuf = m;
+	}
+	return m.slice(m.getPos(), m.getPos() + m.available());
+    }
+
+    /*
+     * Get the encoded payload as it arrived, including the leading version
+     * byte, or null if this message was created locally and has no encoded
+     * form. The stream is independent of paybuf and not affected by getMsg().
+     */
+    OtpInputStream getRawMsgBuf() {
+	if (paybuf == null) {
+	    return null;
+	}
+	return paybuf.slice(payStart, payEnd);
+    }
+
     /**
      * <p>
      * Get the type marker from this message. The type marker identifies the
@@ -0,0 +1,52 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+/**
+ * <p>
+ * Receives messages pushed from a {@link OtpMbox mailbox}, as an alternative
+ * to blocking in {@link OtpMbox#receive() receive()}. A handler is installed
+ * with {@link OtpMbox#setHandler OtpMbox.setHandler()} and is run on the
+ * {@link java.util.concurrent.Executor Executor} given there, so no thread is
+ * parked waiting for messages.
+ * </p>
+ * 
+ * <p>
+ * Calls to a handler for a given mailbox are never concurrent, and messages
+ * are passed in the order they were delivered. Messages that have queued up
+ * since the previous call are passed together, in batches of at most 256.
+ * </p>
+ * 
+ * <p>
+ * Exit signals are not raised as exceptions but passed to the handler like
+ * any other message; use {@link OtpMsg#type() OtpMsg.type()} to recognise
+ * them.
+ * </p>
+ */
+public interface OtpMsgHandler {
+    /**
+     * Handle a batch of messages.
+     * 
+     * @param mbox
+     *            the mailbox the messages were delivered to.
+     * @param msgs
+     *            the messages, oldest first. The array is never empty.
+     */
+    public void handleMsgs(OtpMbox mbox, OtpMsg[] msgs);
+}
@@ -26,6 +26,9 @@ import java.util.Collection;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>
@@ -75,6 +78,24 @@ public class OtpNode extends OtpLocalNode {
 
     // flags
     private int connFlags = 0;
+    private int connCompressionThreshold = 0;
+    private int connMaxFrameSize = 0;
+    private int connMaxTermDepth = 0;
+    private int connMaxTermElements = 0;
+
+    // frames rejected by connections that have gone down
+    private final AtomicLong closedRejectedFrames = new AtomicLong(0);
+
+    // runs the bodies of spawned processes, null means a thread each
+    private volatile Executor processExecutor = null;
+
+    // timers started by sendAfter, created on first use
+    private TimerWheel timerWheel = null;
+    private OtpMbox timerMbox = null;
+    // sends of expired timers to remote pids, in expiry order
+    private GenericQueue timerSends = null;
+    private final ConcurrentHashMap<OtpErlangRef, TimerWheel.Timer> timers =
+	new ConcurrentHashMap<OtpErlangRef, TimerWheel.Timer>();
 
     /**
      * <p>
@@ -170,6 +191,16 @@ public class OtpNode extends OtpLocalNode {
 	    it.remove();
 	    conn.close();
 	}
+	if (timerWheel != null) {
+	    timerWheel.stop();
+	    timerWheel = null;
+	    timerMbox = null;
+	    // drop the sends not yet made and stop the sender thread
+	    timerSends.flush();
+	    timerSends.put(stopTimerSends);
+	    timerSends = null;
+	    timers.clear();
+	}
 	initDone = false;
     }
 
@@ -244,6 +275,291 @@ public class OtpNode extends OtpLocalNode {
 	}
     }
 
+    /**
+     * <p>
+     * Start a lightweight process. A new {@link OtpMbox mailbox} is created
+     * and passed to the {@link OtpProcess#run run()} method of the body, which
+     * is executed by the executor set with {@link #setProcessExecutor
+     * setProcessExecutor()}, or in a new daemon thread if no executor has been
+     * set.
+     * </p>
+     * 
+     * <p>
+     * When the body terminates the mailbox is closed and exit signals are sent
+     * to all linked processes, see {@link OtpProcess OtpProcess}.
+     * </p>
+     * 
+     * @param body
+     *            the code to run in the process.
+     * 
+     * @return the {@link OtpErlangPid pid} of the new process.
+     */
+    public OtpErlangPid spawn(final OtpProcess body) {
+	return spawn(body, processExecutor, null);
+    }
+
+    /**
+     * Start a lightweight process using the given executor. This is the same
+     * as {@link #spawn(OtpProcess) spawn(body)}, except that the body is run by
+     * the specified executor instead of the default one.
+     * 
+     * @param body
+     *            the code to run in the process.
+     * 
+     * @param executor
+     *            the executor that should run the body, or null to run it in a
+     *            new daemon thread.
+     * 
+     * @return the {@link OtpErlangPid pid} of the new process.
+     */
+    public OtpErlangPid spawn(final OtpProcess body, final Executor executor) {
+	return spawn(body, executor, null);
+    }
+
+    /**
+     * <p>
+     * Set the default executor for processes started with {@link
+     * #spawn(OtpProcess) spawn()}. Since a process spends most of its time
+     * blocked in {@link OtpMbox#receive() receive()}, an executor that runs
+     * each task in its own lightweight (virtual) thread allows a very large
+     * number of processes per node.
+     * </p>
+     * 
+     * @param executor
+     *            the executor to use, or null to start a new daemon thread for
+     *            each process.
+     */
+    public void setProcessExecutor(final Executor executor) {
+	processExecutor = executor;
+    }
+
+    Executor processExecutor() {
+	return processExecutor;
+    }
+
+    /**
+     * Send a message to a mailbox after a delay.
+     * 
+     * @param to
+     *            the mailbox to send the message to.
+     * 
+     * @param msg
+     *            the message to send.
+     * 
+     * @param delay
+     *            the delay in milliseconds.
+     * 
+     * @return a reference that can be passed to {@link #cancelTimer
+     *         cancelTimer()}.
+     * 
+     * @see #sendAfter(OtpErlangPid, OtpErlangObject, long)
+     */
+    public OtpErlangRef sendAfter(final OtpMbox to, final OtpErlangObject msg,
+	    final long delay) {
+	return sendAfter(to.self(), msg, delay);
+    }
+
+    /**
+     * <p>
+     * Send a message to a {@link OtpErlangPid pid} after a delay, like
+     * erlang:send_after/3.
+     * </p>
+     * 
+     * <p>
+     * All timers of a node are kept in a single timing wheel with a
+     * resolution of 10 milliseconds, served by one thread, so starting and
+     * cancelling a timer is cheap even with a very large number of timers
+     * active. Timers are discarded when the node is closed. Messages to
+     * mailboxes on this node are delivered from the timer thread; messages
+     * to remote pids are sent from a second thread of the node, in the order
+     * their timers expired, so that a slow or unreachable node does not
+     * delay the timers of local mailboxes.
+     * </p>
+     * 
+     * @param to
+     *            the {@link OtpErlangPid pid} to send the message to.
+     * 
+     * @param msg
+     *            the message to send.
+     * 
+     * @param delay
+     *            the delay in milliseconds.
+     * 
+     * @return a reference that can be passed to {@link #cancelTimer
+     *         cancelTimer()}.
+     */
+    public OtpErlangRef sendAfter(final OtpErlangPid to,
+	    final OtpErlangObject msg, final long delay) {
+	if (to == null || msg == null) {
+	    throw new java.lang.NullPointerException();
+	}
+
+	final OtpErlangRef ref = createRef();
+	final TimerWheel wheel;
+	final OtpMbox from;
+	final GenericQueue sends;
+	synchronized (this) {
+	    if (timerWheel == null) {
+		timerWheel = new TimerWheel("timers " + node(), 10, 1024);
+		timerMbox = createMbox();
+		timerSends = new GenericQueue();
+		startTimerSender(timerSends);
+	    }
+	    wheel = timerWheel;
+	    from = timerMbox;
+	    sends = timerSends;
+	}
+
+	final Runnable send = new Runnable() {
+	    public void run() {
+		from.send(to, msg);
+	    }
+	};
+	final boolean local = to.node().equals(node());
+	final TimerWheel.Timer t = new TimerWheel.Timer(new Runnable() {
+	    public void run() {
+		timers.remove(ref);
+		if (local) {
+		    send.run();
+		} else {
+		    // a remote send may block on the connection, or set one
+		    // up, so it is kept off the wheel thread
+		    sends.put(send);
+		}
+	    }
+	});
+	// register before scheduling, the timer may expire at once
+	timers.put(ref, t);
+	wheel.schedule(t, delay);
+	return ref;
+    }
+
+    // ends the timer sender thread
+    private static final Runnable stopTimerSends = new Runnable() {
+	public void run() {
+	}
+    };
+
+    /*
+     * Start the thread that makes the remote sends of expired timers, one at
+     * a time and in the order they were queued.
+     */
+    private void startTimerSender(final GenericQueue sends) {
+	final Thread t = new Thread(new Runnable() {
+	    public void run() {
+		Runnable send;
+		while ((send = (Runnable) sends.get()) != stopTimerSends) {
+		    send.run();
+		}
+	    }
+	}, "timer sends " + node());
+	t.setDaemon(true);
+	t.start();
+    }
+
+    /**
+     * Cancel a timer started with {@link #sendAfter(OtpErlangPid,
+     * OtpErlangObject, long) sendAfter()}.
+     * 
+     * @param ref
+     *            the reference returned when the timer was started.
+     * 
+     * @return the number of milliseconds that were left before the timer
+     *         would have expired, or -1 if the timer has already expired, has
+     *         already been cancelled or was never started.
+     */
+    public long cancelTimer(final OtpErlangRef ref) {
+	final TimerWheel.Timer t = timers.remove(ref);
+
+	if (t == null) {
+	    return -1;
+	}
+	return t.wheel.cancel(t);
+    }
+
+    /**
+     * Get a subscriber that sends the items it receives to an Erlang process,
+     * requesting them in batches of 64.
+     * 
+     * @param to
+     *            the {@link OtpErlangPid pid} to send the items to.
+     * 
+     * @return a new subscriber.
+     * 
+     * @see #subscriberTo(OtpErlangPid, int)
+     */
+    public OtpFlow.Subscriber<OtpErlangObject> subscriberTo(
+	    final OtpErlangPid to) {
+	return subscriberTo(to, 64);
+    }
+
+    /**
+     * <p>
+     * Get a subscriber that sends the items it receives to an Erlang process
+     * or mailbox, each item as a separate message. Items are requested from
+     * the publisher in batches, keeping between half a batch and a full batch
+     * outstanding.
+     * </p>
+     * 
+     * <p>
+     * The messages are sent from a new mailbox that is linked to the
+     * recipient when the subscription starts. When the stream completes the
+     * mailbox is closed, which sends an exit signal with reason 'normal';
+     * when it fails the exit reason is that of the
+     * {@link OtpErlangExit OtpErlangExit}, or
+     * <code>{java_exception, Description}</code> for other errors. If the
+     * recipient exits first, the subscription is cancelled.
+     * </p>
+     * 
+     * @param to
+     *            the {@link OtpErlangPid pid} to send the items to.
+     * 
+     * @param batch
+     *            the number of items to request at a time.
+     * 
+     * @return a new subscriber.
+     */
+    public OtpFlow.Subscriber<OtpErlangObject> subscriberTo(
+	    final OtpErlangPid to, final int batch) {
+	if (to == null) {
+	    throw new java.lang.NullPointerException();
+	}
+	if (batch < 1) {
+	    throw new java.lang.IllegalArgumentException(
+		    "Batch size must be positive");
+	}
+	return new Sender(createMbox(), to, batch);
+    }
+
+    // called by spawn and by OtpMbox.spawnLink
+    OtpErlangPid spawn(final OtpProcess body, final Executor executor,
+	    final OtpMbox linker) {
+	if (body == null) {
+	    throw new java.lang.NullPointerException();
+	}
+	final OtpMbox mbox = createMbox();
+
+	if (linker != null) {
+	    linker.links.addLink(linker.self, mbox.self);
+	    mbox.links.addLink(mbox.self, linker.self);
+	}
+
+	final Runnable task = new Runner(mbox, body);
+	if (executor != null) {
+	    try {
+		executor.execute(task);
+	    } catch (final RuntimeException e) {
+		closeMbox(mbox, new OtpErlangAtom("noproc"));
+		throw e;
+	    }
+	} else {
+	    final Thread t = new Thread(task, "process " + mbox.self);
+	    t.setDaemon(true);
+	    t.start();
+	}
+	return mbox.self;
+    }
+
     /**
      * Create an named mailbox that can be used to send and receive messages
      * with other, similar mailboxes and with Erlang processes. Messages can be
@@ -495,7 +811,7 @@ public class OtpNode extends OtpLocalNode {
 		if (conn == null) {
 		    try {
 			conn = new OtpCookedConnection(this, peer);
-			conn.setFlags(connFlags);
+			configure(conn);
 			addConnection(conn);
 		    } catch (final Exception e) {
 			/* false = outgoing */
@@ -507,6 +823,15 @@ public class OtpNode extends OtpLocalNode {
 	}
     }
 
+    // apply the settings for new connections
+    private void configure(final OtpCookedConnection conn) {
+	conn.setFlags(connFlags);
+	conn.setCompressionThreshold(connCompressionThreshold);
+	conn.setMaxFrameSize(connMaxFrameSize);
+	conn.setMaxTermDepth(connMaxTermDepth);
+	conn.setMaxTermElements(connMaxTermElements);
+    }
+
     void addConnection(final OtpCookedConnection conn) {
 	if (conn != null && conn.name != null) {
 	    connections.put(conn.name, conn);
@@ -516,7 +841,9 @@ public class OtpNode extends OtpLocalNode {
 
     private void removeConnection(final OtpCookedConnection conn) {
 	if (conn != null && conn.name != null) {
-	    connections.remove(conn.name);
+	    if (connections.remove(conn.name) != null) {
+		closedRejectedFrames.addAndGet(conn.getRejectedFrames());
+	    }
 	}
     }
 
@@ -678,6 +1005,143 @@ public class OtpNode extends OtpLocalNode {
 	}
     }
 
+    /*
+     * forwards items from a publisher to a pid, see subscriberTo()
+     */
+    private class Sender implements OtpFlow.Subscriber<OtpErlangObject>,
+	    OtpMsgHandler {
+	private final OtpMbox mbox;
+	private final OtpErlangPid to;
+	private final int refill;
+	private volatile OtpFlow.Subscription subscription = null;
+	private int received = 0;
+	private volatile boolean done = false;
+
+	Sender(final OtpMbox mbox, final OtpErlangPid to, final int batch) {
+	    this.mbox = mbox;
+	    this.to = to;
+	    refill = Math.max(1, batch / 2);
+	    // the only messages this mailbox gets are exit signals, and they
+	    // are handled as they are delivered
+	    final Executor e = processExecutor;
+	    mbox.setHandler(this, e != null ? e : new Executor() {
+		public void execute(final Runnable r) {
+		    try {
+			r.run();
+		    } catch (final RuntimeException x) {
+			// thrown by the publisher's cancel(); it must not
+			// reach the thread that delivered the exit signal
+		    }
+		}
+	    });
+	}
+
+	public void handleMsgs(final OtpMbox m, final OtpMsg[] msgs) {
+	    if (done) {
+		return;
+	    }
+	    done = true;
+	    final OtpFlow.Subscription s = subscription;
+	    try {
+		if (s != null) {
+		    s.cancel();
+		}
+	    } finally {
+		closeMbox(mbox);
+	    }
+	}
+
+	public synchronized void onSubscribe(final OtpFlow.Subscription s) {
+	    if (subscription != null) {
+		s.cancel();
+		return;
+	    }
+	    subscription = s;
+	    if (done) {
+		s.cancel();
+		return;
+	    }
+	    try {
+		mbox.link(to);
+	    } catch (final OtpErlangExit e) {
+		done = true;
+		s.cancel();
+		closeMbox(mbox);
+		return;
+	    }
+	    s.request(refill * 2);
+	}
+
+	public synchronized void onNext(final OtpErlangObject item) {
+	    if (done) {
+		return;
+	    }
+
+	    mbox.send(to, item);
+	    if (++received == refill) {
+		received = 0;
+		subscription.request(refill);
+	    }
+	}
+
+	public synchronized void onError(final Throwable t) {
+	    if (done) {
+		return;
+	    }
+	    done = true;
+
+	    OtpErlangObject reason;
+	    if (t instanceof OtpErlangExit) {
+		reason = ((OtpErlangExit) t).reason();
+	    } else {
+		final OtpErlangObject[] r = new OtpErlangObject[2];
+		r[0] = new OtpErlangAtom("java_exception");
+		r[1] = new OtpErlangString(t.toString());
+		reason = new OtpErlangTuple(r);
+	    }
+	    closeMbox(mbox, reason);
+	}
+
+	public synchronized void onComplete() {
+	    if (done) {
+		return;
+	    }
+	    done = true;
+	    closeMbox(mbox);
+	}
+    }
+
+    /*
+     * runs the body of a spawned process, and closes its mailbox with the
+     * proper exit reason when the body terminates
+     */
+    private class Runner implements Runnable {
+	private final OtpMbox mbox;
+	private final OtpProcess body;
+
+	Runner(final OtpMbox mbox, final OtpProcess body) {
+	    this.mbox = mbox;
+	    this.body = body;
+	}
+
+	public void run() {
+	    OtpErlangObject reason;
+
+	    try {
+		body.run(mbox);
+		reason = new OtpErlangAtom("normal");
+	    } catch (final OtpErlangExit e) {
+		reason = e.reason();
+	    } catch (final Throwable t) {
+		final OtpErlangObject[] r = new OtpErlangObject[2];
+		r[0] = new OtpErlangAtom("java_exception");
+		r[1] = new OtpErlangString(t.toString());
+		reason = new OtpErlangTuple(r);
+	    }
+	    closeMbox(mbox, reason);
+	}
+    }
+
     /*
      * this thread simply listens for incoming connections
      */
@@ -770,7 +1234,7 @@ public class OtpNode extends OtpLocalNode {
 		try {
 		    synchronized (connections) {
 			conn = new OtpCookedConnection(OtpNode.this, newsock);
-			conn.setFlags(connFlags);
+			configure(conn);
 			addConnection(conn);
 		    }
 		} catch (final OtpAuthException e) {
@@ -803,4 +1267,79 @@ public class OtpNode extends OtpLocalNode {
     public void setFlags(final int flags) {
 	this.connFlags = flags;
     }
+
+    /**
+     * Decode the terms received on connections made from now on with the
+     * given profile, see
+     * {@link AbstractConnection#setDecodeProfile(OtpDecodeProfile)}.
+     * 
+     * @param profile
+     *            the profile to decode with.
+     */
+    public void setDecodeProfile(final OtpDecodeProfile profile) {
+	setFlags(profile.flags());
+    }
+
+    /**
+     * Compress large message payloads on connections made from now on, see
+     * {@link AbstractConnection#setCompressionThreshold(int)}.
+     * 
+     * @param threshold
+     *            the encoded size in bytes from which payloads are
+     *            compressed, or 0 to never compress them.
+     */
+    public void setCompressionThreshold(final int threshold) {
+	this.connCompressionThreshold = threshold;
+    }
+
+    /**
+     * Limit the size of the frames received on connections made from now
+     * on, see {@link AbstractConnection#setMaxFrameSize(int)}.
+     * 
+     * @param size
+     *            the greatest frame size in bytes, or 0 for no limit.
+     */
+    public void setMaxFrameSize(final int size) {
+	this.connMaxFrameSize = size;
+    }
+
+    /**
+     * Limit how deeply the terms received on connections made from now on
+     * may be nested, see {@link AbstractConnection#setMaxTermDepth(int)}.
+     * 
+     * @param depth
+     *            the greatest depth, or 0 for no limit.
+     */
+    public void setMaxTermDepth(final int depth) {
+	this.connMaxTermDepth = depth;
+    }
+
+    /**
+     * Limit the number of elements of the terms received on connections
+     * made from now on, see
+     * {@link AbstractConnection#setMaxTermElements(int)}.
+     * 
+     * @param elements
+     *            the greatest number of elements, or 0 for no limit.
+     */
+    public void setMaxTermElements(final int elements) {
+	this.connMaxTermElements = elements;
+    }
+
+    /**
+     * Get the number of received frames that the connections of this node
+     * have dropped for exceeding the limits on frames and terms, including
+     * connections that have since gone down.
+     * 
+     * @return the number of rejected frames.
+     */
+    public long getRejectedFrames() {
+	long n = closedRejectedFrames.get();
+	synchronized (connections) {
+	    for (final OtpCookedConnection conn : connections.values()) {
+		n += conn.getRejectedFrames();
+	    }
+	}
+	return n;
+    }
 }
@@ -21,10 +21,15 @@ package com.ericsson.otp.erlang;
 // import java.io.OutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.zip.Deflater;
 
 /**
@@ -51,7 +56,24 @@ public class OtpOutputStream extends ByteArrayOutputStream {
     @SuppressWarnings("unused")
     private static final BigDecimal one = new BigDecimal(1.0);
 
-    private int fixedSize = Integer.MAX_VALUE;
+    // buffer backed binaries at least this big are deferred, see
+    // write_deferred()
+    static final int minDeferredBinary = 65536;
+
+    // binaries whose bytes are not in this stream, in order of offset
+    private boolean deferBinaries = false;
+    private ArrayList<Deferred> deferred = null;
+    private long deferredLength = 0;
+
+    private static final class Deferred {
+	final int offset;
+	final OtpErlangBinary binary;
+
+	Deferred(final int offset, final OtpErlangBinary binary) {
+	    this.offset = offset;
+	    this.binary = binary;
+	}
+    }
 
     /**
      * Create a stream with the default initial size (2048 bytes).
@@ -71,7 +93,7 @@ public class OtpOutputStream extends ByteArrayOutputStream {
      * Create a stream containing the encoded version of the given Erlang term.
      */
     public OtpOutputStream(final OtpErlangObject o) {
-	this();
+	this(o.encodedSize());
 	write_any(o);
     }
 
@@ -91,6 +113,14 @@ public class OtpOutputStream extends ByteArrayOutputStream {
 	return new OtpInputStream(super.buf, offset, super.count - offset, 0);
     }
 
+    // package scope
+    /*
+     * Get the size of the buffer backing this stream.
+     */
+    int capacity() {
+	return super.buf.length;
+    }
+
     /**
      * Get the current position in the stream.
      * 
@@ -127,9 +157,6 @@ public class OtpOutputStream extends ByteArrayOutputStream {
      * @param   minCapacity   the desired minimum capacity
      */
     public void ensureCapacity(int minCapacity) {
-	if (minCapacity > fixedSize) {
-	    throw new IllegalArgumentException("Trying to increase fixed-size buffer");
-	}
 	int oldCapacity = super.buf.length;
 	if (minCapacity > oldCapacity) {
 	    int newCapacity = (oldCapacity * 3)/2 + 1;
@@ -137,7 +164,6 @@ public class OtpOutputStream extends ByteArrayOutputStream {
 		newCapacity = oldCapacity + defaultIncrement;
 	    if (newCapacity < minCapacity)
 		newCapacity = minCapacity;
-	    newCapacity = Math.min(fixedSize, newCapacity);
 	    // minCapacity is usually close to size, so this is a win:
 	    final byte[] tmp = new byte[newCapacity];
 	    System.arraycopy(super.buf, 0, tmp, 0, super.count);
@@ -212,6 +238,44 @@ public class OtpOutputStream extends ByteArrayOutputStream {
 	write(bytes);
     }
 
+    // package scope
+    /*
+     * Copy bytes from another stream.
+     */
+    void write(final OtpOutputStream src, final int off, final int len) {
+	write(src.buf, off, len);
+    }
+
+    // package scope
+    /*
+     * Write the remaining bytes of a buffer without changing its position.
+     */
+    void writeN(final ByteBuffer bytes) {
+	final int len = bytes.remaining();
+	ensureCapacity(super.count + len);
+	bytes.duplicate().get(super.buf, super.count, len);
+	super.count += len;
+    }
+
+    // package scope
+    /*
+     * Read len bytes of a file straight into the stream, without changing
+     * the position of the channel.
+     */
+    void writeN(final FileChannel file, final long position, final int len)
+	    throws IOException {
+	ensureCapacity(super.count + len);
+	final ByteBuffer dst = ByteBuffer.wrap(super.buf, super.count, len);
+	while (dst.hasRemaining()) {
+	    if (file.read(dst, position + dst.position() - super.count) < 0) {
+		throw new IOException("End of file after "
+			+ (dst.position() - super.count) + " of " + len
+			+ " bytes");
+	    }
+	}
+	super.count += len;
+    }
+
     /**
      * Get the current capacity of the stream. As bytes are added the capacity
      * of the stream is increased automatically, however this method returns the
@@ -377,6 +441,21 @@ public class OtpOutputStream extends ByteArrayOutputStream {
      *            the string to write.
      */
     public void write_atom(final String atom) {
+	final OtpErlangAtom a = OtpErlangAtom.lookup(atom);
+
+	if (a != null) {
+	    writeN(a.encoded());
+	} else {
+	    writeN(encodeAtom(atom));
+	}
+    }
+
+    // package scope
+    /*
+     * Encode a string as an Erlang atom, returning the complete encoding
+     * including tag and length.
+     */
+    static byte[] encodeAtom(final String atom) {
 	String enc_atom;
 	byte[] bytes;
 	boolean isLatin1 = true;
@@ -403,24 +482,32 @@ public class OtpOutputStream extends ByteArrayOutputStream {
 	    offset += Character.charCount(cp);
 	}
 	try {
+	    byte[] res;
 	    if (isLatin1) {
 		bytes = enc_atom.getBytes("ISO-8859-1");
-		write1(OtpExternal.atomTag);
-		write2BE(bytes.length);
+		res = new byte[3 + bytes.length];
+		res[0] = (byte) OtpExternal.atomTag;
+		res[1] = (byte) (bytes.length >> 8);
+		res[2] = (byte) bytes.length;
+		System.arraycopy(bytes, 0, res, 3, bytes.length);
 	    }
 	    else {
 		bytes = enc_atom.getBytes("UTF-8");
 		final int length = bytes.length;
 		if (length < 256) {
-		    write1(OtpExternal.smallAtomUtf8Tag);
-		    write1(length);
+		    res = new byte[2 + length];
+		    res[0] = (byte) OtpExternal.smallAtomUtf8Tag;
+		    res[1] = (byte) length;
 		}
 		else {
-		    write1(OtpExternal.atomUtf8Tag);
-		    write2BE(length);
+		    res = new byte[3 + length];
+		    res[0] = (byte) OtpExternal.atomUtf8Tag;
+		    res[1] = (byte) (length >> 8);
+		    res[2] = (byte) length;
 		}
+		System.arraycopy(bytes, 0, res, res.length - length, length);
 	    }
-	    writeN(bytes);
+	    return res;
 	} catch (final java.io.UnsupportedEncodingException e) {
 	    /*
 	     * Sigh, why didn't the API designer add an
@@ -430,9 +517,8 @@ public class OtpOutputStream extends ByteArrayOutputStream {
 	     * whoever trying to decode this... Sigh,
 	     * again...
 	     */
-	    write1(OtpExternal.smallAtomUtf8Tag);
-	    write1(2);
-	    write2BE(0xffff); /* Invalid UTF-8 */
+	    return new byte[] { (byte) OtpExternal.smallAtomUtf8Tag, 2,
+		    (byte) 0xff, (byte) 0xff }; /* Invalid UTF-8 */
 	}
     }
 
@@ -448,6 +534,116 @@ public class OtpOutputStream extends ByteArrayOutputStream {
 	writeN(bin);
     }
 
+    /**
+     * Write the remaining bytes of a buffer to the stream as an Erlang
+     * binary. The bytes are copied straight into the stream and the position
+     * of the buffer is not changed.
+     * 
+     * @param bin
+     *            the buffer to write.
+     */
+    public void write_binary(final ByteBuffer bin) {
+	write1(OtpExternal.binTag);
+	write4BE(bin.remaining());
+	writeN(bin);
+    }
+
+    /**
+     * Write part of a file to the stream as an Erlang binary. The bytes are
+     * read straight into the stream.
+     * 
+     * @param file
+     *            the channel to read from. Its position is not changed.
+     * @param position
+     *            the position in the file of the first byte.
+     * @param len
+     *            the number of bytes to write.
+     * 
+     * @exception IOException
+     *                if the file cannot be read, or ends too early.
+     */
+    public void write_binary(final FileChannel file, final long position,
+	    final int len) throws IOException {
+	final int start = super.count;
+	write1(OtpExternal.binTag);
+	write4BE(len);
+	try {
+	    writeN(file, position, len);
+	} catch (final IOException e) {
+	    super.count = start;
+	    throw e;
+	}
+    }
+
+    // package scope
+    /*
+     * Let large binaries be written by reference, see write_deferred().
+     * Only the connection send path does this, as
+     * it knows to send the stream with writeTo(OutputStream,
+     * WritableByteChannel).
+     */
+    void deferBinaries() {
+	deferBinaries = true;
+    }
+
+    boolean defersBinaries() {
+	return deferBinaries;
+    }
+
+    // package scope
+    /*
+     * Leave out the bytes of a binary, which are transferred from the binary
+     * itself when the stream is sent. The caller writes the header.
+     */
+    void write_deferred(final OtpErlangBinary binary, final long len) {
+	if (deferred == null) {
+	    deferred = new ArrayList<Deferred>();
+	}
+	deferred.add(new Deferred(super.count, binary));
+	deferredLength += len;
+    }
+
+    // package scope
+    /*
+     * The number of bytes of deferred binaries, which are not counted in
+     * size().
+     */
+    long deferredLength() {
+	return deferredLength;
+    }
+
+    // package scope
+    /*
+     * Write the stream, with the bytes of deferred binaries in their places:
+     * the buffer goes to out and the binaries go to channel, which must
+     * write to the same destination.
+     */
+    void writeTo(final OutputStream out, final WritableByteChannel channel)
+	    throws IOException {
+	int pos = 0;
+	if (deferred != null) {
+	    for (final Deferred d : deferred) {
+		out.write(super.buf, pos, d.offset - pos);
+		out.flush();
+		d.binary.transferTo(channel);
+		pos = d.offset;
+	    }
+	}
+	out.write(super.buf, pos, super.count - pos);
+    }
+
+    /**
+     * Discard the contents of the stream, including any binaries written by
+     * reference.
+     */
+    @Override
+    public void reset() {
+	super.reset();
+	deferBinaries = false;
+	deferred = null;
+	deferredLength = 0;
+    }
+
     /**
      * Write an array of bytes to the stream as an Erlang bitstr.
      * 
@@ -841,7 +1037,178 @@ public class OtpOutputStream extends ByteArrayOutputStream {
 	}
     }
 
-    private boolean is8bitString(final String s) {
+    // the most elements of an array written to the buffer at a time, so
+    // that a stream that deflates as it goes, see write_compressed(), is
+    // never asked for more room than its chunk buffer has
+    private static final int arrayChunk = 1024;
+
+    /**
+     * Write an array of integers to the stream as an Erlang list. The list is
+     * written as a string (STRING_EXT) if it is short enough and every value
+     * is in 0..255, as Erlang does.
+     * 
+     * @param values
+     *            the integers to write.
+     */
+    public void write_int_array(final int[] values) {
+	final int len = values.length;
+	if (len == 0) {
+	    write_nil();
+	    return;
+	}
+	if (len <= 65535 && isByteArray(values)) {
+	    write1(OtpExternal.stringTag);
+	    write2BE(len);
+	    for (int i = 0; i < len;) {
+		final int end = Math.min(len, i + arrayChunk);
+		ensureCapacity(super.count + end - i);
+		for (; i < end; i++) {
+		    super.buf[super.count++] = (byte) values[i];
+		}
+	    }
+	    return;
+	}
+	write_list_head(len);
+	for (int i = 0; i < len; i++) {
+	    write_list_element(values[i]);
+	}
+	write_nil();
+    }
+
+    /**
+     * Write an array of longs to the stream as an Erlang list, in the same
+     * way as {@link #write_int_array(int[])}.
+     * 
+     * @param values
+     *            the longs to write.
+     */
+    public void write_long_array(final long[] values) {
+	final int len = values.length;
+	if (len == 0) {
+	    write_nil();
+	    return;
+	}
+	if (len <= 65535 && isByteArray(values)) {
+	    write1(OtpExternal.stringTag);
+	    write2BE(len);
+	    for (int i = 0; i < len;) {
+		final int end = Math.min(len, i + arrayChunk);
+		ensureCapacity(super.count + end - i);
+		for (; i < end; i++) {
+		    super.buf[super.count++] = (byte) values[i];
+		}
+	    }
+	    return;
+	}
+	write_list_head(len);
+	for (int i = 0; i < len; i++) {
+	    write_list_element(values[i]);
+	}
+	write_nil();
+    }
+
+    /**
+     * Write an array of doubles to the stream as an Erlang list of floats.
+     * 
+     * @param values
+     *            the doubles to write.
+     */
+    public void write_double_array(final double[] values) {
+	final int len = values.length;
+	write_list_head(len);
+	for (int i = 0; i < len;) {
+	    final int end = Math.min(len, i + arrayChunk);
+	    ensureCapacity(super.count + 9 * (end - i));
+	    final byte[] b = super.buf;
+	    int p = super.count;
+	    for (; i < end; i++) {
+		final long v = Double.doubleToLongBits(values[i]);
+		b[p] = OtpExternal.newFloatTag;
+		for (int k = 8; k > 0; k--) {
+		    b[p + k] = (byte) (v >> 8 * (8 - k));
+		}
+		p += 9;
+	    }
+	    super.count = p;
+	}
+	if (len > 0) {
+	    write_nil();
+	}
+    }
+
+    /**
+     * Write an array of bytes to the stream as an Erlang string, that is a
+     * list of integers in 0..255. Unlike {@link #write_binary(byte[])} this
+     * makes a list; it is written as STRING_EXT if it is short enough.
+     * 
+     * @param bytes
+     *            the bytes to write.
+     */
+    public void write_string_bytes(final byte[] bytes) {
+	final int len = bytes.length;
+	if (len == 0) {
+	    write_nil();
+	} else if (len <= 65535) {
+	    write1(OtpExternal.stringTag);
+	    write2BE(len);
+	    writeN(bytes);
+	} else {
+	    write_list_head(len);
+	    for (int i = 0; i < len;) {
+		final int end = Math.min(len, i + arrayChunk);
+		ensureCapacity(super.count + 2 * (end - i));
+		for (; i < end; i++) {
+		    super.buf[super.count++] = OtpExternal.smallIntTag;
+		    super.buf[super.count++] = bytes[i];
+		}
+	    }
+	    write_nil();
+	}
+    }
+
+    /*
+     * Write a list element as write_long() does, without a call per byte
+     * for small integers.
+     */
+    private void write_list_element(final long v) {
+	if ((v & 0xffL) == v) {
+	    ensureCapacity(super.count + 2);
+	    super.buf[super.count++] = OtpExternal.smallIntTag;
+	    super.buf[super.count++] = (byte) v;
+	} else if (v >= OtpExternal.erlMin && v <= OtpExternal.erlMax) {
+	    ensureCapacity(super.count + 5);
+	    final byte[] b = super.buf;
+	    final int p = super.count;
+	    b[p] = OtpExternal.intTag;
+	    b[p + 1] = (byte) (v >> 24);
+	    b[p + 2] = (byte) (v >> 16);
+	    b[p + 3] = (byte) (v >> 8);
+	    b[p + 4] = (byte) v;
+	    super.count = p + 5;
+	} else {
+	    write_long(v, false);
+	}
+    }
+
+    private static boolean isByteArray(final int[] values) {
+	for (final int v : values) {
+	    if ((v & 0xff) != v) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private static boolean isByteArray(final long[] values) {
+	for (final long v : values) {
+	    if ((v & 0xffL) != v) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    static boolean is8bitString(final String s) {
 	for (int i = 0; i < s.length(); ++i) {
 	    final char c = s.charAt(i);
 	    if (c < 0 || c > 255) {
@@ -869,67 +1236,194 @@ public class OtpOutputStream extends ByteArrayOutputStream {
      * @param level
      *            the compression level (<tt>0..9</tt>)
      */
-    public void write_compressed(final OtpErlangObject o, int level) {
-    @SuppressWarnings("resource")
-	final OtpOutputStream oos = new OtpOutputStream(o);
+    public void write_compressed(final OtpErlangObject o, final int level) {
+	final int size = o.encodedSize();
 	/*
 	 * similar to erts_term_to_binary() in external.c:
 	 * We don't want to compress if compression actually increases the size.
 	 * Since compression uses 5 extra bytes (COMPRESSED tag + size), don't
 	 * compress if the original term is smaller.
 	 */
-	if (oos.size() < 5) {
+	if (size < 5) {
 	    // fast path for small terms
-	    try {
-		oos.writeTo(this);
-		// if the term is written as a compressed term, the output
-		// stream is closed, so we do this here, too
-		this.close();
-	    } catch (IOException e) {
-		throw new java.lang.IllegalArgumentException(
-			"Intermediate stream failed for Erlang object " + o);
+	    write_any(o);
+	    return;
+	}
+
+	if (!compress(o, null, 0, size, level)) {
+	    write_any(o);
+	}
+    }
+
+    // package scope
+    /*
+     * Write an already encoded term, the bytes of another stream from an
+     * offset on, as a compressed term. Nothing is written if that would not
+     * make it smaller.
+     */
+    boolean write_compressed(final OtpOutputStream src, final int offset,
+	    final int level) {
+	final int size = src.count - offset;
+	return size >= 5 && compress(null, src.buf, offset, size, level);
+    }
+
+    /*
+     * Write a term, or its encoding, as a compressed term of the given
+     * plain size. Write nothing and return false if the result would not
+     * be smaller.
+     */
+    private boolean compress(final OtpErlangObject o, final byte[] b,
+	    final int off, final int size, final int level) {
+	final Deflation z = deflation.get();
+	final Deflater def = z.busy ? new Deflater(level) : z.deflater;
+	final boolean pooled = def == z.deflater;
+	final int startCount = super.count;
+	if (pooled) {
+	    z.busy = true;
+	}
+	try {
+	    def.reset();
+	    def.setLevel(level);
+	    write1(OtpExternal.compressedTag);
+	    write4BE(size);
+	    // the term is deflated as it is encoded, a chunk at a time, and
+	    // given up on as soon as it is no smaller than the plain encoding
+	    final DeflatingStream ds = new DeflatingStream(this, def, startCount
+		    + size);
+	    if (o != null) {
+		ds.write_any(o);
+	    } else {
+		ds.write(b, off, size);
 	    }
-	} else {
-	    int startCount = super.count;
-	    // we need destCount bytes for an uncompressed term
-	    // -> if compression uses more, use the uncompressed term!
-	    int destCount = startCount + oos.size();
-	    this.fixedSize = destCount;
-	    Deflater def = new Deflater(level);
-	    final java.util.zip.DeflaterOutputStream dos = new java.util.zip.DeflaterOutputStream(
-		    this, def);
-	    try {
-		write1(OtpExternal.compressedTag);
-		write4BE(oos.size());
-		oos.writeTo(dos);
-		dos.close(); // note: closes this, too!
-	    } catch (final IllegalArgumentException e) {
-		// discard further un-compressed data
-		// -> if not called, there may be memory leaks!
+	    if (ds.finish()) {
+		return true;
+	    }
+	} finally {
+	    if (pooled) {
+		z.busy = false;
+	    } else {
 		def.end();
-		// could not make the value smaller than originally
-		// -> reset to starting count, write uncompressed
-		super.count = startCount;
-		try {
-		    oos.writeTo(this);
-		    // if the term is written as a compressed term, the output
-		    // stream is closed, so we do this here, too
-		    this.close();
-		} catch (IOException e2) {
-		    throw new java.lang.IllegalArgumentException(
-			    "Intermediate stream failed for Erlang object " + o);
+	    }
+	}
+	super.count = startCount;
+	return false;
+    }
+
+    private static final class Deflation {
+	final Deflater deflater = new Deflater();
+	boolean busy = false;
+    }
+
+    private static final ThreadLocal<Deflation> deflation = new ThreadLocal<Deflation>() {
+	@Override
+	protected Deflation initialValue() {
+	    return new Deflation();
+	}
+    };
+
+    /*
+     * Collects an encoded term in a small buffer and deflates it into
+     * another stream each time the buffer fills up. Writes larger than the
+     * buffer are deflated from where they are.
+     */
+    private static final class DeflatingStream extends OtpOutputStream {
+	private static final int chunkSize = 16384;
+
+	private final OtpOutputStream out;
+	private final Deflater def;
+	private final int limit;
+	private boolean full = false;
+
+	DeflatingStream(final OtpOutputStream out, final Deflater def,
+		final int limit) {
+	    super(chunkSize);
+	    this.out = out;
+	    this.def = def;
+	    this.limit = limit;
+	}
+
+	@Override
+	public void ensureCapacity(final int minCapacity) {
+	    if (minCapacity > super.buf.length) {
+		// make room by deflating what has been written so far
+		final int n = minCapacity - super.count;
+		deflate(super.buf, 0, super.count);
+		super.count = 0;
+		super.ensureCapacity(n);
+	    }
+	}
+
+	@Override
+	public synchronized void write(final byte[] b, final int off,
+		final int len) {
+	    if (len <= chunkSize) {
+		super.write(b, off, len);
+	    } else {
+		if (off < 0 || len < 0 || off + len > b.length) {
+		    throw new IndexOutOfBoundsException();
 		}
-	    } catch (final IOException e) {
-		throw new java.lang.IllegalArgumentException(
-			"Intermediate stream failed for Erlang object " + o);
-	    } finally {
-		this.fixedSize = Integer.MAX_VALUE;
-        try {
-            dos.close();
-        } catch (IOException e) {
-            // ignore
-        }
+		deflate(super.buf, 0, super.count);
+		super.count = 0;
+		deflate(b, off, len);
+	    }
+	}
+
+	@Override
+	void writeN(final ByteBuffer bytes) {
+	    final ByteBuffer b = bytes.duplicate();
+	    while (b.hasRemaining()) {
+		final int n = Math.min(b.remaining(), chunkSize);
+		ensureCapacity(super.count + n);
+		b.get(super.buf, super.count, n);
+		super.count += n;
+	    }
+	}
+
+	@Override
+	void writeN(final FileChannel file, final long position, final int len)
+		throws IOException {
+	    int done = 0;
+	    while (done < len) {
+		final int n = Math.min(len - done, chunkSize);
+		ensureCapacity(super.count + n);
+		super.writeN(file, position + done, n);
+		done += n;
+	    }
+	}
+
+	/*
+	 * Deflate the rest of the term. Return false if the compressed term
+	 * is no smaller than the plain one.
+	 */
+	boolean finish() {
+	    deflate(super.buf, 0, super.count);
+	    super.count = 0;
+	    def.finish();
+	    while (!full && !def.finished()) {
+		drain();
 	    }
+	    return !full;
+	}
+
+	private void deflate(final byte[] b, final int off, final int len) {
+	    if (full || len == 0) {
+		return;
+	    }
+	    def.setInput(b, off, len);
+	    while (!full && !def.needsInput()) {
+		drain();
+	    }
+	}
+
+	private void drain() {
+	    final int room = limit - out.count;
+	    if (room <= 0) {
+		full = true;
+		return;
+	    }
+	    out.ensureCapacity(out.count + Math.min(room, chunkSize));
+	    out.count += def.deflate(out.buf, out.count, Math.min(room,
+		    out.buf.length - out.count));
 	}
     }
 
@@ -959,8 +1453,9 @@ public class OtpOutputStream extends ByteArrayOutputStream {
 	    }
 	} else {
 	    write1(OtpExternal.newFunTag);
-	    final int saveSizePos = getPos();
-	    write4BE(0); // this is where we patch in the size
+	    // size includes the size field but not the tag
+	    write4BE(funSize(pid, module, old_index, arity, md5, index, uniq,
+		    freeVars) - 1);
 	    write1(arity);
 	    writeN(md5);
 	    write4BE(index);
@@ -972,7 +1467,6 @@ public class OtpOutputStream extends ByteArrayOutputStream {
 	    for (final OtpErlangObject fv : freeVars) {
 		fv.encode(this);
 	    }
-	    poke4BE(saveSizePos, getPos() - saveSizePos);
 	}
     }
 
@@ -988,4 +1482,134 @@ public class OtpOutputStream extends ByteArrayOutputStream {
         write1(OtpExternal.mapTag);
         write4BE(arity);
     }
+
+    // package scope
+    /*
+     * Sizes of the encodings written by the methods above, used by the
+     * encodedSize() methods of the term classes. Each one must agree exactly
+     * with the corresponding write method.
+     */
+
+    static int atomSize(final String atom) {
+	final int cps = atom.codePointCount(0, atom.length());
+	final int end = cps <= OtpExternal.maxAtomLength ? atom.length()
+		: atom.offsetByCodePoints(0, OtpExternal.maxAtomLength);
+	int utf8 = 0;
+	boolean isLatin1 = true;
+
+	for (int offset = 0; offset < end;) {
+	    final int cp = atom.codePointAt(offset);
+	    if ((cp & ~0xFF) != 0) {
+		isLatin1 = false;
+	    }
+	    if (cp < 0x80) {
+		utf8 += 1;
+	    } else if (cp < 0x800) {
+		utf8 += 2;
+	    } else if (cp >= 0xD800 && cp <= 0xDFFF) {
+		utf8 += 1; // lone surrogate, encoded as '?'
+	    } else if (cp < 0x10000) {
+		utf8 += 3;
+	    } else {
+		utf8 += 4;
+	    }
+	    offset += Character.charCount(cp);
+	}
+	if (isLatin1) {
+	    return 3 + Math.min(cps, OtpExternal.maxAtomLength);
+	}
+	return (utf8 < 256 ? 2 : 3) + utf8;
+    }
+
+    static int longSize(final long v, final boolean unsigned) {
+	if ((v & 0xffL) == v) {
+	    return 2;
+	}
+	if (v < 0 && unsigned || v < OtpExternal.erlMin
+		|| v > OtpExternal.erlMax) {
+	    final long abs = unsigned ? v : v < 0 ? -v : v;
+	    int n;
+	    long mask;
+	    for (mask = 0xFFFFffffL, n = 4; (abs & mask) != abs; n++, mask = mask << 8 | 0xffL) {
+		// count nonzero bytes
+	    }
+	    return 3 + n;
+	}
+	return 5;
+    }
+
+    static int bigIntegerSize(final BigInteger v) {
+	if (v.bitLength() < 64) {
+	    return longSize(v.longValue(), true);
+	}
+	// same as the length of abs(v).toByteArray()
+	final int n = v.abs().bitLength() / 8 + 1;
+	return ((n & 0xFF) == n ? 3 : 6) + n;
+    }
+
+    static int listHeadSize(final int arity) {
+	return arity == 0 ? 1 : 5;
+    }
+
+    static int tupleHeadSize(final int arity) {
+	return arity < 0xff ? 2 : 5;
+    }
+
+    static int pidSize(final String node) {
+	return 10 + atomSize(node);
+    }
+
+    static int portSize(final String node) {
+	return 6 + atomSize(node);
+    }
+
+    static int refSize(final String node, final int[] ids) {
+	final int arity = Math.min(ids.length, 3);
+	if (arity == 1) {
+	    return 6 + atomSize(node);
+	}
+	return 4 + atomSize(node) + 4 * arity;
+    }
+
+    static int stringSize(final String s) {
+	final int len = s.length();
+
+	if (len == 0) {
+	    return 1;
+	}
+	if (len <= 65535 && is8bitString(s)) {
+	    return 3 + len;
+	}
+	int size = 5 + 1; // list head and nil
+	for (int offset = 0; offset < len;) {
+	    final int cp = s.codePointAt(offset);
+	    size += longSize(cp, false);
+	    offset += Character.charCount(cp);
+	}
+	return size;
+    }
+
+    static int funSize(final OtpErlangPid pid, final String module,
+	    final long old_index, final int arity, final byte[] md5,
+	    final long index, final long uniq, final OtpErlangObject[] freeVars) {
+	int size;
+	if (arity == -1) {
+	    size = 5 + pid.encodedSize() + atomSize(module)
+		    + longSize(index, false) + longSize(uniq, false);
+	} else {
+	    size = 14 + md5.length + atomSize(module)
+		    + longSize(old_index, false) + longSize(uniq, false)
+		    + pid.encodedSize();
+	}
+	for (final OtpErlangObject fv : freeVars) {
+	    size += fv.encodedSize();
+	}
+	return size;
+    }
+
+    static int externalFunSize(final String module, final String function,
+	    final int arity) {
+	return 1 + atomSize(module) + atomSize(function)
+		+ longSize(arity, false);
+    }
 }
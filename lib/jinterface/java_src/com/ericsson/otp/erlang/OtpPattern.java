@@ -0,0 +1,770 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * A pattern that is matched directly against terms in external format, so
+ * that messages can be selected or routed without decoding them first.
+ * </p>
+ * 
+ * <p>
+ * Patterns are compiled from a template built of ordinary Erlang objects and
+ * variables made with {@link #var(String)} or {@link #any()}. For example,
+ * the Erlang pattern <code>{reply, Ref, _}</code> is written as:
+ * </p>
+ * 
+ * <pre>
+ * OtpPattern p = OtpPattern.compile(new OtpErlangTuple(new OtpErlangObject[] {
+ * 	new OtpErlangAtom(&quot;reply&quot;), OtpPattern.var(&quot;Ref&quot;), OtpPattern.any() }));
+ * </pre>
+ * 
+ * <p>
+ * A successful {@link #match match} binds each variable to the encoded
+ * subterm it matched, without copying it. A variable that occurs more than
+ * once must match the same encoding each time. Map templates match any map
+ * that has at least the given keys, as in Erlang; map keys must not contain
+ * variables.
+ * </p>
+ * 
+ * <p>
+ * Since the encoded tail of a list is only the part after the last element,
+ * a list template matches lists of exactly its length, and its tail is
+ * matched against the encoded tail. The exception is a wildcard tail, which
+ * matches any remaining elements. Lists that arrive encoded as strings only
+ * match templates whose elements are integers or wildcards.
+ * </p>
+ * 
+ * <p>
+ * Pids, ports, references and funs in a template are compared by decoding
+ * the corresponding subterm. Everything else is compared on the encoded
+ * bytes.
+ * </p>
+ * 
+ * <p>
+ * Compiled patterns are immutable and can be shared between threads.
+ * </p>
+ */
+public final class OtpPattern {
+    private final Node root;
+    private final String[] names;
+
+    private OtpPattern(final Node root, final String[] names) {
+	this.root = root;
+	this.names = names;
+    }
+
+    /**
+     * Make a variable for use in a template. The name "_" makes a wildcard,
+     * as {@link #any()}.
+     * 
+     * @param name
+     *            the name of the variable.
+     * 
+     * @return a placeholder that binds the matched subterm to the name.
+     */
+    public static OtpErlangObject var(final String name) {
+	if (name == null) {
+	    throw new NullPointerException();
+	}
+	return new Var(name);
+    }
+
+    /**
+     * Make a wildcard for use in a template.
+     * 
+     * @return a placeholder that matches any term and binds nothing.
+     */
+    public static OtpErlangObject any() {
+	return new Var("_");
+    }
+
+    /**
+     * Compile a template into a pattern.
+     * 
+     * @param template
+     *            the template, made of Erlang terms and variables.
+     * 
+     * @return the compiled pattern.
+     * 
+     * @exception IllegalArgumentException
+     *                if a map key in the template contains a variable.
+     */
+    public static OtpPattern compile(final OtpErlangObject template) {
+	final List<String> names = new ArrayList<String>();
+	final Node root = compile(template, names, false);
+	return new OtpPattern(root, names.toArray(new String[names.size()]));
+    }
+
+    /**
+     * Test whether the payload of a message matches this pattern. Messages
+     * without a payload, such as links, never match. Messages from mailboxes
+     * on the same node have no encoded form; they are encoded for the first
+     * test, and compressed payloads inflated, and the result is kept with
+     * the message for later tests.
+     * 
+     * @param msg
+     *            the message to test.
+     * 
+     * @return true if the message matches.
+     */
+    public boolean matches(final OtpMsg msg) {
+	return match(msg) != null;
+    }
+
+    /**
+     * Match the payload of a message against this pattern, as
+     * {@link #matches(OtpMsg)}.
+     * 
+     * @param msg
+     *            the message to match.
+     * 
+     * @return the variable bindings, or null if the message does not match.
+     */
+    public Bindings match(final OtpMsg msg) {
+	if (msg.type() != OtpMsg.sendTag && msg.type() != OtpMsg.regSendTag) {
+	    return null;
+	}
+	final OtpInputStream in;
+	try {
+	    in = msg.matchBuf();
+	} catch (final OtpErlangDecodeException e) {
+	    return null;
+	}
+	return in == null ? null : match(in);
+    }
+
+    /**
+     * Match the term at the current position of a stream against this
+     * pattern. The stream is advanced past the term if it matches, and left
+     * at an unspecified position otherwise.
+     * 
+     * @param in
+     *            the stream to match.
+     * 
+     * @return the variable bindings, or null if the term does not match or
+     *         is not valid.
+     */
+    public Bindings match(final OtpInputStream in) {
+	final OtpInputStream[] slots = new OtpInputStream[names.length];
+	try {
+	    if (root.match(in, slots)) {
+		return new Bindings(names, slots);
+	    }
+	} catch (final OtpErlangDecodeException e) {
+	    // not valid, so not a match
+	}
+	return null;
+    }
+
+    /**
+     * Match an encoded term against this pattern.
+     * 
+     * @param buf
+     *            the encoded term, with or without a leading version byte.
+     * 
+     * @return the variable bindings, or null if the term does not match or
+     *         is not valid.
+     */
+    public Bindings match(final byte[] buf) {
+	return match(new OtpInputStream(buf, 0));
+    }
+
+    /**
+     * The values bound by a successful match.
+     */
+    public static final class Bindings {
+	private final String[] names;
+	private final OtpInputStream[] slots;
+
+	Bindings(final String[] names, final OtpInputStream[] slots) {
+	    this.names = names;
+	    this.slots = slots;
+	}
+
+	/**
+	 * Get the encoded term bound to a variable.
+	 * 
+	 * @param name
+	 *            the name of the variable.
+	 * 
+	 * @return a stream limited to the encoded term and positioned at its
+	 *         start, which shares the buffer of the matched term.
+	 * 
+	 * @exception IllegalArgumentException
+	 *                if the pattern has no variable with this name.
+	 */
+	public OtpInputStream stream(final String name) {
+	    final OtpInputStream s = slots[indexOf(name)];
+	    return s.slice(s.getPos(), s.getPos() + s.available());
+	}
+
+	/**
+	 * Decode the term bound to a variable.
+	 * 
+	 * @param name
+	 *            the name of the variable.
+	 * 
+	 * @return the term.
+	 * 
+	 * @exception IllegalArgumentException
+	 *                if the pattern has no variable with this name.
+	 * 
+	 * @exception OtpErlangDecodeException
+	 *                if the term cannot be decoded.
+	 */
+	public OtpErlangObject get(final String name)
+		throws OtpErlangDecodeException {
+	    return stream(name).read_any();
+	}
+
+	private int indexOf(final String name) {
+	    for (int i = 0; i < names.length; i++) {
+		if (names[i].equals(name)) {
+		    return i;
+		}
+	    }
+	    throw new IllegalArgumentException("No variable " + name
+		    + " in pattern");
+	}
+    }
+
+    /*
+     * A variable in a template. It cannot be encoded.
+     */
+    private static final class Var extends OtpErlangObject {
+	private static final long serialVersionUID = 1L;
+
+	final String name;
+
+	Var(final String name) {
+	    this.name = name;
+	}
+
+	@Override
+	public String toString() {
+	    return name;
+	}
+
+	@Override
+	public void encode(final OtpOutputStream buf) {
+	    throw new IllegalArgumentException("Pattern variable " + name
+		    + " cannot be encoded");
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+	    return o instanceof Var && ((Var) o).name.equals(name);
+	}
+
+	@Override
+	protected int doHashCode() {
+	    return name.hashCode();
+	}
+    }
+
+    private static Node compile(final OtpErlangObject t,
+	    final List<String> names, final boolean inKey) {
+	if (t instanceof Var) {
+	    if (inKey) {
+		throw new IllegalArgumentException(
+			"Variables are not allowed in map keys: " + t);
+	    }
+	    final String name = ((Var) t).name;
+	    if (name.equals("_")) {
+		return new AnyNode();
+	    }
+	    int slot = names.indexOf(name);
+	    if (slot < 0) {
+		slot = names.size();
+		names.add(name);
+	    }
+	    return new VarNode(slot);
+	}
+	if (t instanceof OtpErlangAtom) {
+	    return new AtomNode(((OtpErlangAtom) t).atomValue());
+	}
+	if (t instanceof OtpErlangLong && ((OtpErlangLong) t).isLong()) {
+	    return new LongNode(((OtpErlangLong) t).longValue());
+	}
+	if (t instanceof OtpErlangDouble) {
+	    return new DoubleNode(((OtpErlangDouble) t).doubleValue());
+	}
+	if (t instanceof OtpErlangString) {
+	    return new StringNode(OtpErlangString
+		    .stringToCodePoints(((OtpErlangString) t).stringValue()));
+	}
+	if (t instanceof OtpErlangTuple) {
+	    final OtpErlangTuple tuple = (OtpErlangTuple) t;
+	    final Node[] elems = new Node[tuple.arity()];
+	    for (int i = 0; i < elems.length; i++) {
+		elems[i] = compile(tuple.elementAt(i), names, inKey);
+	    }
+	    return new TupleNode(elems);
+	}
+	if (t instanceof OtpErlangList) {
+	    final OtpErlangList list = (OtpErlangList) t;
+	    final Node[] elems = new Node[list.arity()];
+	    for (int i = 0; i < elems.length; i++) {
+		elems[i] = compile(list.elementAt(i), names, inKey);
+	    }
+	    final OtpErlangObject tail = list.getLastTail();
+	    return new ListNode(elems, tail == null ? null : compile(tail,
+		    names, inKey));
+	}
+	if (t instanceof OtpErlangMap) {
+	    final OtpErlangMap map = (OtpErlangMap) t;
+	    final OtpErlangObject[] keys = map.keys();
+	    final OtpErlangObject[] values = map.values();
+	    final Node[] k = new Node[keys.length];
+	    final Node[] v = new Node[keys.length];
+	    for (int i = 0; i < k.length; i++) {
+		k[i] = compile(keys[i], names, true);
+		v[i] = compile(values[i], names, inKey);
+	    }
+	    return new MapNode(k, v);
+	}
+	if (t instanceof OtpErlangBitstr || t instanceof OtpErlangLong) {
+	    // binaries and bignums have a single encoding
+	    return new BytesNode(new OtpOutputStream(t).toByteArray());
+	}
+	return new TermNode(t);
+    }
+
+    /*
+     * The step for the term at the current position: if it matches, the
+     * stream is left after the term.
+     */
+    private static abstract class Node {
+	abstract boolean match(OtpInputStream in, OtpInputStream[] slots)
+		throws OtpErlangDecodeException;
+    }
+
+    /*
+     * Return the stream the next term is read from: the inflated term if it
+     * is compressed, or the stream itself.
+     */
+    static OtpInputStream enter(final OtpInputStream in)
+	    throws OtpErlangDecodeException {
+	if (in.peek1skip_version() == OtpExternal.compressedTag) {
+	    return in.read_compressed_stream();
+	}
+	return in;
+    }
+
+    private static final class AnyNode extends Node {
+	@Override
+	boolean match(final OtpInputStream in, final OtpInputStream[] slots)
+		throws OtpErlangDecodeException {
+	    in.skip_any();
+	    return true;
+	}
+    }
+
+    private static final class VarNode extends Node {
+	private final int slot;
+
+	VarNode(final int slot) {
+	    this.slot = slot;
+	}
+
+	@Override
+	boolean match(final OtpInputStream in, final OtpInputStream[] slots)
+		throws OtpErlangDecodeException {
+	    final OtpInputStream s = enter(in);
+	    final int start = s.getPos();
+	    s.skip_any();
+	    final int end = s.getPos();
+	    final OtpInputStream bound = slots[slot];
+	    if (bound == null) {
+		slots[slot] = s.slice(start, end);
+		return true;
+	    }
+	    // bound before, the encodings must be the same
+	    final int len = end - start;
+	    if (bound.available() != len) {
+		return false;
+	    }
+	    final byte[] a = bound.buffer();
+	    final byte[] b = s.buffer();
+	    final int off = bound.getPos();
+	    for (int i = 0; i < len; i++) {
+		if (a[off + i] != b[start + i]) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+    }
+
+    private static final class AtomNode extends Node {
+	private final byte[] latin1;
+	private final byte[] utf8;
+
+	AtomNode(final String atom) {
+	    byte[] l = null;
+	    byte[] u;
+	    try {
+		u = atom.getBytes("UTF-8");
+		if (OtpOutputStream.is8bitString(atom)) {
+		    l = atom.getBytes("ISO-8859-1");
+		}
+	    } catch (final UnsupportedEncodingException e) {
+		throw new IllegalStateException(e.toString());
+	    }
+	    latin1 = l;
+	    utf8 = u;
+	}
+
+	@Override
+	boolean match(final OtpInputStream in, final OtpInputStream[] slots)
+		throws OtpErlangDecodeException {
+	    final OtpInputStream s = enter(in);
+	    byte[] text;
+	    int len;
+	    switch (s.read1skip_version()) {
+	    case OtpExternal.atomTag:
+		text = latin1;
+		len = s.read2BE();
+		break;
+
+	    case OtpExternal.atomUtf8Tag:
+		text = utf8;
+		len = s.read2BE();
+		break;
+
+	    case OtpExternal.smallAtomUtf8Tag:
+		text = utf8;
+		len = s.read1();
+		break;
+
+	    default:
+		return false;
+	    }
+	    return bytesEqual(s, text, 0, len);
+	}
+    }
+
+    private static final class LongNode extends Node {
+	private final long value;
+
+	LongNode(final long value) {
+	    this.value = value;
+	}
+
+	@Override
+	boolean match(final OtpInputStream in, final OtpInputStream[] slots)
+		throws OtpErlangDecodeException {
+	    final OtpInputStream s = enter(in);
+	    if (!s.peek_long_fits()) {
+		return false;
+	    }
+	    return s.read_long(false) == value;
+	}
+    }
+
+    private static final class DoubleNode extends Node {
+	private final double value;
+
+	DoubleNode(final double value) {
+	    this.value = value;
+	}
+
+	@Override
+	boolean match(final OtpInputStream in, final OtpInputStream[] slots)
+		throws OtpErlangDecodeException {
+	    final OtpInputStream s = enter(in);
+	    final int tag = s.peek1skip_version();
+	    if (tag != OtpExternal.newFloatTag && tag != OtpExternal.floatTag) {
+		return false;
+	    }
+	    return s.read_double() == value;
+	}
+    }
+
+    private static final class StringNode extends Node {
+	private final int[] codePoints;
+
+	StringNode(final int[] codePoints) {
+	    this.codePoints = codePoints;
+	}
+
+	@Override
+	boolean match(final OtpInputStream in, final OtpInputStream[] slots)
+		throws OtpErlangDecodeException {
+	    final OtpInputStream s = enter(in);
+	    final int n = codePoints.length;
+	    switch (s.read1skip_version()) {
+	    case OtpExternal.nilTag:
+		return n == 0;
+
+	    case OtpExternal.stringTag: {
+		if (s.read2BE() != n) {
+		    return false;
+		}
+		final byte[] b = s.buffer();
+		final int off = s.getPos();
+		if (s.available() < n) {
+		    return false;
+		}
+		for (int i = 0; i < n; i++) {
+		    if ((b[off + i] & 0xff) != codePoints[i]) {
+			return false;
+		    }
+		}
+		s.setPos(off + n);
+		return true;
+	    }
+
+	    case OtpExternal.listTag: {
+		if (s.read4BE() != n) {
+		    return false;
+		}
+		for (int i = 0; i < n; i++) {
+		    if (!s.peek_long_fits() || s.read_long(false) != codePoints[i]) {
+			return false;
+		    }
+		}
+		return s.read1() == OtpExternal.nilTag;
+	    }
+
+	    default:
+		return false;
+	    }
+	}
+    }
+
+    private static final class TupleNode extends Node {
+	private final Node[] elems;
+
+	TupleNode(final Node[] elems) {
+	    this.elems = elems;
+	}
+
+	@Override
+	boolean match(final OtpInputStream in, final OtpInputStream[] slots)
+		throws OtpErlangDecodeException {
+	    final OtpInputStream s = enter(in);
+	    int arity;
+	    switch (s.read1skip_version()) {
+	    case OtpExternal.smallTupleTag:
+		arity = s.read1();
+		break;
+
+	    case OtpExternal.largeTupleTag:
+		arity = s.read4BE();
+		break;
+
+	    default:
+		return false;
+	    }
+	    if (arity != elems.length) {
+		return false;
+	    }
+	    for (final Node e : elems) {
+		if (!e.match(s, slots)) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+    }
+
+    private static final class ListNode extends Node {
+	private final Node[] elems;
+	// null for a proper list
+	private final Node tail;
+
+	ListNode(final Node[] elems, final Node tail) {
+	    this.elems = elems;
+	    this.tail = tail;
+	}
+
+	@Override
+	boolean match(final OtpInputStream in, final OtpInputStream[] slots)
+		throws OtpErlangDecodeException {
+	    final OtpInputStream s = enter(in);
+	    final boolean openTail = tail instanceof AnyNode;
+	    switch (s.read1skip_version()) {
+	    case OtpExternal.nilTag:
+		return elems.length == 0;
+
+	    case OtpExternal.stringTag:
+		return matchString(s, openTail);
+
+	    case OtpExternal.listTag:
+		break;
+
+	    default:
+		return false;
+	    }
+
+	    final int arity = s.read4BE();
+	    if (arity < elems.length || arity > elems.length && !openTail) {
+		return false;
+	    }
+	    for (final Node e : elems) {
+		if (!e.match(s, slots)) {
+		    return false;
+		}
+	    }
+	    if (openTail) {
+		// the remaining elements and the tail
+		for (int i = elems.length; i <= arity; i++) {
+		    s.skip_any();
+		}
+		return true;
+	    }
+	    if (tail == null) {
+		return s.read1() == OtpExternal.nilTag;
+	    }
+	    return tail.match(s, slots);
+	}
+
+	private boolean matchString(final OtpInputStream s,
+		final boolean openTail) throws OtpErlangDecodeException {
+	    final int len = s.read2BE();
+	    if (len < elems.length || len > elems.length && !openTail
+		    || tail != null && !openTail) {
+		return false;
+	    }
+	    final byte[] b = s.buffer();
+	    final int off = s.getPos();
+	    if (s.available() < len) {
+		return false;
+	    }
+	    for (int i = 0; i < elems.length; i++) {
+		final Node e = elems[i];
+		if (e instanceof LongNode) {
+		    if (((LongNode) e).value != (b[off + i] & 0xff)) {
+			return false;
+		    }
+		} else if (!(e instanceof AnyNode)) {
+		    return false;
+		}
+	    }
+	    s.setPos(off + len);
+	    return true;
+	}
+    }
+
+    private static final class MapNode extends Node {
+	private final Node[] keys;
+	private final Node[] values;
+
+	MapNode(final Node[] keys, final Node[] values) {
+	    this.keys = keys;
+	    this.values = values;
+	}
+
+	@Override
+	boolean match(final OtpInputStream in, final OtpInputStream[] slots)
+		throws OtpErlangDecodeException {
+	    final OtpInputStream s = enter(in);
+	    if (s.read1skip_version() != OtpExternal.mapTag) {
+		return false;
+	    }
+	    final int arity = s.read4BE();
+	    if (arity < keys.length) {
+		return false;
+	    }
+	    final boolean[] found = new boolean[keys.length];
+	    int missing = keys.length;
+	    for (int i = 0; i < arity; i++) {
+		final int start = s.getPos();
+		int k = 0;
+		for (; k < keys.length; k++) {
+		    if (!found[k]) {
+			s.setPos(start);
+			if (keys[k].match(s, slots)) {
+			    break;
+			}
+		    }
+		}
+		if (k < keys.length) {
+		    if (!values[k].match(s, slots)) {
+			return false;
+		    }
+		    found[k] = true;
+		    missing--;
+		} else {
+		    s.setPos(start);
+		    s.skip_any();
+		    s.skip_any();
+		}
+	    }
+	    return missing == 0;
+	}
+    }
+
+    private static final class BytesNode extends Node {
+	// the encoded term, without a version byte
+	private final byte[] encoded;
+
+	BytesNode(final byte[] encoded) {
+	    this.encoded = encoded;
+	}
+
+	@Override
+	boolean match(final OtpInputStream in, final OtpInputStream[] slots)
+		throws OtpErlangDecodeException {
+	    final OtpInputStream s = enter(in);
+	    s.peek1skip_version();
+	    return bytesEqual(s, encoded, 0, encoded.length);
+	}
+    }
+
+    private static final class TermNode extends Node {
+	private final OtpErlangObject term;
+
+	TermNode(final OtpErlangObject term) {
+	    this.term = term;
+	}
+
+	@Override
+	boolean match(final OtpInputStream in, final OtpInputStream[] slots)
+		throws OtpErlangDecodeException {
+	    return term.equals(enter(in).read_any());
+	}
+    }
+
+    /*
+     * Compare the next len bytes of the stream with text starting at off,
+     * consuming them if they are equal.
+     */
+    static boolean bytesEqual(final OtpInputStream s, final byte[] text,
+	    final int off, final int len) {
+	if (text == null || text.length - off != len || s.available() < len) {
+	    return false;
+	}
+	final byte[] b = s.buffer();
+	final int pos = s.getPos();
+	for (int i = 0; i < len; i++) {
+	    if (b[pos + i] != text[off + i]) {
+		return false;
+	    }
+	}
+	s.setPos(pos + len);
+	return true;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+/**
+ * <p>
+ * The body of a lightweight process started with {@link OtpNode#spawn
+ * OtpNode.spawn()}. Each process owns a private {@link OtpMbox mailbox} that
+ * is created before the body starts and closed when it terminates.
+ * </p>
+ * 
+ * <p>
+ * If {@link #run run()} returns normally the mailbox exits with reason
+ * 'normal'. If it throws an {@link OtpErlangExit OtpErlangExit} (typically
+ * because a linked process died) the mailbox exits with the same reason, and
+ * for any other exception the reason is
+ * <code>{java_exception, Description}</code>. Exit signals are sent to all
+ * linked processes as for {@link OtpMbox#exit(OtpErlangObject)
+ * OtpMbox.exit()}.
+ * </p>
+ */
+public interface OtpProcess {
+    /**
+     * Run the process.
+     * 
+     * @param mbox
+     *            the mailbox owned by this process.
+     * 
+     * @exception Exception
+     *                if the process terminates abnormally.
+     */
+    public void run(OtpMbox mbox) throws Exception;
+}
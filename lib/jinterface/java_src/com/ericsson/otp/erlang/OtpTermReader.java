@@ -0,0 +1,377 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Reads Erlang terms in external format one element at a time, without
+ * building {@link OtpErlangObject} trees. The caller looks at the tag of the
+ * next term with {@link #nextTag()} and then reads it with the matching
+ * method, so fields can be extracted straight into application types.
+ * </p>
+ * 
+ * <p>
+ * Compound terms are read as a header followed by their elements: a tuple
+ * with {@link #tupleArity()} and then that many terms, a map with
+ * {@link #mapArity()} and then that many key/value pairs, and a proper list
+ * with {@link #listArity()}, that many elements and finally
+ * {@link #readNil()} for the tail. Lists of small integers that Erlang has
+ * encoded as strings have the tag {@link OtpExternal#stringTag} and are read
+ * in one go with {@link #stringSlice()} or {@link #readString()}.
+ * </p>
+ * 
+ * <p>
+ * Binaries, strings and atom texts are returned as read-only
+ * {@link ByteBuffer} views of the input, so nothing is copied. The views are
+ * only valid as long as the input buffer is not reused.
+ * </p>
+ * 
+ * <p>
+ * Compressed terms are inflated when they are reached and then read like any
+ * other term.
+ * </p>
+ * 
+ * <p>
+ * Note that this class is not synchronized, if you need synchronization you
+ * must provide it yourself.
+ * </p>
+ */
+public final class OtpTermReader {
+    private OtpInputStream in;
+
+    // streams to return to when an inflated term has been read
+    private OtpInputStream[] outer = new OtpInputStream[2];
+    private int depth = 0;
+
+    /**
+     * Create a reader positioned at the current position of a stream. The
+     * stream is advanced as terms are read.
+     * 
+     * @param in
+     *            the stream to read from.
+     */
+    public OtpTermReader(final OtpInputStream in) {
+	this.in = in;
+    }
+
+    /**
+     * Create a reader over a buffer containing encoded Erlang terms.
+     * 
+     * @param buf
+     *            the buffer to read from.
+     */
+    public OtpTermReader(final byte[] buf) {
+	this(new OtpInputStream(buf, 0));
+    }
+
+    /**
+     * Create a reader over the remaining bytes of a buffer. The position of
+     * the buffer is not changed. Buffers that are not backed by an accessible
+     * array are copied.
+     * 
+     * @param buf
+     *            the buffer to read from.
+     */
+    public OtpTermReader(final ByteBuffer buf) {
+	if (buf.hasArray()) {
+	    in = new OtpInputStream(buf.array(), buf.arrayOffset()
+		    + buf.position(), buf.remaining(), 0);
+	} else {
+	    final byte[] b = new byte[buf.remaining()];
+	    buf.duplicate().get(b);
+	    in = new OtpInputStream(b, 0);
+	}
+    }
+
+    /**
+     * Determine whether there is anything left to read.
+     * 
+     * @return true if there is at least one more term.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if a compressed term at the current position cannot be
+     *                inflated.
+     */
+    public boolean hasNext() throws OtpErlangDecodeException {
+	return current().remaining() > 0;
+    }
+
+    /**
+     * Get the tag of the next term without consuming it. The tags are the
+     * constants in {@link OtpExternal}, never {@link OtpExternal#versionTag}
+     * or {@link OtpExternal#compressedTag}.
+     * 
+     * @return the tag of the next term.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if there is no next term.
+     */
+    public int nextTag() throws OtpErlangDecodeException {
+	return current().peek1skip_version();
+    }
+
+    /**
+     * Read a tuple header.
+     * 
+     * @return the number of elements that follow.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term is not a tuple.
+     */
+    public int tupleArity() throws OtpErlangDecodeException {
+	return current().read_tuple_head();
+    }
+
+    /**
+     * Read a list header. A non-empty list is followed by its elements and a
+     * tail, which is {@link OtpExternal#nilTag} for a proper list; the empty
+     * list has no tail.
+     * 
+     * @return the number of elements that follow, 0 for the empty list.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term is not a list, or is a list encoded as
+     *                a string.
+     */
+    public int listArity() throws OtpErlangDecodeException {
+	final OtpInputStream s = current();
+	final int tag = s.peek1skip_version();
+	if (tag == OtpExternal.stringTag) {
+	    throw new OtpErlangDecodeException(
+		    "List encoded as string, use stringSlice()");
+	}
+	return s.read_list_head();
+    }
+
+    /**
+     * Read the empty list, usually the tail of a proper list.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term is not the empty list.
+     */
+    public void readNil() throws OtpErlangDecodeException {
+	current().read_nil();
+    }
+
+    /**
+     * Read a map header.
+     * 
+     * @return the number of key/value pairs that follow.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term is not a map.
+     */
+    public int mapArity() throws OtpErlangDecodeException {
+	return current().read_map_head();
+    }
+
+    /**
+     * Read an integer.
+     * 
+     * @return the value of the integer.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term is not an integer or does not fit in a
+     *                long.
+     */
+    public long readLong() throws OtpErlangDecodeException {
+	return current().read_long(false);
+    }
+
+    /**
+     * Read a non-negative integer, as the bit pattern of an unsigned long.
+     * 
+     * @return the value of the integer.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term is not an integer, is negative or does
+     *                not fit in 64 bits.
+     */
+    public long readULong() throws OtpErlangDecodeException {
+	return current().read_long(true);
+    }
+
+    /**
+     * Read a float.
+     * 
+     * @return the value of the float.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term is not a float.
+     */
+    public double readDouble() throws OtpErlangDecodeException {
+	return current().read_double();
+    }
+
+    /**
+     * Read an atom. Recurring atoms are returned as shared instances, so this
+     * does not allocate in the common case.
+     * 
+     * @return the atom.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term is not an atom.
+     */
+    public OtpErlangAtom readAtom() throws OtpErlangDecodeException {
+	return current().read_atom_obj();
+    }
+
+    /**
+     * Read an atom as the bytes of its text, in the encoding given by its
+     * tag: ISO-8859-1 for {@link OtpExternal#atomTag}, UTF-8 otherwise. Use
+     * {@link #nextTag()} first if the encoding matters.
+     * 
+     * @return a read-only view of the atom text.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term is not an atom.
+     */
+    public ByteBuffer readAtomBytes() throws OtpErlangDecodeException {
+	final OtpInputStream s = current();
+	final int tag = s.read1skip_version();
+	switch (tag) {
+	case OtpExternal.atomTag:
+	case OtpExternal.atomUtf8Tag:
+	    return slice(s, s.read2BE());
+
+	case OtpExternal.smallAtomUtf8Tag:
+	    return slice(s, s.read1());
+
+	default:
+	    throw new OtpErlangDecodeException(
+		    "wrong tag encountered, expected " + OtpExternal.atomTag
+			    + ", or " + OtpExternal.atomUtf8Tag + ", got "
+			    + tag);
+	}
+    }
+
+    /**
+     * Read a binary.
+     * 
+     * @return a read-only view of the bytes of the binary.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term is not a binary.
+     */
+    public ByteBuffer binarySlice() throws OtpErlangDecodeException {
+	return current().read_binary_buffer();
+    }
+
+    /**
+     * Read a list of small integers that is encoded as a string, or the
+     * empty list.
+     * 
+     * @return a read-only view of the list elements, one byte each.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term is not a string or the empty list.
+     */
+    public ByteBuffer stringSlice() throws OtpErlangDecodeException {
+	final OtpInputStream s = current();
+	final int tag = s.read1skip_version();
+	switch (tag) {
+	case OtpExternal.stringTag:
+	    return slice(s, s.read2BE());
+
+	case OtpExternal.nilTag:
+	    return slice(s, 0);
+
+	default:
+	    throw new OtpErlangDecodeException(
+		    "Wrong tag encountered, expected " + OtpExternal.stringTag
+			    + ", got " + tag);
+	}
+    }
+
+    /**
+     * Read a string, from either a string or a list of code points.
+     * 
+     * @return the value of the string.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term is not a string.
+     */
+    public String readString() throws OtpErlangDecodeException {
+	return current().read_string();
+    }
+
+    /**
+     * Read the next term as an object, for the parts of a message that are
+     * easier to handle that way.
+     * 
+     * @return the term.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term cannot be decoded.
+     */
+    public OtpErlangObject readAny() throws OtpErlangDecodeException {
+	return current().read_any();
+    }
+
+    /**
+     * Skip the next term, including all its elements, without decoding it.
+     * 
+     * @exception OtpErlangDecodeException
+     *                if the next term is not valid.
+     */
+    public void skip() throws OtpErlangDecodeException {
+	current().skip_any();
+    }
+
+    /*
+     * The stream to read the next term from: inflate a compressed term that
+     * is next, and return to the enclosing stream when an inflated one has
+     * been read to the end.
+     */
+    private OtpInputStream current() throws OtpErlangDecodeException {
+	for (;;) {
+	    if (in.remaining() == 0) {
+		if (depth == 0) {
+		    return in;
+		}
+		in = outer[--depth];
+		outer[depth] = null;
+	    } else if (in.peek1skip_version() == OtpExternal.compressedTag) {
+		if (depth == outer.length) {
+		    final OtpInputStream[] tmp = new OtpInputStream[depth * 2];
+		    System.arraycopy(outer, 0, tmp, 0, depth);
+		    outer = tmp;
+		}
+		final OtpInputStream inflated = in.read_compressed_stream();
+		outer[depth++] = in;
+		in = inflated;
+	    } else {
+		return in;
+	    }
+	}
+    }
+
+    private static ByteBuffer slice(final OtpInputStream s, final int len)
+	    throws OtpErlangDecodeException {
+	final int off = s.getPos();
+	if (len < 0 || len > s.remaining()) {
+	    throw new OtpErlangDecodeException("Cannot read from input stream");
+	}
+	s.setPos(off + len);
+	return ByteBuffer.wrap(s.buffer(), off, len).slice()
+		.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * %CopyrightBegin%
+ * 
+ * Copyright Ericsson AB 2014. All Rights Reserved.
+ * 
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * %CopyrightEnd%
+ */
+package com.ericsson.otp.erlang;
+
+/*
+ * A hashed timing wheel. Timers are kept in doubly linked lists, one per slot,
+ * so both adding and cancelling a timer is O(1) regardless of how many timers
+ * are active. A single daemon thread advances the wheel one slot per tick and
+ * runs the tasks that have expired; while no timers are active the thread
+ * sleeps until one is added.
+ * 
+ * Tasks run in the wheel thread and should be short; anything that may block
+ * should be handed to another thread.
+ */
+// package scope
+class TimerWheel {
+    private final String name;
+    private final long tickNanos;
+    private final Timer[] slots;
+    private final int mask;
+
+    private final long start = System.nanoTime();
+    // the next tick to process
+    private long next = 0;
+    private int active = 0;
+    private Thread thread = null;
+    private boolean stopped = false;
+
+    /*
+     * @param tickMillis resolution of the wheel
+     * 
+     * @param size number of slots, rounded up to a power of two
+     */
+    TimerWheel(final String name, final long tickMillis, final int size) {
+	int n = 1;
+	while (n < size) {
+	    n <<= 1;
+	}
+	this.name = name;
+	tickNanos = tickMillis * 1000000L;
+	slots = new Timer[n];
+	mask = n - 1;
+	for (int i = 0; i < n; i++) {
+	    // empty circular list with a sentinel head
+	    slots[i] = new Timer(null);
+	}
+    }
+
+    /*
+     * Schedule a timer to run its task after the given delay. A timer can only
+     * be scheduled once.
+     */
+    synchronized void schedule(final Timer t, final long delayMillis) {
+	if (stopped) {
+	    throw new java.lang.IllegalStateException("Timer service stopped");
+	}
+	if (t.wheel != null) {
+	    throw new java.lang.IllegalStateException("Timer already scheduled");
+	}
+
+	final long now = System.nanoTime();
+	if (active == 0) {
+	    // the wheel is empty, so the ticks it missed while idle need not
+	    // be walked; this also covers the last timer being cancelled
+	    // while the thread slept
+	    final long tick = (now - start) / tickNanos;
+	    if (tick > next) {
+		next = tick;
+	    }
+	}
+
+	final long delay = Math.max(0, delayMillis) * 1000000L;
+	t.deadline = now + delay;
+	// first tick at or after the deadline, but never one already processed
+	long tick = (t.deadline - start + tickNanos - 1) / tickNanos;
+	if (tick < next) {
+	    tick = next;
+	}
+	t.rounds = (tick - next) / slots.length;
+	t.wheel = this;
+
+	final Timer head = slots[(int) (tick & mask)];
+	t.prev = head.prev;
+	t.next = head;
+	head.prev.next = t;
+	head.prev = t;
+
+	if (active++ == 0) {
+	    if (thread == null) {
+		thread = new Thread(new Runnable() {
+		    public void run() {
+			loop();
+		    }
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	    } else {
+		notifyAll();
+	    }
+	}
+    }
+
+    /*
+     * Cancel a timer. Returns the number of milliseconds that were left, or -1
+     * if the timer was not active (never scheduled, already run or already
+     * cancelled).
+     */
+    synchronized long cancel(final Timer t) {
+	if (t.wheel != this || t.next == null) {
+	    return -1;
+	}
+	unlink(t);
+	active--;
+	final long left = t.deadline - System.nanoTime();
+	return left > 0 ? (left + 999999) / 1000000L : 0;
+    }
+
+    // stop the wheel thread, dropping all active timers
+    synchronized void stop() {
+	stopped = true;
+	notifyAll();
+    }
+
+    private void unlink(final Timer t) {
+	t.prev.next = t.next;
+	t.next.prev = t.prev;
+	t.prev = null;
+	t.next = null;
+    }
+
+    private void loop() {
+	while (true) {
+	    Timer expired = null;
+
+	    synchronized (this) {
+		try {
+		    while (!stopped && active == 0) {
+			wait();
+		    }
+		    if (stopped) {
+			return;
+		    }
+		    final long due = (System.nanoTime() - start) / tickNanos;
+		    if (due < next) {
+			final long sleep = start + next * tickNanos
+				- System.nanoTime();
+			if (sleep > 0) {
+			    wait(sleep / 1000000L, (int) (sleep % 1000000L));
+			}
+			continue;
+		    }
+		    // collect expired timers from all ticks that are due
+		    while (next <= due && active > 0) {
+			final Timer head = slots[(int) (next & mask)];
+			Timer t = head.next;
+			while (t != head) {
+			    final Timer n = t.next;
+			    if (t.rounds == 0) {
+				unlink(t);
+				active--;
+				t.chain = expired;
+				expired = t;
+			    } else {
+				t.rounds--;
+			    }
+			    t = n;
+			}
+			next++;
+		    }
+		    if (active == 0) {
+			// nothing left to wait for, skip straight to now
+			next = due + 1;
+		    }
+		} catch (final InterruptedException e) {
+		    continue;
+		}
+	    }
+
+	    // expired is in reverse order
+	    Timer run = null;
+	    while (expired != null) {
+		final Timer n = expired.chain;
+		expired.chain = run;
+		run = expired;
+		expired = n;
+	    }
+	    while (run != null) {
+		final Timer n = run.chain;
+		run.chain = null;
+		try {
+		    run.task.run();
+		} catch (final RuntimeException e) {
+		}
+		run = n;
+	    }
+	}
+    }
+
+    // an entry in the wheel
+    static final class Timer {
+	final Runnable task;
+	TimerWheel wheel = null;
+	Timer prev;
+	Timer next;
+	// links expired timers while they are run
+	Timer chain = null;
+	long rounds;
+	long deadline;
+
+	Timer(final Runnable task) {
+	    this.task = task;
+	    prev = this;
+	    next = this;
+	}
+    }
+}
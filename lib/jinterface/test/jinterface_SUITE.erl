@@ -39,7 +39,22 @@
 	 status_handler_localStatus/1, status_handler_remoteStatus/1,
 	 status_handler_connAttempt/1,
 	 maps/1,
-	 fun_equals/1
+	 fun_equals/1,
+	 encoded_size/1,
+	 decode_limits/1, frame_limits/1,
+	 binary_stream_java_to_erl/1, binary_stream_erl_to_java/1,
+	 binary_stream_java_cancels/1, binary_stream_erl_cancels/1,
+	 binary_stream_bad_ack/1,
+	 compressed_terms/1, compressed_messages/1,
+	 patterns/1,
+	 spawn_exit_reasons/1, send_after/1,
+	 lazy_terms/1,
+	 primitive_arrays/1,
+	 decode_profiles/1,
+	 templates/1,
+	 buffer_binaries/1,
+	 file_binaries/1,
+	 io_binaries/1
      ]).
 
 -include_lib("common_test/include/ct.hrl").
@@ -82,6 +97,26 @@
 -define(status_handler_remoteStatus,2).
 -define(status_handler_connAttempt,3).
 
+%% Test cases in BinaryStream.java
+-define(binary_stream_java_to_erl,1).
+-define(binary_stream_erl_to_java,2).
+-define(binary_stream_java_cancels,3).
+-define(binary_stream_erl_cancels,4).
+-define(binary_stream_bad_ack,5).
+
+%% Test cases in Compression.java
+-define(compressed_terms,1).
+-define(compressed_messages,2).
+
+%% Test cases in Processes.java
+-define(spawn_exit_reasons,1).
+-define(send_after,2).
+
+%% Test cases in Binaries.java
+-define(buffer_binaries,1).
+-define(file_binaries,2).
+-define(io_binaries,3).
+
 %%%-----------------------------------------------------------------
 %%% INIT/END
 %%%-----------------------------------------------------------------
@@ -89,7 +124,9 @@ suite() -> [{ct_hooks,[ts_install_cth]}].
 
 all() -> 
     lists:append([fundamental(), ping(), send_receive(),
-		  link_unlink(), status_handler()]).
+		  link_unlink(), status_handler(), limits(),
+		  binary_stream(), compression(), selective_receive(),
+		  processes(), term_forms(), binaries()]).
 
 groups() -> 
     [].
@@ -108,7 +145,8 @@ fundamental() ->
      get_names,            % GetNames.java
      boolean_atom,         % BooleanAtom.java
      maps,                 % Maps.java
-     fun_equals            % FunEquals.java
+     fun_equals,           % FunEquals.java
+     encoded_size          % EncodedSize.java
     ].
 
 ping() ->
@@ -166,6 +204,57 @@ status_handler() ->
      status_handler_connAttempt
     ].
 
+limits() ->
+    [
+     decode_limits,        % DecodeLimits.java
+     frame_limits          % FrameLimits.java
+    ].
+
+binary_stream() ->
+    [
+     %% Implemented in BinaryStream.java
+     binary_stream_java_to_erl,
+     binary_stream_erl_to_java,
+     binary_stream_java_cancels,
+     binary_stream_erl_cancels,
+     binary_stream_bad_ack
+    ].
+
+compression() ->
+    [
+     %% Implemented in Compression.java
+     compressed_terms,
+     compressed_messages
+    ].
+
+selective_receive() ->
+    [
+     patterns              % Patterns.java
+    ].
+
+processes() ->
+    [
+     %% Implemented in Processes.java
+     spawn_exit_reasons,
+     send_after
+    ].
+
+term_forms() ->
+    [
+     lazy_terms,           % LazyTerms.java
+     primitive_arrays,     % PrimitiveArrays.java
+     decode_profiles,      % DecodeProfiles.java
+     templates             % Templates.java
+    ].
+
+binaries() ->
+    [
+     %% Implemented in Binaries.java
+     buffer_binaries,
+     file_binaries,
+     io_binaries
+    ].
+
 
 init_per_suite(Config) when is_list(Config) ->
     case case code:priv_dir(jinterface) of
@@ -189,10 +278,15 @@ init_per_testcase(_Case,Config) ->
     [{watch_dog,Dog}|Config].
 
 end_per_testcase(_Case,Config) ->
-    case whereis(erl_link_server) of
-	undefined -> ok;
-	Pid -> exit(Pid,kill)
-    end,
+    [case whereis(Name) of
+	 undefined -> ok;
+	 Pid -> exit(Pid,kill)
+     end || Name <- [erl_link_server, erl_frame_server,
+		     erl_stream_server, erl_compression_server,
+		     erl_pattern_server, erl_process_server,
+		     erl_lazy_server, erl_binary_server,
+		     erl_array_server, erl_profile_server,
+		     erl_template_server]],
     jitu:kill_all_jnodes(),
     ?t:timetrap_cancel(?config(watch_dog,Config)),
     ok.
@@ -704,6 +798,354 @@ fun_equals(Config) when is_list(Config) ->
            "FunEquals",
            []).
 
+%%%-----------------------------------------------------------------
+encoded_size(doc) ->
+    ["EncodedSize.java: "
+     "Test that OtpErlangObject.encodedSize() is the size of the "
+     "encoded term, for all term types"];
+encoded_size(suite) ->
+    [];
+encoded_size(Config) when is_list(Config) ->
+    ok = jitu:java(?config(java, Config),
+		   ?config(data_dir, Config),
+		   "EncodedSize",
+		   []).
+
+%%%-----------------------------------------------------------------
+decode_limits(doc) ->
+    ["DecodeLimits.java: "
+     "Test that OtpInputStream decodes and skips deeply nested terms "
+     "without recursion, and rejects terms that exceed its limits or "
+     "whose length fields claim more than the stream holds"];
+decode_limits(suite) ->
+    [];
+decode_limits(Config) when is_list(Config) ->
+    ok = jitu:java(?config(java, Config),
+		   ?config(data_dir, Config),
+		   "DecodeLimits",
+		   []).
+
+%%%-----------------------------------------------------------------
+frame_limits(doc) ->
+    ["FrameLimits.java: "
+     "Test OtpNode.setMaxFrameSize(...), OtpNode.setMaxTermDepth(...) "
+     "and OtpNode.getRejectedFrames(). A frame over the size limit and "
+     "a term over the depth limit are dropped, and the connection "
+     "survives them"];
+frame_limits(suite) ->
+    [];
+frame_limits(Config) when is_list(Config) ->
+    spawn_link(fun() ->
+		       register(erl_frame_server,self()),
+		       receive
+			   From when is_pid(From) ->
+			       From ! {big,binary:copy(<<0>>,65536)},
+			       From ! {deep,deep_list(1000)},
+			       From ! small,
+			       receive done -> ok end
+		       end
+	       end),
+    ok = jitu:java(?config(java, Config),
+		   ?config(data_dir, Config),
+		   "FrameLimits",
+		   [erlang:get_cookie(),node()]).
+
+%%%-----------------------------------------------------------------
+binary_stream_java_to_erl(doc) ->
+    ["BinaryStream.java: "
+     "Test OtpMbox.openBinaryStream(...) against an erlang process "
+     "receiving the stream"];
+binary_stream_java_to_erl(suite) ->
+    [];
+binary_stream_java_to_erl(Config) when is_list(Config) ->
+    binary_stream(?binary_stream_java_to_erl,
+		  fun(Java) ->
+			  {ok,Bin} = stream_receive(),
+			  Java ! {stream_md5,erlang:md5(Bin)}
+		  end,
+		  Config).
+
+%%%-----------------------------------------------------------------
+binary_stream_erl_to_java(doc) ->
+    ["BinaryStream.java: "
+     "Test OtpMbox.acceptBinaryStream() against an erlang process "
+     "sending the stream"];
+binary_stream_erl_to_java(suite) ->
+    [];
+binary_stream_erl_to_java(Config) when is_list(Config) ->
+    binary_stream(?binary_stream_erl_to_java,
+		  fun(Java) ->
+			  Bin = stream_data(),
+			  ok = stream_send(Java,Bin,8192,4),
+			  Java ! {stream_md5,erlang:md5(Bin)}
+		  end,
+		  Config).
+
+%%%-----------------------------------------------------------------
+binary_stream_java_cancels(doc) ->
+    ["BinaryStream.java: "
+     "Test that closing an OtpBinaryInputStream early cancels the "
+     "erlang sender, and that chunks already sent are dropped"];
+binary_stream_java_cancels(suite) ->
+    [];
+binary_stream_java_cancels(Config) when is_list(Config) ->
+    binary_stream(?binary_stream_java_cancels,
+		  fun(Java) ->
+			  cancelled = stream_send(Java,stream_data(),8192,4),
+			  Java ! stream_cancelled
+		  end,
+		  Config).
+
+%%%-----------------------------------------------------------------
+binary_stream_erl_cancels(doc) ->
+    ["BinaryStream.java: "
+     "Test that an OtpBinaryOutputStream fails when the erlang "
+     "receiver cancels it, and that it ends the stream"];
+binary_stream_erl_cancels(suite) ->
+    [];
+binary_stream_erl_cancels(Config) when is_list(Config) ->
+    binary_stream(?binary_stream_erl_cancels,
+		  fun(Java) ->
+			  receive
+			      {'$otp_stream',Java,Ref,Chunk}
+				when is_binary(Chunk) ->
+				  Java ! {'$otp_stream_ack',Ref,cancel},
+				  ok = stream_drain(Java,Ref),
+				  Java ! stream_cancelled
+			  end
+		  end,
+		  Config).
+
+%%%-----------------------------------------------------------------
+binary_stream_bad_ack(doc) ->
+    ["BinaryStream.java: "
+     "Test that an OtpBinaryOutputStream fails when the erlang "
+     "receiver acknowledges more chunks than it was sent, and that "
+     "it ends the stream"];
+binary_stream_bad_ack(suite) ->
+    [];
+binary_stream_bad_ack(Config) when is_list(Config) ->
+    binary_stream(?binary_stream_bad_ack,
+		  fun(Java) ->
+			  receive
+			      {'$otp_stream',Java,Ref,Chunk}
+				when is_binary(Chunk) ->
+				  Java ! {'$otp_stream_ack',Ref,1000},
+				  ok = stream_drain(Java,Ref),
+				  Java ! stream_cancelled
+			  end
+		  end,
+		  Config).
+
+%%%-----------------------------------------------------------------
+compressed_terms(doc) ->
+    ["Compression.java: "
+     "Test OtpOutputStream.write_compressed(...) and the decoding of "
+     "compressed terms, against term_to_binary(Term, [compressed])"];
+compressed_terms(suite) ->
+    [];
+compressed_terms(Config) when is_list(Config) ->
+    spawn_link(fun() ->
+		       register(erl_compression_server,self()),
+		       compressed_terms_loop(compression_terms())
+	       end),
+    ok = jitu:java(?config(java, Config),
+		   ?config(data_dir, Config),
+		   "Compression",
+		   [erlang:get_cookie(),node(),?compressed_terms]).
+
+%%%-----------------------------------------------------------------
+compressed_messages(doc) ->
+    ["Compression.java: "
+     "Test OtpNode.setCompressionThreshold(...): messages sent "
+     "compressed by jinterface reach erlang intact, whether or not "
+     "they compress well"];
+compressed_messages(suite) ->
+    [];
+compressed_messages(Config) when is_list(Config) ->
+    spawn_link(fun() ->
+		       register(erl_compression_server,self()),
+		       echo_until_done()
+	       end),
+    ok = jitu:java(?config(java, Config),
+		   ?config(data_dir, Config),
+		   "Compression",
+		   [erlang:get_cookie(),node(),?compressed_messages]).
+
+%%%-----------------------------------------------------------------
+patterns(doc) ->
+    ["Patterns.java: "
+     "Test OtpPattern and OtpMbox.receiveMsg(OtpPattern...) on messages "
+     "from erlang, from the same node and compressed from another node"];
+patterns(suite) ->
+    [];
+patterns(Config) when is_list(Config) ->
+    spawn_link(fun() ->
+		       register(erl_pattern_server,self()),
+		       receive
+			   From when is_pid(From) ->
+			       Ref = make_ref(),
+			       From ! {ref,Ref},
+			       [From ! Msg || Msg <- pattern_messages(Ref)],
+			       receive done -> ok end
+		       end
+	       end),
+    ok = jitu:java(?config(java, Config),
+		   ?config(data_dir, Config),
+		   "Patterns",
+		   [erlang:get_cookie(),node()]).
+
+%%%-----------------------------------------------------------------
+spawn_exit_reasons(doc) ->
+    ["Processes.java: "
+     "Test OtpNode.spawn(...) and OtpMbox.spawnLink(...): the exit "
+     "reasons of processes that return, exit and throw, as seen by "
+     "a java mailbox and by an erlang process"];
+spawn_exit_reasons(suite) ->
+    [];
+spawn_exit_reasons(Config) when is_list(Config) ->
+    spawn_link(fun() ->
+		       register(erl_process_server,self()),
+		       process_flag(trap_exit,true),
+		       receive
+			   {From,Pids} when is_pid(From) ->
+			       [link(Pid) || Pid <- Pids],
+			       [Pid ! go || Pid <- Pids],
+			       Reasons = [receive {'EXIT',Pid,Reason} -> Reason end
+					  || Pid <- Pids],
+			       From ! {reasons,Reasons}
+		       end
+	       end),
+    ok = jitu:java(?config(java, Config),
+		   ?config(data_dir, Config),
+		   "Processes",
+		   [erlang:get_cookie(),node(),?spawn_exit_reasons]).
+
+%%%-----------------------------------------------------------------
+send_after(doc) ->
+    ["Processes.java: "
+     "Test OtpNode.sendAfter(...) and OtpNode.cancelTimer(...), to a "
+     "java mailbox and to an erlang process"];
+send_after(suite) ->
+    [];
+send_after(Config) when is_list(Config) ->
+    spawn_link(fun() ->
+		       register(erl_process_server,self()),
+		       receive
+			   From when is_pid(From) ->
+			       From ! self(),
+			       receive
+				   {From,Expected} ->
+				       From ! timer_messages(Expected)
+			       end
+		       end
+	       end),
+    ok = jitu:java(?config(java, Config),
+		   ?config(data_dir, Config),
+		   "Processes",
+		   [erlang:get_cookie(),node(),?send_after]).
+
+%%%-----------------------------------------------------------------
+lazy_terms(doc) ->
+    ["LazyTerms.java: "
+     "Test the lazy views of tuples, lists and maps made with "
+     "OtpInputStream.DECODE_LAZY_TERMS: equality, hashing and "
+     "encoding, locally and on messages to and from erlang"];
+lazy_terms(suite) ->
+    [];
+lazy_terms(Config) when is_list(Config) ->
+    spawn_link(fun() ->
+		       register(erl_lazy_server,self()),
+		       lazy_echo(undefined)
+	       end),
+    ok = jitu:java(?config(java, Config),
+		   ?config(data_dir, Config),
+		   "LazyTerms",
+		   [erlang:get_cookie(),node()]).
+
+%%%-----------------------------------------------------------------
+primitive_arrays(doc) ->
+    ["PrimitiveArrays.java: "
+     "Test reading and writing lists of numbers as primitive arrays: "
+     "erlang decodes each list as expected and encodes it to the same "
+     "bytes, STRING_EXT or LIST_EXT"];
+primitive_arrays(suite) ->
+    [];
+primitive_arrays(Config) when is_list(Config) ->
+    spawn_link(fun() ->
+		       register(erl_array_server,self()),
+		       array_echo()
+	       end),
+    ok = jitu:java(?config(java, Config),
+		   ?config(data_dir, Config),
+		   "PrimitiveArrays",
+		   [erlang:get_cookie(),node()]).
+
+%%%-----------------------------------------------------------------
+decode_profiles(doc) ->
+    ["DecodeProfiles.java: "
+     "Test each OtpDecodeProfile flag, and profiles set on a node and "
+     "on a mailbox for the messages they receive"];
+decode_profiles(suite) ->
+    [];
+decode_profiles(Config) when is_list(Config) ->
+    spawn_link(fun() ->
+		       register(erl_profile_server,self()),
+		       forward()
+	       end),
+    ok = jitu:java(?config(java, Config),
+		   ?config(data_dir, Config),
+		   "DecodeProfiles",
+		   [erlang:get_cookie(),node()]).
+
+%%%-----------------------------------------------------------------
+templates(doc) ->
+    ["Templates.java: "
+     "Test OtpErlangTemplate and OtpErlangPreEncoded: filled templates "
+     "encode as the terms they stand for, and erlang receives those terms"];
+templates(suite) ->
+    [];
+templates(Config) when is_list(Config) ->
+    spawn_link(fun() ->
+		       register(erl_template_server,self()),
+		       template_compare()
+	       end),
+    ok = jitu:java(?config(java, Config),
+		   ?config(data_dir, Config),
+		   "Templates",
+		   [erlang:get_cookie(),node()]).
+
+%%%-----------------------------------------------------------------
+buffer_binaries(doc) ->
+    ["Binaries.java: "
+     "Test OtpErlangBinary(ByteBuffer): binaries made from heap, "
+     "direct and read-only buffers reach erlang intact"];
+buffer_binaries(suite) ->
+    [];
+buffer_binaries(Config) when is_list(Config) ->
+    binaries(?buffer_binaries,Config).
+
+%%%-----------------------------------------------------------------
+file_binaries(doc) ->
+    ["Binaries.java: "
+     "Test OtpErlangFileBinary: whole files, file regions and channel "
+     "regions reach erlang intact"];
+file_binaries(suite) ->
+    [];
+file_binaries(Config) when is_list(Config) ->
+    binaries(?file_binaries,Config).
+
+%%%-----------------------------------------------------------------
+io_binaries(doc) ->
+    ["Binaries.java: "
+     "Test OtpErlangIoBinary.Builder: arrays, buffers, binaries, file "
+     "regions and io binaries appended together reach erlang as one "
+     "binary"];
+io_binaries(suite) ->
+    [];
+io_binaries(Config) when is_list(Config) ->
+    binaries(?io_binaries,Config).
+
 %%%-----------------------------------------------------------------
 %%% INTERNAL FUNCTIONS
 %%%-----------------------------------------------------------------
@@ -812,3 +1254,193 @@ erl_status_server([{Tag,NodeName,Up}|Rest],_) ->
     end;
 erl_status_server([],From) ->
     From ! done.
+
+deep_list(0) ->
+    [];
+deep_list(N) ->
+    [deep_list(N-1)].
+
+binary_stream(TestCaseTag,Fun,Config) ->
+    spawn_link(fun() ->
+		       register(erl_stream_server,self()),
+		       receive
+			   Java when is_pid(Java) ->
+			       Java ! {TestCaseTag,self()},
+			       Fun(Java)
+		       end
+	       end),
+    ok = jitu:java(?config(java, Config),
+		   ?config(data_dir, Config),
+		   "BinaryStream",
+		   [erlang:get_cookie(),node()]).
+
+%% The integers 1..250000 as 32 bit big endian, as in BinaryStream.java
+stream_data() ->
+    list_to_binary([<<N:32>> || N <- lists:seq(1,250000)]).
+
+%% Receive a binary stream as OtpBinaryInputStream does, acknowledging
+%% each chunk as it arrives
+stream_receive() ->
+    receive
+	{'$otp_stream',From,Ref,Data} ->
+	    stream_receive(From,Ref,Data,[])
+    end.
+
+stream_receive(_From,_Ref,eof,Acc) ->
+    {ok,list_to_binary(lists:reverse(Acc))};
+stream_receive(From,Ref,Chunk,Acc) when is_binary(Chunk) ->
+    From ! {'$otp_stream_ack',Ref,1},
+    receive
+	{'$otp_stream',From,Ref,Data} ->
+	    stream_receive(From,Ref,Data,[Chunk|Acc])
+    end.
+
+%% Send a binary stream as OtpBinaryOutputStream does, with at most
+%% Window chunks that are not acknowledged
+stream_send(To,Bin,Size,Window) ->
+    stream_send(To,make_ref(),Bin,Size,Window).
+
+stream_send(To,Ref,<<>>,_Size,_Credit) ->
+    To ! {'$otp_stream',self(),Ref,eof},
+    ok;
+stream_send(To,Ref,Bin,Size,0) ->
+    receive
+	{'$otp_stream_ack',Ref,N} when is_integer(N) ->
+	    stream_send(To,Ref,Bin,Size,N);
+	{'$otp_stream_ack',Ref,cancel} ->
+	    To ! {'$otp_stream',self(),Ref,eof},
+	    cancelled
+    end;
+stream_send(To,Ref,Bin,Size,Credit) ->
+    {Chunk,Rest} = case Bin of
+		       <<C:Size/binary,R/binary>> -> {C,R};
+		       _ -> {Bin,<<>>}
+		   end,
+    To ! {'$otp_stream',self(),Ref,Chunk},
+    stream_send(To,Ref,Rest,Size,Credit-1).
+
+%% Skip the chunks that were on their way when a stream was cancelled
+stream_drain(From,Ref) ->
+    receive
+	{'$otp_stream',From,Ref,eof} ->
+	    ok;
+	{'$otp_stream',From,Ref,Chunk} when is_binary(Chunk) ->
+	    stream_drain(From,Ref)
+    end.
+
+%% The terms of Compression.java
+compression_terms() ->
+    [small,
+     [{item,N,<<"compress me">>} || N <- lists:seq(1,5000)]].
+
+%% Expect each term with its compressed encoding made by jinterface, and
+%% reply with the term and erlang's compressed encoding of it
+compressed_terms_loop([]) ->
+    receive done -> ok end;
+compressed_terms_loop([Term|Terms]) ->
+    receive
+	{From,Term,Ext} when is_pid(From), is_binary(Ext) ->
+	    Term = binary_to_term(Ext),
+	    From ! {Term,term_to_binary(Term,[compressed])},
+	    compressed_terms_loop(Terms);
+	Other ->
+	    exit({unexpected,Other})
+    end.
+
+echo_until_done() ->
+    receive
+	{From,Msg} when is_pid(From) ->
+	    From ! Msg,
+	    echo_until_done();
+	done ->
+	    ok
+    end.
+
+binaries(TestCaseTag,Config) ->
+    spawn_link(fun() ->
+		       register(erl_binary_server,self()),
+		       binary_echo()
+	       end),
+    ok = jitu:java(?config(java, Config),
+		   ?config(data_dir, Config),
+		   "Binaries",
+		   [erlang:get_cookie(),node(),TestCaseTag]).
+
+%% Decode each encoded list, and reply whether it is the list expected,
+%% with the list encoded again
+array_echo() ->
+    receive
+	{From,Bin,Expected} when is_pid(From), is_binary(Bin) ->
+	    List = binary_to_term(Bin),
+	    From ! {List =:= Expected, term_to_binary(List)},
+	    array_echo();
+	done ->
+	    ok
+    end.
+
+%% Reply whether the two terms are the same, with the second encoded
+template_compare() ->
+    receive
+	{From,Term,Plain} when is_pid(From) ->
+	    From ! {Term =:= Plain, term_to_binary(Plain)},
+	    template_compare();
+	done ->
+	    ok
+    end.
+
+%% Send each term on to the process given with it
+forward() ->
+    receive
+	{To,Term} when is_pid(To) ->
+	    To ! Term,
+	    forward();
+	done ->
+	    ok
+    end.
+
+%% Reply to each binary with its md5 and the binary
+binary_echo() ->
+    receive
+	{From,Bin} when is_pid(From), is_binary(Bin) ->
+	    From ! {erlang:md5(Bin),Bin},
+	    binary_echo();
+	done ->
+	    ok
+    end.
+
+%% Echo each term, and tell whether a term sent back is the one echoed
+%% last
+lazy_echo(Last) ->
+    receive
+	{From,same,Term} when is_pid(From) ->
+	    From ! (Term =:= Last),
+	    lazy_echo(Last);
+	{From,Term} when is_pid(From) ->
+	    From ! Term,
+	    lazy_echo(Term);
+	done ->
+	    ok
+    end.
+
+%% Expect the timer messages of Processes.java in the given order, and
+%% no others
+timer_messages([]) ->
+    receive
+	{timer,_}=Msg ->
+	    {unexpected,Msg}
+    after 1000 ->
+	    timers_ok
+    end;
+timer_messages([Msg|Msgs]) ->
+    receive
+	{timer,_}=Msg ->
+	    timer_messages(Msgs);
+	{timer,_}=Other ->
+	    {unexpected,Other,expected,Msg}
+    end.
+
+%% The messages of Patterns.java, in the order they are sent
+pattern_messages(Ref) ->
+    Pad = binary:copy(<<0>>,1000),
+    [{other,1,Pad},{pair,1,2,Pad},{reply,Ref,Pad},{other,2,Pad},
+     {pair,7,7,Pad},{other,3,Pad},sent].
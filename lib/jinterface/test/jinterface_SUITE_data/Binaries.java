@@ -0,0 +1,238 @@
+/*
+ * %CopyrightBegin%
+ *
+ * Copyright Ericsson AB 2004-2010. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * %CopyrightEnd%
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangFileBinary;
+import com.ericsson.otp.erlang.OtpErlangIoBinary;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpMbox;
+import com.ericsson.otp.erlang.OtpNode;
+
+class Binaries {
+
+    /*
+     * Implements test cases jinterface_SUITE:buffer_binaries/1,
+     * jinterface_SUITE:file_binaries/1 and jinterface_SUITE:io_binaries/1
+     *
+     * Send binaries that are not held in a byte array of their own to the
+     * erlang process, which replies with the md5 of each binary and the
+     * binary itself. Both must match the bytes the binary was made from.
+     */
+
+    private static final boolean dbg = true;
+    private static final int recTime = 5000;
+
+    private static final int buffer_binaries = 1;
+    private static final int file_binaries = 2;
+    private static final int io_binaries = 3;
+
+    public static void main(final String argv[]) {
+
+	final String cookie = argv[0];
+	final String erlNode = argv[1];
+	final int tag = Integer.parseInt(argv[2]);
+
+	// large enough to span several reads and writes of a connection
+	final byte[] data = new byte[1 << 20];
+	new Random(4711).nextBytes(data);
+
+	try {
+	    final OtpNode node = new OtpNode("javanode", cookie);
+	    final OtpMbox mbox = node.createMbox();
+
+	    switch (tag) {
+
+	    case buffer_binaries: {
+
+		// Test OtpErlangBinary(ByteBuffer): slices of heap and direct
+		// buffers, read-only buffers, and a buffer whose position is
+		// changed after the binary is made
+		final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data).flip();
+		final ByteBuffer moved = ByteBuffer.wrap(data);
+		final OtpErlangBinary movedBin = new OtpErlangBinary(moved);
+		moved.position(1000);
+
+		roundTrip(mbox, erlNode, new OtpErlangBinary(ByteBuffer
+			.allocate(0)), new byte[0], 10);
+		roundTrip(mbox, erlNode, new OtpErlangBinary(ByteBuffer.wrap(
+			data, 100, 1000)), Arrays.copyOfRange(data, 100, 1100),
+			20);
+		roundTrip(mbox, erlNode, new OtpErlangBinary(direct), data, 30);
+		direct.position(12345).limit(23456);
+		roundTrip(mbox, erlNode, new OtpErlangBinary(direct
+			.asReadOnlyBuffer()),
+			Arrays.copyOfRange(data, 12345, 23456), 40);
+		roundTrip(mbox, erlNode, movedBin, data, 50);
+		break;
+	    }
+
+	    case file_binaries: {
+
+		// Test OtpErlangFileBinary: the whole of a file, a region of
+		// it, a region of an open channel, and an empty file. The
+		// bytes are read from the file only when they are sent.
+		final File file = tempFile(data);
+		final File empty = tempFile(new byte[0]);
+
+		roundTrip(mbox, erlNode, new OtpErlangFileBinary(file), data,
+			10);
+		roundTrip(mbox, erlNode, new OtpErlangFileBinary(file, 4711,
+			100000), Arrays.copyOfRange(data, 4711, 104711), 20);
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		final FileChannel channel = raf.getChannel();
+		channel.position(17);
+		roundTrip(mbox, erlNode, new OtpErlangFileBinary(channel,
+			data.length - 1000, 1000), Arrays.copyOfRange(data,
+			data.length - 1000, data.length), 30);
+		if (!channel.isOpen() || channel.position() != 17) {
+		    fail("channel closed or moved", 35);
+		}
+		raf.close();
+		roundTrip(mbox, erlNode, new OtpErlangFileBinary(empty),
+			new byte[0], 40);
+		break;
+	    }
+
+	    case io_binaries: {
+
+		// Test OtpErlangIoBinary.Builder: parts of every kind are sent
+		// as one binary, in the order they were appended
+		final File file = tempFile(data);
+		final ByteBuffer direct = ByteBuffer.allocateDirect(5000);
+		direct.put(data, 300000, 5000).flip();
+		final OtpErlangIoBinary.Builder builder = new OtpErlangIoBinary.Builder();
+		builder.append(Arrays.copyOf(data, 10));
+		builder.append(data, 10, 90);
+		builder.append(direct);
+		builder.append(new OtpErlangBinary(Arrays.copyOfRange(data,
+			100, 200)));
+		builder.append(new OtpErlangFileBinary(file, 200, 700000));
+		builder.append(new byte[0]);
+		final OtpErlangIoBinary inner = builder.build();
+		final byte[] innerBytes = concat(Arrays.copyOf(data, 100),
+			Arrays.copyOfRange(data, 300000, 305000), Arrays
+				.copyOfRange(data, 100, 700200));
+		if (builder.size() != innerBytes.length) {
+		    fail("builder size " + builder.size(), 5);
+		}
+		roundTrip(mbox, erlNode, inner, innerBytes, 10);
+
+		// an io binary appended to another, and the builder used
+		// again after it has built a binary
+		builder.append(inner);
+		final OtpErlangIoBinary outer = builder.build();
+		roundTrip(mbox, erlNode, outer, concat(innerBytes, innerBytes),
+			20);
+		roundTrip(mbox, erlNode, inner, innerBytes, 30);
+
+		roundTrip(mbox, erlNode, new OtpErlangIoBinary.Builder()
+			.build(), new byte[0], 40);
+		break;
+	    }
+
+	    default:
+		fail("unknown test case " + tag, 2);
+	    }
+
+	    mbox.send("erl_binary_server", erlNode, new OtpErlangAtom("done"));
+	    mbox.close();
+	    node.close();
+	} catch (final Exception e) {
+	    e.printStackTrace();
+	    fail("exception " + e, 1);
+	}
+    }
+
+    // send a binary to erlang and check what comes back
+    private static void roundTrip(final OtpMbox mbox, final String erlNode,
+	    final OtpErlangBinary bin, final byte[] bytes, final int err)
+	    throws Exception {
+	final OtpErlangBinary plain = new OtpErlangBinary(bytes);
+	if (!bin.equals(plain) || !plain.equals(bin)
+		|| bin.hashCode() != plain.hashCode()) {
+	    fail("not equal to the plain binary", err);
+	}
+	if (bin.size() != bytes.length) {
+	    fail("size " + bin.size() + " of " + bytes.length, err + 1);
+	}
+
+	mbox.send("erl_binary_server", erlNode, new OtpErlangTuple(
+		new OtpErlangObject[] { mbox.self(), bin }));
+	final OtpErlangObject o = mbox.receive(recTime);
+	if (!(o instanceof OtpErlangTuple)
+		|| ((OtpErlangTuple) o).arity() != 2) {
+	    fail("received " + o, err + 2);
+	}
+	final OtpErlangTuple t = (OtpErlangTuple) o;
+	dbg("received md5 and " + t.elementAt(1));
+	final byte[] md5 = ((OtpErlangBinary) t.elementAt(0)).binaryValue();
+	if (!Arrays.equals(md5, MessageDigest.getInstance("MD5").digest(bytes))) {
+	    fail("md5 mismatch", err + 3);
+	}
+	if (!plain.equals(t.elementAt(1))) {
+	    fail("echo mismatch", err + 4);
+	}
+    }
+
+    private static byte[] concat(final byte[]... parts) {
+	int n = 0;
+	for (final byte[] part : parts) {
+	    n += part.length;
+	}
+	final byte[] bytes = new byte[n];
+	n = 0;
+	for (final byte[] part : parts) {
+	    System.arraycopy(part, 0, bytes, n, part.length);
+	    n += part.length;
+	}
+	return bytes;
+    }
+
+    private static File tempFile(final byte[] bytes) throws Exception {
+	final File file = File.createTempFile("binaries", ".bin");
+	file.deleteOnExit();
+	final FileOutputStream out = new FileOutputStream(file);
+	out.write(bytes);
+	out.close();
+	return file;
+    }
+
+    private static void dbg(final String str) {
+	if (dbg) {
+	    System.out.println(str);
+	}
+    }
+
+    private static void fail(final String str, final int reason) {
+	System.out.println(str);
+	System.exit(reason);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * %CopyrightBegin%
+ *
+ * Copyright Ericsson AB 2004-2010. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * %CopyrightEnd%
+ */
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import com.ericsson.otp.erlang.OtpBinaryInputStream;
+import com.ericsson.otp.erlang.OtpBinaryOutputStream;
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangPid;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpMbox;
+import com.ericsson.otp.erlang.OtpNode;
+
+class BinaryStream {
+
+    /*
+     * Implements test cases jinterface_SUITE:binary_stream_* /1
+     *
+     * Test OtpMbox.openBinaryStream(...) and OtpMbox.acceptBinaryStream()
+     * against an erlang process that implements the other end of the
+     * '$otp_stream' protocol.
+     */
+
+    private static final boolean dbg = true;
+    private static final int recTime = 5000;
+
+    private static final int binary_stream_java_to_erl = 1;
+    private static final int binary_stream_erl_to_java = 2;
+    private static final int binary_stream_java_cancels = 3;
+    private static final int binary_stream_erl_cancels = 4;
+    private static final int binary_stream_bad_ack = 5;
+
+    // the stream data, as stream_data() in jinterface_SUITE: the integers
+    // 1..250000 as 32 bit big endian
+    private static final int words = 250000;
+
+    public static void main(final String argv[]) {
+
+	final String cookie = argv[0];
+	final String erlNode = argv[1];
+
+	try {
+	    final OtpNode node = new OtpNode("javanode", cookie);
+	    final OtpMbox mbox = node.createMbox();
+
+	    // Send the pid of mbox to erlang and wait for test case
+	    // instruction: {TestCaseTag, Pid}
+	    mbox.send("erl_stream_server", erlNode, mbox.self());
+	    final OtpErlangObject o = mbox.receive(recTime);
+	    if (o == null) {
+		fail("no test case", 1);
+	    }
+	    final OtpErlangTuple testCase = (OtpErlangTuple) o;
+	    dbg("mbox received " + testCase);
+	    final int tag = (int) ((OtpErlangLong) testCase.elementAt(0))
+		    .longValue();
+	    final OtpErlangPid erlangPid = (OtpErlangPid) testCase.elementAt(1);
+
+	    switch (tag) {
+
+	    case binary_stream_java_to_erl: {
+		// Stream the data to erlang in writes that do not line up
+		// with the chunks; erlang replies with its md5
+		final byte[] data = streamData();
+		final OtpBinaryOutputStream out = mbox.openBinaryStream(
+			erlangPid, 8192, 4);
+		out.setTimeout(recTime);
+		for (int off = 0; off < data.length; off += 1000) {
+		    out.write(data, off, Math.min(1000, data.length - off));
+		}
+		out.close();
+		checkMd5(mbox, md5(data), 10);
+		break;
+	    }
+
+	    case binary_stream_erl_to_java: {
+		// Read the stream from erlang to its end, then compare with
+		// the md5 that erlang sends after it
+		final OtpBinaryInputStream in = mbox.acceptBinaryStream(recTime);
+		if (in == null) {
+		    fail("no stream", 20);
+		}
+		in.setTimeout(recTime);
+		if (!in.sender().equals(erlangPid)) {
+		    fail("stream from " + in.sender(), 21);
+		}
+		final MessageDigest md = MessageDigest.getInstance("MD5");
+		final byte[] buf = new byte[3000];
+		long total = 0;
+		int n;
+		while ((n = in.read(buf)) > 0) {
+		    md.update(buf, 0, n);
+		    total += n;
+		}
+		in.close();
+		if (total != 4L * words) {
+		    fail("read " + total + " bytes", 22);
+		}
+		checkMd5(mbox, md.digest(), 23);
+		break;
+	    }
+
+	    case binary_stream_java_cancels: {
+		// Read a little of a stream and close it; erlang must see the
+		// cancel and end the stream, and the chunks that were on their
+		// way must not be left in the mailbox
+		final OtpBinaryInputStream in = mbox.acceptBinaryStream(recTime);
+		if (in == null) {
+		    fail("no stream", 30);
+		}
+		in.setTimeout(recTime);
+		final byte[] buf = new byte[100];
+		if (in.read(buf) <= 0) {
+		    fail("nothing read", 31);
+		}
+		in.close();
+		final OtpErlangObject r = mbox.receive(recTime);
+		dbg("mbox received " + r);
+		if (!new OtpErlangAtom("stream_cancelled").equals(r)) {
+		    fail("received " + r, 32);
+		}
+		final OtpErlangObject extra = mbox.receive(500);
+		if (extra != null) {
+		    fail("left in mailbox " + extra, 33);
+		}
+		break;
+	    }
+
+	    case binary_stream_erl_cancels: {
+		// Erlang cancels after the first chunk, so writing must fail
+		final byte[] data = streamData();
+		final OtpBinaryOutputStream out = mbox.openBinaryStream(
+			erlangPid, 8192, 4);
+		out.setTimeout(recTime);
+		try {
+		    out.write(data);
+		    out.close();
+		    fail("stream not cancelled", 40);
+		} catch (final IOException e) {
+		    dbg("write failed as expected: " + e);
+		}
+		final OtpErlangObject r = mbox.receive(recTime);
+		dbg("mbox received " + r);
+		if (!new OtpErlangAtom("stream_cancelled").equals(r)) {
+		    fail("received " + r, 41);
+		}
+		break;
+	    }
+
+	    case binary_stream_bad_ack: {
+		// Erlang acknowledges more chunks than it has been sent after
+		// the first one, so writing must fail as on a cancel
+		final byte[] data = streamData();
+		final OtpBinaryOutputStream out = mbox.openBinaryStream(
+			erlangPid, 8192, 4);
+		out.setTimeout(recTime);
+		try {
+		    out.write(data);
+		    out.close();
+		    fail("bad acknowledgement accepted", 50);
+		} catch (final IOException e) {
+		    dbg("write failed as expected: " + e);
+		}
+		final OtpErlangObject r = mbox.receive(recTime);
+		dbg("mbox received " + r);
+		if (!new OtpErlangAtom("stream_cancelled").equals(r)) {
+		    fail("received " + r, 51);
+		}
+		break;
+	    }
+
+	    default:
+		fail("unknown test case " + tag, 2);
+	    }
+
+	    mbox.close();
+	    node.close();
+	} catch (final Exception e) {
+	    e.printStackTrace();
+	    fail("exception " + e, 3);
+	}
+    }
+
+    private static byte[] streamData() {
+	final byte[] data = new byte[4 * words];
+	for (int i = 0; i < words; i++) {
+	    final int v = i + 1;
+	    data[4 * i] = (byte) (v >>> 24);
+	    data[4 * i + 1] = (byte) (v >>> 16);
+	    data[4 * i + 2] = (byte) (v >>> 8);
+	    data[4 * i + 3] = (byte) v;
+	}
+	return data;
+    }
+
+    private static byte[] md5(final byte[] data) throws Exception {
+	return MessageDigest.getInstance("MD5").digest(data);
+    }
+
+    // expect {stream_md5, Md5} from erlang
+    private static void checkMd5(final OtpMbox mbox, final byte[] md5,
+	    final int err) throws Exception {
+	final OtpErlangObject o = mbox.receive(recTime);
+	dbg("mbox received " + o);
+	if (!(o instanceof OtpErlangTuple)) {
+	    fail("received " + o, err);
+	}
+	final OtpErlangTuple t = (OtpErlangTuple) o;
+	if (t.arity() != 2
+		|| !new OtpErlangAtom("stream_md5").equals(t.elementAt(0))
+		|| !(t.elementAt(1) instanceof OtpErlangBinary)) {
+	    fail("received " + o, err);
+	}
+	final byte[] erlMd5 = ((OtpErlangBinary) t.elementAt(1)).binaryValue();
+	if (!Arrays.equals(md5, erlMd5)) {
+	    fail("md5 mismatch", err + 1);
+	}
+    }
+
+    private static void dbg(final String str) {
+	if (dbg) {
+	    System.out.println(str);
+	}
+    }
+
+    private static void fail(final String str, final int reason) {
+	System.out.println(str);
+	System.exit(reason);
+    }
+}
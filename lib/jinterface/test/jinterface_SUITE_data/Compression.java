@@ -0,0 +1,175 @@
+/*
+ * %CopyrightBegin%
+ *
+ * Copyright Ericsson AB 2004-2010. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * %CopyrightEnd%
+ */
+
+import java.util.Random;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpInputStream;
+import com.ericsson.otp.erlang.OtpMbox;
+import com.ericsson.otp.erlang.OtpNode;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+class Compression {
+
+    /*
+     * Implements test cases jinterface_SUITE:compressed_terms/1 and
+     * jinterface_SUITE:compressed_messages/1
+     */
+
+    private static final boolean dbg = true;
+    private static final int recTime = 5000;
+
+    private static final int compressed_terms = 1;
+    private static final int compressed_messages = 2;
+
+    public static void main(final String argv[]) {
+
+	final String cookie = argv[0];
+	final String erlNode = argv[1];
+	final int tag = Integer.parseInt(argv[2]);
+
+	// as compression_terms() in jinterface_SUITE
+	final OtpErlangObject[] items = new OtpErlangObject[5000];
+	for (int i = 0; i < items.length; i++) {
+	    items[i] = new OtpErlangTuple(new OtpErlangObject[] {
+		    new OtpErlangAtom("item"), new OtpErlangLong(i + 1),
+		    new OtpErlangBinary("compress me".getBytes()) });
+	}
+	final OtpErlangObject[] terms = new OtpErlangObject[] {
+		new OtpErlangAtom("small"), new OtpErlangList(items) };
+
+	try {
+	    final OtpNode node = new OtpNode("javanode", cookie);
+	    if (tag == compressed_messages) {
+		// set before the connection to the erlang node is made
+		node.setCompressionThreshold(1024);
+	    }
+	    final OtpMbox mbox = node.createMbox();
+
+	    switch (tag) {
+
+	    case compressed_terms:
+
+		// Test OtpOutputStream.write_compressed(...) and
+		// OtpInputStream.read_any() on compressed terms: each term is
+		// sent with its compressed encoding from jinterface. The
+		// erlang process checks that it decodes to the term it
+		// expects, and replies with the term and
+		// term_to_binary(Term, [compressed]).
+		for (int i = 0; i < terms.length; i++) {
+		    final int err = 10 * (i + 1);
+
+		    final OtpOutputStream os = new OtpOutputStream();
+		    os.write1(131);
+		    os.write_compressed(terms[i]);
+		    mbox.send("erl_compression_server", erlNode,
+			    new OtpErlangTuple(new OtpErlangObject[] {
+				    mbox.self(), terms[i],
+				    new OtpErlangBinary(os.toByteArray()) }));
+
+		    final OtpErlangObject o = mbox.receive(recTime);
+		    if (o == null) {
+			fail("nothing received", err);
+		    }
+		    if (!(o instanceof OtpErlangTuple)
+			    || ((OtpErlangTuple) o).arity() != 2) {
+			fail("received " + o, err + 1);
+		    }
+		    final OtpErlangTuple t = (OtpErlangTuple) o;
+		    if (!terms[i].equals(t.elementAt(0))) {
+			fail("echo mismatch", err + 2);
+		    }
+
+		    // the term as erlang encoded it, compressed
+		    final byte[] ext = ((OtpErlangBinary) t.elementAt(1))
+			    .binaryValue();
+		    final OtpErlangObject decoded = new OtpInputStream(ext)
+			    .read_any();
+		    dbg("decoded " + ext.length + " bytes of compressed term");
+		    if (!terms[i].equals(decoded)) {
+			fail("decode mismatch", err + 3);
+		    }
+		}
+		break;
+
+	    case compressed_messages: {
+
+		// Test OtpNode.setCompressionThreshold(...): the erlang
+		// process echoes each message. First payloads that compress
+		// well, then payloads that do not, so that the connection
+		// mostly stops compressing, then ones that compress well again.
+		final byte[] noise = new byte[65536];
+		new Random(4711).nextBytes(noise);
+		final OtpErlangObject[] rounds = new OtpErlangObject[] {
+			terms[1], new OtpErlangBinary(noise), terms[1] };
+		for (int r = 0; r < rounds.length; r++) {
+		    for (int i = 0; i < 40; i++) {
+			final int err = 10 * (r + 1);
+			mbox.send("erl_compression_server", erlNode,
+				new OtpErlangTuple(new OtpErlangObject[] {
+					mbox.self(), rounds[r] }));
+			final OtpErlangObject o = mbox.receive(recTime);
+			if (o == null) {
+			    fail("nothing received", err);
+			}
+			if (!rounds[r].equals(o)) {
+			    fail("echo mismatch in round " + r, err + 1);
+			}
+			// and one that is never compressed in between
+			mbox.send("erl_compression_server", erlNode,
+				new OtpErlangTuple(new OtpErlangObject[] {
+					mbox.self(), terms[0] }));
+			if (!terms[0].equals(mbox.receive(recTime))) {
+			    fail("small echo mismatch in round " + r, err + 2);
+			}
+		    }
+		}
+		break;
+	    }
+
+	    default:
+		fail("unknown test case " + tag, 2);
+	    }
+
+	    mbox.send("erl_compression_server", erlNode, new OtpErlangAtom(
+		    "done"));
+	    mbox.close();
+	    node.close();
+	} catch (final Exception e) {
+	    e.printStackTrace();
+	    fail("exception " + e, 1);
+	}
+    }
+
+    private static void dbg(final String str) {
+	if (dbg) {
+	    System.out.println(str);
+	}
+    }
+
+    private static void fail(final String str, final int reason) {
+	System.out.println(str);
+	System.exit(reason);
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * %CopyrightBegin%
+ *
+ * Copyright Ericsson AB 2004-2010. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * %CopyrightEnd%
+ */
+
+import java.io.ByteArrayOutputStream;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpInputStream;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+class DecodeLimits {
+
+    /*
+     * Implements test case jinterface_SUITE:decode_limits/1
+     *
+     * Test that OtpInputStream decodes and skips deeply nested terms without
+     * running out of stack, and that it rejects terms that exceed the limits
+     * set on it, or whose length fields claim more than the stream holds,
+     * with an OtpErlangDecodeException. The limits must hold for compressed
+     * terms too.
+     */
+
+    private static final int deep = 100000;
+
+    public static void main(final String argv[]) {
+
+	// [[[...[]...]]], nested deeper than any thread stack allows
+	final byte[] nested = nestedLists(deep);
+
+	try {
+	    OtpErlangObject o = new OtpInputStream(nested).read_any();
+	    int depth = 0;
+	    while (o instanceof OtpErlangList
+		    && ((OtpErlangList) o).arity() == 1) {
+		o = ((OtpErlangList) o).elementAt(0);
+		depth++;
+	    }
+	    if (depth != deep) {
+		fail("decoded depth " + depth, 1);
+	    }
+	    if (((OtpErlangList) o).arity() != 0) {
+		fail("innermost list not empty", 2);
+	    }
+	} catch (final OtpErlangDecodeException e) {
+	    fail("decode error " + e.getMessage(), 3);
+	} catch (final StackOverflowError e) {
+	    fail("stack overflow in read_any", 4);
+	}
+
+	try {
+	    final OtpInputStream is = new OtpInputStream(nested);
+	    is.skip_any();
+	    if (is.getPos() != nested.length) {
+		fail("skipped to " + is.getPos() + " of " + nested.length, 5);
+	    }
+	} catch (final OtpErlangDecodeException e) {
+	    fail("skip error " + e.getMessage(), 6);
+	} catch (final StackOverflowError e) {
+	    fail("stack overflow in skip_any", 7);
+	}
+
+	// the same term is rejected when the depth is limited
+	expectReject(nested, 1000, 0, 8);
+
+	// tuple of 10 atoms: within both limits
+	final byte[] tuple10 = atomTuple(10);
+	expectAccept(tuple10, 1, 10, 9);
+	// nested one deeper than allowed, and one element too many
+	expectReject(nestedLists(3), 2, 0, 10);
+	expectReject(atomTuple(11), 0, 10, 11);
+
+	// length fields claiming far more than the stream holds
+	final int huge = 0x7fffffff;
+	// LARGE_TUPLE_EXT
+	expectReject(withLength(105, huge, new byte[] { 106 }), 0, 0, 12);
+	// LIST_EXT
+	expectReject(withLength(108, huge, new byte[] { 106, 106 }), 0, 0,
+		13);
+	// MAP_EXT
+	expectReject(withLength(116, huge, new byte[] { 106, 106 }), 0, 0,
+		14);
+	// BINARY_EXT
+	expectReject(withLength(109, huge, new byte[] { 1, 2, 3 }), 0, 0, 15);
+	// LIST_EXT of -1 elements
+	expectReject(withLength(108, -1, new byte[] { 106, 106 }), 0, 0, 16);
+	// STRING_EXT of 65535 bytes with 3 present
+	expectReject(new byte[] { (byte) 131, 107, (byte) 0xff, (byte) 0xff,
+		1, 2, 3 }, 0, 0, 17);
+	// a list that claims to be long but ends early inside a tuple
+	expectReject(withLength(104, 2, withLength(108, 1000, new byte[] {
+		97, 1 })), 0, 0, 18);
+
+	// compressed terms over the limits
+	final byte[] deepZ = compressed(nestedTerm(1000));
+	expectReject(deepZ, 100, 0, 19);
+	final OtpErlangObject[] atoms = new OtpErlangObject[5000];
+	for (int i = 0; i < atoms.length; i++) {
+	    atoms[i] = new OtpErlangAtom("a");
+	}
+	final byte[] wideZ = compressed(new OtpErlangTuple(atoms));
+	expectReject(wideZ, 0, 100, 20);
+	// within the limits on its own, but not at the depth it is nested at
+	final byte[] deep50Z = compressed(nestedTerm(50));
+	expectAcceptAny(deep50Z, 100, 100, 21);
+	expectReject(inLists(60, deep50Z), 100, 0, 22);
+	expectAcceptAny(inLists(40, deep50Z), 100, 0, 23);
+	// an uncompressed size that zlib cannot produce from the data
+	final byte[] lyingZ = deep50Z.clone();
+	lyingZ[2] = 0x40;
+	expectReject(lyingZ, 0, 0, 24);
+	expectReject(lyingZ, 100, 0, 25);
+    }
+
+    // [[...[]...]] with n levels of nesting above the innermost [], as a
+    // term
+    private static OtpErlangObject nestedTerm(final int n) {
+	OtpErlangObject o = new OtpErlangList();
+	for (int i = 0; i < n; i++) {
+	    o = new OtpErlangList(o);
+	}
+	return o;
+    }
+
+    // term_to_binary(Term, [compressed])
+    private static byte[] compressed(final OtpErlangObject o) {
+	final OtpOutputStream os = new OtpOutputStream();
+	os.write1(131);
+	os.write_compressed(o);
+	return os.toByteArray();
+    }
+
+    // the term nested in n levels of single element lists
+    private static byte[] inLists(final int n, final byte[] term) {
+	final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	out.write(131);
+	for (int i = 0; i < n; i++) {
+	    out.write(108);
+	    out.write(0);
+	    out.write(0);
+	    out.write(0);
+	    out.write(1);
+	}
+	out.write(term, 1, term.length - 1);
+	for (int i = 0; i < n; i++) {
+	    out.write(106);
+	}
+	return out.toByteArray();
+    }
+
+    // [[...[]...]] with n levels of nesting above the innermost []
+    private static byte[] nestedLists(final int n) {
+	final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	out.write(131);
+	for (int i = 0; i < n; i++) {
+	    out.write(108);
+	    out.write(0);
+	    out.write(0);
+	    out.write(0);
+	    out.write(1);
+	}
+	out.write(106);
+	for (int i = 0; i < n; i++) {
+	    out.write(106);
+	}
+	return out.toByteArray();
+    }
+
+    // {a, a, ...}
+    private static byte[] atomTuple(final int arity) {
+	final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	out.write(131);
+	out.write(104);
+	out.write(arity);
+	for (int i = 0; i < arity; i++) {
+	    out.write(119);
+	    out.write(1);
+	    out.write('a');
+	}
+	return out.toByteArray();
+    }
+
+    // a term with the given tag and length field, followed by rest; a tag
+    // of 104 (SMALL_TUPLE_EXT) takes a one byte length
+    private static byte[] withLength(final int tag, final int len,
+	    final byte[] rest) {
+	final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	out.write(131);
+	out.write(tag);
+	if (tag == 104) {
+	    out.write(len);
+	} else {
+	    out.write(len >>> 24);
+	    out.write(len >>> 16);
+	    out.write(len >>> 8);
+	    out.write(len);
+	}
+	// strip the version byte of nested terms
+	if (rest.length > 0 && rest[0] == (byte) 131) {
+	    out.write(rest, 1, rest.length - 1);
+	} else {
+	    out.write(rest, 0, rest.length);
+	}
+	return out.toByteArray();
+    }
+
+    private static OtpInputStream stream(final byte[] in, final int depth,
+	    final int elements) {
+	final OtpInputStream is = new OtpInputStream(in);
+	is.setMaxDepth(depth);
+	is.setMaxElements(elements);
+	return is;
+    }
+
+    private static void expectAccept(final byte[] in, final int depth,
+	    final int elements, final int err) {
+	try {
+	    final OtpErlangObject o = stream(in, depth, elements).read_any();
+	    if (!(o instanceof OtpErlangTuple)) {
+		fail("decoded " + o, err);
+	    }
+	    stream(in, depth, elements).skip_any();
+	} catch (final OtpErlangDecodeException e) {
+	    fail("rejected " + e.getMessage(), err);
+	}
+    }
+
+    private static void expectAcceptAny(final byte[] in, final int depth,
+	    final int elements, final int err) {
+	try {
+	    stream(in, depth, elements).read_any();
+	    final OtpInputStream is = stream(in, depth, elements);
+	    is.skip_any();
+	    if (is.getPos() != in.length) {
+		fail("skipped to " + is.getPos() + " of " + in.length, err);
+	    }
+	} catch (final OtpErlangDecodeException e) {
+	    fail("rejected " + e.getMessage(), err);
+	}
+    }
+
+    private static void expectReject(final byte[] in, final int depth,
+	    final int elements, final int err) {
+	try {
+	    final OtpErlangObject o = stream(in, depth, elements).read_any();
+	    fail("read_any accepted " + o, err);
+	} catch (final OtpErlangDecodeException e) {
+	    // expected
+	} catch (final Throwable e) {
+	    fail("read_any failed with " + e, err);
+	}
+	try {
+	    stream(in, depth, elements).skip_any();
+	    fail("skip_any accepted the term", err);
+	} catch (final OtpErlangDecodeException e) {
+	    // expected
+	} catch (final Throwable e) {
+	    fail("skip_any failed with " + e, err);
+	}
+    }
+
+    private static void fail(final String str, final int reason) {
+	System.out.println(str);
+	System.exit(reason);
+    }
+}
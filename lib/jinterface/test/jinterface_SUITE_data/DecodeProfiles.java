@@ -0,0 +1,314 @@
+/*
+ * %CopyrightBegin%
+ *
+ * Copyright Ericsson AB 2004-2010. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * %CopyrightEnd%
+ */
+
+import java.util.Arrays;
+
+import com.ericsson.otp.erlang.OtpDecodeProfile;
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpInputStream;
+import com.ericsson.otp.erlang.OtpMbox;
+import com.ericsson.otp.erlang.OtpNode;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+class DecodeProfiles {
+
+    /*
+     * Implements test case jinterface_SUITE:decode_profiles/1
+     *
+     * Test each flag of OtpDecodeProfile on an OtpInputStream: the term is
+     * decoded into the representation the flag asks for, and is still equal
+     * to the term that was encoded. Then test the profiles set on a node and
+     * on a mailbox, with a term that erlang echoes to two mailboxes.
+     */
+
+    private static final boolean dbg = true;
+    private static final int recTime = 5000;
+
+    // the elements of the term decoded
+    private static final int bin = 0;
+    private static final int hi = 1;
+    private static final int ints = 2;
+    private static final int improper = 3;
+    private static final int abc = 4;
+    private static final int atom = 5;
+    private static final int nil = 6;
+
+    public static void main(final String argv[]) {
+
+	final String cookie = argv[0];
+	final String erlNode = argv[1];
+
+	try {
+	    checkProfiles();
+
+	    // {<<1,2,3>>, [104,105], [1,1000000,-5], [a|b], "abc", x, []},
+	    // with [104,105] encoded as LIST_EXT and "abc" as STRING_EXT
+	    final OtpErlangTuple term = term();
+	    final OtpOutputStream os = new OtpOutputStream();
+	    os.write1(131);
+	    os.write_any(term);
+	    final byte[] ext = os.toByteArray();
+
+	    OtpErlangTuple t = decode(ext, OtpDecodeProfile.DEFAULT, term, 10);
+	    plainList(t.elementAt(hi), 11);
+	    plainList(t.elementAt(ints), 12);
+	    if (!(t.elementAt(abc) instanceof OtpErlangString)) {
+		fail("string decoded as " + t.elementAt(abc), 13);
+	    }
+	    if (t.elementAt(nil).getClass() != OtpErlangList.class) {
+		fail("nil decoded as " + t.elementAt(nil).getClass(), 14);
+	    }
+
+	    // binaries share the bytes they are decoded from
+	    final OtpDecodeProfile buffers = OtpDecodeProfile.DEFAULT
+		    .withBinariesAsBuffers(true);
+	    t = decode(ext, buffers, term, 20);
+	    final byte[] binExt = new byte[] { (byte) 131, 109, 0, 0, 0, 3, 1,
+		    2, 3 };
+	    final OtpErlangBinary b = (OtpErlangBinary) new OtpInputStream(
+		    binExt, buffers).read_any();
+	    binExt[6] = 42;
+	    if (b.binaryValue()[0] != 42) {
+		fail("binary copied", 21);
+	    }
+	    binExt[6] = 43;
+	    if (((OtpErlangBinary) new OtpInputStream(binExt).read_any())
+		    .binaryValue()[0] != 43) {
+		fail("binary not decoded", 22);
+	    }
+
+	    // lists of code points as strings, other integer lists as lists
+	    final OtpDecodeProfile strings = OtpDecodeProfile.DEFAULT
+		    .withIntListsAsStrings(true);
+	    t = decode(ext, strings, null, 30);
+	    if (!new OtpErlangString("hi").equals(t.elementAt(hi))) {
+		fail("[104,105] decoded as " + t.elementAt(hi), 31);
+	    }
+	    plainList(t.elementAt(ints), 32);
+	    if (!new OtpErlangString("").equals(t.elementAt(nil))) {
+		fail("nil decoded as " + t.elementAt(nil), 33);
+	    }
+
+	    // integer lists backed by int[]
+	    final OtpDecodeProfile arrays = OtpDecodeProfile.DEFAULT
+		    .withIntListsAsArrays(true);
+	    t = decode(ext, arrays, term, 40);
+	    intList(t.elementAt(hi), new int[] { 104, 105 }, 41);
+	    intList(t.elementAt(ints), new int[] { 1, 1000000, -5 }, 43);
+	    plainList(t.elementAt(improper), 45);
+
+	    // both: strings where the integers are code points
+	    t = decode(ext, strings.withIntListsAsArrays(true), null, 50);
+	    if (!new OtpErlangString("hi").equals(t.elementAt(hi))) {
+		fail("[104,105] decoded as " + t.elementAt(hi), 51);
+	    }
+	    intList(t.elementAt(ints), new int[] { 1, 1000000, -5 }, 52);
+
+	    // STRING_EXT as lists
+	    t = decode(ext, OtpDecodeProfile.DEFAULT.withStringsAsLists(true),
+		    null, 60);
+	    intList(t.elementAt(abc), new int[] { 'a', 'b', 'c' }, 61);
+
+	    // canonical atoms
+	    t = decode(ext, OtpDecodeProfile.DEFAULT.withCanonicalAtoms(true),
+		    term, 70);
+	    if (t.elementAt(atom) != OtpErlangAtom.of("x")) {
+		fail("atom not canonical", 71);
+	    }
+
+	    // lazy views
+	    t = decode(ext, OtpDecodeProfile.DEFAULT.withLazyTerms(true), term,
+		    80);
+	    if (t.getClass() == OtpErlangTuple.class) {
+		fail("tuple not decoded lazily", 81);
+	    }
+
+	    // a node that decodes integer lists as arrays and binaries as
+	    // buffers, with a mailbox that decodes strings as lists and atoms
+	    // as canonical atoms instead
+	    final OtpNode node = new OtpNode("javanode", cookie);
+	    node.setDecodeProfile(arrays.withBinariesAsBuffers(true));
+	    final OtpMbox mbox = node.createMbox();
+	    final OtpMbox other = node.createMbox();
+	    other.setDecodeProfile(OtpDecodeProfile.DEFAULT.withStringsAsLists(
+		    true).withCanonicalAtoms(true));
+
+	    t = echo(mbox, mbox, erlNode, term, 100);
+	    // erlang sends [104,105] as STRING_EXT
+	    if (!new OtpErlangString("hi").equals(t.elementAt(hi))) {
+		fail("[104,105] received as " + t.elementAt(hi), 101);
+	    }
+	    intList(t.elementAt(ints), new int[] { 1, 1000000, -5 }, 102);
+
+	    t = echo(mbox, other, erlNode, term, 110);
+	    intList(t.elementAt(hi), new int[] { 104, 105 }, 111);
+	    plainList(t.elementAt(ints), 113);
+	    intList(t.elementAt(abc), new int[] { 'a', 'b', 'c' }, 114);
+	    if (t.elementAt(atom) != OtpErlangAtom.of("x")) {
+		fail("atom not canonical", 116);
+	    }
+
+	    // back to the profile of the connection
+	    other.setDecodeProfile(null);
+	    t = echo(mbox, other, erlNode, term, 120);
+	    intList(t.elementAt(ints), new int[] { 1, 1000000, -5 }, 121);
+
+	    mbox.send("erl_profile_server", erlNode, new OtpErlangAtom("done"));
+	    mbox.close();
+	    other.close();
+	    node.close();
+	} catch (final Exception e) {
+	    e.printStackTrace();
+	    fail("exception " + e, 1);
+	}
+    }
+
+    // the profiles and their flags
+    private static void checkProfiles() {
+	final OtpDecodeProfile p = OtpDecodeProfile.DEFAULT;
+	final OtpDecodeProfile[] profiles = new OtpDecodeProfile[] {
+		p.withIntListsAsStrings(true), p.withLazyTerms(true),
+		p.withBinariesAsBuffers(true), p.withIntListsAsArrays(true),
+		p.withStringsAsLists(true), p.withCanonicalAtoms(true) };
+	final int[] flags = new int[] {
+		OtpInputStream.DECODE_INT_LISTS_AS_STRINGS,
+		OtpInputStream.DECODE_LAZY_TERMS,
+		OtpInputStream.DECODE_BINARIES_AS_BUFFERS,
+		OtpInputStream.DECODE_INT_LISTS_AS_ARRAYS,
+		OtpInputStream.DECODE_STRINGS_AS_LISTS,
+		OtpInputStream.DECODE_CANONICAL_ATOMS };
+	if (p.flags() != 0) {
+	    fail("default flags " + p.flags(), 3);
+	}
+	int all = 0;
+	OtpDecodeProfile combined = p;
+	for (int i = 0; i < profiles.length; i++) {
+	    if (profiles[i].flags() != flags[i]) {
+		fail(profiles[i] + " has flags " + profiles[i].flags(), 4);
+	    }
+	    all |= flags[i];
+	    combined = OtpDecodeProfile.fromFlags(combined.flags() | flags[i]);
+	}
+	if (combined.flags() != all
+		|| !combined.equals(OtpDecodeProfile.fromFlags(all))
+		|| combined.hashCode() != OtpDecodeProfile.fromFlags(all)
+			.hashCode()) {
+	    fail("combined profile " + combined, 5);
+	}
+	if (!p.withLazyTerms(true).withLazyTerms(false).equals(p)) {
+	    fail("flag not cleared", 6);
+	}
+    }
+
+    private static OtpErlangTuple term() throws Exception {
+	final OtpErlangObject[] elems = new OtpErlangObject[7];
+	elems[bin] = new OtpErlangBinary(new byte[] { 1, 2, 3 });
+	elems[hi] = longs(104, 105);
+	elems[ints] = longs(1, 1000000, -5);
+	elems[improper] = new OtpErlangList(
+		new OtpErlangObject[] { new OtpErlangAtom("a") },
+		new OtpErlangAtom("b"));
+	elems[abc] = new OtpErlangString("abc");
+	elems[atom] = new OtpErlangAtom("x");
+	elems[nil] = new OtpErlangList();
+	return new OtpErlangTuple(elems);
+    }
+
+    private static OtpErlangList longs(final long... values) {
+	final OtpErlangObject[] elems = new OtpErlangObject[values.length];
+	for (int i = 0; i < values.length; i++) {
+	    elems[i] = new OtpErlangLong(values[i]);
+	}
+	return new OtpErlangList(elems);
+    }
+
+    // decode with a profile, and compare with the term if one is given
+    private static OtpErlangTuple decode(final byte[] ext,
+	    final OtpDecodeProfile profile, final OtpErlangObject term,
+	    final int err) throws Exception {
+	final OtpErlangObject o = new OtpInputStream(ext, profile).read_any();
+	dbg(profile + " decoded " + o);
+	if (term != null && (!term.equals(o) || !o.equals(term))) {
+	    fail("decoded " + o, err);
+	}
+	return (OtpErlangTuple) o;
+    }
+
+    // send the term to erlang, which sends it to another mailbox
+    private static OtpErlangTuple echo(final OtpMbox mbox, final OtpMbox to,
+	    final String erlNode, final OtpErlangTuple term, final int err)
+	    throws Exception {
+	mbox.send("erl_profile_server", erlNode, new OtpErlangTuple(
+		new OtpErlangObject[] { to.self(), term }));
+	final OtpErlangObject o = to.receive(recTime);
+	dbg("received " + o);
+	if (!(o instanceof OtpErlangTuple)) {
+	    fail("received " + o, err);
+	}
+	// strings and integer lists may come back in another form
+	final OtpErlangTuple t = (OtpErlangTuple) o;
+	final int[] same = new int[] { bin, ints, improper, atom, nil };
+	for (final int i : same) {
+	    if (!term.elementAt(i).equals(t.elementAt(i))) {
+		fail("received " + t.elementAt(i), err + 1);
+	    }
+	}
+	return t;
+    }
+
+    private static void plainList(final OtpErlangObject o, final int err) {
+	if (o.getClass() != OtpErlangList.class) {
+	    fail("decoded as " + o.getClass().getName() + ": " + o, err);
+	}
+    }
+
+    // a list backed by an int[], equal to the list of longs
+    private static void intList(final OtpErlangObject o, final int[] values,
+	    final int err) throws Exception {
+	if (!(o instanceof OtpErlangList) || o.getClass() == OtpErlangList.class) {
+	    fail("decoded as " + o.getClass().getName() + ": " + o, err);
+	}
+	final OtpErlangList list = (OtpErlangList) o;
+	final long[] longs = new long[values.length];
+	for (int i = 0; i < values.length; i++) {
+	    longs[i] = values[i];
+	}
+	if (!Arrays.equals(values, list.intValues())
+		|| !longs(longs).equals(list) || !list.equals(longs(longs))) {
+	    fail("int list " + o, err + 1);
+	}
+    }
+
+    private static void dbg(final String str) {
+	if (dbg) {
+	    System.out.println(str);
+	}
+    }
+
+    private static void fail(final String str, final int reason) {
+	System.out.println(str);
+	System.exit(reason);
+    }
+}
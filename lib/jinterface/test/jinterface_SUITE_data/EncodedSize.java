@@ -0,0 +1,175 @@
+/*
+ * %CopyrightBegin%
+ *
+ * Copyright Ericsson AB 2004-2010. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * %CopyrightEnd%
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangBitstr;
+import com.ericsson.otp.erlang.OtpErlangBoolean;
+import com.ericsson.otp.erlang.OtpErlangDouble;
+import com.ericsson.otp.erlang.OtpErlangExternalFun;
+import com.ericsson.otp.erlang.OtpErlangFileBinary;
+import com.ericsson.otp.erlang.OtpErlangFloat;
+import com.ericsson.otp.erlang.OtpErlangFun;
+import com.ericsson.otp.erlang.OtpErlangIoBinary;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangMap;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangPid;
+import com.ericsson.otp.erlang.OtpErlangPort;
+import com.ericsson.otp.erlang.OtpErlangRef;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+class EncodedSize {
+
+    /*
+     * Implements test case jinterface_SUITE:encoded_size/1
+     *
+     * Test that OtpErlangObject.encodedSize() is the number of bytes that
+     * encode() writes, for every term type and for the boundaries between
+     * the encodings of each type.
+     */
+
+    public static void main(final String argv[]) {
+
+	try {
+	    final List<OtpErlangObject> terms = new ArrayList<OtpErlangObject>();
+
+	    // atoms: latin-1 and utf-8, short and long
+	    terms.add(new OtpErlangAtom(""));
+	    terms.add(new OtpErlangAtom("a"));
+	    terms.add(new OtpErlangAtom(repeat('a', 255)));
+	    terms.add(new OtpErlangAtom("\u00e5\u00e4\u00f6"));
+	    terms.add(new OtpErlangAtom(repeat('\u00e5', 200)));
+	    terms.add(new OtpErlangAtom("\u20ac"));
+	    terms.add(new OtpErlangBoolean(true));
+
+	    // integers on both sides of each encoding boundary
+	    final long[] longs = new long[] { 0, 1, 255, 256, -1, -256,
+		    (1L << 27) - 1, -(1L << 27), 1L << 27, (1L << 31) - 1,
+		    -(1L << 31), 1L << 31, 1L << 32, Long.MAX_VALUE,
+		    Long.MIN_VALUE };
+	    for (int i = 0; i < longs.length; i++) {
+		terms.add(new OtpErlangLong(longs[i]));
+	    }
+	    terms.add(new OtpErlangLong(BigInteger.ONE.shiftLeft(100)));
+	    terms.add(new OtpErlangLong(BigInteger.ONE.shiftLeft(100).negate()));
+	    // 256 bytes of magnitude need LARGE_BIG_EXT
+	    terms.add(new OtpErlangLong(BigInteger.ONE.shiftLeft(2040)));
+	    terms.add(new OtpErlangLong(BigInteger.ONE.shiftLeft(2048)));
+
+	    terms.add(new OtpErlangDouble(0.0));
+	    terms.add(new OtpErlangDouble(-3.5e300));
+	    terms.add(new OtpErlangFloat(1.5f));
+
+	    // strings: STRING_EXT, and lists when too long or not latin-1
+	    terms.add(new OtpErlangString(""));
+	    terms.add(new OtpErlangString("abc"));
+	    terms.add(new OtpErlangString(repeat('x', 65535)));
+	    terms.add(new OtpErlangString(repeat('x', 65536)));
+	    terms.add(new OtpErlangString("\u00e5\u00e4\u00f6"));
+	    terms.add(new OtpErlangString("\u20ac and \ud83d\ude00"));
+
+	    // binaries of every kind
+	    final byte[] bytes = new byte[5000];
+	    for (int i = 0; i < bytes.length; i++) {
+		bytes[i] = (byte) i;
+	    }
+	    terms.add(new OtpErlangBinary(new byte[0]));
+	    terms.add(new OtpErlangBinary(bytes));
+	    terms.add(new OtpErlangBitstr(new byte[] { 1, 2, (byte) 0xf0 }, 4));
+	    terms.add(new OtpErlangBinary(ByteBuffer.wrap(bytes, 100, 1000)
+		    .slice()));
+	    terms.add(new OtpErlangBinary(ByteBuffer.allocateDirect(300)));
+	    terms.add(new OtpErlangIoBinary.Builder().append(bytes, 0, 10)
+		    .append(ByteBuffer.wrap(bytes)).append(
+			    new OtpErlangBinary(bytes)).build());
+	    final File file = File.createTempFile("encoded_size", ".bin");
+	    file.deleteOnExit();
+	    final FileOutputStream out = new FileOutputStream(file);
+	    out.write(bytes);
+	    out.close();
+	    terms.add(new OtpErlangFileBinary(file));
+	    terms.add(new OtpErlangFileBinary(file, 10, 20));
+
+	    // identifiers
+	    terms.add(new OtpErlangPid("node@host", 4, 5, 1));
+	    terms.add(new OtpErlangPort("node@host", 6, 2));
+	    terms.add(new OtpErlangRef("node@host", 7, 3));
+	    terms.add(new OtpErlangRef("\u00e5@host", new int[] { 1, 2, 3 }, 0));
+	    terms.add(new OtpErlangExternalFun("mod", "fun", 2));
+	    terms.add(new OtpErlangFun(new OtpErlangPid("node@host", 4, 5, 1),
+		    "mod", 2, new byte[16], 2, 1, 2, new OtpErlangObject[] {
+			    new OtpErlangAtom("free"), new OtpErlangLong(9) }));
+
+	    // containers, small and large, nested
+	    final OtpErlangObject[] elems = new OtpErlangObject[300];
+	    for (int i = 0; i < elems.length; i++) {
+		elems[i] = terms.get(i % 40);
+	    }
+	    terms.add(new OtpErlangTuple(new OtpErlangObject[0]));
+	    terms.add(new OtpErlangTuple(Arrays.copyOf(elems, 255)));
+	    terms.add(new OtpErlangTuple(elems));
+	    terms.add(new OtpErlangList());
+	    terms.add(new OtpErlangList(elems));
+	    terms.add(new OtpErlangList(Arrays.copyOf(elems, 3),
+		    new OtpErlangAtom("tail")));
+	    terms.add(new OtpErlangMap(new OtpErlangObject[0],
+		    new OtpErlangObject[0]));
+	    terms.add(new OtpErlangMap(Arrays.copyOf(elems, 20), Arrays
+		    .copyOfRange(elems, 20, 40)));
+	    terms.add(new OtpErlangTuple(terms.toArray(new OtpErlangObject[0])));
+
+	    for (int i = 0; i < terms.size(); i++) {
+		final OtpErlangObject t = terms.get(i);
+		final OtpOutputStream os = new OtpOutputStream();
+		os.write_any(t);
+		if (t.encodedSize() != os.size()) {
+		    fail("term " + i + " of type " + t.getClass().getName()
+			    + ": encodedSize " + t.encodedSize() + ", encoded "
+			    + os.size(), 10 + i);
+		}
+	    }
+	} catch (final Exception e) {
+	    e.printStackTrace();
+	    fail("exception " + e, 1);
+	}
+    }
+
+    private static String repeat(final char c, final int n) {
+	final char[] chars = new char[n];
+	Arrays.fill(chars, c);
+	return new String(chars);
+    }
+
+    private static void fail(final String str, final int reason) {
+	System.out.println(str);
+	System.exit(reason);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * %CopyrightBegin%
+ *
+ * Copyright Ericsson AB 2004-2010. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * %CopyrightEnd%
+ */
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpMbox;
+import com.ericsson.otp.erlang.OtpNode;
+
+class FrameLimits {
+
+    /*
+     * Implements test case jinterface_SUITE:frame_limits/1
+     *
+     * Test OtpNode.setMaxFrameSize(...), OtpNode.setMaxTermDepth(...) and
+     * OtpNode.getRejectedFrames(): the erlang process sends a binary larger
+     * than the frame limit, then a term nested deeper than the depth limit,
+     * then the atom 'small'. The first two must be dropped and counted, and
+     * the connection must survive to deliver the third. Then a second java
+     * node, which compresses what it sends, sends a deep term, a term with
+     * too many elements and 'small'. The limits must hold for the
+     * compressed payloads too.
+     */
+
+    private static final boolean dbg = true;
+    private static final int recTime = 5000;
+
+    public static void main(final String argv[]) {
+
+	final String cookie = argv[0];
+	final String erlNode = argv[1];
+
+	try {
+	    final OtpNode node = new OtpNode("javanode", cookie);
+	    // set before the connection to the erlang node is made
+	    node.setMaxFrameSize(16384);
+	    node.setMaxTermDepth(100);
+	    node.setMaxTermElements(1000);
+	    final OtpMbox mbox = node.createMbox();
+
+	    if (node.getRejectedFrames() != 0) {
+		fail("rejected frames before connecting", 1);
+	    }
+
+	    mbox.send("erl_frame_server", erlNode, mbox.self());
+
+	    OtpErlangObject o = mbox.receive(recTime);
+	    dbg("mbox received " + o);
+	    if (o == null) {
+		fail("nothing received", 2);
+	    }
+	    if (!new OtpErlangAtom("small").equals(o)) {
+		fail("received " + o, 3);
+	    }
+
+	    long rejected = node.getRejectedFrames();
+	    if (rejected != 2) {
+		fail("rejected frames " + rejected, 4);
+	    }
+
+	    final OtpNode node2 = new OtpNode("javanode2", cookie);
+	    node2.setCompressionThreshold(256);
+	    final OtpMbox mbox2 = node2.createMbox();
+
+	    OtpErlangObject deep = new OtpErlangList();
+	    for (int i = 0; i < 1000; i++) {
+		deep = new OtpErlangList(deep);
+	    }
+	    final OtpErlangObject[] atoms = new OtpErlangObject[5000];
+	    for (int i = 0; i < atoms.length; i++) {
+		atoms[i] = new OtpErlangAtom("a");
+	    }
+	    mbox2.send(mbox.self(), deep);
+	    mbox2.send(mbox.self(), new OtpErlangTuple(atoms));
+	    mbox2.send(mbox.self(), new OtpErlangAtom("small"));
+
+	    o = mbox.receive(recTime);
+	    dbg("mbox received " + o);
+	    if (!new OtpErlangAtom("small").equals(o)) {
+		fail("received " + o + " from compressing node", 6);
+	    }
+	    rejected = node.getRejectedFrames();
+	    if (rejected != 4) {
+		fail("rejected frames " + rejected, 7);
+	    }
+	    node2.close();
+
+	    mbox.send("erl_frame_server", erlNode, new OtpErlangAtom("done"));
+	    mbox.close();
+	    node.close();
+	} catch (final Exception e) {
+	    e.printStackTrace();
+	    fail("exception " + e, 5);
+	}
+    }
+
+    private static void dbg(final String str) {
+	if (dbg) {
+	    System.out.println(str);
+	}
+    }
+
+    private static void fail(final String str, final int reason) {
+	System.out.println(str);
+	System.exit(reason);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * %CopyrightBegin%
+ *
+ * Copyright Ericsson AB 2004-2010. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * %CopyrightEnd%
+ */
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import com.ericsson.otp.erlang.OtpDecodeProfile;
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangDouble;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangMap;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpInputStream;
+import com.ericsson.otp.erlang.OtpMbox;
+import com.ericsson.otp.erlang.OtpNode;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+class LazyTerms {
+
+    /*
+     * Implements test case jinterface_SUITE:lazy_terms/1
+     *
+     * Test the lazy views that OtpInputStream.read_any() makes of tuples,
+     * lists and maps with OtpInputStream.DECODE_LAZY_TERMS: they are equal
+     * to the terms decoded as usual, in both directions, with the same hash
+     * code, and they encode to the bytes they were decoded from. Then the
+     * same for terms from erlang, received on a node that decodes lazily
+     * and sent back to erlang.
+     */
+
+    private static final boolean dbg = true;
+    private static final int recTime = 5000;
+
+    public static void main(final String argv[]) {
+
+	final String cookie = argv[0];
+	final String erlNode = argv[1];
+
+	try {
+	    final OtpErlangObject[] terms = terms();
+
+	    for (int i = 0; i < terms.length; i++) {
+		final byte[] ext = encode(terms[i]);
+		final OtpErlangObject lazy = new OtpInputStream(ext,
+			OtpInputStream.DECODE_LAZY_TERMS).read_any();
+		checkView(terms[i], lazy, ext, 10 + 10 * i);
+	    }
+
+	    // {[1,2,3], a} with 1 as INTEGER_EXT and the atom as
+	    // SMALL_ATOM_UTF8_EXT, which is not how jinterface would encode
+	    // them
+	    final byte[] ext = new byte[] { (byte) 131, 104, 2, 108, 0, 0, 0,
+		    3, 98, 0, 0, 0, 1, 97, 2, 97, 3, 106, 119, 1, 'a' };
+	    final OtpErlangObject eager = new OtpInputStream(ext).read_any();
+	    if (Arrays.equals(ext, encode(eager))) {
+		fail("encoded as jinterface would", 3);
+	    }
+	    final OtpErlangObject lazy = new OtpInputStream(ext,
+		    OtpInputStream.DECODE_LAZY_TERMS).read_any();
+	    checkView(eager, lazy, ext, 4);
+
+	    // the same terms from erlang, which echoes them
+	    final OtpNode node = new OtpNode("javanode", cookie);
+	    node.setDecodeProfile(OtpDecodeProfile.DEFAULT.withLazyTerms(true));
+	    final OtpMbox mbox = node.createMbox();
+	    for (int i = 0; i < terms.length; i++) {
+		final int err = 200 + 10 * i;
+		mbox.send("erl_lazy_server", erlNode, new OtpErlangTuple(
+			new OtpErlangObject[] { mbox.self(), terms[i] }));
+		final OtpErlangObject o = mbox.receive(recTime);
+		dbg("mbox received " + o);
+		if (o == null) {
+		    fail("nothing received", err);
+		}
+		checkView(terms[i], o, encode(o), err + 1);
+
+		// and back: erlang replies true if it gets what it sent
+		mbox.send("erl_lazy_server", erlNode, new OtpErlangTuple(
+			new OtpErlangObject[] { mbox.self(),
+				new OtpErlangAtom("same"), o }));
+		final OtpErlangObject same = mbox.receive(recTime);
+		if (!new OtpErlangAtom(true).equals(same)) {
+		    fail("erlang got back a different term: " + same, err + 8);
+		}
+	    }
+	    mbox.send("erl_lazy_server", erlNode, new OtpErlangAtom("done"));
+	    mbox.close();
+	    node.close();
+	} catch (final Exception e) {
+	    e.printStackTrace();
+	    fail("exception " + e, 1);
+	}
+    }
+
+    // terms with tuples, lists and maps at several levels
+    private static OtpErlangObject[] terms() throws Exception {
+	final OtpErlangObject[] items = new OtpErlangObject[100];
+	for (int i = 0; i < items.length; i++) {
+	    items[i] = new OtpErlangTuple(new OtpErlangObject[] {
+		    new OtpErlangAtom("item"), new OtpErlangLong(i + 1) });
+	}
+	final OtpErlangObject map = new OtpErlangMap(new OtpErlangObject[] {
+		new OtpErlangAtom("a"), new OtpErlangLong(1) },
+		new OtpErlangObject[] { new OtpErlangList(items),
+			new OtpErlangString("one") });
+	return new OtpErlangObject[] {
+		new OtpErlangTuple(new OtpErlangObject[] {
+			new OtpErlangAtom("a"),
+			new OtpErlangLong(BigInteger.ONE.shiftLeft(70)),
+			new OtpErlangDouble(3.5),
+			new OtpErlangBinary("bin".getBytes()) }),
+		new OtpErlangList(items),
+		new OtpErlangList(new OtpErlangObject[] {
+			new OtpErlangAtom("x") }, new OtpErlangAtom("y")),
+		map,
+		new OtpErlangTuple(new OtpErlangObject[] { map,
+			new OtpErlangList(new OtpErlangObject[] { map,
+				new OtpErlangTuple(items) }) }) };
+    }
+
+    // check a lazy view against the term decoded as usual
+    private static void checkView(final OtpErlangObject term,
+	    final OtpErlangObject lazy, final byte[] ext, final int err)
+	    throws Exception {
+	if (lazy.getClass() == term.getClass()) {
+	    fail("not a view: " + lazy.getClass().getName(), err);
+	}
+	// equality in both directions, before any element is decoded
+	if (!lazy.equals(term)) {
+	    fail("view not equal to term " + term, err + 1);
+	}
+	if (!term.equals(lazy)) {
+	    fail("term not equal to view " + term, err + 2);
+	}
+	if (lazy.hashCode() != term.hashCode()) {
+	    fail("hash " + lazy.hashCode() + " of view, " + term.hashCode()
+		    + " of term", err + 3);
+	}
+	if (!Arrays.equals(ext, encode(lazy))) {
+	    fail("view not encoded as it was decoded", err + 4);
+	}
+	if (lazy.encodedSize() != ext.length - 1) {
+	    fail("encodedSize " + lazy.encodedSize() + " of view", err + 5);
+	}
+	if (!lazy.toString().equals(term.toString())) {
+	    fail("view prints as " + lazy, err + 6);
+	}
+	// a view of a view is equal as well
+	final OtpErlangObject again = new OtpInputStream(ext,
+		OtpInputStream.DECODE_LAZY_TERMS).read_any();
+	if (!again.equals(lazy) || again.hashCode() != lazy.hashCode()) {
+	    fail("views not equal", err + 7);
+	}
+    }
+
+    private static byte[] encode(final OtpErlangObject o) {
+	final OtpOutputStream os = new OtpOutputStream();
+	os.write1(131);
+	os.write_any(o);
+	return os.toByteArray();
+    }
+
+    private static void dbg(final String str) {
+	if (dbg) {
+	    System.out.println(str);
+	}
+    }
+
+    private static void fail(final String str, final int reason) {
+	System.out.println(str);
+	System.exit(reason);
+    }
+}
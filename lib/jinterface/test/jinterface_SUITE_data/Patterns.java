@@ -0,0 +1,258 @@
+/*
+ * %CopyrightBegin%
+ *
+ * Copyright Ericsson AB 2004-2010. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * %CopyrightEnd%
+ */
+
+import com.ericsson.otp.erlang.GenericQueue;
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangPid;
+import com.ericsson.otp.erlang.OtpErlangRef;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpMbox;
+import com.ericsson.otp.erlang.OtpMsg;
+import com.ericsson.otp.erlang.OtpNode;
+import com.ericsson.otp.erlang.OtpPattern;
+
+class Patterns {
+
+    /*
+     * Implements test case jinterface_SUITE:patterns/1
+     *
+     * Test OtpPattern and OtpMbox.receiveMsg(OtpPattern...), which pick
+     * messages out of the mailbox with GenericQueue.get(Filter...). The same
+     * messages are sent by the erlang process, by a mailbox on the same node
+     * and by a second java node that compresses them. Each time the
+     * matching messages are received first, and then the others must come
+     * out in the order they were sent. GenericQueue.get(Filter...) is also
+     * tested on its own.
+     */
+
+    private static final boolean dbg = true;
+    private static final int recTime = 5000;
+
+    public static void main(final String argv[]) {
+
+	final String cookie = argv[0];
+	final String erlNode = argv[1];
+
+	try {
+	    final OtpNode node = new OtpNode("javanode", cookie);
+	    final OtpMbox mbox = node.createMbox();
+
+	    // messages from erlang: {ref, Ref} and then messages(Ref, Pad)
+	    mbox.send("erl_pattern_server", erlNode, mbox.self());
+	    final OtpPattern refMsg = OtpPattern.compile(tuple(atom("ref"),
+		    OtpPattern.var("Ref")));
+	    final OtpMsg m = mbox.receiveMsg(refMsg, recTime);
+	    final OtpErlangRef erlRef = (OtpErlangRef) refMsg.match(m).get(
+		    "Ref");
+	    dbg("erlang ref " + erlRef);
+	    selectiveReceive(mbox, erlRef, 10);
+
+	    // from a mailbox on the same node
+	    final OtpMbox local = node.createMbox();
+	    final OtpErlangRef localRef = node.createRef();
+	    sendMessages(local, mbox.self(), localRef);
+	    selectiveReceive(mbox, localRef, 30);
+	    local.close();
+
+	    // from another node, compressed
+	    final OtpNode node2 = new OtpNode("javanode2", cookie);
+	    node2.setCompressionThreshold(256);
+	    final OtpMbox remote = node2.createMbox();
+	    final OtpErlangRef remoteRef = node2.createRef();
+	    sendMessages(remote, mbox.self(), remoteRef);
+	    selectiveReceive(mbox, remoteRef, 50);
+	    remote.close();
+	    node2.close();
+
+	    queueFilters(70);
+
+	    mbox.send("erl_pattern_server", erlNode, atom("done"));
+	    mbox.close();
+	    node.close();
+	} catch (final Exception e) {
+	    e.printStackTrace();
+	    fail("exception " + e, 1);
+	}
+    }
+
+    // as pattern_messages/2 in jinterface_SUITE
+    private static OtpErlangObject[] messages(final OtpErlangRef ref) {
+	final OtpErlangBinary pad = new OtpErlangBinary(new byte[1000]);
+	return new OtpErlangObject[] {
+		tuple(atom("other"), new OtpErlangLong(1), pad),
+		tuple(atom("pair"), new OtpErlangLong(1), new OtpErlangLong(2),
+			pad), tuple(atom("reply"), ref, pad),
+		tuple(atom("other"), new OtpErlangLong(2), pad),
+		tuple(atom("pair"), new OtpErlangLong(7), new OtpErlangLong(7),
+			pad), tuple(atom("other"), new OtpErlangLong(3), pad),
+		atom("sent") };
+    }
+
+    private static void sendMessages(final OtpMbox from,
+	    final OtpErlangPid to, final OtpErlangRef ref) {
+	final OtpErlangObject[] msgs = messages(ref);
+	for (int i = 0; i < msgs.length; i++) {
+	    from.send(to, msgs[i]);
+	}
+    }
+
+    private static void selectiveReceive(final OtpMbox mbox,
+	    final OtpErlangRef ref, final int err) throws Exception {
+	final OtpErlangObject[] msgs = messages(ref);
+
+	// the last message sent, so the others are all in the mailbox
+	if (mbox.receiveMsg(OtpPattern.compile(atom("sent")), recTime) == null) {
+	    fail("no sent", err);
+	}
+
+	// a reference in the pattern, and '_'
+	final OtpPattern reply = OtpPattern.compile(tuple(atom("reply"), ref,
+		OtpPattern.any()));
+	OtpMsg m = mbox.receiveMsg(reply, recTime);
+	if (!msgs[2].equals(m.getMsg())) {
+	    fail("received " + m.getMsg() + " for reply", err + 1);
+	}
+
+	// a repeated variable only matches equal terms
+	final OtpPattern pair = OtpPattern.compile(tuple(atom("pair"),
+		OtpPattern.var("X"), OtpPattern.var("X"), OtpPattern.var("_")));
+	m = mbox.receiveMsg(pair, recTime);
+	if (!msgs[4].equals(m.getMsg())) {
+	    fail("received " + m.getMsg() + " for pair", err + 2);
+	}
+	final OtpPattern.Bindings b = pair.match(m);
+	if (b == null || !new OtpErlangLong(7).equals(b.get("X"))) {
+	    fail("X bound to " + (b == null ? null : b.get("X")), err + 3);
+	}
+
+	// nothing else matches
+	try {
+	    m = mbox.receiveMsg(reply, 100);
+	    fail("received " + m.getMsg() + " for second reply", err + 4);
+	} catch (final InterruptedException e) {
+	    // expected
+	}
+	try {
+	    m = mbox.receiveMsg(pair, 0);
+	    fail("received " + m.getMsg() + " for second pair", err + 5);
+	} catch (final InterruptedException e) {
+	    // expected
+	}
+
+	// the rest in the order they were sent
+	final int[] rest = new int[] { 0, 1, 3, 5 };
+	for (int i = 0; i < rest.length; i++) {
+	    final OtpErlangObject o = mbox.receive(recTime);
+	    dbg("mbox received " + o);
+	    if (!msgs[rest[i]].equals(o)) {
+		fail("received " + o + " instead of " + msgs[rest[i]], err + 6);
+	    }
+	}
+	final OtpErlangObject o = mbox.receive(100);
+	if (o != null) {
+	    fail("left in mailbox " + o, err + 7);
+	}
+    }
+
+    private static GenericQueue.Filter startsWith(final String prefix) {
+	return new GenericQueue.Filter() {
+	    public boolean accept(final Object o) {
+		return ((String) o).startsWith(prefix);
+	    }
+	};
+    }
+
+    private static void queueFilters(final int err) throws Exception {
+	final GenericQueue q = new GenericQueue();
+	q.put("a1");
+	q.put("b1");
+	q.put("a2");
+	q.put("b2");
+
+	// from the middle, the front and the end of the queue
+	if (!"b1".equals(q.get(startsWith("b")))) {
+	    fail("first b", err);
+	}
+	if (!"a1".equals(q.get(startsWith("a"), 0))) {
+	    fail("first a", err + 1);
+	}
+	if (!"b2".equals(q.get(startsWith("b"), 0))) {
+	    fail("second b", err + 2);
+	}
+	try {
+	    q.get(startsWith("b"), 100);
+	    fail("third b", err + 3);
+	} catch (final InterruptedException e) {
+	    // expected
+	}
+
+	// the end of the queue was removed; new objects go after a2
+	q.put("a3");
+	if (q.getCount() != 2 || !"a2".equals(q.get())
+		|| !"a3".equals(q.get())) {
+	    fail("order after removing the last object", err + 4);
+	}
+
+	// blocks until a matching object arrives
+	final Thread putter = new Thread() {
+	    @Override
+	    public void run() {
+		try {
+		    Thread.sleep(200);
+		} catch (final InterruptedException e) {
+		}
+		q.put("a4");
+		q.put("b3");
+	    }
+	};
+	putter.start();
+	if (!"b3".equals(q.get(startsWith("b"), recTime))) {
+	    fail("b put later", err + 5);
+	}
+	putter.join();
+	if (!"a4".equals(q.get(startsWith("a")))) {
+	    fail("a put later", err + 6);
+	}
+	if (q.getCount() != 0) {
+	    fail("left in queue " + q.getCount(), err + 7);
+	}
+    }
+
+    private static OtpErlangAtom atom(final String name) {
+	return new OtpErlangAtom(name);
+    }
+
+    private static OtpErlangTuple tuple(final OtpErlangObject... elems) {
+	return new OtpErlangTuple(elems);
+    }
+
+    private static void dbg(final String str) {
+	if (dbg) {
+	    System.out.println(str);
+	}
+    }
+
+    private static void fail(final String str, final int reason) {
+	System.out.println(str);
+	System.exit(reason);
+    }
+}
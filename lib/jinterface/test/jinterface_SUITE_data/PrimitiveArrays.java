@@ -0,0 +1,261 @@
+/*
+ * %CopyrightBegin%
+ *
+ * Copyright Ericsson AB 2004-2010. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * %CopyrightEnd%
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.ericsson.otp.erlang.OtpErlangDouble;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpInputStream;
+import com.ericsson.otp.erlang.OtpMbox;
+import com.ericsson.otp.erlang.OtpNode;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+class PrimitiveArrays {
+
+    /*
+     * Implements test case jinterface_SUITE:primitive_arrays/1
+     *
+     * Test OtpOutputStream.write_int_array(), write_long_array(),
+     * write_double_array() and write_string_bytes(), and the read_*_array()
+     * methods of OtpInputStream. Each array is encoded, sent to erlang as a
+     * binary and decoded there with binary_to_term/1. Erlang replies whether
+     * the list is the one expected, and with term_to_binary/1 of it, which
+     * must be the same bytes: lists of values in 0..255 with at most 65535
+     * elements are STRING_EXT, as erlang encodes them, and other lists are
+     * LIST_EXT. The arrays read back from both encodings must be equal to
+     * the arrays written.
+     */
+
+    private static final boolean dbg = true;
+    private static final int recTime = 5000;
+
+    private static final int stringTag = 107;
+    private static final int listTag = 108;
+    private static final int nilTag = 106;
+
+    private static OtpMbox mbox;
+    private static String erlNode;
+
+    public static void main(final String argv[]) {
+
+	final String cookie = argv[0];
+	erlNode = argv[1];
+
+	try {
+	    final OtpNode node = new OtpNode("javanode", cookie);
+	    mbox = node.createMbox();
+	    final Random random = new Random(4711);
+
+	    // integers on both sides of the STRING_EXT limits
+	    final int[] bytes = new int[65536];
+	    for (int i = 0; i < bytes.length; i++) {
+		bytes[i] = random.nextInt(256);
+	    }
+	    checkInts(new int[0], nilTag, 10);
+	    checkInts(new int[] { 0, 1, 255 }, stringTag, 20);
+	    checkInts(new int[] { 0, 256 }, listTag, 30);
+	    checkInts(new int[] { 1, -1 }, listTag, 40);
+	    checkInts(Arrays.copyOf(bytes, 65535), stringTag, 50);
+	    checkInts(bytes, listTag, 60);
+	    checkInts(new int[] { Integer.MIN_VALUE, Integer.MAX_VALUE,
+		    1 << 27, -(1 << 27) - 1, 42 }, listTag, 70);
+
+	    checkLongs(new long[0], nilTag, 110);
+	    checkLongs(new long[] { 255, 0 }, stringTag, 120);
+	    checkLongs(new long[] { Long.MIN_VALUE, Long.MAX_VALUE, 1L << 40,
+		    -(1L << 31), 255 }, listTag, 130);
+	    final long[] longBytes = new long[65535];
+	    for (int i = 0; i < longBytes.length; i++) {
+		longBytes[i] = bytes[i];
+	    }
+	    checkLongs(longBytes, stringTag, 140);
+
+	    // more doubles than are written to the buffer at a time
+	    final double[] doubles = new double[5000];
+	    for (int i = 0; i < doubles.length; i++) {
+		doubles[i] = (random.nextDouble() - 0.5)
+			* Math.pow(10, i % 600 - 300);
+	    }
+	    checkDoubles(new double[0], nilTag, 210);
+	    checkDoubles(new double[] { 0.0, 1.5, -3.25e-300,
+		    Double.MAX_VALUE, Double.MIN_VALUE }, listTag, 220);
+	    checkDoubles(doubles, listTag, 230);
+
+	    final byte[] raw = new byte[65536];
+	    random.nextBytes(raw);
+	    checkStringBytes(new byte[0], nilTag, 310);
+	    checkStringBytes(new byte[] { 0, (byte) 255, 'a' }, stringTag, 320);
+	    checkStringBytes(Arrays.copyOf(raw, 65535), stringTag, 330);
+	    checkStringBytes(raw, listTag, 340);
+
+	    // lists that do not fit in the array asked for
+	    badArray(new OtpErlangList(new OtpErlangObject[] { new OtpErlangLong(
+		    1L << 40) }), false, 400);
+	    badArray(new OtpErlangList(new OtpErlangObject[] {
+		    new OtpErlangLong(256) }), true, 410);
+	    badArray(new OtpErlangList(new OtpErlangObject[] {
+		    new OtpErlangLong(1), new OtpErlangAtom("a") }), false, 420);
+
+	    mbox.send("erl_array_server", erlNode, new OtpErlangAtom("done"));
+	    mbox.close();
+	    node.close();
+	} catch (final Exception e) {
+	    e.printStackTrace();
+	    fail("exception " + e, 1);
+	}
+    }
+
+    private static void checkInts(final int[] values, final int tag,
+	    final int err) throws Exception {
+	final OtpOutputStream os = new OtpOutputStream();
+	os.write1(131);
+	os.write_int_array(values);
+	final OtpErlangObject[] elems = new OtpErlangObject[values.length];
+	final long[] longs = new long[values.length];
+	for (int i = 0; i < values.length; i++) {
+	    elems[i] = new OtpErlangLong(values[i]);
+	    longs[i] = values[i];
+	}
+	final byte[] ext = echo(os.toByteArray(), tag, elems, err);
+	if (!Arrays.equals(values, new OtpInputStream(ext).read_int_array())) {
+	    fail("int array read back differs", err + 5);
+	}
+	if (!Arrays.equals(longs, new OtpInputStream(ext).read_long_array())) {
+	    fail("int array read back as longs differs", err + 6);
+	}
+    }
+
+    private static void checkLongs(final long[] values, final int tag,
+	    final int err) throws Exception {
+	final OtpOutputStream os = new OtpOutputStream();
+	os.write1(131);
+	os.write_long_array(values);
+	final OtpErlangObject[] elems = new OtpErlangObject[values.length];
+	for (int i = 0; i < values.length; i++) {
+	    elems[i] = new OtpErlangLong(values[i]);
+	}
+	final byte[] ext = echo(os.toByteArray(), tag, elems, err);
+	if (!Arrays.equals(values, new OtpInputStream(ext).read_long_array())) {
+	    fail("long array read back differs", err + 5);
+	}
+    }
+
+    private static void checkDoubles(final double[] values, final int tag,
+	    final int err) throws Exception {
+	final OtpOutputStream os = new OtpOutputStream();
+	os.write1(131);
+	os.write_double_array(values);
+	final OtpErlangObject[] elems = new OtpErlangObject[values.length];
+	for (int i = 0; i < values.length; i++) {
+	    elems[i] = new OtpErlangDouble(values[i]);
+	}
+	final byte[] ext = echo(os.toByteArray(), tag, elems, err);
+	if (!Arrays.equals(values, new OtpInputStream(ext).read_double_array())) {
+	    fail("double array read back differs", err + 5);
+	}
+    }
+
+    private static void checkStringBytes(final byte[] values, final int tag,
+	    final int err) throws Exception {
+	final OtpOutputStream os = new OtpOutputStream();
+	os.write1(131);
+	os.write_string_bytes(values);
+	final OtpErlangObject[] elems = new OtpErlangObject[values.length];
+	for (int i = 0; i < values.length; i++) {
+	    elems[i] = new OtpErlangLong(values[i] & 0xff);
+	}
+	final byte[] ext = echo(os.toByteArray(), tag, elems, err);
+	if (!Arrays.equals(values, new OtpInputStream(ext).read_string_bytes())) {
+	    fail("string bytes read back differ", err + 5);
+	}
+    }
+
+    // check the encoding of a list, and that erlang encodes it the same
+    private static byte[] echo(final byte[] ext, final int tag,
+	    final OtpErlangObject[] elems, final int err) throws Exception {
+	if ((ext[1] & 0xff) != tag) {
+	    fail("encoded with tag " + (ext[1] & 0xff) + " instead of " + tag,
+		    err);
+	}
+	mbox.send("erl_array_server", erlNode, new OtpErlangTuple(
+		new OtpErlangObject[] { mbox.self(), new OtpErlangBinary(ext),
+			new OtpErlangList(elems) }));
+	final OtpErlangObject o = mbox.receive(recTime);
+	if (!(o instanceof OtpErlangTuple)
+		|| ((OtpErlangTuple) o).arity() != 2) {
+	    fail("received " + o, err + 1);
+	}
+	final OtpErlangTuple t = (OtpErlangTuple) o;
+	dbg("received " + t.elementAt(0) + " for " + elems.length
+		+ " elements");
+	if (!new OtpErlangAtom(true).equals(t.elementAt(0))) {
+	    fail("erlang decoded another list", err + 2);
+	}
+	final byte[] erlExt = ((OtpErlangBinary) t.elementAt(1)).binaryValue();
+	if (!Arrays.equals(ext, erlExt)) {
+	    fail("erlang encodes the list differently", err + 3);
+	}
+	return erlExt;
+    }
+
+    // a list must not be read into arrays it does not fit in
+    private static void badArray(final OtpErlangList list,
+	    final boolean ints, final int err) throws Exception {
+	final OtpOutputStream os = new OtpOutputStream();
+	os.write_any(list);
+	final byte[] ext = os.toByteArray();
+	if (ints) {
+	    new OtpInputStream(ext).read_int_array();
+	} else {
+	    try {
+		new OtpInputStream(ext).read_int_array();
+		fail("read as ints: " + list, err);
+	    } catch (final OtpErlangDecodeException e) {
+	    }
+	}
+	try {
+	    new OtpInputStream(ext).read_string_bytes();
+	    fail("read as bytes: " + list, err + 1);
+	} catch (final OtpErlangDecodeException e) {
+	}
+	try {
+	    new OtpInputStream(ext).read_double_array();
+	    fail("read as doubles: " + list, err + 2);
+	} catch (final OtpErlangDecodeException e) {
+	}
+    }
+
+    private static void dbg(final String str) {
+	if (dbg) {
+	    System.out.println(str);
+	}
+    }
+
+    private static void fail(final String str, final int reason) {
+	System.out.println(str);
+	System.exit(reason);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * %CopyrightBegin%
+ *
+ * Copyright Ericsson AB 2004-2010. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * %CopyrightEnd%
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangExit;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangPid;
+import com.ericsson.otp.erlang.OtpErlangRef;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpMbox;
+import com.ericsson.otp.erlang.OtpNode;
+import com.ericsson.otp.erlang.OtpProcess;
+
+class Processes {
+
+    /*
+     * Implements test cases jinterface_SUITE:spawn_exit_reasons/1 and
+     * jinterface_SUITE:send_after/1
+     */
+
+    private static final boolean dbg = true;
+    private static final int recTime = 5000;
+
+    private static final int spawn_exit_reasons = 1;
+    private static final int send_after = 2;
+
+    public static void main(final String argv[]) {
+
+	final String cookie = argv[0];
+	final String erlNode = argv[1];
+	final int tag = Integer.parseInt(argv[2]);
+
+	try {
+	    final OtpNode node = new OtpNode("javanode", cookie);
+	    final OtpMbox mbox = node.createMbox();
+
+	    switch (tag) {
+
+	    case spawn_exit_reasons: {
+
+		// Test OtpNode.spawn(...) and OtpMbox.spawnLink(...): a process
+		// that returns exits with reason normal, one that throws
+		// OtpErlangExit with its reason, and one that throws anything
+		// else with {java_exception, Description}. Each waits for a
+		// message before it ends, so that it can be linked to first.
+		final OtpProcess[] bodies = new OtpProcess[] {
+			new OtpProcess() {
+			    public void run(final OtpMbox m) throws Exception {
+				m.receive();
+			    }
+			}, new OtpProcess() {
+			    public void run(final OtpMbox m) throws Exception {
+				m.receive();
+				throw new OtpErlangExit("my_reason");
+			    }
+			}, new OtpProcess() {
+			    public void run(final OtpMbox m) throws Exception {
+				m.receive();
+				throw new IllegalStateException("boom");
+			    }
+			} };
+		final OtpErlangObject[] reasons = new OtpErlangObject[] {
+			new OtpErlangAtom("normal"),
+			new OtpErlangAtom("my_reason"),
+			new OtpErlangTuple(new OtpErlangObject[] {
+				new OtpErlangAtom("java_exception"),
+				new OtpErlangString(
+					"java.lang.IllegalStateException: boom") }) };
+
+		// linked to a mailbox on the same node, in its own thread
+		for (int i = 0; i < bodies.length; i++) {
+		    final OtpErlangPid pid = mbox.spawnLink(bodies[i]);
+		    mbox.send(pid, new OtpErlangAtom("go"));
+		    try {
+			final OtpErlangObject o = mbox.receive(recTime);
+			fail("received " + o + " instead of an exit", 10 + i);
+		    } catch (final OtpErlangExit e) {
+			dbg("local exit " + e.reason());
+			if (!pid.equals(e.pid()) || !reasons[i].equals(e.reason())) {
+			    fail("exit " + e.reason() + " from " + e.pid(),
+				    20 + i);
+			}
+		    }
+		}
+
+		// linked to the erlang process, on an executor: erlang links
+		// to each pid, sends it a message and replies with the exit
+		// reasons it got
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		node.setProcessExecutor(executor);
+		final OtpErlangObject[] pids = new OtpErlangObject[bodies.length];
+		for (int i = 0; i < bodies.length; i++) {
+		    pids[i] = node.spawn(bodies[i]);
+		}
+		mbox.send("erl_process_server", erlNode, new OtpErlangTuple(
+			new OtpErlangObject[] { mbox.self(),
+				new OtpErlangList(pids) }));
+		final OtpErlangObject o = mbox.receive(recTime);
+		dbg("mbox received " + o);
+		final OtpErlangObject expect = new OtpErlangTuple(
+			new OtpErlangObject[] { new OtpErlangAtom("reasons"),
+				new OtpErlangList(reasons) });
+		if (!expect.equals(o)) {
+		    fail("received " + o, 30);
+		}
+		executor.shutdown();
+		break;
+	    }
+
+	    case send_after: {
+
+		// Test OtpNode.sendAfter(...) and OtpNode.cancelTimer(...) on
+		// a mailbox on the same node: timers expire in the order of
+		// their delays, not the order they were started, and a
+		// cancelled timer sends nothing
+		final OtpErlangRef late = node.sendAfter(mbox, atom("late"), 300);
+		node.sendAfter(mbox, atom("early"), 100);
+		final OtpErlangRef never = node.sendAfter(mbox, atom("never"),
+			200);
+		final long left = node.cancelTimer(never);
+		if (left <= 0 || left > 200) {
+		    fail("cancelTimer returned " + left, 40);
+		}
+		if (node.cancelTimer(never) != -1) {
+		    fail("cancelled twice", 41);
+		}
+		final long start = System.currentTimeMillis();
+		OtpErlangObject o = mbox.receive(recTime);
+		if (!atom("early").equals(o)) {
+		    fail("received " + o + " first", 42);
+		}
+		o = mbox.receive(recTime);
+		final long took = System.currentTimeMillis() - start;
+		if (!atom("late").equals(o)) {
+		    fail("received " + o + " second", 43);
+		}
+		if (took < 150) {
+		    fail("late timer expired after " + took + " ms", 44);
+		}
+		if (node.cancelTimer(late) != -1) {
+		    fail("cancelled an expired timer", 45);
+		}
+		o = mbox.receive(300);
+		if (o != null) {
+		    fail("received " + o + " from a cancelled timer", 46);
+		}
+
+		// to the erlang process: timers with the same delay arrive in
+		// the order they were started, and every other one is
+		// cancelled
+		final OtpErlangPid erl = erlangPid(mbox, erlNode);
+		final int n = 200;
+		final OtpErlangObject[] expect = new OtpErlangObject[n / 2];
+		final OtpErlangRef[] refs = new OtpErlangRef[n];
+		for (int i = 0; i < n; i++) {
+		    final OtpErlangObject msg = new OtpErlangTuple(
+			    new OtpErlangObject[] { atom("timer"),
+				    new OtpErlangLong(i) });
+		    refs[i] = node.sendAfter(erl, msg, 200);
+		    if (i % 2 == 0) {
+			expect[i / 2] = msg;
+		    }
+		}
+		for (int i = 1; i < n; i += 2) {
+		    if (node.cancelTimer(refs[i]) < 0) {
+			fail("timer " + i + " expired early", 47);
+		    }
+		}
+		mbox.send(erl, new OtpErlangTuple(new OtpErlangObject[] {
+			mbox.self(), new OtpErlangList(expect) }));
+		o = mbox.receive(recTime);
+		dbg("mbox received " + o);
+		if (!atom("timers_ok").equals(o)) {
+		    fail("received " + o, 48);
+		}
+		break;
+	    }
+
+	    default:
+		fail("unknown test case " + tag, 2);
+	    }
+
+	    mbox.close();
+	    node.close();
+	} catch (final Exception e) {
+	    e.printStackTrace();
+	    fail("exception " + e, 1);
+	}
+    }
+
+    // the pid of erl_process_server
+    private static OtpErlangPid erlangPid(final OtpMbox mbox,
+	    final String erlNode) throws Exception {
+	mbox.send("erl_process_server", erlNode, mbox.self());
+	final OtpErlangObject o = mbox.receive(recTime);
+	if (!(o instanceof OtpErlangPid)) {
+	    fail("received " + o + " instead of a pid", 3);
+	}
+	return (OtpErlangPid) o;
+    }
+
+    private static OtpErlangAtom atom(final String name) {
+	return new OtpErlangAtom(name);
+    }
+
+    private static void dbg(final String str) {
+	if (dbg) {
+	    System.out.println(str);
+	}
+    }
+
+    private static void fail(final String str, final int reason) {
+	System.out.println(str);
+	System.exit(reason);
+    }
+}
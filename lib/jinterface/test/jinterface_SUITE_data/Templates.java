@@ -0,0 +1,258 @@
+/*
+ * %CopyrightBegin%
+ *
+ * Copyright Ericsson AB 2004-2010. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Erlang Public License,
+ * Version 1.1, (the "License"); you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * Erlang Public License along with this software. If not, it can be
+ * retrieved online at http://www.erlang.org/.
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See
+ * the License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * %CopyrightEnd%
+ */
+
+import java.util.Arrays;
+
+import com.ericsson.otp.erlang.OtpErlangAtom;
+import com.ericsson.otp.erlang.OtpErlangBinary;
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.ericsson.otp.erlang.OtpErlangList;
+import com.ericsson.otp.erlang.OtpErlangLong;
+import com.ericsson.otp.erlang.OtpErlangMap;
+import com.ericsson.otp.erlang.OtpErlangObject;
+import com.ericsson.otp.erlang.OtpErlangPreEncoded;
+import com.ericsson.otp.erlang.OtpErlangString;
+import com.ericsson.otp.erlang.OtpErlangTemplate;
+import com.ericsson.otp.erlang.OtpErlangTuple;
+import com.ericsson.otp.erlang.OtpMbox;
+import com.ericsson.otp.erlang.OtpNode;
+import com.ericsson.otp.erlang.OtpOutputStream;
+
+class Templates {
+
+    /*
+     * Implements test case jinterface_SUITE:templates/1
+     *
+     * Test OtpErlangTemplate and OtpErlangPreEncoded: a filled template
+     * encodes to the same bytes as the term it stands for, with holes in
+     * tuples, lists, list tails and maps, filled with plain, pre-encoded
+     * and filled terms. Erlang must receive the same term for both, and a
+     * term pre-encoded from the bytes of term_to_binary/1 must reach erlang
+     * as the term it encodes. Bad templates and fills are refused.
+     */
+
+    private static final boolean dbg = true;
+    private static final int recTime = 5000;
+
+    private static final OtpErlangAtom reading = new OtpErlangAtom("reading");
+    private static final OtpErlangAtom key = new OtpErlangAtom("key");
+
+    public static void main(final String argv[]) {
+
+	final String cookie = argv[0];
+	final String erlNode = argv[1];
+
+	try {
+	    final OtpErlangObject table = new OtpErlangList(
+		    new OtpErlangObject[] { new OtpErlangAtom("t"),
+			    new OtpErlangString("constant part"),
+			    new OtpErlangBinary(new byte[300]) });
+	    final OtpErlangTemplate template = new OtpErlangTemplate(skeleton(
+		    OtpErlangTemplate.hole(0, OtpErlangLong.class), table,
+		    OtpErlangTemplate.hole(1), OtpErlangTemplate.hole(2)));
+	    if (template.holes() != 3) {
+		fail("template has " + template.holes() + " holes", 3);
+	    }
+
+	    // a template filled into a hole of another
+	    final OtpErlangTemplate inner = new OtpErlangTemplate(
+		    new OtpErlangTuple(new OtpErlangObject[] { key,
+			    OtpErlangTemplate.hole(0) }));
+	    final OtpErlangObject[][] values = new OtpErlangObject[][] {
+		    { new OtpErlangLong(1), key, new OtpErlangList() },
+		    { new OtpErlangLong(1L << 40),
+			    new OtpErlangBinary(new byte[1000]), key },
+		    { new OtpErlangLong(-5), new OtpErlangString("\u00e5"),
+			    new OtpErlangString("") },
+		    { new OtpErlangPreEncoded(new OtpErlangLong(7)),
+			    inner.fill(new OtpErlangLong(8)),
+			    new OtpErlangPreEncoded(new OtpErlangList()) } };
+
+	    final OtpNode node = new OtpNode("javanode", cookie);
+	    final OtpMbox mbox = node.createMbox();
+
+	    for (int i = 0; i < values.length; i++) {
+		final int err = 10 + 10 * i;
+		final OtpErlangPreEncoded filled = template.fill(values[i]);
+		final OtpErlangObject plain = skeleton(unwrap(values[i][0]),
+			table, unwrap(values[i][1]), unwrap(values[i][2]));
+		dbg("filled " + filled);
+
+		if (!Arrays.equals(encode(plain), encode(filled))) {
+		    fail("filled template encoded differently", err);
+		}
+		if (filled.encodedSize() != encode(plain).length - 1) {
+		    fail("encodedSize " + filled.encodedSize(), err + 1);
+		}
+		if (!plain.equals(filled.term())
+			|| !filled.equals(new OtpErlangPreEncoded(plain))
+			|| filled.hashCode() != plain.hashCode()) {
+		    fail("term of filled template " + filled.term(), err + 2);
+		}
+
+		// a local mailbox gets the term, not the pre-encoded one
+		mbox.send(mbox.self(), filled);
+		final OtpErlangObject o = mbox.receive(recTime);
+		if (o instanceof OtpErlangPreEncoded || !plain.equals(o)) {
+		    fail("local mailbox received " + o, err + 3);
+		}
+
+		// and so does erlang
+		final byte[] erlExt = compare(mbox, erlNode, filled, plain,
+			err + 4);
+
+		// the bytes from erlang as a pre-encoded term, with and
+		// without the version byte
+		final OtpErlangPreEncoded fromErl = new OtpErlangPreEncoded(
+			erlExt);
+		if (!plain.equals(fromErl.term())) {
+		    fail("term_to_binary decoded as " + fromErl, err + 6);
+		}
+		compare(mbox, erlNode, fromErl, plain, err + 7);
+		if (!fromErl.equals(new OtpErlangPreEncoded(Arrays
+			.copyOfRange(erlExt, 1, erlExt.length)))) {
+		    fail("pre-encoded without version", err + 9);
+		}
+	    }
+
+	    badTemplates(table);
+
+	    mbox.send("erl_template_server", erlNode, new OtpErlangAtom(
+		    "done"));
+	    mbox.close();
+	    node.close();
+	} catch (final Exception e) {
+	    e.printStackTrace();
+	    fail("exception " + e, 1);
+	}
+    }
+
+    // {reading, X, Table, Y, [X | Z], #{key => Y}}
+    private static OtpErlangObject skeleton(final OtpErlangObject x,
+	    final OtpErlangObject table, final OtpErlangObject y,
+	    final OtpErlangObject z) throws Exception {
+	return new OtpErlangTuple(new OtpErlangObject[] {
+		reading,
+		x,
+		table,
+		y,
+		cons(x, z),
+		new OtpErlangMap(new OtpErlangObject[] { key },
+			new OtpErlangObject[] { y }) });
+    }
+
+    // [X | Z], as it is decoded: a list ending in nil is proper
+    private static OtpErlangList cons(final OtpErlangObject x,
+	    final OtpErlangObject z) throws Exception {
+	if (new OtpErlangList().equals(z) || new OtpErlangString("").equals(z)) {
+	    return new OtpErlangList(new OtpErlangObject[] { x });
+	}
+	return new OtpErlangList(new OtpErlangObject[] { x }, z);
+    }
+
+    private static OtpErlangObject unwrap(final OtpErlangObject o) {
+	if (o instanceof OtpErlangPreEncoded) {
+	    return ((OtpErlangPreEncoded) o).term();
+	}
+	return o;
+    }
+
+    // erlang replies whether the terms are the same, and term_to_binary of
+    // the second
+    private static byte[] compare(final OtpMbox mbox, final String erlNode,
+	    final OtpErlangObject term, final OtpErlangObject plain,
+	    final int err) throws Exception {
+	mbox.send("erl_template_server", erlNode, new OtpErlangTuple(
+		new OtpErlangObject[] { mbox.self(), term, plain }));
+	final OtpErlangObject o = mbox.receive(recTime);
+	dbg("received " + o);
+	if (!(o instanceof OtpErlangTuple)
+		|| ((OtpErlangTuple) o).arity() != 2
+		|| !new OtpErlangAtom(true).equals(((OtpErlangTuple) o)
+			.elementAt(0))) {
+	    fail("erlang received another term: " + o, err);
+	}
+	return ((OtpErlangBinary) ((OtpErlangTuple) o).elementAt(1))
+		.binaryValue();
+    }
+
+    private static void badTemplates(final OtpErlangObject table)
+	    throws Exception {
+	final OtpErlangTemplate template = new OtpErlangTemplate(skeleton(
+		OtpErlangTemplate.hole(0, OtpErlangLong.class), table,
+		OtpErlangTemplate.hole(1), OtpErlangTemplate.hole(2)));
+	final OtpErlangObject[][] badFills = new OtpErlangObject[][] {
+		{ new OtpErlangLong(1), key },
+		{ new OtpErlangLong(1), key, key, key },
+		{ new OtpErlangLong(1), null, key },
+		{ key, key, key },
+		{ new OtpErlangPreEncoded(key), key, key } };
+	for (int i = 0; i < badFills.length; i++) {
+	    try {
+		template.fill(badFills[i]);
+		fail("filled with " + Arrays.toString(badFills[i]), 100 + i);
+	    } catch (final IllegalArgumentException e) {
+	    }
+	}
+
+	// a missing hole number, and a hole with two types
+	final OtpErlangObject[][] badSkeletons = new OtpErlangObject[][] {
+		{ OtpErlangTemplate.hole(0), OtpErlangTemplate.hole(2) },
+		{ OtpErlangTemplate.hole(0, OtpErlangLong.class),
+			OtpErlangTemplate.hole(0, OtpErlangAtom.class) } };
+	for (int i = 0; i < badSkeletons.length; i++) {
+	    try {
+		new OtpErlangTemplate(new OtpErlangTuple(badSkeletons[i]));
+		fail("template " + Arrays.toString(badSkeletons[i]), 110 + i);
+	    } catch (final IllegalArgumentException e) {
+	    }
+	}
+
+	// bytes that are not exactly one term
+	final byte[] ext = encode(key);
+	try {
+	    new OtpErlangPreEncoded(Arrays.copyOf(ext, ext.length + 1));
+	    fail("pre-encoded with bytes after the term", 120);
+	} catch (final OtpErlangDecodeException e) {
+	}
+	try {
+	    new OtpErlangPreEncoded(Arrays.copyOf(ext, ext.length - 1));
+	    fail("pre-encoded a partial term", 121);
+	} catch (final OtpErlangDecodeException e) {
+	}
+    }
+
+    private static byte[] encode(final OtpErlangObject o) {
+	final OtpOutputStream os = new OtpOutputStream();
+	os.write1(131);
+	os.write_any(o);
+	return os.toByteArray();
+    }
+
+    private static void dbg(final String str) {
+	if (dbg) {
+	    System.out.println(str);
+	}
+    }
+
+    private static void fail(final String str, final int reason) {
+	System.out.println(str);
+	System.exit(reason);
+    }
+}